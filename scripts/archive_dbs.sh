@@ -56,7 +56,16 @@ do
         continue
     fi
 
+    # databases in WAL mode may still have committed data in their -wal file,
+    # formplayer checkpoints them when their connection is closed
+    if [ -s "${db}-wal" ]
+    then
+        echo >&2 "skipping due to ${db}-wal"
+        continue
+    fi
+
     touch ${lock}
     gzip ${db}
+    rm -f "${db}-wal" "${db}-shm"
     rm ${lock}
 done < <(find ${dir} -name '*.db' -type f -m${time_suffix})
@@ -3,6 +3,7 @@ package org.commcare.formplayer
 import org.commcare.formplayer.application.SQLiteProperties
 import org.commcare.formplayer.exceptions.SQLiteRuntimeException
 import org.commcare.formplayer.sqlitedb.SQLiteDB
+import org.commcare.formplayer.sqlitedb.SQLiteProfile
 import org.commcare.modern.database.TableBuilder
 import java.nio.file.Paths
 import java.sql.SQLException
@@ -66,7 +67,9 @@ object DbUtils {
     @JvmStatic
     fun commit(sqLiteDB: SQLiteDB) {
         try {
+            val start = System.nanoTime()
             sqLiteDB.connection.commit()
+            sqLiteDB.profile.recordLatency(SQLiteProfile.OPERATION_COMMIT, System.nanoTime() - start)
         } catch (e: SQLException) {
             throw SQLiteRuntimeException(e)
         }
@@ -10,12 +10,13 @@ import org.commcare.cases.util.CasePurgeFilter;
 import org.commcare.cases.util.InvalidCaseGraphException;
 import org.commcare.core.process.XmlFormRecordProcessor;
 import org.commcare.core.sandbox.SandboxUtils;
+import org.commcare.formplayer.database.models.CasePurgeComponentTable;
 import org.commcare.formplayer.database.models.FormplayerCaseIndexTable;
+import org.commcare.formplayer.database.models.SortedCaseIndexList;
 import org.commcare.formplayer.engine.FormplayerTransactionParserFactory;
 import org.commcare.formplayer.sandbox.JdbcSqlStorageIterator;
 import org.commcare.formplayer.sandbox.SqlStorage;
 import org.commcare.formplayer.sandbox.UserSqlSandbox;
-import org.commcare.modern.util.Pair;
 import org.commcare.util.LogTypes;
 import org.javarosa.core.model.User;
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -33,7 +34,16 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -45,6 +55,12 @@ import java.util.Vector;
 public class FormRecordProcessorHelper extends XmlFormRecordProcessor {
     private static final Log log = LogFactory.getLog(FormRecordProcessorHelper.class);
 
+    private static final String[] PURGE_METADATA =
+            new String[]{Case.INDEX_OWNER_ID, Case.INDEX_CASE_STATUS, Case.INDEX_CASE_ID};
+    private static final int OWNER_ID = 0;
+    private static final int CASE_STATUS = 1;
+    private static final int CASE_ID = 2;
+
     public static void processXML(FormplayerTransactionParserFactory factory,
             String fileText)
             throws IOException, XmlPullParserException, UnfullfilledRequirementsException,
@@ -59,15 +75,117 @@ public class FormRecordProcessorHelper extends XmlFormRecordProcessor {
      * unified
      */
     public static void purgeCases(UserSqlSandbox sandbox) throws InvalidCaseGraphException {
+        purgeAllCases(sandbox, getOwners(sandbox));
+    }
+
+    /**
+     * Perform a case purge that only evaluates the cases connected to the given changed cases, and
+     * to any cases changed since the last purge. Falls back to a full purge if the persisted case
+     * components are missing or were built for a different set of owners.
+     *
+     * @param changedCaseIds cases created or updated since the last purge
+     */
+    public static void purgeCases(UserSqlSandbox sandbox, Collection<String> changedCaseIds)
+            throws InvalidCaseGraphException {
+        long start = System.currentTimeMillis();
+        Set<String> owners = getOwners(sandbox);
+        CasePurgeComponentTable componentTable = new CasePurgeComponentTable(sandbox);
+        if (!componentTable.isBuiltFor(getOwnersKey(owners))) {
+            purgeAllCases(sandbox, owners);
+            return;
+        }
+
+        Set<String> seedCaseIds = new HashSet<>(changedCaseIds);
+        seedCaseIds.addAll(componentTable.getPending());
+        if (seedCaseIds.isEmpty()) {
+            return;
+        }
+
+        SqlStorage<Case> storage = sandbox.getCaseStorage();
+        FormplayerCaseIndexTable indexTable = new FormplayerCaseIndexTable(sandbox);
+        HashMap<Integer, String[]> caseMetadata = new HashMap<>();
+        Set<String> evaluatedCaseIds = loadConnectedCases(seedCaseIds, storage, indexTable, componentTable,
+                caseMetadata);
+        SortedCaseIndexList caseIndices = indexTable.getSortedCaseIndexList(caseMetadata.keySet());
+
+        CaseGraphBuilder graphBuilder = new CaseGraphBuilder(owners, caseIndices);
+        for (Map.Entry<Integer, String[]> entry : caseMetadata.entrySet()) {
+            String[] metadata = entry.getValue();
+            graphBuilder.addCase(entry.getKey(), metadata[CASE_ID], metadata[OWNER_ID], metadata[CASE_STATUS]);
+        }
+        CasePurgeFilter filter = new CasePurgeFilter(graphBuilder.getGraph());
+        logInvalidEdges(filter);
+
+        Vector<Integer> casesRemoved = storage.removeAll(filter.getCasesToRemove());
+        indexTable.clearCaseIndices(casesRemoved);
+
+        List<String> removedCaseIds = new ArrayList<>();
+        for (Integer recordId : casesRemoved) {
+            removedCaseIds.add(caseMetadata.remove(recordId)[CASE_ID]);
+        }
+        int removedLedgers = removeLedgers(sandbox.getLedgerStorage(), removedCaseIds);
+
+        int[] recordIds = new int[caseMetadata.size()];
+        String[] caseIds = new String[caseMetadata.size()];
+        int position = 0;
+        for (Map.Entry<Integer, String[]> entry : caseMetadata.entrySet()) {
+            recordIds[position] = entry.getKey();
+            caseIds[position] = entry.getValue()[CASE_ID];
+            position++;
+        }
+        componentTable.replaceComponents(evaluatedCaseIds, labelComponents(recordIds, caseIds, caseIndices));
+
+        long taken = System.currentTimeMillis() - start;
+        log.info(String.format(
+                "Incrementally purged [%d Case, %d Ledger] records out of %d evaluated cases in %dms",
+                casesRemoved.size(), removedLedgers, evaluatedCaseIds.size(), taken));
+    }
+
+    private static void purgeAllCases(UserSqlSandbox sandbox, Set<String> owners)
+            throws InvalidCaseGraphException {
         long start = System.currentTimeMillis();
+
+        int removedCaseCount = -1;
+        int removedLedgers = -1;
+
+        SqlStorage<Case> storage = sandbox.getCaseStorage();
+        FormplayerCaseIndexTable indexTable = new FormplayerCaseIndexTable(sandbox);
+        DAG<String, int[], String> fullCaseGraph = getFullCaseGraph(storage, indexTable, owners);
+
+        CasePurgeFilter filter = new CasePurgeFilter(fullCaseGraph);
+        logInvalidEdges(filter);
+
+        Vector<Integer> casesRemoved = storage.removeAll(filter.getCasesToRemove());
+        removedCaseCount = casesRemoved.size();
+
+        indexTable.clearCaseIndices(casesRemoved);
+
+
+        SqlStorage<Ledger> stockStorage = sandbox.getLedgerStorage();
+        LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
+        removedLedgers = stockStorage.removeAll(stockFilter).size();
+
+        rebuildComponents(storage, indexTable, new CasePurgeComponentTable(sandbox), owners);
+
+        long taken = System.currentTimeMillis() - start;
+        log.info(String.format(
+                "Purged [%d Case, %d Ledger] records in %dms",
+                removedCaseCount, removedLedgers, taken));
+
+    }
+
+    /**
+     * @return the ids of the users in the sandbox and of the groups they belong to
+     */
+    private static Set<String> getOwners(UserSqlSandbox sandbox) {
         //We need to determine if we're using ownership for purging. For right now, only in sync
         // mode
-        Vector<String> owners = new Vector<>();
+        Set<String> owners = new HashSet<>();
         Vector<String> users = new Vector<>();
         for (IStorageIterator<User> userIterator = sandbox.getUserStorage().iterate();
                 userIterator.hasMore(); ) {
             String id = userIterator.nextRecord().getUniqueId();
-            owners.addElement(id);
+            owners.add(id);
             users.addElement(id);
         }
 
@@ -83,19 +201,20 @@ public class FormRecordProcessorHelper extends XmlFormRecordProcessor {
                     XPathReference.getPathExpr("/groups/group/@id").getReference())) {
                 AbstractTreeElement<AbstractTreeElement> idelement = ec.resolveReference(ref);
                 if (idelement.getValue() != null) {
-                    owners.addElement(idelement.getValue().uncast().getString());
+                    owners.add(idelement.getValue().uncast().getString());
                 }
             }
         }
+        return owners;
+    }
 
-        int removedCaseCount = -1;
-        int removedLedgers = -1;
-
-        SqlStorage<Case> storage = sandbox.getCaseStorage();
-        DAG<String, int[], String> fullCaseGraph = getFullCaseGraph(storage,
-                new FormplayerCaseIndexTable(sandbox), owners);
+    private static String getOwnersKey(Set<String> owners) {
+        List<String> sortedOwners = new ArrayList<>(owners);
+        Collections.sort(sortedOwners);
+        return String.join(" ", sortedOwners);
+    }
 
-        CasePurgeFilter filter = new CasePurgeFilter(fullCaseGraph);
+    private static void logInvalidEdges(CasePurgeFilter filter) {
         if (filter.invalidEdgesWereRemoved()) {
             Logger.log(LogTypes.SOFT_ASSERT, "An invalid edge was created in the internal " +
                     "case DAG of a case purge filter, meaning that at least 1 case on the " +
@@ -106,79 +225,205 @@ public class FormRecordProcessorHelper extends XmlFormRecordProcessor {
                     "following cases were also removed from the device: "
                     + filter.getRemovedCasesString());
         }
+    }
 
-        Vector<Integer> casesRemoved = storage.removeAll(filter.getCasesToRemove());
-        removedCaseCount = casesRemoved.size();
+    private static int removeLedgers(SqlStorage<Ledger> stockStorage, List<String> removedCaseIds) {
+        Vector<Integer> ledgersToRemove = new Vector<>();
+        for (String caseId : removedCaseIds) {
+            ledgersToRemove.addAll(stockStorage.getIDsForValue(Ledger.INDEX_ENTITY_ID, caseId));
+        }
+        if (ledgersToRemove.isEmpty()) {
+            return 0;
+        }
+        return stockStorage.removeAll(ledgersToRemove).size();
+    }
 
-        FormplayerCaseIndexTable indexTable = new FormplayerCaseIndexTable(sandbox);
-        indexTable.clearCaseIndices(casesRemoved);
+    /**
+     * Collects every case connected to the seed cases, either through the current case indices or
+     * through the persisted case components, and reads the purge metadata of those that exist.
+     *
+     * @param caseMetadata filled with the purge metadata of each existing connected case, keyed by
+     *                     record id
+     * @return the ids of all connected cases, including ones no longer in storage
+     */
+    private static Set<String> loadConnectedCases(Set<String> seedCaseIds, SqlStorage<Case> storage,
+            FormplayerCaseIndexTable indexTable, CasePurgeComponentTable componentTable,
+            HashMap<Integer, String[]> caseMetadata) {
+        Set<String> connectedCaseIds = new HashSet<>(seedCaseIds);
+        connectedCaseIds.addAll(componentTable.getComponentMembers(seedCaseIds));
+        Set<String> frontier = new HashSet<>(connectedCaseIds);
+        while (!frontier.isEmpty()) {
+            HashMap<Integer, String[]> frontierMetadata = new HashMap<>();
+            storage.bulkReadMetadataForIndex(Case.INDEX_CASE_ID, frontier, PURGE_METADATA, frontierMetadata);
+            caseMetadata.putAll(frontierMetadata);
 
+            // cases indexed by the frontier
+            Set<String> neighbours = new HashSet<>();
+            SortedCaseIndexList outgoing = indexTable.getSortedCaseIndexList(frontierMetadata.keySet());
+            for (int i = 0; i < outgoing.size(); i++) {
+                neighbours.add(outgoing.getTarget(i));
+            }
 
-        SqlStorage<Ledger> stockStorage = sandbox.getLedgerStorage();
-        LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
-        removedLedgers = stockStorage.removeAll(stockFilter).size();
+            // cases indexing the frontier
+            LinkedHashSet<Integer> incoming = new LinkedHashSet<>(indexTable.getCasesIndexingAny(frontier));
+            incoming.removeAll(caseMetadata.keySet());
+            if (!incoming.isEmpty()) {
+                HashMap<Integer, String[]> incomingMetadata = new HashMap<>();
+                storage.bulkReadMetadata(incoming, PURGE_METADATA, incomingMetadata);
+                for (String[] metadata : incomingMetadata.values()) {
+                    neighbours.add(metadata[CASE_ID]);
+                }
+            }
 
+            neighbours.removeAll(connectedCaseIds);
+            if (!neighbours.isEmpty()) {
+                neighbours.addAll(componentTable.getComponentMembers(neighbours));
+                neighbours.removeAll(connectedCaseIds);
+                connectedCaseIds.addAll(neighbours);
+            }
+            frontier = neighbours;
+        }
+        return connectedCaseIds;
+    }
 
-        long taken = System.currentTimeMillis() - start;
-        log.info(String.format(
-                "Purged [%d Case, %d Ledger] records in %dms",
-                removedCaseCount, removedLedgers, taken));
+    private static void rebuildComponents(SqlStorage<Case> storage, FormplayerCaseIndexTable indexTable,
+            CasePurgeComponentTable componentTable, Set<String> owners) {
+        ArrayList<Integer> recordIdList = new ArrayList<>();
+        ArrayList<String> caseIdList = new ArrayList<>();
+        for (JdbcSqlStorageIterator<Case> i = storage.iterate(false, new String[]{Case.INDEX_CASE_ID});
+                i.hasMore(); ) {
+            caseIdList.add(i.peekIncludedMetadata(Case.INDEX_CASE_ID));
+            recordIdList.add(i.nextID());
+        }
+        int[] recordIds = new int[recordIdList.size()];
+        for (int i = 0; i < recordIds.length; i++) {
+            recordIds[i] = recordIdList.get(i);
+        }
+        String[] caseIds = caseIdList.toArray(new String[0]);
+        componentTable.rebuild(labelComponents(recordIds, caseIds, indexTable.getSortedCaseIndexList()),
+                getOwnersKey(owners));
+    }
+
+    /**
+     * Partitions the given cases into the connected components of their case indices, ignoring
+     * the direction of each index. Indices to or from cases that aren't given are ignored.
+     *
+     * @return the component of each case, labelled with the lowest record id in the component
+     */
+    private static Map<String, Integer> labelComponents(int[] recordIds, String[] caseIds,
+            SortedCaseIndexList caseIndices) {
+        HashMap<Integer, Integer> positionOfRecord = new HashMap<>();
+        HashMap<String, Integer> positionOfCase = new HashMap<>();
+        int[] parents = new int[recordIds.length];
+        for (int i = 0; i < recordIds.length; i++) {
+            positionOfRecord.put(recordIds[i], i);
+            positionOfCase.put(caseIds[i], i);
+            parents[i] = i;
+        }
+
+        for (int i = 0; i < caseIndices.size(); i++) {
+            Integer from = positionOfRecord.get(caseIndices.getRecordId(i));
+            Integer to = positionOfCase.get(caseIndices.getTarget(i));
+            if (from != null && to != null) {
+                parents[findRoot(parents, from)] = findRoot(parents, to);
+            }
+        }
 
+        int[] labels = new int[recordIds.length];
+        Arrays.fill(labels, Integer.MAX_VALUE);
+        for (int i = 0; i < recordIds.length; i++) {
+            int root = findRoot(parents, i);
+            labels[root] = Math.min(labels[root], recordIds[i]);
+        }
+        Map<String, Integer> components = new HashMap<>();
+        for (int i = 0; i < recordIds.length; i++) {
+            components.put(caseIds[i], labels[findRoot(parents, i)]);
+        }
+        return components;
     }
 
+    private static int findRoot(int[] parents, int position) {
+        while (parents[position] != position) {
+            parents[position] = parents[parents[position]];
+            position = parents[position];
+        }
+        return position;
+    }
+
+    /**
+     * Builds the case graph used by the purge filter from case metadata alone. Case blobs are
+     * never read, so memory use and time scale with the number of cases and indices rather than
+     * with the size of the case records.
+     *
+     * @param owners ids that own cases for the purposes of the purge, or null if ownership should
+     *               be ignored
+     */
     public static DAG<String, int[], String> getFullCaseGraph(SqlStorage<Case> caseStorage,
             FormplayerCaseIndexTable indexTable,
-            Vector<String> owners) {
-        DAG<String, int[], String> caseGraph = new DAG<>();
-        Vector<Pair<String, String>> indexHolder = new Vector<>();
-
-        HashMap<Integer, Vector<Pair<String, String>>> caseIndexMap = indexTable.getCaseIndexMap();
+            Collection<String> owners) {
+        CaseGraphBuilder graphBuilder = new CaseGraphBuilder(owners, indexTable.getSortedCaseIndexList());
 
         // Pass 1: Create a DAG which contains all of the cases on the phone as nodes, and has a
         // directed edge for each index (from the 'child' case pointing to the 'parent' case) with
         // the appropriate relationship tagged
-        for (JdbcSqlStorageIterator<Case> i = caseStorage.iterate(true,
-                new String[]{Case.INDEX_OWNER_ID, Case.INDEX_CASE_STATUS, Case.INDEX_CASE_ID});
-                i.hasMore(); ) {
-
+        for (JdbcSqlStorageIterator<Case> i = caseStorage.iterate(false, PURGE_METADATA); i.hasMore(); ) {
             String ownerId = i.peekIncludedMetadata(Case.INDEX_OWNER_ID);
-            boolean closed = i.peekIncludedMetadata(Case.INDEX_CASE_STATUS).equals("closed");
+            String status = i.peekIncludedMetadata(Case.INDEX_CASE_STATUS);
             String caseID = i.peekIncludedMetadata(Case.INDEX_CASE_ID);
-            int caseRecordId = i.nextID();
+            graphBuilder.addCase(i.nextID(), caseID, ownerId, status);
+        }
+
+        return graphBuilder.getGraph();
+    }
 
+    /**
+     * Adds cases to the graph used by the purge filter, as nodes tagged with their purge status
+     * and record id, with a directed edge from each case to the cases it indexes.
+     */
+    private static class CaseGraphBuilder {
+        private final DAG<String, int[], String> caseGraph = new DAG<>();
+        private final Set<String> ownerSet;
+        private final SortedCaseIndexList caseIndices;
+
+        // indices of the current case after removing ambiguous duplicates, reused across cases
+        private final ArrayList<String> indexTargets = new ArrayList<>();
+        private final ArrayList<String> indexRelationships = new ArrayList<>();
+
+        CaseGraphBuilder(Collection<String> owners, SortedCaseIndexList caseIndices) {
+            this.ownerSet = owners == null ? null : new HashSet<>(owners);
+            this.caseIndices = caseIndices;
+        }
+
+        void addCase(int caseRecordId, String caseID, String ownerId, String status) {
+            boolean closed = "closed".equals(status);
 
             boolean owned = true;
-            if (owners != null) {
-                owned = owners.contains(ownerId);
+            if (ownerSet != null) {
+                owned = ownerSet.contains(ownerId);
             }
 
-            Vector<Pair<String, String>> indices = caseIndexMap.get(caseRecordId);
-
-            if (indices != null) {
+            int position = caseIndices.firstPositionOf(caseRecordId);
+            if (position != -1) {
                 // In order to deal with multiple indices pointing to the same case with different
                 // relationships, we'll need to traverse once to eliminate any ambiguity
-                for (Pair<String, String> index : indices) {
-                    Pair<String, String> toReplace = null;
-                    boolean skip = false;
-                    for (Pair<String, String> existing : indexHolder) {
-                        if (existing.first.equals(index.first)) {
-                            if (existing.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)
-                                    && !index.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
-                                toReplace = existing;
-                            } else {
-                                skip = true;
-                            }
-                            break;
-                        }
-                    }
-                    if (toReplace != null) {
-                        indexHolder.removeElement(toReplace);
-                    }
-                    if (!skip) {
-                        indexHolder.addElement(index);
+                for (; position < caseIndices.size() && caseIndices.getRecordId(position) == caseRecordId;
+                        position++) {
+                    String target = caseIndices.getTarget(position);
+                    String relationship = caseIndices.getRelationship(position);
+                    int existing = indexTargets.indexOf(target);
+                    if (existing == -1) {
+                        indexTargets.add(target);
+                        indexRelationships.add(relationship);
+                    } else if (indexRelationships.get(existing).equals(CaseIndex.RELATIONSHIP_EXTENSION)
+                            && !relationship.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
+                        indexTargets.remove(existing);
+                        indexRelationships.remove(existing);
+                        indexTargets.add(target);
+                        indexRelationships.add(relationship);
                     }
                 }
             }
+
             int nodeStatus = 0;
             if (owned) {
                 nodeStatus |= CasePurgeFilter.STATUS_OWNED;
@@ -194,12 +439,15 @@ public class FormRecordProcessorHelper extends XmlFormRecordProcessor {
 
             caseGraph.addNode(caseID, new int[]{nodeStatus, caseRecordId});
 
-            for (Pair<String, String> index : indexHolder) {
-                caseGraph.setEdge(caseID, index.first, index.second);
+            for (int index = 0; index < indexTargets.size(); index++) {
+                caseGraph.setEdge(caseID, indexTargets.get(index), indexRelationships.get(index));
             }
-            indexHolder.removeAllElements();
+            indexTargets.clear();
+            indexRelationships.clear();
         }
 
-        return caseGraph;
+        DAG<String, int[], String> getGraph() {
+            return caseGraph;
+        }
     }
 }
@@ -86,6 +86,10 @@ public class FormController extends AbstractBaseController {
     @Value("${commcarehq.host}")
     private String host;
 
+    // answers logged between snapshots of a session's instance, 0 to save the full instance every time
+    @Value("${formplayer.formSession.answerLog.checkpointInterval:0}")
+    private int answerLogCheckpointInterval;
+
     // Iterate over all answers and attempt to save them to check for validity.
     public static HashMap<String, ErrorBean> validateAnswers(FormEntryController formEntryController,
             FormEntryModel formEntryModel,
@@ -231,6 +235,9 @@ public class FormController extends AbstractBaseController {
                             formEntrySession.getFormEntryModel(),
                             answerQuestionBean.getAnswersToValidate(),
                             formEntrySession.getSkipValidation());
+                    if (answerQuestionBean.getAnswersToValidate() != null) {
+                        answerQuestionBean.getAnswersToValidate().keySet().forEach(formEntrySession::recordAnswer);
+                    }
                     responseBean.setErrors(errors);
                 }
         );
@@ -261,9 +268,7 @@ public class FormController extends AbstractBaseController {
         SerializableFormSession serializableFormSession = formSessionService.getSessionById(
                 newRepeatRequestBean.getSessionId());
         FormSession formEntrySession = formSessionFactory.getFormSession(serializableFormSession, newRepeatRequestBean.getWindowWidth());
-        JSONObject response = JsonActionUtils.descendRepeatToJson(formEntrySession.getFormEntryController(),
-                formEntrySession.getFormEntryModel(),
-                newRepeatRequestBean.getRepeatIndex());
+        JSONObject response = formEntrySession.newRepeat(newRepeatRequestBean.getRepeatIndex());
         updateSession(formEntrySession);
         FormEntryResponseBean responseBean = mapper.readValue(response.toString(), FormEntryResponseBean.class);
         responseBean.setTitle(serializableFormSession.getTitle());
@@ -282,9 +287,7 @@ public class FormController extends AbstractBaseController {
         SerializableFormSession serializableFormSession = formSessionService.getSessionById(
                 deleteRepeatRequestBean.getSessionId());
         FormSession formEntrySession = formSessionFactory.getFormSession(serializableFormSession, deleteRepeatRequestBean.getWindowWidth());
-        JSONObject response = JsonActionUtils.deleteRepeatToJson(formEntrySession.getFormEntryController(),
-                formEntrySession.getFormEntryModel(),
-                deleteRepeatRequestBean.getRepeatIndex());
+        JSONObject response = formEntrySession.deleteRepeat(deleteRepeatRequestBean.getRepeatIndex());
         updateSession(formEntrySession);
         FormEntryResponseBean responseBean = mapper.readValue(response.toString(), FormEntryResponseBean.class);
         responseBean.setTitle(serializableFormSession.getTitle());
@@ -380,7 +383,7 @@ public class FormController extends AbstractBaseController {
     private void updateSession(FormSession formEntrySession) throws Exception {
         categoryTimingHelper.timed(
                 Constants.TimingCategories.UPDATE_SESSION,
-                () -> formSessionService.saveSession(formEntrySession.serialize())
+                () -> formSessionService.saveSession(formEntrySession.serialize(answerLogCheckpointInterval))
         );
     }
 }
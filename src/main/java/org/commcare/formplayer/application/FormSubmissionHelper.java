@@ -11,6 +11,7 @@ import org.commcare.formplayer.beans.NotificationMessage;
 import org.commcare.formplayer.beans.OpenRosaResponse;
 import org.commcare.formplayer.beans.SubmitResponseBean;
 import org.commcare.formplayer.beans.menus.ErrorBean;
+import org.commcare.formplayer.database.models.CasePurgeComponentTable;
 import org.commcare.formplayer.engine.FormplayerConfigEngine;
 import org.commcare.formplayer.engine.FormplayerTransactionParserFactory;
 import org.commcare.formplayer.exceptions.SyncRestoreException;
@@ -121,6 +122,7 @@ public class FormSubmissionHelper {
             String windowWidth) throws Exception {
         FormSubmissionContext context = getFormProcessingContext(request, sessionID, domain, isPrevalidated,
                 answers, windowWidth);
+        formSessionService.flushPendingSave(sessionID);
 
         ProcessingStep.StepFactory stepFactory = new ProcessingStep.StepFactory(context, formSessionService);
         Stream<ProcessingStep> processingSteps = Stream.of(
@@ -339,9 +341,16 @@ public class FormSubmissionHelper {
         categoryTimingHelper.timed(
                 Constants.TimingCategories.PURGE_CASES,
                 () -> {
-                    if (factory.wereCaseIndexesDisrupted()
-                            && storageFactory.getPropertyManager().isAutoPurgeEnabled()) {
-                        FormRecordProcessorHelper.purgeCases(factory.getSqlSandbox());
+                    boolean autoPurgeEnabled = storageFactory.getPropertyManager().isAutoPurgeEnabled();
+                    if (factory.wereCaseIndexesDisrupted() && autoPurgeEnabled) {
+                        FormRecordProcessorHelper.purgeCases(factory.getSqlSandbox(),
+                                factory.getCreatedAndUpdatedCases());
+                    } else if (!autoPurgeEnabled) {
+                        // only syncs purge, and rebuild the components when they do
+                        new CasePurgeComponentTable(factory.getSqlSandbox()).clear();
+                    } else {
+                        new CasePurgeComponentTable(factory.getSqlSandbox())
+                                .addPending(factory.getCreatedAndUpdatedCases());
                     }
                 },
                 context.getMetricsTags()
@@ -14,6 +14,11 @@ public class SQLiteProperties {
 
     private static String dataDir;
     private static String tempDataDir;
+    private static boolean connectionPoolEnabled = true;
+    private static int connectionPoolMaxSize = 200;
+    private static long connectionPoolIdleTimeout = 2 * 60 * 1000;
+    private static int statementCacheSize = 50;
+    private static boolean sharedAppsEnabled = false;
 
     public static String getDataDir() {
         if (dataDir == null) {
@@ -29,6 +34,26 @@ public class SQLiteProperties {
         return tempDataDir;
     }
 
+    public static boolean isConnectionPoolEnabled() {
+        return connectionPoolEnabled;
+    }
+
+    public static int getConnectionPoolMaxSize() {
+        return connectionPoolMaxSize;
+    }
+
+    public static long getConnectionPoolIdleTimeout() {
+        return connectionPoolIdleTimeout;
+    }
+
+    public static int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public static boolean isSharedAppsEnabled() {
+        return sharedAppsEnabled;
+    }
+
     @Value("${sqlite.dataDir}")
     public void setDataDir(String dataDir) {
         this.dataDir = normalizeUnixStylePathReferences(dataDir);
@@ -38,6 +63,46 @@ public class SQLiteProperties {
     public void setTempDataDir(String tempDataDir) {
         this.tempDataDir = normalizeUnixStylePathReferences(tempDataDir);
     }
+
+    @Value("${sqlite.connectionPool.enabled:true}")
+    public void setConnectionPoolEnabled(boolean connectionPoolEnabled) {
+        this.connectionPoolEnabled = connectionPoolEnabled;
+    }
+
+    /**
+     * Maximum number of idle connections kept open across all user, application and case search DBs
+     */
+    @Value("${sqlite.connectionPool.maxSize:200}")
+    public void setConnectionPoolMaxSize(int connectionPoolMaxSize) {
+        this.connectionPoolMaxSize = connectionPoolMaxSize;
+    }
+
+    /**
+     * Time in milliseconds after which an idle pooled connection is closed. This should stay well
+     * below the age at which temporary DBs are purged and user DBs are archived.
+     */
+    @Value("${sqlite.connectionPool.idleTimeout:120000}")
+    public void setConnectionPoolIdleTimeout(long connectionPoolIdleTimeout) {
+        this.connectionPoolIdleTimeout = connectionPoolIdleTimeout;
+    }
+
+    /**
+     * Maximum number of prepared statements cached per SQLite connection, 0 disables the cache
+     */
+    @Value("${sqlite.statementCache.size:50}")
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Whether users of the same app build share one installed application DB, see
+     * SharedApplicationStore
+     */
+    @Value("${sqlite.sharedApps.enabled:false}")
+    public void setSharedAppsEnabled(boolean sharedAppsEnabled) {
+        this.sharedAppsEnabled = sharedAppsEnabled;
+    }
+
     private String normalizeUnixStylePathReferences(String input) {
         return input.replaceAll("\\/",String.format("\\%s", File.separator));
     }
@@ -19,6 +19,7 @@ import org.commcare.formplayer.services.CaseSearchHelper;
 import org.commcare.formplayer.services.CategoryTimingHelper;
 import org.commcare.formplayer.services.FormSessionService;
 import org.commcare.formplayer.services.FormplayerLockRegistry;
+import org.commcare.formplayer.services.PlatformCache;
 import org.commcare.formplayer.services.ResponseMetaDataTracker;
 import org.commcare.formplayer.services.RestoreFactory;
 import org.commcare.formplayer.sqlitedb.CaseSearchDB;
@@ -71,6 +72,9 @@ public class UtilController {
     @Autowired
     NotificationLogger notificationLogger;
 
+    @Autowired(required = false)
+    private PlatformCache platformCache;
+
     private final Log log = LogFactory.getLog(UtilController.class);
 
     @Autowired
@@ -110,6 +114,9 @@ public class UtilController {
         boolean success = true;
         try {
             deleteRequest.clear();
+            if (platformCache != null) {
+                platformCache.invalidate(deleteRequest.getApplicationDB());
+            }
         } catch (Exception e) {
             e.printStackTrace();
             success = false;
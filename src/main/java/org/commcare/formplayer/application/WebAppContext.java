@@ -20,7 +20,6 @@ import org.commcare.formplayer.services.BrowserValuesProvider;
 import org.commcare.formplayer.services.FormattedQuestionsService;
 import org.commcare.formplayer.services.FormplayerLockRegistry;
 import org.commcare.formplayer.util.FormplayerDatadog;
-import org.commcare.modern.reference.ArchiveFileRoot;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -208,7 +207,7 @@ public class WebAppContext implements WebMvcConfigurer {
     }
 
     @Bean
-    public ArchiveFileRoot formplayerArchiveFileRoot() {
+    public FormplayerArchiveFileRoot formplayerArchiveFileRoot() {
         return new FormplayerArchiveFileRoot();
     }
 
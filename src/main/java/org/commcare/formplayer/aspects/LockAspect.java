@@ -19,6 +19,7 @@ import org.springframework.core.annotation.Order;
 import org.commcare.formplayer.services.CategoryTimingHelper;
 import org.commcare.formplayer.services.FormplayerLockRegistry;
 import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.services.SyncCoalescer;
 import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.util.FormplayerSentry;
 import org.commcare.formplayer.util.RequestUtils;
@@ -47,6 +48,9 @@ public class LockAspect {
     @Autowired
     private FormSessionService formSessionService;
 
+    @Autowired
+    private SyncCoalescer syncCoalescer;
+
     // needs to be accessible from WebAppContext.exceptionResolver
     public class LockError extends Exception {}
 
@@ -80,7 +84,7 @@ public class LockAspect {
         Lock lock;
 
         try {
-            lock = getLockAndBlock(username);
+            lock = getLockAndBlock(bean.getDomain(), username);
             log.info(String.format("Obtained lock for username %s", username));
         } catch (LockError e) {
             logLockError(bean, joinPoint, "_timed_out");
@@ -137,7 +141,11 @@ public class LockAspect {
     }
 
     @Trace
-    private Lock getLockAndBlock(String username) throws LockError {
+    private Lock getLockAndBlock(String domain, String username) throws LockError {
+        // lets syncs tell whether another request synced the user while this one waited, before
+        // the sync that holds the lock moves the sandbox on
+        RequestUtils.setLockWaitStart(System.currentTimeMillis(),
+                syncCoalescer.observe(SyncCoalescer.sandboxKey(domain, username)));
         FormplayerReentrantLock lock = userLockRegistry.obtain(username);
         if (obtainLock(lock)) {
             return lock;
@@ -3,6 +3,7 @@ package org.commcare.formplayer.beans;
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonSetter;
 import org.commcare.formplayer.sqlitedb.ApplicationDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
 
 /**
  * A request that delete's an application's databases
@@ -14,7 +15,13 @@ public class DeleteApplicationDbsRequestBean extends AuthenticatedRequestBean {
     }
 
     public void clear() {
-        new ApplicationDB(domain, username, restoreAs, appId).deleteDatabaseFolder();
+        // the user's link is deleted with the folder, the build itself is installed again
+        SharedApplicationStore.markLinkedBuildBad(domain, username, restoreAs, appId);
+        getApplicationDB().deleteDatabaseFolder();
+    }
+
+    public ApplicationDB getApplicationDB() {
+        return new ApplicationDB(domain, username, restoreAs, appId);
     }
 
     @JsonGetter(value = "app_id")
@@ -1,8 +1,12 @@
 package org.commcare.formplayer.configuration;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Ticker;
 
+import org.commcare.formplayer.util.CacheWeigher;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.caffeine.CaffeineCache;
@@ -15,6 +19,8 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,33 +35,56 @@ public class CacheConfiguration {
         private Integer expireAfterWrite;
         private Integer expireAfterAccess;
         private Integer maximumSize = 500;
+        // heap budget in bytes, as estimated by the CacheWeigher. Replaces maximumSize when set.
+        private Long maximumWeight;
     }
 
     private Map<String, CacheSpec> specs;
 
     @Bean
-    public CacheManager cacheManager(Ticker ticker) {
+    public CacheManager cacheManager(Ticker ticker, ObjectProvider<MeterRegistry> meterRegistry) {
         SimpleCacheManager manager = new SimpleCacheManager();
         if (specs != null) {
+            MeterRegistry registry = meterRegistry.getIfAvailable();
             List<CaffeineCache> caches =
                     specs.entrySet().stream()
-                            .map(entry -> buildCache(entry.getKey(), entry.getValue(), ticker))
+                            .map(entry -> buildCache(entry.getKey(), entry.getValue(), ticker, registry))
                             .collect(Collectors.toList());
             manager.setCaches(caches);
         }
         return manager;
     }
 
-    private CaffeineCache buildCache(String name, CacheSpec cacheSpec, Ticker ticker) {
-        log.info("Cache '{}' configured - expireAfterWrite: {}, expireAfterAccess: {}, max size: {}",
+    /**
+     * Stats are recorded for every cache so that the hits, misses, evictions and load times are
+     * exported per cache by Spring Boot's cache metrics, alongside the weighted size of the
+     * caches with a memory budget, which is registered with the given registry if there is one.
+     */
+    private CaffeineCache buildCache(String name, CacheSpec cacheSpec, Ticker ticker, MeterRegistry registry) {
+        log.info("Cache '{}' configured - expireAfterWrite: {}, expireAfterAccess: {}, max size: {}, "
+                        + "max weight: {}",
                 name, cacheSpec.getExpireAfterWrite(), cacheSpec.getExpireAfterAccess(),
-                cacheSpec.getMaximumSize());
+                cacheSpec.getMaximumSize(), cacheSpec.getMaximumWeight());
         final Caffeine<Object, Object> caffeineBuilder = Caffeine.newBuilder()
                 .expireAfterWrite(cacheSpec.getExpireAfterWrite(), TimeUnit.SECONDS)
                 .expireAfterAccess(cacheSpec.getExpireAfterAccess(), TimeUnit.SECONDS)
-                .maximumSize(cacheSpec.getMaximumSize())
+                .recordStats()
                 .ticker(ticker);
-        return new CaffeineCache(name, caffeineBuilder.build());
+        if (cacheSpec.getMaximumWeight() != null) {
+            caffeineBuilder
+                    .maximumWeight(cacheSpec.getMaximumWeight())
+                    .weigher(new CacheWeigher());
+        } else {
+            caffeineBuilder.maximumSize(cacheSpec.getMaximumSize());
+        }
+        Cache<Object, Object> cache = caffeineBuilder.build();
+        if (cacheSpec.getMaximumWeight() != null && registry != null) {
+            registry.gauge("cache.weighted_size", Tags.of("cache", name), cache,
+                    c -> c.policy().eviction()
+                            .map(eviction -> (double)eviction.weightedSize().orElse(0))
+                            .orElse(0d));
+        }
+        return new CaffeineCache(name, cache);
     }
 
     @Bean
@@ -0,0 +1,56 @@
+package org.commcare.formplayer.configuration;
+
+import org.commcare.formplayer.sqlitedb.SQLiteProfile;
+import org.commcare.formplayer.sqlitedb.SchemaTemplates;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+
+import java.util.Map;
+
+import jakarta.annotation.PostConstruct;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Binds the SQLite tuning profiles for user, application and case search DBs, e.g.
+ *
+ * sqlite.profiles.user.journalMode=WAL
+ * sqlite.profiles.user.synchronous=NORMAL
+ * sqlite.profiles.application.mmapSize=268435456
+ * sqlite.profiles.case-search.cacheSize=-16000
+ *
+ * Configured settings are layered on top of the built-in profile from SQLiteProfile, so settings
+ * that are not configured keep their defaults.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "sqlite")
+@Data
+@Slf4j
+public class SQLiteProfileConfiguration {
+
+    private Map<String, SQLiteProfile> profiles;
+
+    @PostConstruct
+    public void registerProfiles() {
+        if (profiles == null) {
+            return;
+        }
+        profiles.forEach((name, overrides) -> {
+            // fails at startup for unknown profiles rather than on the first connection
+            SQLiteProfile profile = SQLiteProfile.get(name).withOverrides(overrides);
+            log.info("SQLite profile '{}' configured - {}", name, profile.getPragmaStatements());
+            SQLiteProfile.register(name, profile);
+        });
+    }
+
+    /**
+     * Builds the schema templates for new user and case search DBs once the data directory and
+     * the profiles are configured
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildSchemaTemplates() {
+        SchemaTemplates.buildTemplates();
+    }
+}
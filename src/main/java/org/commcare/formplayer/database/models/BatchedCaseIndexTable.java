@@ -0,0 +1,51 @@
+package org.commcare.formplayer.database.models;
+
+import org.commcare.cases.model.Case;
+import org.commcare.formplayer.services.ConnectionHandler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Case index table for cases loaded through a BatchingSqlStorage. New cases are indexed in one
+ * batch once the storage has written them, since their indexes refer to the record IDs they are
+ * only assigned then.
+ */
+public class BatchedCaseIndexTable extends FormplayerCaseIndexTable {
+
+    // record IDs of the cases indexed so far, so that each case is indexed once whether the
+    // parser indexes it before or after writing it
+    private final Set<Integer> indexedRecordIds = new HashSet<>();
+
+    public BatchedCaseIndexTable(ConnectionHandler connectionHandler, String tableName, String caseTableName) {
+        super(connectionHandler, tableName, caseTableName, false);
+    }
+
+    @Override
+    public void indexCase(Case c) {
+        // cases still pending in the storage are indexed by indexBatch once written
+        if (c.getID() == -1) {
+            return;
+        }
+        if (!indexedRecordIds.add(c.getID())) {
+            // an update of a case that was already written, e.g. one repeated in the results
+            clearCaseIndices(c.getID());
+        }
+        super.indexCase(c);
+    }
+
+    /**
+     * Indexes a batch of cases that has just been written
+     */
+    public void indexBatch(List<Case> cases) {
+        List<Case> toIndex = new ArrayList<>();
+        for (Case c : cases) {
+            if (indexedRecordIds.add(c.getID())) {
+                toIndex.add(c);
+            }
+        }
+        indexCases(toIndex);
+    }
+}
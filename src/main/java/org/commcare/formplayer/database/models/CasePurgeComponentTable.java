@@ -0,0 +1,285 @@
+package org.commcare.formplayer.database.models;
+
+import static org.commcare.formplayer.sandbox.SqlSandboxUtils.execSql;
+
+import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
+import org.commcare.formplayer.sandbox.SqlHelper;
+import org.commcare.formplayer.sandbox.UserSqlSandbox;
+import org.commcare.formplayer.services.ConnectionHandler;
+import org.commcare.modern.database.DatabaseIndexingUtils;
+import org.commcare.modern.database.TableBuilder;
+import org.commcare.modern.util.Pair;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persisted partition of a user's cases into the connected components of the case index graph,
+ * used to restrict a case purge to the components touched by a sync or form submission.
+ *
+ * The partition is conservative: cases recorded in the same component may since have been
+ * disconnected, and cases connected since the last purge may be recorded in different
+ * components, but any connection between two cases is either recorded here or still present in
+ * the case index table. Cases changed without a purge are recorded as pending so the next
+ * incremental purge re-evaluates them.
+ *
+ * The partition is only valid for the set of owners it was built with.
+ */
+public class CasePurgeComponentTable {
+
+    private static final String COMPONENT_TABLE_NAME = "case_purge_component";
+    private static final String PENDING_TABLE_NAME = "case_purge_pending";
+    private static final String META_TABLE_NAME = "case_purge_meta";
+
+    private static final String COL_CASE_ID = "case_id";
+    private static final String COL_COMPONENT = "component";
+    private static final String COL_META_KEY = "meta_key";
+    private static final String COL_META_VALUE = "meta_value";
+
+    private static final String META_KEY_OWNERS = "owners";
+
+    // past this many pending cases an incremental purge is no cheaper than rebuilding the components
+    private static final int MAX_PENDING = 10000;
+
+    private final ConnectionHandler connectionHandler;
+
+    public CasePurgeComponentTable(ConnectionHandler connectionHandler) {
+        this(connectionHandler, false);
+        // the tables are created with the schema of the user DB, only DBs created before them lack them
+        if (!UserSqlSandbox.hasCurrentSchema(connectionHandler)
+                && !SqlHelper.isTableExist(connectionHandler.getConnection(), META_TABLE_NAME)) {
+            createTable();
+        }
+    }
+
+    public CasePurgeComponentTable(ConnectionHandler connectionHandler, boolean createTable) {
+        this.connectionHandler = connectionHandler;
+        if (createTable) {
+            createTable();
+        }
+    }
+
+    private void createTable() {
+        Connection connection = connectionHandler.getConnection();
+        execSql(connection, "CREATE TABLE IF NOT EXISTS " + COMPONENT_TABLE_NAME + "(" +
+                COL_CASE_ID + " TEXT PRIMARY KEY, " +
+                COL_COMPONENT + " INTEGER" +
+                ")");
+        execSql(connection, DatabaseIndexingUtils.indexOnTableCommand("COMPONENT_CASE",
+                COMPONENT_TABLE_NAME, COL_COMPONENT + ", " + COL_CASE_ID));
+        execSql(connection, "CREATE TABLE IF NOT EXISTS " + PENDING_TABLE_NAME + "(" +
+                COL_CASE_ID + " TEXT PRIMARY KEY" +
+                ")");
+        execSql(connection, "CREATE TABLE IF NOT EXISTS " + META_TABLE_NAME + "(" +
+                COL_META_KEY + " TEXT PRIMARY KEY, " +
+                COL_META_VALUE + " TEXT" +
+                ")");
+    }
+
+    /**
+     * @param owners the owners the case purge is run for
+     * @return true if the components were built by a full purge for the same owners
+     */
+    public boolean isBuiltFor(String owners) {
+        return owners.equals(getBuiltForOwners());
+    }
+
+    private String getBuiltForOwners() {
+        try (PreparedStatement selectStatement = SqlHelper.prepareTableSelectStatement(
+                connectionHandler.getConnection(),
+                META_TABLE_NAME,
+                new String[]{COL_META_KEY},
+                new String[]{META_KEY_OWNERS})) {
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(resultSet.findColumn(COL_META_VALUE)) : null;
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * Records cases that were created or updated without a purge, so that the next incremental
+     * purge evaluates them. Does nothing if the components have not been built, and clears them
+     * once too many cases are pending, so that the next purge rebuilds them.
+     */
+    public void addPending(Collection<String> caseIds) {
+        if (caseIds.isEmpty() || getBuiltForOwners() == null) {
+            return;
+        }
+        List<HashMap<String, Object>> rows = new ArrayList<>();
+        for (String caseId : caseIds) {
+            HashMap<String, Object> contentValues = new HashMap<>();
+            contentValues.put(COL_CASE_ID, caseId);
+            rows.add(contentValues);
+        }
+        inTransaction(() -> {
+            SqlHelper.batchInsertOrReplace(connectionHandler.getConnection(), PENDING_TABLE_NAME, rows);
+            if (countPending() > MAX_PENDING) {
+                clear();
+            }
+        });
+    }
+
+    private int countPending() {
+        String query = "SELECT COUNT(*) FROM " + PENDING_TABLE_NAME;
+        try (PreparedStatement selectStatement = connectionHandler.getConnection().prepareStatement(query)) {
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets the components, e.g. when cases are changed while no purges are run, so that no
+     * cases are recorded as pending until a full purge rebuilds them
+     */
+    public void clear() {
+        inTransaction(() -> {
+            Connection connection = connectionHandler.getConnection();
+            SqlHelper.deleteAllFromTable(connection, META_TABLE_NAME);
+            SqlHelper.deleteAllFromTable(connection, COMPONENT_TABLE_NAME);
+            SqlHelper.deleteAllFromTable(connection, PENDING_TABLE_NAME);
+        });
+    }
+
+    /**
+     * @return cases that were created or updated since the last purge
+     */
+    public Set<String> getPending() {
+        Set<String> caseIds = new HashSet<>();
+        try (PreparedStatement selectStatement = SqlHelper.prepareTableSelectProjectionStatement(
+                connectionHandler.getConnection(),
+                PENDING_TABLE_NAME,
+                new String[]{COL_CASE_ID})) {
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    caseIds.add(resultSet.getString(1));
+                }
+            }
+            return caseIds;
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * @return every case recorded in the same component as one of the given cases
+     */
+    public Set<String> getComponentMembers(Collection<String> caseIds) {
+        Set<String> members = new HashSet<>();
+        if (caseIds.isEmpty()) {
+            return members;
+        }
+        try {
+            for (Pair<String, String[]> whereParams : TableBuilder.sqlList(caseIds, "?")) {
+                String query = String.format("SELECT %s FROM %s WHERE %s IN (SELECT %s FROM %s WHERE %s IN %s)",
+                        COL_CASE_ID, COMPONENT_TABLE_NAME, COL_COMPONENT,
+                        COL_COMPONENT, COMPONENT_TABLE_NAME, COL_CASE_ID, whereParams.first);
+                try (PreparedStatement selectStatement = connectionHandler.getConnection().prepareStatement(query)) {
+                    for (int i = 0; i < whereParams.second.length; i++) {
+                        selectStatement.setString(i + 1, whereParams.second[i]);
+                    }
+                    try (ResultSet resultSet = selectStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            members.add(resultSet.getString(1));
+                        }
+                    }
+                }
+            }
+            return members;
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * Replaces the components of the evaluated cases and clears the pending cases. The evaluated
+     * cases must cover whole recorded components.
+     *
+     * @param evaluatedCaseIds all cases evaluated by an incremental purge, including removed ones
+     * @param components       component of each evaluated case that still exists
+     */
+    public void replaceComponents(Collection<String> evaluatedCaseIds, Map<String, Integer> components) {
+        inTransaction(() -> {
+            List<Pair<String, String[]>> whereParamList = new ArrayList<>();
+            for (Pair<String, String[]> whereParams : TableBuilder.sqlList(evaluatedCaseIds, "?")) {
+                whereParamList.add(Pair.create(COL_CASE_ID + " IN " + whereParams.first, whereParams.second));
+            }
+            SqlHelper.batchDeleteFromTableWhere(connectionHandler.getConnection(), COMPONENT_TABLE_NAME,
+                    whereParamList);
+            insertComponents(components);
+            SqlHelper.deleteAllFromTable(connectionHandler.getConnection(), PENDING_TABLE_NAME);
+        });
+    }
+
+    /**
+     * Replaces all components after a full purge
+     *
+     * @param components component of every case
+     * @param owners     the owners the purge was run for
+     */
+    public void rebuild(Map<String, Integer> components, String owners) {
+        inTransaction(() -> {
+            Connection connection = connectionHandler.getConnection();
+            SqlHelper.deleteAllFromTable(connection, COMPONENT_TABLE_NAME);
+            SqlHelper.deleteAllFromTable(connection, PENDING_TABLE_NAME);
+            insertComponents(components);
+            HashMap<String, Object> contentValues = new HashMap<>();
+            contentValues.put(COL_META_KEY, META_KEY_OWNERS);
+            contentValues.put(COL_META_VALUE, owners);
+            SqlHelper.insertOrReplace(connection, META_TABLE_NAME, contentValues);
+        });
+    }
+
+    private void insertComponents(Map<String, Integer> components) {
+        List<HashMap<String, Object>> rows = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : components.entrySet()) {
+            HashMap<String, Object> contentValues = new HashMap<>();
+            contentValues.put(COL_CASE_ID, entry.getKey());
+            contentValues.put(COL_COMPONENT, entry.getValue());
+            rows.add(contentValues);
+        }
+        SqlHelper.batchInsert(connectionHandler.getConnection(), COMPONENT_TABLE_NAME, rows);
+    }
+
+    private void inTransaction(Runnable runnable) {
+        Connection connection = connectionHandler.getConnection();
+        try {
+            if (!connection.getAutoCommit()) {
+                runnable.run();
+                return;
+            }
+            connection.setAutoCommit(false);
+            try {
+                runnable.run();
+                connection.commit();
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    public void delete() {
+        Connection connection = connectionHandler.getConnection();
+        SqlHelper.dropTable(connection, COMPONENT_TABLE_NAME);
+        SqlHelper.dropTable(connection, PENDING_TABLE_NAME);
+        SqlHelper.dropTable(connection, META_TABLE_NAME);
+    }
+}
@@ -0,0 +1,184 @@
+package org.commcare.formplayer.database.models;
+
+import static org.commcare.formplayer.sandbox.SqlSandboxUtils.execSql;
+
+import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
+import org.commcare.formplayer.sandbox.SqlHelper;
+import org.commcare.formplayer.services.ConnectionHandler;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.modern.database.DatabaseHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Records the per-query case and case index tables of a case search DB, with their size, row
+ * count and last access, so that the least recently used tables can be dropped once the tables
+ * of the DB grow past a byte budget.
+ *
+ * Sizes are estimated from the serialized case records, which make up most of the space used by
+ * the tables.
+ */
+public class CaseSearchTableManifest {
+
+    public static final String TABLE_NAME = "case_search_manifest";
+
+    private static final String COL_TABLE_NAME = "table_name";
+    private static final String COL_INDEX_TABLE_NAME = "index_table_name";
+    private static final String COL_SIZE_BYTES = "size_bytes";
+    private static final String COL_ROW_COUNT = "row_count";
+    private static final String COL_LAST_ACCESS = "last_access";
+
+    private final ConnectionHandler connectionHandler;
+
+    public CaseSearchTableManifest(ConnectionHandler connectionHandler) {
+        this.connectionHandler = connectionHandler;
+        if (!(connectionHandler instanceof SQLiteDB) || !((SQLiteDB)connectionHandler).hasCurrentSchema()) {
+            createTable(connectionHandler.getConnection());
+            if (connectionHandler instanceof SQLiteDB) {
+                ((SQLiteDB)connectionHandler).markCurrentSchema();
+            }
+        }
+    }
+
+    /**
+     * Creates the manifest table, which new case search DBs get from the SchemaTemplates instead
+     */
+    public static void createTable(Connection connection) {
+        execSql(connection, "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" +
+                COL_TABLE_NAME + " TEXT PRIMARY KEY, " +
+                COL_INDEX_TABLE_NAME + " TEXT, " +
+                COL_SIZE_BYTES + " INTEGER, " +
+                COL_ROW_COUNT + " INTEGER, " +
+                COL_LAST_ACCESS + " INTEGER" +
+                ")");
+    }
+
+    /**
+     * Records the size of a case table that has just been filled, and marks it as accessed now
+     */
+    public void recordTable(String tableName, String indexTableName) {
+        long rowCount;
+        long sizeBytes;
+        try (Statement statement = connectionHandler.getConnection().createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*), COALESCE(SUM(LENGTH(" +
+                     DatabaseHelper.DATA_COL + ")), 0) FROM " + tableName)) {
+            resultSet.next();
+            rowCount = resultSet.getLong(1);
+            sizeBytes = resultSet.getLong(2);
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+        HashMap<String, Object> contentValues = new HashMap<>();
+        contentValues.put(COL_TABLE_NAME, tableName);
+        contentValues.put(COL_INDEX_TABLE_NAME, indexTableName);
+        contentValues.put(COL_SIZE_BYTES, sizeBytes);
+        contentValues.put(COL_ROW_COUNT, rowCount);
+        contentValues.put(COL_LAST_ACCESS, System.currentTimeMillis());
+        SqlHelper.insertOrReplace(connectionHandler.getConnection(), TABLE_NAME, contentValues);
+    }
+
+    /**
+     * Marks a case table as accessed now
+     *
+     * @return false if the table is not in the manifest, e.g. because it was filled before the
+     * manifest existed
+     */
+    public boolean touch(String tableName) {
+        try (PreparedStatement statement = connectionHandler.getConnection().prepareStatement(
+                "UPDATE " + TABLE_NAME + " SET " + COL_LAST_ACCESS + " = ? WHERE " + COL_TABLE_NAME + " = ?")) {
+            statement.setLong(1, System.currentTimeMillis());
+            statement.setString(2, tableName);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * Drops a case table and its index table and removes them from the manifest
+     */
+    public void drop(String tableName, String indexTableName) {
+        Connection connection = connectionHandler.getConnection();
+        SqlHelper.dropTable(connection, tableName);
+        SqlHelper.dropTable(connection, indexTableName);
+        remove(tableName);
+    }
+
+    /**
+     * Removes a case table that has been dropped from the manifest
+     */
+    public void remove(String tableName) {
+        try (PreparedStatement statement = connectionHandler.getConnection().prepareStatement(
+                "DELETE FROM " + TABLE_NAME + " WHERE " + COL_TABLE_NAME + " = ?")) {
+            statement.setString(1, tableName);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    /**
+     * Drops the least recently used tables until the recorded tables fit within maxBytes
+     *
+     * @param keepTable table that is never dropped, i.e. the one the current request is using
+     * @return the number of case tables dropped
+     */
+    public int evictLeastRecentlyUsed(long maxBytes, String keepTable) {
+        List<String[]> tables = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        long totalBytes = 0;
+        try (Statement statement = connectionHandler.getConnection().createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT " + COL_TABLE_NAME + ", " +
+                     COL_INDEX_TABLE_NAME + ", " + COL_SIZE_BYTES + " FROM " + TABLE_NAME +
+                     " ORDER BY " + COL_LAST_ACCESS)) {
+            while (resultSet.next()) {
+                tables.add(new String[]{resultSet.getString(1), resultSet.getString(2)});
+                sizes.add(resultSet.getLong(3));
+                totalBytes += resultSet.getLong(3);
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+
+        int dropped = 0;
+        for (int i = 0; i < tables.size() && totalBytes > maxBytes; i++) {
+            if (tables.get(i)[0].equals(keepTable)) {
+                continue;
+            }
+            drop(tables.get(i)[0], tables.get(i)[1]);
+            totalBytes -= sizes.get(i);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the total recorded size of the tables in bytes
+     */
+    public long getTotalBytes() {
+        return queryLong("SELECT COALESCE(SUM(" + COL_SIZE_BYTES + "), 0) FROM " + TABLE_NAME);
+    }
+
+    /**
+     * @return the number of recorded case tables
+     */
+    public long getTableCount() {
+        return queryLong("SELECT COUNT(*) FROM " + TABLE_NAME);
+    }
+
+    private long queryLong(String query) {
+        try (Statement statement = connectionHandler.getConnection().createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+}
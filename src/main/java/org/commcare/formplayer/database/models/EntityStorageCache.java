@@ -16,6 +16,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -126,16 +127,16 @@ public class EntityStorageCache {
         if (recordIds.size() == 0) {
             return;
         }
-        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds);
-        for(Pair<String, String[]> querySet : whereParamList) {
+        List<Pair<String, String[]>> whereParamList = new ArrayList<>();
+        for(Pair<String, String[]> querySet : TableBuilder.sqlList(recordIds)) {
             String[] updated = new String[querySet.second.length + 1];
             System.arraycopy(querySet.second, 0, updated, 1, querySet.second.length);
             updated[0] = this.mCacheName;
-            SqlHelper.deleteFromTableWhere(handler.getConnection(),
-                    TABLE_NAME,
+            whereParamList.add(Pair.create(
                     MessageFormat.format("{0} = ? AND {1} IN {2}", COL_CACHE_NAME, COL_ENTITY_KEY, querySet.first),
-                    updated);
+                    updated));
         }
+        SqlHelper.batchDeleteFromTableWhere(handler.getConnection(), TABLE_NAME, whereParamList);
     }
 
     public static int getSortFieldIdFromCacheKey(String detailId, String cacheKey) {
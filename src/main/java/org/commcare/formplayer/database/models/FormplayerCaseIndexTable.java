@@ -21,10 +21,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -50,7 +54,8 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
     //an object for the same cache at once and let us manage the lifecycle
 
     public FormplayerCaseIndexTable(ConnectionHandler connectionHandler) {
-        this(connectionHandler, CASE_INDEX_STORAGE_TABLE_NAME, UserSqlSandbox.FORMPLAYER_CASE, true);
+        this(connectionHandler, CASE_INDEX_STORAGE_TABLE_NAME, UserSqlSandbox.FORMPLAYER_CASE,
+                !UserSqlSandbox.hasCurrentSchema(connectionHandler));
     }
 
     public FormplayerCaseIndexTable(ConnectionHandler connectionHandler, String tableName, String caseTableName,
@@ -82,7 +87,7 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
                 ")";
     }
 
-    private String getTableName() {
+    public String getTableName() {
         return tableName;
     }
 
@@ -96,6 +101,11 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
         String typeFirstIndex = COL_INDEX_NAME + ", " + COL_CASE_RECORD_ID + ", " + COL_INDEX_TARGET;
         execSql(connection,
                 DatabaseIndexingUtils.indexOnTableCommand(typeFirstIndexId, getTableName(), typeFirstIndex));
+
+        String targetFirstIndexId = "TARGET_RECORD";
+        String targetFirstIndex = COL_INDEX_TARGET + ", " + COL_CASE_RECORD_ID;
+        execSql(connection,
+                DatabaseIndexingUtils.indexOnTableCommand(targetFirstIndexId, getTableName(), targetFirstIndex));
     }
 
     /**
@@ -105,14 +115,32 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
     @Override
     public void indexCase(Case c) {
         for (CaseIndex ci : c.getIndices()) {
-            HashMap<String, Object> contentValues = new HashMap<>();
-            contentValues.put(COL_CASE_RECORD_ID, "" + c.getID());
-            contentValues.put(COL_INDEX_NAME, ci.getName());
-            contentValues.put(COL_INDEX_TYPE, ci.getTargetType());
-            contentValues.put(COL_INDEX_TARGET, ci.getTarget());
-            contentValues.put(COL_INDEX_RELATIONSHIP, ci.getRelationship());
-            SqlHelper.basicInsert(connectionHandler.getConnection(), getTableName(), contentValues);
+            SqlHelper.basicInsert(connectionHandler.getConnection(), getTableName(), getContentValues(c, ci));
+        }
+    }
+
+    /**
+     * Creates all indexes for the given cases using a single batched insert.
+     * As with indexCase, existing indexes for these cases should be wiped first.
+     */
+    public void indexCases(Collection<Case> cases) {
+        List<HashMap<String, Object>> rows = new ArrayList<>();
+        for (Case c : cases) {
+            for (CaseIndex ci : c.getIndices()) {
+                rows.add(getContentValues(c, ci));
+            }
         }
+        SqlHelper.batchInsert(connectionHandler.getConnection(), getTableName(), rows);
+    }
+
+    private HashMap<String, Object> getContentValues(Case c, CaseIndex ci) {
+        HashMap<String, Object> contentValues = new HashMap<>();
+        contentValues.put(COL_CASE_RECORD_ID, "" + c.getID());
+        contentValues.put(COL_INDEX_NAME, ci.getName());
+        contentValues.put(COL_INDEX_TYPE, ci.getTargetType());
+        contentValues.put(COL_INDEX_TARGET, ci.getTarget());
+        contentValues.put(COL_INDEX_RELATIONSHIP, ci.getRelationship());
+        return contentValues;
     }
 
     public void clearCaseIndices(Case c) {
@@ -132,13 +160,11 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
         if (idsToClear.size() == 0) {
             return;
         }
-        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(idsToClear);
-        for (Pair<String, String[]> whereParams : whereParamList) {
-            SqlHelper.deleteFromTableWhere(connectionHandler.getConnection(),
-                    getTableName(),
-                    COL_CASE_RECORD_ID + " IN " + whereParams.first,
-                    whereParams.second);
+        List<Pair<String, String[]>> whereParamList = new ArrayList<>();
+        for (Pair<String, String[]> whereParams : TableBuilder.sqlList(idsToClear)) {
+            whereParamList.add(Pair.create(COL_CASE_RECORD_ID + " IN " + whereParams.first, whereParams.second));
         }
+        SqlHelper.batchDeleteFromTableWhere(connectionHandler.getConnection(), getTableName(), whereParamList);
     }
 
     @Override
@@ -182,6 +208,83 @@ public class FormplayerCaseIndexTable implements CaseIndexTable {
         }
     }
 
+    /**
+     * Reads the target and relationship of every index into a compact list sorted by the record
+     * id of the indexing case. Indices of the same case keep the order they were written in.
+     */
+    public SortedCaseIndexList getSortedCaseIndexList() {
+        SortedCaseIndexList indexList = new SortedCaseIndexList(0);
+        loadIntoSortedCaseIndexList(indexList, null, new String[0]);
+        return indexList;
+    }
+
+    /**
+     * Same as getSortedCaseIndexList() but restricted to the indices of the given case records
+     */
+    public SortedCaseIndexList getSortedCaseIndexList(Collection<Integer> recordIds) {
+        SortedCaseIndexList indexList = new SortedCaseIndexList(recordIds.size());
+        if (recordIds.size() == 0) {
+            return indexList;
+        }
+        // each chunk is sorted on its own, so the chunks need to cover ascending ranges of ids
+        List<Integer> sortedRecordIds = new ArrayList<>(recordIds);
+        Collections.sort(sortedRecordIds);
+        for (Pair<String, String[]> whereParams : TableBuilder.sqlList(sortedRecordIds)) {
+            loadIntoSortedCaseIndexList(indexList, COL_CASE_RECORD_ID + " IN " + whereParams.first,
+                    whereParams.second);
+        }
+        return indexList;
+    }
+
+    private void loadIntoSortedCaseIndexList(SortedCaseIndexList indexList, String whereClause, String[] args) {
+        String query = String.format("SELECT CAST(%s AS INT) AS rec_id, %s, %s FROM %s%s ORDER BY rec_id, %s",
+                COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP, getTableName(),
+                whereClause == null ? "" : " WHERE " + whereClause, DatabaseHelper.ID_COL);
+        try (PreparedStatement selectStatement = connectionHandler.getConnection().prepareStatement(query)) {
+            for (int i = 0; i < args.length; i++) {
+                selectStatement.setString(i + 1, args[i]);
+            }
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    indexList.add(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the record ids of the cases which index any of the provided cases, regardless of the
+     * index name
+     *
+     * @param targetCaseIds the case ids of the indexed cases
+     */
+    public Set<Integer> getCasesIndexingAny(Collection<String> targetCaseIds) {
+        Set<Integer> recordIds = new HashSet<>();
+        if (targetCaseIds.size() == 0) {
+            return recordIds;
+        }
+        try {
+            for (Pair<String, String[]> whereParams : TableBuilder.sqlList(targetCaseIds, "?")) {
+                try (PreparedStatement selectStatement = SqlHelper.prepareTableSelectStatement(
+                        connectionHandler.getConnection(),
+                        getTableName(),
+                        COL_INDEX_TARGET + " IN " + whereParams.first,
+                        whereParams.second)) {
+                    try (ResultSet resultSet = selectStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            recordIds.add(resultSet.getInt(resultSet.findColumn(COL_CASE_RECORD_ID)));
+                        }
+                    }
+                }
+            }
+            return recordIds;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Get a list of Case Record id's for cases which index a provided value.
      *
@@ -0,0 +1,82 @@
+package org.commcare.formplayer.database.models;
+
+import java.util.Arrays;
+
+/**
+ * Compact, read-only list of case index rows sorted by the record id of the indexing case.
+ *
+ * Holds the rows in parallel arrays rather than a map of boxed ids to lists of pairs so that
+ * the indices of users with very large case loads can be held in memory cheaply while building
+ * the case graph for a purge. The indices of a case are found with a binary search.
+ */
+public class SortedCaseIndexList {
+
+    private int size = 0;
+    private int[] recordIds;
+    private String[] targets;
+    private String[] relationships;
+
+    SortedCaseIndexList(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        recordIds = new int[capacity];
+        targets = new String[capacity];
+        relationships = new String[capacity];
+    }
+
+    /**
+     * Rows must be added in ascending record id order
+     */
+    void add(int recordId, String target, String relationship) {
+        if (size > 0 && recordId < recordIds[size - 1]) {
+            throw new IllegalArgumentException("Case index rows must be added in record id order");
+        }
+        if (size == recordIds.length) {
+            int capacity = size * 2;
+            recordIds = Arrays.copyOf(recordIds, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            relationships = Arrays.copyOf(relationships, capacity);
+        }
+        recordIds[size] = recordId;
+        targets[size] = target;
+        relationships[size] = relationship;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the position of the first index row for the given case record, or -1 if the case
+     * has no indices
+     */
+    public int firstPositionOf(int recordId) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (recordIds[mid] < recordId) {
+                low = mid + 1;
+            } else {
+                if (recordIds[mid] == recordId) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public int getRecordId(int position) {
+        return recordIds[position];
+    }
+
+    public String getTarget(int position) {
+        return targets[position];
+    }
+
+    public String getRelationship(int position) {
+        return relationships[position];
+    }
+}
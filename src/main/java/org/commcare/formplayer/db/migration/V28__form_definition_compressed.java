@@ -0,0 +1,20 @@
+package org.commcare.formplayer.db.migration;
+
+import java.util.Arrays;
+
+/**
+ * Adds a column for form definitions stored as compressed binary. New rows are only written in
+ * that format, and FormDefinitionService moves existing rows to it when they are next read.
+ *
+ * Nodes that only read the base64 formdef column treat a row without it like a form def that
+ * fails to deserialize: they parse the form from the installed app and write the text again.
+ */
+public class V28__form_definition_compressed extends BaseFormplayerMigration {
+    @Override
+    public Iterable<String> getSqlStatements() {
+        return Arrays.asList(
+                "ALTER TABLE form_definition ADD COLUMN formdef_compressed bytea",
+                "ALTER TABLE form_definition ALTER COLUMN formdef DROP NOT NULL"
+        );
+    }
+}
@@ -0,0 +1,15 @@
+package org.commcare.formplayer.db.migration;
+
+import java.util.Arrays;
+
+/**
+ * Adds a column for the changes made to a form session's instance since its last snapshot.
+ */
+public class V29__form_session_answer_log extends BaseFormplayerMigration {
+    @Override
+    public Iterable<String> getSqlStatements() {
+        return Arrays.asList(
+                "ALTER TABLE formplayer_sessions ADD COLUMN answerlog bytea"
+        );
+    }
+}
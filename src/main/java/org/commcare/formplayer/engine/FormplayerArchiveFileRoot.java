@@ -1,15 +1,30 @@
 package org.commcare.formplayer.engine;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.timgroup.statsd.StatsDClient;
+
+import org.commcare.formplayer.util.Constants;
 import org.commcare.modern.reference.ArchiveFileReference;
 import org.commcare.modern.reference.ArchiveFileRoot;
 import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.Reference;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipFile;
 
+import jakarta.annotation.PostConstruct;
+
 /**
  * Created by willpride on 4/25/17.
  */
@@ -18,33 +33,170 @@ public class FormplayerArchiveFileRoot extends ArchiveFileRoot {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
-    private int MAX_RECENT = 5;
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    @Value("${formplayer.archivePool.maxSize:100}")
+    private long maxSize;
+
+    @Value("${formplayer.archivePool.hotEntryReads:0}")
+    private int hotEntryReads;
+
+    @Value("${formplayer.archivePool.hotEntryBytes:67108864}")
+    private long hotEntryBytes;
+
+    // bytes left for the hot entries of all archives, see PooledArchive
+    private AtomicLong hotEntryBudget;
+
+    // open archives by GUID, shared by all requests on this node. An archive dropped from the pool
+    // is closed once the streams still reading it are closed, see PooledArchive.
+    private Cache<String, PooledArchive> archives;
+
+    @PostConstruct
+    public void init() {
+        hotEntryBudget = new AtomicLong(hotEntryBytes);
+        archives = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .removalListener((String guid, PooledArchive archive, RemovalCause cause) -> {
+                    if (archive != null) {
+                        archive.release();
+                    }
+                    reportOpenArchives();
+                })
+                .build();
+    }
 
     @Override
     public String addArchiveFile(ZipFile zip, String appId) {
         String mGUID = super.addArchiveFile(zip, appId);
-        redisTemplate.opsForValue().set(
-                String.format("formplayer:archive:%s", mGUID),
-                zip.getName()
-        );
+        // the pool keeps the archive open instead of the unbounded map of the base class
+        guidToFolderMap.remove(mGUID);
+        archives.put(mGUID, new PooledArchive(zip, hotEntryReads, hotEntryBudget));
+        reportOpenArchives();
+        redisTemplate.opsForValue().set(archiveKey(mGUID), zip.getName());
         return mGUID;
     }
 
+    /**
+     * Unregisters the archive of a GUID that is about to be deleted, unless the GUID has since
+     * been registered to another archive
+     *
+     * @param zipName name of the deleted archive's zip, as it was added
+     */
+    public void removeArchiveFile(String GUID, String zipName) {
+        archives.asMap().computeIfPresent(GUID,
+                (guid, archive) -> archive.getZipFile().getName().equals(zipName) ? null : archive);
+        String key = archiveKey(GUID);
+        if (zipName.equals(redisTemplate.opsForValue().get(key))) {
+            redisTemplate.delete(key);
+        }
+    }
+
     // Given an encoded path (IE jr://archive/ABC123) return a Reference to be used to access the actual filesystem
     @Override
     public Reference derive(String guidPath) throws InvalidReferenceException {
+        long start = System.nanoTime();
         String GUID = getGUID(guidPath);
-        if (guidToFolderMap.containsKey(GUID)) {
-            return new ArchiveFileReference(guidToFolderMap.get(GUID), GUID, getPath(guidPath));
+        boolean[] opened = {false};
+        PooledArchive archive;
+        try {
+            archive = archives.get(GUID, guid -> {
+                opened[0] = true;
+                return open(guid);
+            });
+        } catch (UncheckedIOException e) {
+            throw new InvalidReferenceException(String.format("Error deriving reference with exception %s.", guidPath), guidPath);
+        }
+        if (archive == null) {
+            throw new InvalidReferenceException(String.format("No zip file saved for key %s.", guidPath), guidPath);
+        }
+        if (opened[0]) {
+            reportOpenArchives();
         }
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.histogram(
+                    String.format("%s.%s", Constants.ARCHIVE_POOL, "resolve"),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    "result:" + (opened[0] ? "opened" : "pooled")
+            );
+        }
+        return new PooledArchiveFileReference(archive, GUID, getPath(guidPath));
+    }
+
+    /**
+     * @return the archive of the GUID from the pool, opening it again if it was dropped
+     */
+    private PooledArchive getArchive(String GUID) throws IOException {
+        PooledArchive archive;
         try {
-            String zipName = redisTemplate.opsForValue().get(String.format("formplayer:archive:%s", GUID));
-            if (zipName == null) {
-                throw new InvalidReferenceException(String.format("No zip file saved for key %s.", guidPath), guidPath);
-            }
-            return new ArchiveFileReference(new ZipFile(zipName), GUID, getPath(guidPath));
+            archive = archives.get(GUID, this::open);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (archive == null) {
+            throw new FileNotFoundException(String.format("No zip file saved for key %s.", GUID));
+        }
+        return archive;
+    }
+
+    private PooledArchive open(String GUID) {
+        String zipName = redisTemplate.opsForValue().get(archiveKey(GUID));
+        // archives deleted without being unregistered, e.g. when the node restarted, are not registered
+        if (zipName == null || !new File(zipName).exists()) {
+            return null;
+        }
+        try {
+            return new PooledArchive(new ZipFile(zipName), hotEntryReads, hotEntryBudget);
         } catch (IOException e) {
-            throw new InvalidReferenceException(String.format("Error deriving reference with exception %s.", guidPath), guidPath);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String archiveKey(String GUID) {
+        return String.format("formplayer:archive:%s", GUID);
+    }
+
+    private void reportOpenArchives() {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.gauge(String.format("%s.%s", Constants.ARCHIVE_POOL, "open"),
+                    archives.estimatedSize());
+        }
+    }
+
+    /**
+     * Reads the archive the reference was derived from, or the archive of its GUID in the pool
+     * once that one is closed, e.g. during a long install
+     */
+    private class PooledArchiveFileReference extends ArchiveFileReference {
+        private final String GUID;
+        private final String path;
+        private volatile PooledArchive archive;
+
+        private PooledArchiveFileReference(PooledArchive archive, String GUID, String path) {
+            super(archive.getZipFile(), GUID, path);
+            this.archive = archive;
+            this.GUID = GUID;
+            this.path = path;
+        }
+
+        @Override
+        public boolean doesBinaryExist() throws IOException {
+            Boolean exists = archive.hasEntry(path);
+            while (exists == null) {
+                archive = getArchive(GUID);
+                exists = archive.hasEntry(path);
+            }
+            return exists;
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            InputStream stream = archive.openEntry(path);
+            while (stream == null) {
+                archive = getArchive(GUID);
+                stream = archive.openEntry(path);
+            }
+            return stream;
         }
     }
 }
@@ -6,16 +6,31 @@ import org.apache.commons.logging.LogFactory;
 import org.commcare.formplayer.exceptions.ApplicationConfigException;
 import org.commcare.formplayer.exceptions.FormattedApplicationConfigException;
 import org.commcare.formplayer.installers.FormplayerInstallerFactory;
+import org.commcare.formplayer.installers.FormplayerLocaleInstaller;
+import org.commcare.formplayer.installers.FormplayerOfflineUserRestoreInstaller;
+import org.commcare.formplayer.installers.FormplayerProfileInstaller;
+import org.commcare.formplayer.installers.FormplayerSuiteInstaller;
+import org.commcare.formplayer.installers.FormplayerXFormInstaller;
+import org.commcare.formplayer.installers.PreparsedResources;
+import org.commcare.formplayer.services.CczStore;
 import org.commcare.modern.reference.ArchiveFileRoot;
 import org.commcare.modern.reference.JavaHttpRoot;
+import org.commcare.modern.util.Pair;
 import org.commcare.resources.model.InstallCancelledException;
+import org.commcare.resources.model.Resource;
 import org.commcare.resources.model.ResourceInitializationException;
+import org.commcare.resources.model.ResourceInstaller;
+import org.commcare.resources.model.ResourceTable;
 import org.commcare.resources.model.UnresolvedResourceException;
+import org.commcare.suite.model.Suite;
+import org.commcare.util.CommCarePlatform;
 import org.commcare.util.engine.CommCareConfigEngine;
 import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.ResourceReferenceFactory;
 import org.javarosa.core.services.locale.Localization;
+import org.javarosa.core.services.locale.Localizer;
+import org.javarosa.core.services.locale.TableLocaleSource;
 import org.javarosa.core.services.storage.IStorageIndexedFactory;
 import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.json.JSONArray;
@@ -31,8 +46,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.zip.ZipFile;
 
 import okhttp3.HttpUrl;
@@ -42,8 +62,17 @@ import okhttp3.HttpUrl;
  */
 public class FormplayerConfigEngine extends CommCareConfigEngine {
 
+    // installers whose initialization initEnvironment(InitializedPlatform) restores: the profile,
+    // suites and locale tables, and nothing for forms and offline user restores, which formplayer
+    // reads from storage rather than registering when they are initialized
+    private static final Set<Class<?>> RESTORED_INSTALLERS = Set.of(FormplayerProfileInstaller.class,
+            FormplayerSuiteInstaller.class, FormplayerLocaleInstaller.class, FormplayerXFormInstaller.class,
+            FormplayerOfflineUserRestoreInstaller.class);
+
     private final Log log = LogFactory.getLog(FormplayerConfigEngine.class);
     private RestTemplate restTemplate;
+    private CczStore cczStore;
+    private ParallelResourceParser resourceParser;
 
     public FormplayerConfigEngine(IStorageIndexedFactory storageFactory,
                                   FormplayerInstallerFactory formplayerInstallerFactory,
@@ -55,6 +84,21 @@ public class FormplayerConfigEngine extends CommCareConfigEngine {
         ReferenceManager.instance().addReferenceFactory(formplayerArchiveFileRoot);
     }
 
+    /**
+     * Downloads CCZs of non-preview installs through the node's store, so that concurrent installs
+     * of a build wait on the same download
+     */
+    public void setCczStore(CczStore cczStore) {
+        this.cczStore = cczStore;
+    }
+
+    /**
+     * Parses the forms and locale files of CCZs in parallel as the suites listing them are installed
+     */
+    public void setResourceParser(ParallelResourceParser resourceParser) {
+        this.resourceParser = resourceParser;
+    }
+
     private String parseAppId(String url) {
         return HttpUrl.parse(url).queryParameter("app_id");
     }
@@ -80,29 +124,68 @@ public class FormplayerConfigEngine extends CommCareConfigEngine {
                 } catch (InvalidReferenceException e) {
                     // Expected in many cases, pass
                 }
+                if (cczStore != null) {
+                    try (CczStore.Lease lease = cczStore.acquire(archiveURL,
+                            target -> download(archiveURL, target))) {
+                        if (!initFromArchiveFile(lease.getFile().getAbsolutePath(), archiveURL, appId, lease)) {
+                            lease.discard();
+                        }
+                    }
+                    return;
+                }
             }
             fileName = downloadToTemp(archiveURL);
         } else {
             fileName = archiveURL;
         }
+        initFromArchiveFile(fileName, archiveURL, appId, null);
+    }
+
+    /**
+     * @param lease the store's lease on the file, if it is stored in the CczStore
+     */
+    private boolean initFromArchiveFile(String fileName, String archiveURL, String appId, CczStore.Lease lease)
+            throws InstallCancelledException, UnresolvedResourceException, UnfullfilledRequirementsException {
         ZipFile zip;
         try {
             zip = new ZipFile(fileName);
         } catch (IOException e) {
             log.error("File at " + archiveURL + ": is not a valid CommCare Package. Downloaded to: " + fileName, e);
-            return;
+            return false;
         }
         String archiveGUID = this.mArchiveRoot.addArchiveFile(zip, appId);
-        init("jr://archive/" + archiveGUID + "/profile.ccpr");
+        if (lease != null) {
+            lease.registerArchive(archiveGUID);
+        }
+        if (resourceParser == null) {
+            init("jr://archive/" + archiveGUID + "/profile.ccpr");
+            return true;
+        }
+        PreparsedResources.set(new PreparsedResources(resourceParser));
+        try {
+            init("jr://archive/" + archiveGUID + "/profile.ccpr");
+        } finally {
+            PreparsedResources.clear();
+        }
+        return true;
     }
 
     @Override
     protected String downloadToTemp(String resource) {
+        return download(resource, null).getAbsolutePath();
+    }
+
+    /**
+     * Downloads a CCZ to the target, or to a new temp file if the target is null
+     */
+    private File download(String resource, File target) {
         File file = null;
         try {
             file = restTemplate.execute(resource, HttpMethod.GET, null, clientHttpResponse -> {
-                File ret = File.createTempFile("commcare_", ".ccz");
-                StreamUtils.copy(clientHttpResponse.getBody(), new FileOutputStream(ret));
+                File ret = target != null ? target : File.createTempFile("commcare_", ".ccz");
+                try (FileOutputStream out = new FileOutputStream(ret)) {
+                    StreamUtils.copy(clientHttpResponse.getBody(), out);
+                }
                 return ret;
             });
         } catch (HttpClientErrorException.BadRequest e) {
@@ -126,7 +209,7 @@ public class FormplayerConfigEngine extends CommCareConfigEngine {
             }
             throw new ApplicationConfigException(errorMessage);
         }
-        return Objects.requireNonNull(file).getAbsolutePath();
+        return Objects.requireNonNull(file);
     }
 
     private String parseErrorFromResponse(String responseBody) {
@@ -165,6 +248,82 @@ public class FormplayerConfigEngine extends CommCareConfigEngine {
     @Override
     public void initEnvironment() throws ResourceInitializationException {
         super.initEnvironment();
+        registerFormplayerStrings();
+    }
+
+    /**
+     * Initializes the app's resources and records the state they leave behind, so that later
+     * engines of the same build can be initialized from it
+     *
+     * @return the recorded state, or null if the app has resources whose initialization isn't
+     * restored by initEnvironment(InitializedPlatform)
+     */
+    public InitializedPlatform initEnvironmentRecorded() throws ResourceInitializationException {
+        FormplayerLocaleInstaller.startRecording();
+        List<Pair<String, Hashtable<String, String>>> localeTables;
+        try {
+            initEnvironment();
+        } finally {
+            localeTables = FormplayerLocaleInstaller.stopRecording();
+        }
+        if (!isInitializationRestorable()) {
+            return null;
+        }
+        return new InitializedPlatform(getPlatform().getCurrentProfile(),
+                new ArrayList<>(getPlatform().getInstalledSuites()), localeTables,
+                Localization.getGlobalLocalizerAdvanced().getLocale());
+    }
+
+    /**
+     * Initializes the platform and the localizer from the state recorded by an earlier engine of
+     * the same build, instead of reading the resources from the application DB
+     */
+    public void initEnvironment(InitializedPlatform initializedPlatform) {
+        Localization.init(true);
+        getPlatform().setProfile(initializedPlatform.getProfile());
+        for (Suite suite : initializedPlatform.getSuites()) {
+            getPlatform().registerSuite(suite);
+        }
+        Localizer localizer = Localization.getGlobalLocalizerAdvanced();
+        for (Pair<String, Hashtable<String, String>> localeTable : initializedPlatform.getLocaleTables()) {
+            localizer.addAvailableLocale(localeTable.first);
+            localizer.registerLocaleResource(localeTable.first, new TableLocaleSource(localeTable.second));
+        }
+        localizer.addAvailableLocale("default");
+        Localization.setDefaultLocale("default");
+        if (initializedPlatform.getLocale() != null) {
+            Localization.setLocale(initializedPlatform.getLocale());
+        }
+        registerFormplayerStrings();
+    }
+
+    /**
+     * @return whether every resource of the app that is initialized at runtime has an installer
+     * whose initialization is restored from an InitializedPlatform
+     */
+    private boolean isInitializationRestorable() {
+        ResourceTable table = getPlatform().getGlobalResourceTable();
+        Resource profile = table.getResourceWithId(CommCarePlatform.APP_PROFILE_RESOURCE_ID);
+        if (profile == null) {
+            return false;
+        }
+        Deque<Resource> resources = new ArrayDeque<>();
+        resources.push(profile);
+        while (!resources.isEmpty()) {
+            Resource resource = resources.pop();
+            ResourceInstaller installer = resource.getInstaller();
+            if (installer.requiresRuntimeInitialization()
+                    && !RESTORED_INSTALLERS.contains(installer.getClass())) {
+                log.info(String.format("Not recording the initialized platform, resource %s is initialized "
+                        + "by %s", resource.getResourceId(), installer.getClass().getSimpleName()));
+                return false;
+            }
+            resources.addAll(table.getResourcesForParent(resource.getRecordGuid()));
+        }
+        return true;
+    }
+
+    private void registerFormplayerStrings() {
         Localization.registerLanguageReference("default",
                 "jr://springfile/formplayer_translatable_strings.txt");
     }
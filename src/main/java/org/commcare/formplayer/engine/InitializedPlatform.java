@@ -0,0 +1,54 @@
+package org.commcare.formplayer.engine;
+
+import org.commcare.modern.util.Pair;
+import org.commcare.suite.model.Profile;
+import org.commcare.suite.model.Suite;
+
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * The state an app build's resources leave in a CommCarePlatform and the localizer once they are
+ * initialized, kept so that later engines of the build can be initialized without reading and
+ * deserializing the resources again.
+ *
+ * The profile, suites and locale tables are shared by all engines initialized from it and must
+ * only be read.
+ */
+public class InitializedPlatform {
+
+    private final Profile profile;
+    private final List<Suite> suites;
+    private final List<Pair<String, Hashtable<String, String>>> localeTables;
+    private final String locale;
+
+    InitializedPlatform(Profile profile, List<Suite> suites,
+            List<Pair<String, Hashtable<String, String>>> localeTables, String locale) {
+        this.profile = profile;
+        this.suites = suites;
+        this.localeTables = localeTables;
+        this.locale = locale;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public List<Suite> getSuites() {
+        return suites;
+    }
+
+    /**
+     * @return the locale tables the build registers, in the order they are registered
+     */
+    public List<Pair<String, Hashtable<String, String>>> getLocaleTables() {
+        return localeTables;
+    }
+
+    /**
+     * @return the locale that was set once the build was initialized
+     */
+    public String getLocale() {
+        return locale;
+    }
+}
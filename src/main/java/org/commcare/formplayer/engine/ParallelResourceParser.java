@@ -0,0 +1,99 @@
+package org.commcare.formplayer.engine;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.util.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.reference.Reference;
+import org.javarosa.core.services.locale.LocalizationUtils;
+import org.javarosa.xform.util.XFormUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Parses the forms and locale files of an app in parallel while it is installed, so that
+ * installing the resource table one resource at a time doesn't parse each of them on the request
+ * thread.
+ *
+ * The resources to parse are the ones the profile and suite installers add to the resource table
+ * (see PreparsedResources). All installs on this node share a pool of the given parallelism. The
+ * installers still write the parsed resources in the order of the resource table, and
+ * InstallService writes them in a single transaction.
+ */
+@Component
+@ConditionalOnProperty(name = "formplayer.install.parallel.enabled", havingValue = "true")
+public class ParallelResourceParser {
+
+    private final Log log = LogFactory.getLog(ParallelResourceParser.class);
+
+    @Value("${formplayer.install.parallel.parallelism:4}")
+    private int parallelism;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    private ForkJoinPool pool;
+
+    @PostConstruct
+    public void init() {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return the parsed form of the reference, or null if it failed to parse
+     */
+    public CompletableFuture<FormDef> parseForm(Reference ref) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (InputStream in = ref.getStream()) {
+                FormDef formDef = XFormUtils.getFormRaw(new InputStreamReader(in, StandardCharsets.UTF_8));
+                count("form");
+                return formDef;
+            } catch (Exception e) {
+                // the installer parses it again and reports the error
+                log.debug("Unable to parse " + ref.getURI() + " ahead of install", e);
+                return null;
+            }
+        }, pool);
+    }
+
+    /**
+     * @return the parsed locale table of the reference, or null if it failed to parse
+     */
+    public CompletableFuture<Hashtable<String, String>> parseLocaleTable(Reference ref) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (InputStream in = ref.getStream()) {
+                Hashtable<String, String> localeTable = LocalizationUtils.parseLocaleInput(in);
+                count("locale");
+                return localeTable;
+            } catch (Exception e) {
+                log.debug("Unable to parse " + ref.getURI() + " ahead of install", e);
+                return null;
+            }
+        }, pool);
+    }
+
+    private void count(String resource) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.increment(Constants.PARALLEL_INSTALL, "resource:" + resource);
+        }
+    }
+}
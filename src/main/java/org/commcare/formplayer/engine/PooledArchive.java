@@ -0,0 +1,273 @@
+package org.commcare.formplayer.engine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An open CCZ kept in the pool of FormplayerArchiveFileRoot.
+ *
+ * Entries that are read often can be extracted into a memory-mapped blob, so that later reads of
+ * them don't inflate the entry again. Entries are extracted once they have been read hotEntryReads
+ * times, for as long as the blobs of all archives on the node stay within the hot entry budget the
+ * archives share. The bytes an archive extracted are returned to the budget when it is closed.
+ * Entries that can't be extracted, e.g. once the budget is used up, are read from the zip from then
+ * on without trying to extract them again.
+ *
+ * The archive is reference counted: the pool holds a reference while the archive is in it, and
+ * each stream read from the zip holds one until it is closed. The zip is closed once the last
+ * reference is released.
+ */
+class PooledArchive {
+
+    private static final Log log = LogFactory.getLog(PooledArchive.class);
+
+    private final ZipFile zip;
+    private final int hotEntryReads;
+    private final AtomicLong hotEntryBudget;
+
+    private final Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+    private final Map<String, ByteBuffer> hotEntries = new ConcurrentHashMap<>();
+    // entries that are read from the zip, see extract
+    private final Set<String> coldEntries = ConcurrentHashMap.newKeySet();
+
+    // guarded by this
+    private FileChannel blob;
+    private long extractedBytes;
+    private boolean closed;
+    // the pool's reference
+    private int references = 1;
+
+    /**
+     * @param hotEntryReads reads after which an entry is extracted, or 0 to never extract entries
+     * @param hotEntryBudget bytes left for extracting entries, shared by the archives of the node
+     */
+    PooledArchive(ZipFile zip, int hotEntryReads, AtomicLong hotEntryBudget) {
+        this.zip = zip;
+        this.hotEntryReads = hotEntryReads;
+        this.hotEntryBudget = hotEntryBudget;
+    }
+
+    ZipFile getZipFile() {
+        return zip;
+    }
+
+    /**
+     * Takes a reference to the archive, which must be released once it is no longer read
+     *
+     * @return false if the archive is already closed
+     */
+    synchronized boolean retain() {
+        if (references == 0) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Releases a reference to the archive, closing it if it was the last one
+     */
+    synchronized void release() {
+        if (references > 0 && --references == 0) {
+            close();
+        }
+    }
+
+    /**
+     * @return whether the zip has the entry, or null if the archive is closed
+     */
+    Boolean hasEntry(String path) {
+        if (!retain()) {
+            return null;
+        }
+        try {
+            return zip.getEntry(path) != null;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * @return a stream of the entry from the blob if it is extracted, or else from the zip, or
+     * null if the archive is closed. A stream of the zip holds a reference to the archive until it
+     * is closed.
+     */
+    InputStream openEntry(String path) throws IOException {
+        InputStream hotEntry = openHotEntry(path);
+        if (hotEntry != null) {
+            return hotEntry;
+        }
+        if (!retain()) {
+            return null;
+        }
+        try {
+            ZipEntry entry = zip.getEntry(path);
+            if (entry == null) {
+                throw new IOException(String.format("No entry %s in %s", path, zip.getName()));
+            }
+            return new ReleasingInputStream(zip.getInputStream(entry));
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a stream of the entry from the blob if it is extracted, or null if it should be read
+     * from the zip
+     */
+    InputStream openHotEntry(String path) throws IOException {
+        ByteBuffer buffer = hotEntries.get(path);
+        if (buffer == null && hotEntryReads > 0 && !coldEntries.contains(path)
+                && reads.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet() >= hotEntryReads) {
+            buffer = extract(path);
+        }
+        return buffer == null ? null : new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    private synchronized ByteBuffer extract(String path) throws IOException {
+        ByteBuffer buffer = hotEntries.get(path);
+        if (buffer != null || closed) {
+            return buffer;
+        }
+        ZipEntry entry = zip.getEntry(path);
+        if (entry == null || entry.isDirectory() || entry.getSize() < 0 || !reserve(entry.getSize())) {
+            coldEntries.add(path);
+            return null;
+        }
+        try {
+            buffer = writeToBlob(path, entry);
+        } catch (IOException | RuntimeException e) {
+            hotEntryBudget.addAndGet(entry.getSize());
+            coldEntries.add(path);
+            throw e;
+        }
+        extractedBytes += entry.getSize();
+        hotEntries.put(path, buffer);
+        return buffer;
+    }
+
+    private ByteBuffer writeToBlob(String path, ZipEntry entry) throws IOException {
+        if (blob == null) {
+            File blobFile = File.createTempFile("commcare_", ".blob");
+            blob = FileChannel.open(blobFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        long offset = blob.size();
+        long end = offset + entry.getSize();
+        try (InputStream in = zip.getInputStream(entry)) {
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = offset;
+            while (position < end) {
+                long transferred = blob.transferFrom(source, position, end - position);
+                if (transferred <= 0) {
+                    throw new IOException(String.format("Entry %s of %s is truncated", path, zip.getName()));
+                }
+                position += transferred;
+            }
+        }
+        return blob.map(FileChannel.MapMode.READ_ONLY, offset, entry.getSize());
+    }
+
+    /**
+     * Takes the bytes from the hot entry budget
+     *
+     * @return false if there aren't as many left
+     */
+    private boolean reserve(long bytes) {
+        long remaining;
+        do {
+            remaining = hotEntryBudget.get();
+            if (remaining < bytes) {
+                return false;
+            }
+        } while (!hotEntryBudget.compareAndSet(remaining, remaining - bytes));
+        return true;
+    }
+
+    /**
+     * Closes the zip and deletes the blob. Extracted entries stay readable until they are
+     * unmapped once no stream uses them anymore.
+     */
+    private synchronized void close() {
+        closed = true;
+        hotEntryBudget.addAndGet(extractedBytes);
+        extractedBytes = 0;
+        try {
+            zip.close();
+            if (blob != null) {
+                blob.close();
+            }
+        } catch (IOException e) {
+            log.warn("Error closing archive " + zip.getName(), e);
+        }
+    }
+
+    private class ReleasingInputStream extends FilterInputStream {
+        private boolean released;
+
+        private ReleasingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!released) {
+                    released = true;
+                    release();
+                }
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.commcare.formplayer.installers;
 
 import lombok.NonNull;
+import org.commcare.modern.util.Pair;
 import org.commcare.resources.ResourceInstallContext;
 import org.commcare.resources.model.*;
 import org.commcare.util.CommCarePlatform;
@@ -21,7 +22,9 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -30,6 +33,10 @@ import java.util.Vector;
  */
 public class FormplayerLocaleInstaller extends SimpleInstaller {
 
+    // locale tables registered on this thread while they are recorded, see FormplayerConfigEngine
+    private static final ThreadLocal<List<Pair<String, Hashtable<String, String>>>> recordedLocales =
+            new ThreadLocal<>();
+
     private String locale;
 
     private Hashtable<String, String> localizedValues;
@@ -49,16 +56,39 @@ public class FormplayerLocaleInstaller extends SimpleInstaller {
     public boolean initialize(CommCarePlatform platform, boolean isUpgrade) throws IOException, InvalidReferenceException, InvalidStructureException, XmlPullParserException, UnfullfilledRequirementsException {
         Localization.getGlobalLocalizerAdvanced().addAvailableLocale(locale);
         Localization.getGlobalLocalizerAdvanced().registerLocaleResource(locale, new TableLocaleSource(localizedValues));
+        List<Pair<String, Hashtable<String, String>>> recorded = recordedLocales.get();
+        if (recorded != null) {
+            recorded.add(new Pair<>(locale, localizedValues));
+        }
         return true;
     }
 
+    /**
+     * Records the locale tables that are registered on this thread until stopRecording is called
+     */
+    public static void startRecording() {
+        recordedLocales.set(new ArrayList<>());
+    }
+
+    /**
+     * @return the locale tables registered since startRecording, in the order they were registered
+     */
+    public static List<Pair<String, Hashtable<String, String>>> stopRecording() {
+        List<Pair<String, Hashtable<String, String>>> recorded = recordedLocales.get();
+        recordedLocales.remove();
+        return recorded == null ? new ArrayList<>() : recorded;
+    }
+
     @Override
     public boolean install(Resource r, ResourceLocation location, Reference ref, ResourceTable table, CommCarePlatform platform, boolean upgrade, ResourceInstallContext resourceInstallContext) throws UnresolvedResourceException {
         try {
-            try (InputStream incoming = ref.getStream()) {
-                localizedValues = LocalizationUtils.parseLocaleInput(incoming);
-                table.commit(r, upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED);
+            localizedValues = PreparsedResources.takeLocaleTable(ref.getURI());
+            if (localizedValues == null) {
+                try (InputStream incoming = ref.getStream()) {
+                    localizedValues = LocalizationUtils.parseLocaleInput(incoming);
+                }
             }
+            table.commit(r, upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED);
             return true;
         } catch (IOException e) {
             throw new UnreliableSourceException(r, e.getMessage());
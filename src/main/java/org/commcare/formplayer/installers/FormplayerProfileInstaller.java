@@ -1,9 +1,16 @@
 package org.commcare.formplayer.installers;
 
+import org.commcare.resources.ResourceInstallContext;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceLocation;
+import org.commcare.resources.model.ResourceTable;
+import org.commcare.resources.model.UnresolvedResourceException;
 import org.commcare.resources.model.installers.ProfileInstaller;
 import org.commcare.suite.model.Profile;
 import org.commcare.util.CommCarePlatform;
+import org.javarosa.core.reference.Reference;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.xml.util.UnfullfilledRequirementsException;
 
 /**
  * Created by willpride on 12/1/16.
@@ -23,4 +30,15 @@ public class FormplayerProfileInstaller extends ProfileInstaller {
         }
         return cacheStorage;
     }
+
+    @Override
+    public boolean install(Resource r, ResourceLocation location, Reference ref, ResourceTable table,
+            CommCarePlatform platform, boolean upgrade, ResourceInstallContext resourceInstallContext)
+            throws UnresolvedResourceException, UnfullfilledRequirementsException {
+        boolean installed = super.install(r, location, ref, table, platform, upgrade, resourceInstallContext);
+        if (installed && !upgrade) {
+            PreparsedResources.parseChildren(r, ref, table);
+        }
+        return installed;
+    }
 }
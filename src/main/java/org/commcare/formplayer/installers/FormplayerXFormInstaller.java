@@ -1,9 +1,16 @@
 package org.commcare.formplayer.installers;
 
+import org.commcare.resources.ResourceInstallContext;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceLocation;
+import org.commcare.resources.model.ResourceTable;
+import org.commcare.resources.model.UnresolvedResourceException;
 import org.commcare.resources.model.installers.XFormInstaller;
 import org.commcare.util.CommCarePlatform;
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.reference.Reference;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.xml.util.UnfullfilledRequirementsException;
 
 /**
  * Created by willpride on 12/1/16.
@@ -19,4 +26,26 @@ public class FormplayerXFormInstaller extends XFormInstaller {
         }
         return cacheStorage;
     }
+
+    /**
+     * Follows the install of the base installer, except that a form parsed ahead of the install
+     * is taken from PreparsedResources instead of parsing the reference's stream. Upgrades, which
+     * rename the form's schema, and forms the base installer would parse are installed by it.
+     */
+    @Override
+    public boolean install(Resource r, ResourceLocation location, Reference ref, ResourceTable table,
+            CommCarePlatform platform, boolean upgrade, ResourceInstallContext resourceInstallContext)
+            throws UnresolvedResourceException, UnfullfilledRequirementsException {
+        if (location.getAuthority() == Resource.RESOURCE_AUTHORITY_CACHE || upgrade) {
+            return super.install(r, location, ref, table, platform, upgrade, resourceInstallContext);
+        }
+        FormDef formDef = PreparsedResources.takeForm(ref.getURI());
+        if (formDef == null) {
+            return super.install(r, location, ref, table, platform, upgrade, resourceInstallContext);
+        }
+        storage(platform).write(formDef);
+        cacheLocation = formDef.getID();
+        table.commit(r, Resource.RESOURCE_STATUS_INSTALLED);
+        return true;
+    }
 }
@@ -0,0 +1,141 @@
+package org.commcare.formplayer.installers;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.engine.ParallelResourceParser;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceInstaller;
+import org.commcare.resources.model.ResourceLocation;
+import org.commcare.resources.model.ResourceTable;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.core.reference.Reference;
+import org.javarosa.core.reference.ReferenceManager;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resources of an app build that are parsed ahead of their install, by reference URI.
+ *
+ * While they are set on the installing thread, the profile and suite installers start parsing the
+ * forms and locale files they add to the resource table, and the xform and locale installers take
+ * their resource from here instead of parsing it again. Resources that are missing, e.g. because
+ * they failed to parse, are parsed by the installer as usual.
+ */
+public class PreparsedResources {
+
+    private static final Log log = LogFactory.getLog(PreparsedResources.class);
+
+    private static final ThreadLocal<PreparsedResources> current = new ThreadLocal<>();
+
+    private final ParallelResourceParser parser;
+    private final Map<String, CompletableFuture<FormDef>> forms = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Hashtable<String, String>>> localeTables =
+            new ConcurrentHashMap<>();
+
+    public PreparsedResources(ParallelResourceParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Makes the resources available to the installers on this thread until clear is called
+     */
+    public static void set(PreparsedResources resources) {
+        current.set(resources);
+    }
+
+    public static void clear() {
+        PreparsedResources resources = current.get();
+        current.remove();
+        if (resources != null) {
+            // the install failed or didn't need them
+            resources.forms.values().forEach(form -> form.cancel(false));
+            resources.localeTables.values().forEach(localeTable -> localeTable.cancel(false));
+        }
+    }
+
+    /**
+     * Starts parsing the forms and locale files the installer of a resource added to the table
+     *
+     * @param ref the reference the parent resource was installed from, which the locations of its
+     *            children are relative to
+     */
+    static void parseChildren(Resource parent, Reference ref, ResourceTable table) {
+        PreparsedResources resources = current.get();
+        if (resources == null) {
+            return;
+        }
+        for (Resource child : table.getResourcesForParent(parent.getRecordGuid())) {
+            ResourceInstaller installer = child.getInstaller();
+            if (!(installer instanceof FormplayerXFormInstaller)
+                    && !(installer instanceof FormplayerLocaleInstaller)) {
+                continue;
+            }
+            Reference childRef = deriveLocalReference(child, ref);
+            if (childRef == null) {
+                continue;
+            }
+            String key = key(childRef.getURI());
+            if (installer instanceof FormplayerXFormInstaller) {
+                resources.forms.computeIfAbsent(key, uri -> resources.parser.parseForm(childRef));
+            } else {
+                resources.localeTables.computeIfAbsent(key, uri -> resources.parser.parseLocaleTable(childRef));
+            }
+        }
+    }
+
+    /**
+     * @return the reference of the resource's first local location, or null if it has none
+     */
+    private static Reference deriveLocalReference(Resource resource, Reference parentRef) {
+        for (ResourceLocation location : resource.getLocations()) {
+            if (location.getAuthority() != Resource.RESOURCE_AUTHORITY_LOCAL) {
+                continue;
+            }
+            try {
+                if (ReferenceManager.isRelative(location.getLocation())) {
+                    return ReferenceManager.instance().DeriveReference(location.getLocation(),
+                            parentRef.getURI());
+                }
+                return ReferenceManager.instance().DeriveReference(location.getLocation());
+            } catch (InvalidReferenceException e) {
+                log.debug("Unable to derive " + location.getLocation() + " ahead of install", e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the parsed form of the reference, or null if the installer should parse it
+     */
+    static FormDef takeForm(String uri) {
+        PreparsedResources resources = current.get();
+        return resources == null ? null : join(resources.forms.remove(key(uri)));
+    }
+
+    /**
+     * @return the parsed locale table of the reference, or null if the installer should parse it
+     */
+    static Hashtable<String, String> takeLocaleTable(String uri) {
+        PreparsedResources resources = current.get();
+        return resources == null ? null : join(resources.localeTables.remove(key(uri)));
+    }
+
+    /**
+     * Waits for a resource that is still being parsed
+     */
+    private static <T> T join(CompletableFuture<T> parsed) {
+        return parsed == null ? null : parsed.join();
+    }
+
+    /**
+     * References to resources relative to the profile keep their ./ segments
+     */
+    public static String key(String uri) {
+        return uri.replace("/./", "/");
+    }
+}
@@ -0,0 +1,88 @@
+package org.commcare.formplayer.objects;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * Stores the answer log of a form session as a sequence of self-delimiting entries, so that
+ * entries appended to the column read back the same as a log written in one go, see
+ * FormSessionRepo.appendAnswerLog
+ */
+@Converter
+public class AnswerLogConverter implements AttributeConverter<ArrayList<AnswerLogEntry>, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(ArrayList<AnswerLogEntry> attribute) {
+        return attribute == null ? null : encode(attribute);
+    }
+
+    @Override
+    public ArrayList<AnswerLogEntry> convertToEntityAttribute(byte[] dbData) {
+        return dbData == null ? null : decode(dbData);
+    }
+
+    public static byte[] encode(List<AnswerLogEntry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (AnswerLogEntry entry : entries) {
+                out.writeByte(entry.getType().ordinal());
+                writeString(out, entry.getFormIndex());
+                out.writeBoolean(entry.getValue() != null);
+                if (entry.getValue() != null) {
+                    writeString(out, entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ArrayList<AnswerLogEntry> decode(byte[] data) {
+        ArrayList<AnswerLogEntry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            while (in.available() > 0) {
+                AnswerLogEntry.Type type = AnswerLogEntry.Type.values()[in.readUnsignedByte()];
+                String formIndex = readString(in);
+                String value = in.readBoolean() ? readString(in) : null;
+                switch (type) {
+                    case ANSWER:
+                        entries.add(AnswerLogEntry.answer(formIndex, value));
+                        break;
+                    case NEW_REPEAT:
+                        entries.add(AnswerLogEntry.newRepeat(formIndex));
+                        break;
+                    case DELETE_REPEAT:
+                        entries.add(AnswerLogEntry.deleteRepeat(formIndex));
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    // writeUTF is limited to 64KB, which a long text answer can exceed
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package org.commcare.formplayer.objects;
+
+import java.io.Serializable;
+
+/**
+ * A change made to the instance of a form session since its last instance snapshot.
+ *
+ * Answers are logged with the value the question ended up with rather than the answer that was
+ * submitted, so replaying them doesn't depend on the choices a select question offered at the
+ * time.
+ */
+public class AnswerLogEntry implements Serializable {
+
+    // stored by ordinal, see AnswerLogConverter
+    public enum Type {
+        ANSWER,
+        NEW_REPEAT,
+        DELETE_REPEAT
+    }
+
+    private final Type type;
+    private final String formIndex;
+    private final String value;
+
+    private AnswerLogEntry(Type type, String formIndex, String value) {
+        this.type = type;
+        this.formIndex = formIndex;
+        this.value = value;
+    }
+
+    /**
+     * @param value uncast value of the question, or null if it is unanswered
+     */
+    public static AnswerLogEntry answer(String formIndex, String value) {
+        return new AnswerLogEntry(Type.ANSWER, formIndex, value);
+    }
+
+    public static AnswerLogEntry newRepeat(String formIndex) {
+        return new AnswerLogEntry(Type.NEW_REPEAT, formIndex, null);
+    }
+
+    public static AnswerLogEntry deleteRepeat(String formIndex) {
+        return new AnswerLogEntry(Type.DELETE_REPEAT, formIndex, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFormIndex() {
+        return formIndex;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + formIndex + (value == null ? "" : "=" + value);
+    }
+}
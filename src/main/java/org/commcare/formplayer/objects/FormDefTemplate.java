@@ -0,0 +1,147 @@
+package org.commcare.formplayer.objects;
+
+import org.commcare.formplayer.util.CacheWeigher;
+import org.commcare.formplayer.util.serializer.FormDefStringSerializer;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A form definition shared by all sessions of the same app, form and version.
+ *
+ * Holds the decoded form def once, and a bounded pool of parsed form defs that are handed out to
+ * one request at a time. A form def is fully reset by each request that loads a session's
+ * instance into it, so a pooled form def can be used by any existing session of the form. Requests
+ * that find the pool empty parse their own copy, and at most maxIdle copies are kept.
+ *
+ * New sessions initialize the form on top of whatever instance the form def holds, so they only
+ * get pristine copies that no session has used. Pre-warmed templates keep pristineCopies of those
+ * parsed ahead of time, and parse replacements in the background as new sessions use them up.
+ */
+public class FormDefTemplate implements CacheWeigher.Weighted {
+
+    private final byte[] formDefBytes;
+    private final int maxIdle;
+    private final int pristineCopies;
+    private final long formDefWeight;
+    private final Deque<FormDef> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final Deque<FormDef> pristine = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pristineCount = new AtomicInteger();
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+    private volatile Executor refillExecutor;
+
+    private FormDefTemplate(byte[] formDefBytes, FormDef formDef, int maxIdle, int pristineCopies) {
+        this.formDefBytes = formDefBytes;
+        this.maxIdle = maxIdle;
+        this.pristineCopies = Math.max(1, pristineCopies);
+        this.formDefWeight = CacheWeigher.weigh(formDef);
+        addPristine(formDef);
+    }
+
+    /**
+     * @param formDefBytes externalized form def, as decoded or decompressed from its stored format
+     */
+    public static FormDefTemplate fromBytes(byte[] formDefBytes, int maxIdle, int pristineCopies)
+            throws IOException, DeserializationException {
+        return new FormDefTemplate(formDefBytes, FormDefStringSerializer.deserialize(formDefBytes), maxIdle,
+                pristineCopies);
+    }
+
+    /**
+     * @return a form def for the exclusive use of the caller until it is released, to load an
+     * existing session's instance into
+     */
+    public FormDef checkout() throws IOException, DeserializationException {
+        FormDef formDef = idle.pollFirst();
+        if (formDef != null) {
+            idleCount.decrementAndGet();
+            return formDef;
+        }
+        return checkoutPristine();
+    }
+
+    /**
+     * @return a form def no session has used, for the exclusive use of the caller until it is
+     * released
+     */
+    public FormDef checkoutPristine() throws IOException, DeserializationException {
+        FormDef formDef = pristine.pollFirst();
+        if (formDef == null) {
+            return FormDefStringSerializer.deserialize(formDefBytes);
+        }
+        pristineCount.decrementAndGet();
+        scheduleRefill();
+        return formDef;
+    }
+
+    /**
+     * Returns a form def that is no longer used to the pool, or drops it if the pool is full
+     */
+    public void release(FormDef formDef) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(formDef);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Parses pristine copies until there are pristineCopies, and keeps them topped up from now on
+     *
+     * @param refillExecutor runs the parsing of copies that replace the ones used by new sessions
+     */
+    public void fillPristine(Executor refillExecutor) throws IOException, DeserializationException {
+        this.refillExecutor = refillExecutor;
+        while (pristineCount.get() < pristineCopies) {
+            addPristine(FormDefStringSerializer.deserialize(formDefBytes));
+        }
+    }
+
+    private void addPristine(FormDef formDef) {
+        pristineCount.incrementAndGet();
+        pristine.offerLast(formDef);
+    }
+
+    private void scheduleRefill() {
+        Executor executor = refillExecutor;
+        if (executor == null || !refillPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refillPending.set(false);
+                    fillPristine(executor);
+                } catch (IOException | DeserializationException e) {
+                    // the next new session parses its own copy
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refillPending.set(false);
+        }
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getPristineCount() {
+        return pristineCount.get();
+    }
+
+    /**
+     * Weighed as if the pools were full, since the weight is only taken when the template is cached
+     */
+    @Override
+    public long getWeight() {
+        return formDefBytes.length + (maxIdle + pristineCopies) * formDefWeight;
+    }
+}
@@ -40,11 +40,25 @@ public class SerializableFormDefinition {
     @Column(name = "formversion")
     private String formVersion;
 
+    // base64 text of rows written before formdef_compressed was added, cleared once the row is
+    // migrated so that reading a definition doesn't load it in both formats
     @Column(name = "formdef")
     private String serializedFormDef;
 
-    public void setSerializedFormDef(String serializedFormDef) {
-        this.serializedFormDef = serializedFormDef;
+    // see FormDefBinarySerializer
+    @Column(name = "formdef_compressed")
+    private byte[] compressedFormDef;
+
+    /**
+     * Replaces the form def, which is only stored in the compressed format from now on
+     */
+    public void setCompressedFormDef(byte[] compressedFormDef) {
+        this.serializedFormDef = null;
+        this.compressedFormDef = compressedFormDef;
+    }
+
+    public boolean hasFormDef() {
+        return compressedFormDef != null || serializedFormDef != null;
     }
 
     protected SerializableFormDefinition() {}
@@ -55,4 +69,12 @@ public class SerializableFormDefinition {
         this.formVersion = formVersion;
         this.serializedFormDef = formDef;
     }
+
+    public SerializableFormDefinition(String appId, String formXmlns, String formVersion,
+            byte[] compressedFormDef) {
+        this.appId = appId;
+        this.formXmlns = formXmlns;
+        this.formVersion = formVersion;
+        this.compressedFormDef = compressedFormDef;
+    }
 }
@@ -2,6 +2,7 @@ package org.commcare.formplayer.objects;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.GenericGenerator;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
@@ -9,8 +10,13 @@ import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 import jakarta.persistence.*;
 import java.io.Serializable;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+// only write the columns that changed, so the instance isn't rewritten while answers are logged
+@DynamicUpdate
 @Entity
 @Table(name = "formplayer_sessions")
 @EntityListeners(AuditingEntityListener.class)
@@ -57,10 +63,29 @@ public class SerializableFormSession implements Serializable {
     @Column(name = "onequestionperscreen", updatable = false)
     private boolean oneQuestionPerScreen;
 
-    @Setter
+    // last full snapshot of the instance, see getInstanceXml for the latest one
     @Column(name = "instancexml")
     private String instanceXml;
 
+    // changes made to the instance since the snapshot
+    @Column(name = "answerlog")
+    @Convert(converter=AnswerLogConverter.class)
+    private ArrayList<AnswerLogEntry> answerLog;
+
+    // entries of the answer log that are in the database, the rest is appended by the next write
+    @Transient
+    private int persistedAnswerLogSize;
+
+    // latest instance when it differs from the snapshot, never written to the database
+    @Setter
+    @Transient
+    private String currentInstanceXml;
+
+    // whether the snapshot was replaced since the session was last written, or deferred by
+    // FormSessionWriteBehind
+    @Transient
+    private boolean snapshotReplaced;
+
     @Setter
     @ManyToOne(fetch = FetchType.EAGER)
     @JoinColumn(name = "form_definition_id")
@@ -125,6 +150,85 @@ public class SerializableFormSession implements Serializable {
         this.currentIndex = "0";
     }
 
+    /**
+     * @return the latest instance of the form. For a session read from the database with changes
+     * logged since its snapshot this is the snapshot, until the FormSession replays the changes.
+     */
+    public String getInstanceXml() {
+        return currentInstanceXml != null ? currentInstanceXml : instanceXml;
+    }
+
+    /**
+     * Replaces the snapshot of the instance, along with the changes logged since the last one
+     */
+    public void setInstanceXml(String instanceXml) {
+        this.instanceXml = instanceXml;
+        this.currentInstanceXml = null;
+        this.answerLog = null;
+        this.persistedAnswerLogSize = 0;
+        this.snapshotReplaced = true;
+    }
+
+    /**
+     * @return whether the snapshot was replaced since the last call, see FormSessionWriteBehind
+     */
+    public boolean takeSnapshotReplaced() {
+        boolean replaced = snapshotReplaced;
+        snapshotReplaced = false;
+        return replaced;
+    }
+
+    /**
+     * @return the last full snapshot of the instance, as stored in the database
+     */
+    public String getInstanceSnapshotXml() {
+        return instanceXml;
+    }
+
+    public List<AnswerLogEntry> getAnswerLog() {
+        return answerLog == null ? Collections.emptyList() : answerLog;
+    }
+
+    /**
+     * @return the entries logged since the session was read or last written
+     */
+    public List<AnswerLogEntry> getUnpersistedAnswerLog() {
+        List<AnswerLogEntry> log = getAnswerLog();
+        return log.subList(persistedAnswerLogSize, log.size());
+    }
+
+    /**
+     * Records that the database holds the snapshot and the whole answer log of the session, so
+     * the next write only appends the entries logged after this
+     */
+    public void markPersisted() {
+        persistedAnswerLogSize = getAnswerLog().size();
+        snapshotReplaced = false;
+    }
+
+    @PostLoad
+    @PostPersist
+    @PostUpdate
+    private void onPersisted() {
+        markPersisted();
+    }
+
+    /**
+     * Logs changes made to the instance instead of replacing the snapshot
+     *
+     * @param currentInstanceXml the instance with the changes applied
+     */
+    public void appendAnswerLog(List<AnswerLogEntry> entries, String currentInstanceXml) {
+        ArrayList<AnswerLogEntry> log = new ArrayList<>(getAnswerLog());
+        log.addAll(entries);
+        this.answerLog = log;
+        this.currentInstanceXml = currentInstanceXml;
+    }
+
+    public boolean hasUnreplayedAnswerLog() {
+        return currentInstanceXml == null && answerLog != null && !answerLog.isEmpty();
+    }
+
     public void setSubmitStatus(SubmitStatus submitStatus) {
         this.submitStatus = submitStatus.name();
     }
@@ -133,6 +237,14 @@ public class SerializableFormSession implements Serializable {
         return submitStatus == null ? null : SubmitStatus.valueOf(submitStatus);
     }
 
+    /**
+     * Advances the version of a session whose save is written to the database later, see
+     * FormSessionWriteBehind
+     */
+    public void incrementVersion() {
+        version++;
+    }
+
     public boolean isProcessingStageComplete(SubmitStatus stage) {
         SubmitStatus status = getSubmitStatus();
         return status != null && status.compareTo(stage) >= 0;
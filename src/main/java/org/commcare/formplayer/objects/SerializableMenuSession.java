@@ -5,6 +5,7 @@ import lombok.Setter;
 import org.hibernate.annotations.GenericGenerator;
 
 import jakarta.persistence.*;
+import java.io.Serializable;
 
 /**
  * Created by willpride on 8/1/16.
@@ -13,7 +14,7 @@ import jakarta.persistence.*;
 @Entity
 @Table(name="menu_sessions")
 @Getter
-public class SerializableMenuSession {
+public class SerializableMenuSession implements Serializable {
 
     @Id @GeneratedValue(generator="uuid")
     @GenericGenerator(name="uuid", strategy="org.hibernate.id.UUIDGenerator")
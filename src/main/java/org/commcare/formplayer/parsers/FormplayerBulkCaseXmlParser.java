@@ -50,18 +50,14 @@ public class FormplayerBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
 
     @Override
     protected void performBulkWrite(LinkedHashMap<String, Case> writeLog) throws IOException {
+        storage.writeBatch(writeLog.values());
         ArrayList<Integer> recordIdsToWipe = new ArrayList<>();
-        for (String caseId : writeLog.keySet()) {
-            Case c = writeLog.get(caseId);
-            storage.write(c);
+        for (Case c : writeLog.values()) {
             // Add the case's SQL record ID
             recordIdsToWipe.add(c.getID());
         }
         mEntityCache.invalidateCaches(recordIdsToWipe);
         mCaseIndexTable.clearCaseIndices(recordIdsToWipe);
-        for (String cid : writeLog.keySet()) {
-            Case c = writeLog.get(cid);
-            mCaseIndexTable.indexCase(c);
-        }
+        mCaseIndexTable.indexCases(writeLog.values());
     }
 }
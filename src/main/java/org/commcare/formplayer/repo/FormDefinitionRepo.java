@@ -2,6 +2,10 @@ package org.commcare.formplayer.repo;
 
 import org.commcare.formplayer.objects.SerializableFormDefinition;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
 
@@ -13,4 +17,13 @@ public interface FormDefinitionRepo extends JpaRepository<SerializableFormDefini
             String appId,
             String formXmlns,
             String formVersion);
+
+    /**
+     * Replaces the base64 text of a definition with the compressed form def, without loading it
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE SerializableFormDefinition SET compressedFormDef = :compressedFormDef, "
+            + "serializedFormDef = NULL WHERE id = :id AND compressedFormDef IS NULL")
+    int addCompressedFormDef(@Param("id") Long id, @Param("compressedFormDef") byte[] compressedFormDef);
 }
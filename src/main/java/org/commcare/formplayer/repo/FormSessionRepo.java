@@ -25,8 +25,27 @@ public interface FormSessionRepo extends JpaRepository<SerializableFormSession,
     long countByUsernameAndDomainAndAsUserIsNullOrderByDateCreatedDesc(String username,
             String domain);
 
+    @Query("SELECT id FROM SerializableFormSession WHERE dateCreated < :cutoff")
+    List<String> findIdsOlderThan(@Param("cutoff") Instant cutoff);
+
     @Modifying
     @Transactional
     @Query("DELETE from SerializableFormSession WHERE dateCreated < :cutoff")
     int deleteSessionsOlderThan(@Param("cutoff") Instant cutoff);
+
+    /**
+     * Writes the changes requests make to a session between snapshots of its instance, if the
+     * session is still at the given version. The answer log entries are appended to the ones in
+     * the database, encoded with AnswerLogConverter, so a write doesn't grow with the log.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE formplayer_sessions "
+            + "SET answerlog = COALESCE(answerlog, CAST('' AS bytea)) || :entries, "
+            + "currentindex = :currentIndex, title = :title, initlang = :initLang, version = :version "
+            + "WHERE id = :id AND version = :persistedVersion", nativeQuery = true)
+    int appendAnswerLog(@Param("id") String id, @Param("persistedVersion") int persistedVersion,
+            @Param("version") int version, @Param("entries") byte[] entries,
+            @Param("currentIndex") String currentIndex, @Param("title") String title,
+            @Param("initLang") String initLang);
 }
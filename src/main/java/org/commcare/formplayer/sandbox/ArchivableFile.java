@@ -48,6 +48,9 @@ public class ArchivableFile extends File {
             if (getGzipFile().exists()) {
                 gzipDeleted = getGzipFile().delete();
             }
+            // leftovers from WAL journal mode, stale ones must not be picked up by a recreated DB
+            new File(getPath() + "-wal").delete();
+            new File(getPath() + "-shm").delete();
             return super.delete() || gzipDeleted;
         } catch(IOException sqle) {
             //If we can't get the lock, no other operations will work anyway.
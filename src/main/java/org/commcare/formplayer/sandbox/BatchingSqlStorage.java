@@ -0,0 +1,182 @@
+package org.commcare.formplayer.sandbox;
+
+import org.commcare.formplayer.services.ConnectionHandler;
+import org.commcare.modern.database.TableBuilder;
+import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.services.storage.Persistable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.function.Consumer;
+
+/**
+ * SqlStorage that holds back inserts of new records and writes them with writeBatch once
+ * batchSize records are pending, or when flush is called.
+ *
+ * Pending records have no ID until they are written, so this is meant for loads that mostly
+ * write, such as parsing case search results into a fresh table. Reads by value flush the pending
+ * records first if any of them match, so that a record that is written again, e.g. a case that is
+ * repeated in the results, is found and updated rather than inserted twice. Reads of the whole
+ * table always flush first. Writes of existing records flush the pending records first to keep
+ * the writes in order.
+ */
+public class BatchingSqlStorage<T extends Persistable> extends SqlStorage<T> {
+
+    private final int batchSize;
+    private final List<T> pending = new ArrayList<>();
+    private Consumer<List<T>> onBatchWritten;
+    // raw metadata field names of the records by their column names
+    private Map<String, String> metaDataFields;
+
+    public BatchingSqlStorage(ConnectionHandler connectionHandler, Class<T> prototype, String tableName,
+            int batchSize) {
+        super(connectionHandler, prototype, tableName, false);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param onBatchWritten called with each batch of new records once they have been written and
+     *                       assigned their IDs
+     */
+    public void setOnBatchWritten(Consumer<List<T>> onBatchWritten) {
+        this.onBatchWritten = onBatchWritten;
+    }
+
+    @Override
+    public void write(Persistable p) {
+        if (p.getID() != -1) {
+            flush();
+            super.write(p);
+            return;
+        }
+        if (pending.stream().anyMatch(record -> record == p)) {
+            // a pending record that was read and changed before it was written
+            return;
+        }
+        pending.add((T)p);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all pending records
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<T> batch = new ArrayList<>(pending);
+        pending.clear();
+        writeBatch(batch);
+        if (onBatchWritten != null) {
+            onBatchWritten.accept(batch);
+        }
+    }
+
+    @Override
+    public Vector<Integer> getIDsForValue(String fieldName, Object value) {
+        flushIfPending(new String[]{fieldName}, new Object[]{value});
+        return super.getIDsForValue(fieldName, value);
+    }
+
+    @Override
+    public List<Integer> getIDsForValues(String[] fieldNames, Object[] values, LinkedHashSet<Integer> returnSet) {
+        flushIfPending(fieldNames, values);
+        return super.getIDsForValues(fieldNames, values, returnSet);
+    }
+
+    @Override
+    public List<Integer> getIDsForValues(String[] fieldNames, Object[] values, String[] inverseMatchFields,
+            Object[] inverseMatchValues, LinkedHashSet<Integer> returnSet) {
+        flushIfPending(fieldNames, values);
+        return super.getIDsForValues(fieldNames, values, inverseMatchFields, inverseMatchValues, returnSet);
+    }
+
+    @Override
+    public void getIDsForValues(String[] namesToMatch, String[] valuesToMatch, LinkedHashSet<Integer> ids) {
+        flushIfPending(namesToMatch, valuesToMatch);
+        super.getIDsForValues(namesToMatch, valuesToMatch, ids);
+    }
+
+    @Override
+    public Vector<T> getRecordsForValues(String[] metaFieldNames, Object[] values) {
+        flushIfPending(metaFieldNames, values);
+        return super.getRecordsForValues(metaFieldNames, values);
+    }
+
+    @Override
+    public Vector<T> getBulkRecordsForIndex(String indexName, Collection<String> matchingValues) {
+        flushIfPending(indexName, matchingValues);
+        return super.getBulkRecordsForIndex(indexName, matchingValues);
+    }
+
+    @Override
+    public void bulkReadMetadataForIndex(String indexName, Collection<String> matchingValues,
+            String[] metaFieldNames, HashMap<Integer, String[]> metadataMap) {
+        flushIfPending(indexName, matchingValues);
+        super.bulkReadMetadataForIndex(indexName, matchingValues, metaFieldNames, metadataMap);
+    }
+
+    @Override
+    public JdbcSqlStorageIterator<T> iterate(boolean includeData, String[] metaDataToInclude) {
+        flush();
+        return super.iterate(includeData, metaDataToInclude);
+    }
+
+    @Override
+    public int getNumRecords() {
+        flush();
+        return super.getNumRecords();
+    }
+
+    private void flushIfPending(String indexName, Collection<String> matchingValues) {
+        for (String value : matchingValues) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            flushIfPending(new String[]{indexName}, new Object[]{value});
+        }
+    }
+
+    private void flushIfPending(String[] fieldNames, Object[] values) {
+        for (T record : pending) {
+            if (matches(record, fieldNames, values)) {
+                flush();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the record matches all the values, or if that can't be told from its
+     * metadata
+     */
+    private boolean matches(T record, String[] fieldNames, Object[] values) {
+        if (!(record instanceof IMetaData)) {
+            return true;
+        }
+        IMetaData metaData = (IMetaData)record;
+        if (metaDataFields == null) {
+            metaDataFields = new HashMap<>();
+            for (String field : metaData.getMetaDataFields()) {
+                metaDataFields.put(TableBuilder.scrubName(field), field);
+            }
+        }
+        for (int i = 0; i < fieldNames.length; i++) {
+            String field = metaDataFields.get(TableBuilder.scrubName(fieldNames[i]));
+            if (field == null) {
+                return true;
+            }
+            if (!String.valueOf(metaData.getMetaData(field)).equals(String.valueOf(values[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
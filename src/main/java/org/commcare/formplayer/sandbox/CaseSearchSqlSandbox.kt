@@ -3,10 +3,12 @@ package org.commcare.formplayer.sandbox
 import org.commcare.cases.model.Case
 import org.commcare.formplayer.services.ConnectionHandler
 
-class CaseSearchSqlSandbox(tableName: String, handler: ConnectionHandler) : UserSqlSandbox(handler, false),
+class CaseSearchSqlSandbox(private val caseSearchStorage: SqlStorage<Case>, handler: ConnectionHandler) :
+    UserSqlSandbox(handler, false),
     ConnectionHandler {
 
-    private val caseSearchStorage = SqlStorage(handler, Case::class.java, tableName, false)
+    constructor(tableName: String, handler: ConnectionHandler) :
+        this(SqlStorage(handler, Case::class.java, tableName, false), handler)
 
     override fun getCaseStorage(): SqlStorage<Case> {
         return caseSearchStorage
@@ -0,0 +1,88 @@
+package org.commcare.formplayer.sandbox;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Accumulates rows for a JDBC batch, keeping one prepared statement open per statement shape.
+ *
+ * Rows are bound on the statement returned by prepare(String) and queued with add(). The pending
+ * batch is executed when the statement shape changes, when MAX_BATCH_SIZE rows are queued and when
+ * execute() is called. Closing discards any rows that were not executed.
+ */
+class SqlBatchStatement implements AutoCloseable {
+
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Notified with the update counts each time a batch is executed
+     */
+    interface BatchListener {
+        void onExecuted(int[] updateCounts) throws SQLException;
+    }
+
+    private final Connection connection;
+    private final BatchListener listener;
+    private String sql;
+    private PreparedStatement statement;
+    private int pending = 0;
+
+    SqlBatchStatement(Connection connection) {
+        this(connection, null);
+    }
+
+    SqlBatchStatement(Connection connection, BatchListener listener) {
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the statement to bind the next row on
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        if (!sql.equals(this.sql)) {
+            execute();
+            closeStatement();
+            statement = connection.prepareStatement(sql);
+            this.sql = sql;
+        }
+        return statement;
+    }
+
+    void add() throws SQLException {
+        statement.addBatch();
+        pending++;
+        if (pending >= MAX_BATCH_SIZE) {
+            execute();
+        }
+    }
+
+    void execute() throws SQLException {
+        if (pending == 0) {
+            return;
+        }
+        pending = 0;
+        int[] updateCounts = statement.executeBatch();
+        if (listener != null) {
+            listener.onExecuted(updateCounts);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (pending > 0) {
+            statement.clearBatch();
+            pending = 0;
+        }
+        closeStatement();
+    }
+
+    private void closeStatement() throws SQLException {
+        if (statement != null) {
+            statement.close();
+            statement = null;
+            sql = null;
+        }
+    }
+}
@@ -16,7 +16,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -400,6 +402,120 @@ public class SqlHelper {
         }
     }
 
+    /**
+     * Insert the given persistables, batching the inserts into as few statement executions as
+     * possible, and set the ID of each persistable to its new record ID.
+     *
+     * JDBC batches don't return generated keys, so the IDs are derived from last_insert_rowid()
+     * after each batch. That is only safe while this connection holds the write lock for the
+     * whole batch, so outside of a transaction the rows are inserted one at a time instead.
+     */
+    public static void batchInsertToTable(Connection c, String storageKey,
+            List<? extends Persistable> persistables) {
+        if (persistables.isEmpty()) {
+            return;
+        }
+        try {
+            if (c.getAutoCommit()) {
+                for (Persistable p : persistables) {
+                    insertToTable(c, storageKey, p);
+                }
+                return;
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+
+        List<Persistable> pending = new ArrayList<>();
+        SqlBatchStatement.BatchListener assignIds = updateCounts -> {
+            for (int count : updateCounts) {
+                if (count != 1 && count != Statement.SUCCESS_NO_INFO) {
+                    throw new SQLException("Batch insert into " + storageKey + " failed, no rows affected.");
+                }
+            }
+            long lastId = getLastInsertRowId(c);
+            for (int i = 0; i < pending.size(); i++) {
+                pending.get(i).setID((int)(lastId - pending.size() + 1 + i));
+            }
+            pending.clear();
+        };
+        try (SqlBatchStatement batch = new SqlBatchStatement(c, assignIds)) {
+            for (Persistable p : persistables) {
+                Pair<String, List<Object>> mPair = DatabaseHelper.getTableInsertData(storageKey, p);
+                PreparedStatement preparedStatement = batch.prepare(mPair.first);
+                for (int i = 0; i < mPair.second.size(); i++) {
+                    setArgumentToSqlStatement(preparedStatement, mPair.second.get(i), i + 1);
+                }
+                pending.add(p);
+                batch.add();
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    private static long getLastInsertRowId(Connection c) throws SQLException {
+        try (Statement statement = c.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT last_insert_rowid()")) {
+            if (!resultSet.next()) {
+                throw new SQLException("Unable to read last inserted row ID");
+            }
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Insert the given rows, batching rows with the same columns into a single statement execution
+     *
+     * @param c          Database Connection
+     * @param storageKey name of table
+     * @param rows       column name to value maps, one per row
+     */
+    public static void batchInsert(Connection c,
+            String storageKey,
+            List<? extends Map<String, Object>> rows) {
+        batchInsert(c, storageKey, rows, "INSERT INTO ");
+    }
+
+    /**
+     * Insert or replace the given rows, batching rows with the same columns into a single
+     * statement execution
+     *
+     * @param c          Database Connection
+     * @param storageKey name of table
+     * @param rows       column name to value maps, one per row
+     */
+    public static void batchInsertOrReplace(Connection c,
+            String storageKey,
+            List<? extends Map<String, Object>> rows) {
+        batchInsert(c, storageKey, rows, "INSERT OR REPLACE INTO ");
+    }
+
+    private static void batchInsert(Connection c,
+            String storageKey,
+            List<? extends Map<String, Object>> rows,
+            String insertStatement) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (SqlBatchStatement batch = new SqlBatchStatement(c)) {
+            for (Map<String, Object> contentVals : rows) {
+                Pair<List<Object>, String> valsAndInsertStatement =
+                        buildInsertStatement(storageKey, contentVals, insertStatement);
+                PreparedStatement preparedStatement = batch.prepare(valsAndInsertStatement.second);
+                int i = 1;
+                for (Object val : valsAndInsertStatement.first) {
+                    setArgumentToSqlStatement(preparedStatement, val, i++);
+                }
+                batch.add();
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
     private static void setArgumentToSqlStatement(PreparedStatement preparedStatement, Object arg, int index)
             throws SQLException {
         if (arg instanceof String) {
@@ -453,19 +569,11 @@ public class SqlHelper {
      * @param id          sql record to update
      */
     public static void updateToTable(Connection connection, String tableName, Persistable persistable, int id) {
-        String queryStart = "UPDATE " + tableName + " SET " + DatabaseHelper.DATA_COL + " = ? ";
-        String queryEnd = " WHERE " + DatabaseHelper.ID_COL + " = ?;";
-
         HashMap<String, Object> map = DatabaseHelper.getMetaFieldsAndValues(persistable);
         String[] fieldNames = map.keySet().toArray(new String[map.keySet().size()]);
         Object[] values = map.values().toArray(new Object[map.values().size()]);
 
-        StringBuilder stringBuilder = new StringBuilder(queryStart);
-        for (String fieldName : fieldNames) {
-            stringBuilder.append(", ").append(fieldName).append(" = ?");
-        }
-
-        String query = stringBuilder.append(queryEnd).toString();
+        String query = buildUpdateStatement(tableName, fieldNames);
 
         try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
             int lastArgIndex = setPreparedStatementArgs(preparedStatement, persistable, values);
@@ -476,6 +584,47 @@ public class SqlHelper {
         }
     }
 
+    private static String buildUpdateStatement(String tableName, String[] fieldNames) {
+        String queryStart = "UPDATE " + tableName + " SET " + DatabaseHelper.DATA_COL + " = ? ";
+        String queryEnd = " WHERE " + DatabaseHelper.ID_COL + " = ?;";
+
+        StringBuilder stringBuilder = new StringBuilder(queryStart);
+        for (String fieldName : fieldNames) {
+            stringBuilder.append(", ").append(fieldName).append(" = ?");
+        }
+        return stringBuilder.append(queryEnd).toString();
+    }
+
+    /**
+     * Update each persistable under its own ID, batching the updates into as few statement
+     * executions as possible
+     *
+     * @param connection   Database Connection
+     * @param tableName    name of table
+     * @param persistables persistables to update, all of which must already have an ID
+     */
+    public static void batchUpdateToTable(Connection connection, String tableName,
+            Collection<? extends Persistable> persistables) {
+        if (persistables.isEmpty()) {
+            return;
+        }
+        try (SqlBatchStatement batch = new SqlBatchStatement(connection)) {
+            for (Persistable persistable : persistables) {
+                HashMap<String, Object> map = DatabaseHelper.getMetaFieldsAndValues(persistable);
+                String[] fieldNames = map.keySet().toArray(new String[map.keySet().size()]);
+                Object[] values = map.values().toArray(new Object[map.values().size()]);
+
+                PreparedStatement preparedStatement = batch.prepare(buildUpdateStatement(tableName, fieldNames));
+                int lastArgIndex = setPreparedStatementArgs(preparedStatement, persistable, values);
+                preparedStatement.setInt(lastArgIndex, persistable.getID());
+                batch.add();
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
     /**
      * @param preparedStatement the PreparedStatement to populate with arguments
      * @param persistable       the Persistable object being stored
@@ -535,6 +684,34 @@ public class SqlHelper {
         }
     }
 
+    /**
+     * Delete rows matching any of the given where clauses, batching clauses with the same shape
+     * into a single statement execution
+     *
+     * @param connection    Database Connection
+     * @param tableName     name of table
+     * @param whereArgsList pairs of where clause and the arguments to bind to it
+     */
+    public static void batchDeleteFromTableWhere(Connection connection, String tableName,
+            List<Pair<String, String[]>> whereArgsList) {
+        if (whereArgsList.isEmpty()) {
+            return;
+        }
+        try (SqlBatchStatement batch = new SqlBatchStatement(connection)) {
+            for (Pair<String, String[]> whereArgs : whereArgsList) {
+                PreparedStatement preparedStatement = batch.prepare(
+                        "DELETE FROM " + tableName + " WHERE " + whereArgs.first + ";");
+                for (int i = 1; i <= whereArgs.second.length; i++) {
+                    preparedStatement.setString(i, whereArgs.second[i - 1]);
+                }
+                batch.add();
+            }
+            batch.execute();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
     /**
      * Update entry under id with persistable p
      *
@@ -1,6 +1,7 @@
 package org.commcare.formplayer.sandbox;
 
 import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
 import org.commcare.util.FileUtils;
 import org.javarosa.core.services.Logger;
 import org.sqlite.javax.SQLiteConnectionPoolDataSource;
@@ -10,7 +11,9 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Instant;
+import java.util.List;
 
 /**
  * Methods that mostly are used around the mocks that replicate stuff from
@@ -55,13 +58,26 @@ public class SqlSandboxUtils {
         try {
             Class.forName("org.sqlite.JDBC");
             SQLiteConnectionPoolDataSource dataSource = new SQLiteConnectionPoolDataSource();
-            dataSource.setUrl("jdbc:sqlite:" + databasePath.getPath() + "?journal_mode=MEMORY");
+            dataSource.setUrl("jdbc:sqlite:" + databasePath.getPath());
             return dataSource;
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Runs the given pragma statements on a newly opened connection
+     */
+    public static void applyPragmas(Connection connection, List<String> pragmas) {
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : pragmas) {
+                statement.execute(pragma);
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
     public static void execSql(Connection connection, String query) {
         PreparedStatement preparedStatement = null;
         try {
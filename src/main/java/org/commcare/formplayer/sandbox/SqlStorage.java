@@ -23,6 +23,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -120,6 +121,26 @@ public class SqlStorage<T extends Persistable>
         p.setID(id);
     }
 
+    /**
+     * Writes all the given records using batched statements, one per table shape. As with
+     * write(Persistable), records without an ID are inserted and assigned their new ID while
+     * the rest are updated in place.
+     */
+    public void writeBatch(Collection<? extends Persistable> persistables) {
+        List<Persistable> toInsert = new ArrayList<>();
+        List<Persistable> toUpdate = new ArrayList<>();
+        for (Persistable p : persistables) {
+            if (p.getID() != -1) {
+                toUpdate.add(p);
+            } else {
+                toInsert.add(p);
+            }
+        }
+        Connection connection = getConnection();
+        SqlHelper.batchUpdateToTable(connection, tableName, toUpdate);
+        SqlHelper.batchInsertToTable(connection, tableName, toInsert);
+    }
+
     @Override
     public T read(int id) {
         return newObject(readBytes(id), id);
@@ -582,6 +603,45 @@ public class SqlStorage<T extends Persistable>
         }
     }
 
+    /**
+     * Reads the given metadata fields of the records whose value for the given index matches one
+     * of the provided values, without reading the records themselves
+     *
+     * @param metadataMap record id to metadata values, in the order of metaFieldNames
+     */
+    public void bulkReadMetadataForIndex(String indexName, Collection<String> matchingValues,
+            String[] metaFieldNames, HashMap<Integer, String[]> metadataMap) {
+        String fieldName = TableBuilder.scrubName(indexName);
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(matchingValues, "?");
+        String[] scrubbedNames = scrubMetadataNames(metaFieldNames);
+        String[] projection = getProjectedFieldsWithId(false, scrubbedNames);
+        Connection connection = getConnection();
+
+        try {
+            for (Pair<String, String[]> querySet : whereParamList) {
+
+                try (PreparedStatement preparedStatement =
+                             SqlHelper.prepareTableSelectStatementProjection(connection,
+                                     this.tableName,
+                                     fieldName + " IN " + querySet.first,
+                                     querySet.second, projection)) {
+
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (Thread.interrupted()) {
+                                throw new RequestAbandonedException();
+                            }
+                            String[] metaRead = readMetaDataFromResultSet(resultSet, scrubbedNames);
+                            metadataMap.put(resultSet.getInt(DatabaseHelper.ID_COL), metaRead);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
     @Override
     public Class<?> getPrototype() {
         return prototype;
@@ -4,7 +4,11 @@ import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.model.Case;
 import org.commcare.cases.model.StorageIndexedTreeElementModel;
 import org.commcare.core.interfaces.UserSandbox;
+import org.commcare.formplayer.database.models.CasePurgeComponentTable;
+import org.commcare.formplayer.database.models.FormplayerCaseIndexTable;
 import org.commcare.formplayer.services.ConnectionHandler;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SQLiteProfile;
 import org.commcare.modern.database.DatabaseIndexingUtils;
 import org.commcare.modern.database.IndexedFixturePathsConstants;
 import org.commcare.modern.database.TableBuilder;
@@ -59,13 +63,50 @@ public class UserSqlSandbox extends UserSandbox implements ConnectionHandler {
     }
 
     private void initStorage() {
+        if (!hasCurrentSchema(handler)) {
+            createSchema(handler);
+            if (handler instanceof SQLiteDB) {
+                ((SQLiteDB)handler).markCurrentSchema();
+            }
+        }
         //we can't name this table "Case" becase that's reserved by sqlite
-        caseStorage = new SqlStorage<>(handler, Case.class, FORMPLAYER_CASE);
-        ledgerStorage = new SqlStorage<>(handler, Ledger.class, Ledger.STORAGE_KEY);
-        userStorage = new SqlStorage<>(handler, User.class, User.STORAGE_KEY);
-        userFixtureStorage = new SqlStorage<>(handler, FormInstance.class, "UserFixture");
-        appFixtureStorage = new SqlStorage<>(handler, FormInstance.class, "AppFixture");
-        sqlUtil = createFixturePathsTable(IndexedFixturePathsConstants.INDEXED_FIXTURE_PATHS_TABLE);
+        caseStorage = new SqlStorage<>(handler, Case.class, FORMPLAYER_CASE, false);
+        ledgerStorage = new SqlStorage<>(handler, Ledger.class, Ledger.STORAGE_KEY, false);
+        userStorage = new SqlStorage<>(handler, User.class, User.STORAGE_KEY, false);
+        userFixtureStorage = new SqlStorage<>(handler, FormInstance.class, "UserFixture", false);
+        appFixtureStorage = new SqlStorage<>(handler, FormInstance.class, "AppFixture", false);
+        sqlUtil = new SqlStorage<>(handler, null, IndexedFixturePathsConstants.INDEXED_FIXTURE_PATHS_TABLE, false);
+    }
+
+    /**
+     * Creates the tables every user database has, which new user databases get from the
+     * SchemaTemplates instead
+     */
+    public static void createSchema(ConnectionHandler handler) {
+        new SqlStorage<>(handler, Case.class, FORMPLAYER_CASE);
+        new SqlStorage<>(handler, Ledger.class, Ledger.STORAGE_KEY);
+        new SqlStorage<>(handler, User.class, User.STORAGE_KEY);
+        new SqlStorage<>(handler, FormInstance.class, "UserFixture");
+        new SqlStorage<>(handler, FormInstance.class, "AppFixture");
+        createFixturePathsTable(handler, IndexedFixturePathsConstants.INDEXED_FIXTURE_PATHS_TABLE);
+        new FormplayerCaseIndexTable(handler, FormplayerCaseIndexTable.CASE_INDEX_STORAGE_TABLE_NAME,
+                FORMPLAYER_CASE, true);
+        new CasePurgeComponentTable(handler, true);
+    }
+
+    /**
+     * @return true if the user database behind the handler is known to have the schema created by
+     * createSchema, so the tables don't have to be created again
+     */
+    public static boolean hasCurrentSchema(ConnectionHandler handler) {
+        if (handler instanceof UserSqlSandbox) {
+            return hasCurrentSchema(((UserSqlSandbox)handler).handler);
+        }
+        if (!(handler instanceof SQLiteDB)) {
+            return false;
+        }
+        SQLiteDB db = (SQLiteDB)handler;
+        return SQLiteProfile.USER.equals(db.getProfile().getName()) && db.hasCurrentSchema();
     }
 
     public UserSqlSandbox(ConnectionHandler handler) {
@@ -143,9 +184,7 @@ public class UserSqlSandbox extends UserSandbox implements ConnectionHandler {
     /**
      * create 'fixture paths' table and an index over that table
      */
-    private SqlStorage<StorageIndexedTreeElementModel> createFixturePathsTable(String tableName) {
-        // NOTE PLM: this should maybe be done on server startup instead on
-        // ever invocation
+    private static void createFixturePathsTable(ConnectionHandler handler, String tableName) {
         SqlStorage<StorageIndexedTreeElementModel> sqlUtil =
                 new SqlStorage<>(handler, null, tableName, false);
         String[] indexTableStatements = new String[]{
@@ -156,8 +195,6 @@ public class UserSqlSandbox extends UserSandbox implements ConnectionHandler {
                 IndexedFixturePathsConstants.INDEXED_FIXTURE_INDEXING_STMT
         };
         sqlUtil.executeStatements(indexTableStatements);
-
-        return sqlUtil;
     }
 
     @Override
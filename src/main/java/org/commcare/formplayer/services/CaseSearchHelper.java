@@ -2,6 +2,7 @@ package org.commcare.formplayer.services;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.timgroup.statsd.StatsDClient;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -10,13 +11,20 @@ import org.commcare.cases.model.Case;
 import org.commcare.core.parse.CaseInstanceXmlTransactionParserFactory;
 import org.commcare.core.parse.ParseUtils;
 import org.commcare.formplayer.DbUtils;
+import org.commcare.formplayer.database.models.BatchedCaseIndexTable;
+import org.commcare.formplayer.database.models.CaseSearchTableManifest;
 import org.commcare.formplayer.database.models.FormplayerCaseIndexTable;
+import org.commcare.formplayer.sandbox.BatchingSqlStorage;
 import org.commcare.formplayer.sandbox.CaseSearchSqlSandbox;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
 import org.commcare.formplayer.sandbox.UserSqlSandbox;
 import org.commcare.formplayer.session.MenuSession;
 import org.commcare.formplayer.sqlitedb.CaseSearchDB;
 import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.util.CacheWeigher;
+import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.util.SerializationUtil;
+import org.commcare.formplayer.web.client.StreamingResponse;
 import org.commcare.formplayer.web.client.WebClient;
 import org.commcare.util.screen.ScreenUtils;
 import org.javarosa.core.model.instance.AbstractTreeElement;
@@ -31,6 +39,7 @@ import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.xml.util.InvalidStructureException;
 import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
@@ -39,6 +48,8 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -63,6 +74,25 @@ public class CaseSearchHelper {
 
     @Autowired
     private FormplayerStorageFactory storageFactory;
+
+    @Autowired
+    private StatsDClient datadogStatsDClient;
+
+    @Value("${formplayer.caseSearch.streaming:false}")
+    private boolean streamingSearch;
+
+    // number of parsed cases written to the case search DB per batched insert
+    @Value("${formplayer.caseSearch.writeBatchSize:500}")
+    private int writeBatchSize = 500;
+
+    // size of the case search tables each user may keep before the least recently used are dropped
+    @Value("${formplayer.caseSearch.userBudgetBytes:104857600}")
+    private long userBudgetBytes = 104857600;
+
+    // how far a streaming case search download may get ahead of the parser
+    @Value("${formplayer.caseSearch.streamBufferBytes:1048576}")
+    private long streamBufferBytes;
+
     private final Log log = LogFactory.getLog(CaseSearchHelper.class);
 
     public AbstractTreeElement getExternalRoot(String instanceId, ExternalDataInstanceSource source,
@@ -85,25 +115,34 @@ public class CaseSearchHelper {
         UserSqlSandbox caseSearchSandbox = new CaseSearchSqlSandbox(caseSearchTableName, caseSearchDb);
         IStorageUtilityIndexed<Case> caseSearchStorage = caseSearchSandbox.getCaseStorage();
         FormplayerCaseIndexTable caseSearchIndexTable = getCaseIndexTable(caseSearchSandbox, caseSearchTableName);
+        CaseSearchTableManifest manifest = new CaseSearchTableManifest(caseSearchDb);
+        boolean parsed = false;
         if (skipCache || !caseSearchStorage.isStorageExists()) {
-            String responseString = webClient.postFormData(url, requestData);
-            if (responseString != null) {
-                byte[] responseBytes = responseString.getBytes(StandardCharsets.UTF_8);
-                ByteArrayInputStream responeStream = new ByteArrayInputStream(responseBytes);
-                if (shouldParseIntoCaseSearchStorage(source.useCaseTemplate())) {
-                    parseIntoCaseSearchStorage(caseSearchDb, caseSearchSandbox, caseSearchStorage, responeStream,
-                            caseSearchIndexTable);
-                } else {
-                    TreeElement root = TreeUtilities.xmlStreamToTreeElement(responeStream, instanceId);
-                    if (root != null) {
-                        cache.put(cacheKey, root);
+            InputStream responseStream = getSearchResponse(url, requestData);
+            if (responseStream != null) {
+                try (responseStream) {
+                    if (shouldParseIntoCaseSearchStorage(source.useCaseTemplate())) {
+                        parseIntoCaseSearchStorage(caseSearchDb, caseSearchSandbox, caseSearchStorage,
+                                responseStream, caseSearchIndexTable, caseSearchTableName);
+                        recordCaseSearchTable(caseSearchDb, manifest, caseSearchTableName,
+                                caseSearchIndexTable.getTableName());
+                        parsed = true;
+                    } else {
+                        TreeElement root = TreeUtilities.xmlStreamToTreeElement(responseStream, instanceId);
+                        if (root != null) {
+                            cache.put(cacheKey, new CachedRoot(root));
+                        }
+                        return root;
                     }
-                    return root;
                 }
             }
         }
 
         if (caseSearchStorage.isStorageExists()) {
+            if (!parsed && !manifest.touch(caseSearchTableName)) {
+                // filled before the manifest existed
+                manifest.recordTable(caseSearchTableName, caseSearchIndexTable.getTableName());
+            }
             // return root as CaseInstanceTreeElement
             InstanceBase instanceBase = new InstanceBase(instanceId);
             return new CaseInstanceTreeElement(instanceBase, caseSearchStorage, caseSearchIndexTable);
@@ -112,6 +151,51 @@ public class CaseSearchHelper {
         throw new IOException("No response from server for case search query");
     }
 
+    /**
+     * @return the body of the case search response, or null if it is empty. With streaming enabled
+     * the body is parsed while it downloads, so at most streamBufferBytes of it are held in memory.
+     */
+    private InputStream getSearchResponse(String url, Multimap<String, String> requestData) throws IOException {
+        if (!streamingSearch) {
+            String responseString = webClient.postFormData(url, requestData);
+            if (responseString == null) {
+                return null;
+            }
+            return new ByteArrayInputStream(responseString.getBytes(StandardCharsets.UTF_8));
+        }
+        StreamingResponse response = webClient.postFormDataStreaming(url, requestData, streamBufferBytes);
+        response.getHead();
+        PushbackInputStream body = new PushbackInputStream(response.getBody());
+        int firstByte = body.read();
+        if (firstByte == -1) {
+            body.close();
+            return null;
+        }
+        body.unread(firstByte);
+        return body;
+    }
+
+    /**
+     * Records a newly filled case search table in the manifest, then drops the user's least
+     * recently used tables until they fit within the user's budget
+     */
+    private void recordCaseSearchTable(CaseSearchDB caseSearchDb, CaseSearchTableManifest manifest,
+            String caseSearchTableName, String caseSearchIndexTableName) {
+        manifest.recordTable(caseSearchTableName, caseSearchIndexTableName);
+        int evicted = manifest.evictLeastRecentlyUsed(userBudgetBytes, caseSearchTableName);
+        if (evicted > 0) {
+            // returns the pages of the dropped tables to the file system
+            SqlSandboxUtils.execSql(caseSearchDb.getConnection(), "PRAGMA incremental_vacuum");
+            datadogStatsDClient.count(
+                    String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "evicted_tables"), evicted,
+                    "reason:user_budget");
+        }
+        datadogStatsDClient.histogram(
+                String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "user_bytes"), manifest.getTotalBytes());
+        datadogStatsDClient.histogram(
+                String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "user_tables"), manifest.getTableCount());
+    }
+
     private FormplayerCaseIndexTable getCaseIndexTable(ConnectionHandler caseSearchSandbox,
             String caseSearchTableName) {
         String caseSearchIndexTableName = CASE_SEARCH_INDEX_TABLE_PREFIX + caseSearchTableName;
@@ -130,19 +214,27 @@ public class CaseSearchHelper {
     }
 
     private void parseIntoCaseSearchStorage(SQLiteDB caseSearchDb, UserSqlSandbox caseSearchSandbox,
-            IStorageUtilityIndexed<Case> caseSearchStorage, ByteArrayInputStream responeStream,
-            FormplayerCaseIndexTable caseSearchIndexTable)
+            IStorageUtilityIndexed<Case> caseSearchStorage, InputStream responeStream,
+            FormplayerCaseIndexTable caseSearchIndexTable, String caseSearchTableName)
             throws UnfullfilledRequirementsException, InvalidStructureException,
             XmlPullParserException, IOException {
         try {
             DbUtils.setAutoCommit(caseSearchDb, false);
             caseSearchIndexTable.delete();
             caseSearchIndexTable.createTable();
-            CaseInstanceXmlTransactionParserFactory factory = new CaseInstanceXmlTransactionParserFactory(
-                    caseSearchSandbox, caseSearchIndexTable);
             caseSearchStorage.initStorage();
             caseSearchStorage.removeAll();
+
+            // the parser writes cases one at a time, so batch its writes into the fresh tables
+            BatchingSqlStorage<Case> batchingStorage = new BatchingSqlStorage<>(caseSearchSandbox, Case.class,
+                    caseSearchTableName, writeBatchSize);
+            BatchedCaseIndexTable batchedIndexTable = new BatchedCaseIndexTable(caseSearchSandbox,
+                    caseSearchIndexTable.getTableName(), caseSearchTableName);
+            batchingStorage.setOnBatchWritten(batchedIndexTable::indexBatch);
+            CaseInstanceXmlTransactionParserFactory factory = new CaseInstanceXmlTransactionParserFactory(
+                    new CaseSearchSqlSandbox(batchingStorage, caseSearchSandbox), batchedIndexTable);
             ParseUtils.parseIntoSandbox(responeStream, factory, true, true);
+            batchingStorage.flush();
             DbUtils.commit(caseSearchDb);
         } catch (Exception e) {
             DbUtils.rollback(caseSearchDb);
@@ -160,18 +252,41 @@ public class CaseSearchHelper {
         if (skipCache) {
             log.info("Skipping cache check for case search results");
         } else {
-            TreeElement cachedRoot = cache.get(cacheKey, TreeElement.class);
+            CachedRoot cachedRoot = cache.get(cacheKey, CachedRoot.class);
             if (cachedRoot != null) {
                 log.info(String.format("Using cached case search results for %s", url));
-                // Deep copy to avoid concurrency issues
-                TreeElement copyOfRoot = SerializationUtil.deserialize(ExtUtil.serialize(cachedRoot),
-                        TreeElement.class);
-                return copyOfRoot;
+                // each request gets a root of its own, loading it into an instance modifies it
+                return cachedRoot.newRoot();
             }
         }
         return null;
     }
 
+    /**
+     * Case search results held by the case_search cache, serialized once when they are cached so
+     * that a hit only has to deserialize them rather than copy the whole tree.
+     *
+     * A hit still costs time proportional to the size of the results. The roots can't be shared
+     * between requests: loading a root into an instance sets its instance name and parent, and
+     * TreeElement has no read-only form, so a shared root would be modified by concurrent requests.
+     */
+    private static final class CachedRoot implements CacheWeigher.Weighted {
+        private final byte[] serializedRoot;
+
+        private CachedRoot(TreeElement root) {
+            this.serializedRoot = ExtUtil.serialize(root);
+        }
+
+        private TreeElement newRoot() {
+            return SerializationUtil.deserialize(serializedRoot, TreeElement.class);
+        }
+
+        @Override
+        public long getWeight() {
+            return serializedRoot.length;
+        }
+    }
+
     public ExternalDataInstance getRemoteDataInstance(String instanceId, boolean useCaseTemplate, URL url,
             Multimap<String, String> requestData, boolean skipCache)
             throws UnfullfilledRequirementsException, XmlPullParserException, InvalidStructureException,
@@ -201,6 +316,7 @@ public class CaseSearchHelper {
         caseSearchStorage.deleteStorage();
         FormplayerCaseIndexTable caseSearchIndexTable = getCaseIndexTable(caseSearchSandbox, caseSearchTableName);
         caseSearchIndexTable.delete();
+        new CaseSearchTableManifest(caseSearchDb).remove(caseSearchTableName);
     }
 
     private String getCacheKey(String url, Multimap<String, String> queryParams) throws InvalidStructureException {
@@ -0,0 +1,286 @@
+package org.commcare.formplayer.services;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.engine.FormplayerArchiveFileRoot;
+import org.commcare.formplayer.util.Constants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Node-local store of downloaded CCZs, so that the users of an app build that install it at the
+ * same time wait on a single download from HQ instead of each downloading it.
+ *
+ * CCZs are keyed by their download URL, which identifies a build for non-preview installs, and
+ * are kept after the install that downloaded them. A CCZ is never deleted while an install holds
+ * a lease on it. Once the stored CCZs use more than the disk budget the least recently used ones
+ * without a lease are deleted, and the archives the installs registered for them are unregistered
+ * from FormplayerArchiveFileRoot. The budget is checked after each download and whenever the last
+ * lease on a CCZ is released, as leased CCZs may have kept it from being enforced.
+ *
+ * Only the files named by the store are deleted from its folder, so it may be shared with other
+ * files.
+ */
+@Component
+public class CczStore {
+
+    private final Log log = LogFactory.getLog(CczStore.class);
+
+    // names of the files the store downloads CCZs to, see acquire
+    private static final Pattern STORED_FILE = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\\.ccz");
+
+    /**
+     * Downloads a CCZ to the given file
+     */
+    @FunctionalInterface
+    public interface Download {
+        void to(File target);
+    }
+
+    @Value("${formplayer.cczStore.dir:}")
+    private String dir;
+
+    @Value("${formplayer.cczStore.diskBudget:2147483648}")
+    private long diskBudgetBytes;
+
+    // how long an install waits for another install's download of the same CCZ
+    @Value("${formplayer.cczStore.downloadTimeout:600}")
+    private long downloadTimeoutSeconds;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    @Autowired(required = false)
+    private FormplayerArchiveFileRoot archiveFileRoot;
+
+    // guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private File storeDir;
+
+    @PostConstruct
+    public void init() {
+        storeDir = dir.isEmpty()
+                ? new File(System.getProperty("java.io.tmpdir"), "formplayer_ccz")
+                : new File(dir);
+        if (!storeDir.exists() && !storeDir.mkdirs()) {
+            throw new RuntimeException("Error instantiating folder " + storeDir);
+        }
+        // CCZs of a previous run aren't tracked, FormplayerArchiveFileRoot drops the archives
+        // registered for them once it finds them missing
+        File[] leftovers = storeDir.listFiles(file -> STORED_FILE.matcher(file.getName()).matches());
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the CCZ stored for the key, downloading it first unless another install of the key
+     * is already downloading it, in which case this waits for that download up to the download
+     * timeout.
+     *
+     * @return a lease on the CCZ, which must be closed once the CCZ has been read
+     */
+    public Lease acquire(String key, Download download) {
+        Entry entry;
+        boolean downloading = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(new File(storeDir, UUID.randomUUID() + ".ccz"));
+                entries.put(key, entry);
+                downloading = true;
+            }
+            entry.leases++;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        if (downloading) {
+            try {
+                download.to(entry.file);
+                entry.size = entry.file.length();
+                entry.downloaded.complete(entry.file);
+                count("downloaded");
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    entries.remove(key, entry);
+                }
+                entry.downloaded.completeExceptionally(e);
+                release(key, entry);
+                count("failed");
+                throw e;
+            }
+            enforceDiskBudget();
+        } else {
+            count(entry.downloaded.isDone() ? "reused" : "joined");
+            try {
+                entry.downloaded.get(downloadTimeoutSeconds, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                release(key, entry);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                release(key, entry);
+                count("timed_out");
+                throw new RuntimeException(
+                        "Timed out fetching the CommCare application. Please try again in a moment.");
+            } catch (InterruptedException e) {
+                release(key, entry);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        return new Lease(key, entry);
+    }
+
+    private void release(String key, Entry entry) {
+        boolean released;
+        boolean unused;
+        synchronized (this) {
+            entry.leases--;
+            released = entry.leases == 0;
+            // failed or evicted while leased
+            unused = released && entries.get(key) != entry;
+        }
+        if (unused) {
+            delete(entry);
+        } else if (released) {
+            enforceDiskBudget();
+        }
+    }
+
+    private void delete(Entry entry) {
+        if (archiveFileRoot != null) {
+            for (String GUID : entry.archives) {
+                archiveFileRoot.removeArchiveFile(GUID, entry.file.getAbsolutePath());
+            }
+        }
+        entry.file.delete();
+    }
+
+    private void enforceDiskBudget() {
+        List<Entry> evicted = new ArrayList<>();
+        long totalBytes = 0;
+        synchronized (this) {
+            List<Map.Entry<String, Entry>> stored = new ArrayList<>(entries.entrySet());
+            for (Map.Entry<String, Entry> stores : stored) {
+                totalBytes += stores.getValue().size;
+            }
+            stored.sort(Comparator.comparingLong(stores -> stores.getValue().lastUsed));
+            for (Map.Entry<String, Entry> stores : stored) {
+                if (totalBytes <= diskBudgetBytes) {
+                    break;
+                }
+                Entry entry = stores.getValue();
+                if (entry.leases == 0 && entry.downloaded.isDone()) {
+                    entries.remove(stores.getKey());
+                    evicted.add(entry);
+                    totalBytes -= entry.size;
+                }
+            }
+        }
+        for (Entry entry : evicted) {
+            delete(entry);
+        }
+        if (!evicted.isEmpty()) {
+            log.info(String.format("Deleted %d CCZs over the disk budget", evicted.size()));
+        }
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.gauge(String.format("%s.%s", Constants.CCZ_STORE, "bytes"), totalBytes);
+            if (!evicted.isEmpty()) {
+                datadogStatsDClient.count(String.format("%s.%s", Constants.CCZ_STORE, "evicted"),
+                        evicted.size());
+            }
+        }
+    }
+
+    private void count(String result) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.increment(Constants.CCZ_STORE, "result:" + result);
+        }
+    }
+
+    private static class Entry {
+        private final File file;
+        private final CompletableFuture<File> downloaded = new CompletableFuture<>();
+        // GUIDs the CCZ is registered under in FormplayerArchiveFileRoot, guarded by the store
+        private final Set<String> archives = new HashSet<>();
+        // guarded by the store
+        private int leases;
+        private long lastUsed;
+        private volatile long size;
+
+        private Entry(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * An install's hold on a stored CCZ
+     */
+    public class Lease implements AutoCloseable {
+        private final String key;
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public File getFile() {
+            return entry.file;
+        }
+
+        /**
+         * Records that the CCZ was added to FormplayerArchiveFileRoot under the GUID, so that it
+         * is unregistered when the CCZ is deleted
+         */
+        public void registerArchive(String GUID) {
+            synchronized (CczStore.this) {
+                entry.archives.add(GUID);
+            }
+        }
+
+        /**
+         * Drops a CCZ that turned out to be unusable, it is downloaded again by the next install
+         */
+        public void discard() {
+            synchronized (CczStore.this) {
+                entries.remove(key, entry);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(key, entry);
+            }
+        }
+    }
+}
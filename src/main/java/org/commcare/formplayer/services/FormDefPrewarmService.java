@@ -0,0 +1,215 @@
+package org.commcare.formplayer.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.sandbox.JdbcSqlStorageIterator;
+import org.commcare.formplayer.sandbox.SqlStorage;
+import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.util.BackgroundRequestAttributes;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.modern.database.TableBuilder;
+import org.javarosa.core.model.FormDef;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Parses the forms of an app build in the background the first time this node configures it, so
+ * that opening a form doesn't have to deserialize its FormDef on the request thread.
+ *
+ * Each form of the installed app is registered as a form definition, so that starting a session
+ * finds it in the cache, and its template is kept in memory with parsed copies ready for new
+ * sessions (see FormDefinitionService.prewarmFormDef). The same pool parses replacements as new
+ * sessions use the copies up. Registering is idempotent, a definition stored concurrently by a
+ * request or another node is read back instead.
+ *
+ * The forms are read from the app DB under the user's lock, like a request would. Pre-warming
+ * stops once the form_definition cache is filled to maxCacheShare of its budget, so that it
+ * doesn't evict the definitions and form defs of forms that are in use.
+ *
+ * Builds are only pre-warmed once per node for as long as they are tracked, and work that
+ * doesn't fit the bounded queue is dropped since requests still parse their own form defs.
+ */
+@Component
+public class FormDefPrewarmService {
+
+    private final Log log = LogFactory.getLog(FormDefPrewarmService.class);
+
+    @Value("${formplayer.formDef.prewarm.enabled:true}")
+    private boolean enabled;
+
+    @Value("${formplayer.formDef.prewarm.workers:1}")
+    private int workers;
+
+    @Value("${formplayer.formDef.prewarm.maxQueued:200}")
+    private int maxQueued;
+
+    @Value("${formplayer.formDef.prewarm.maxTrackedBuilds:10000}")
+    private long maxTrackedBuilds;
+
+    // share of the form_definition cache's budget that pre-warmed forms may fill
+    @Value("${formplayer.formDef.prewarm.maxCacheShare:0.5}")
+    private double maxCacheShare;
+
+    @Autowired
+    private FormplayerStorageFactory storageFactory;
+
+    @Autowired
+    private FormDefinitionService formDefinitionService;
+
+    @Autowired
+    private FormplayerLockRegistry userLockRegistry;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    private Cache<String, Boolean> prewarmedBuilds;
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        prewarmedBuilds = Caffeine.newBuilder()
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .maximumSize(maxTrackedBuilds)
+                .build();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("formdef-prewarm-");
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues the forms of an app build to be pre-warmed, unless this node has already done so
+     */
+    public void prewarm(String username, String domain, String appId, String asUsername, String appVersion) {
+        if (!enabled) {
+            return;
+        }
+        String key = appId + ":" + appVersion;
+        if (prewarmedBuilds.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            executor.execute(() -> prewarmForms(username, domain, appId, asUsername, appVersion));
+        } catch (RejectedExecutionException e) {
+            prewarmedBuilds.invalidate(key);
+            count(domain, "rejected");
+        }
+    }
+
+    private void prewarmForms(String username, String domain, String appId, String asUsername,
+            String appVersion) {
+        BackgroundRequestAttributes attributes = new BackgroundRequestAttributes();
+        RequestContextHolder.setRequestAttributes(attributes);
+        String result = "prewarmed";
+        try {
+            List<FormDef> formDefs = readForms(username, domain, appId, asUsername);
+            if (formDefs == null) {
+                prewarmedBuilds.invalidate(appId + ":" + appVersion);
+                result = "locked";
+                return;
+            }
+            for (FormDef formDef : formDefs) {
+                if (!hasCacheBudget()) {
+                    result = "over_budget";
+                    break;
+                }
+                String formXmlns = formDef.getMainInstance().schema;
+                formDefinitionService.getOrCreateFormDefinition(appId, formXmlns, appVersion, formDef);
+                formDefinitionService.prewarmFormDef(appId, formXmlns, appVersion, formDef, executor);
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Unable to pre-warm forms of app %s version %s in domain %s",
+                    appId, appVersion, domain), e);
+            prewarmedBuilds.invalidate(appId + ":" + appVersion);
+            result = "error";
+        } finally {
+            // destroys the storage factory along with its connection
+            attributes.requestCompleted();
+            RequestContextHolder.resetRequestAttributes();
+            count(domain, result);
+        }
+    }
+
+    /**
+     * @return the installed forms of the app, or null if the user's lock couldn't be obtained
+     */
+    private List<FormDef> readForms(String username, String domain, String appId, String asUsername)
+            throws InterruptedException {
+        FormplayerReentrantLock lock = userLockRegistry.obtain(
+                TableBuilder.scrubName(asUsername == null ? username : username + "_" + asUsername));
+        if (!lock.tryLock(Constants.USER_LOCK_TIMEOUT, TimeUnit.SECONDS)) {
+            return null;
+        }
+        try {
+            storageFactory.configure(username, domain, appId, asUsername);
+            SqlStorage<FormDef> storage = (SqlStorage<FormDef>)storageFactory.newStorage(
+                    FormDef.STORAGE_KEY, FormDef.class);
+            List<FormDef> formDefs = new ArrayList<>();
+            JdbcSqlStorageIterator<FormDef> iterator = storage.iterate();
+            try {
+                while (iterator.hasMore()) {
+                    formDefs.add(iterator.nextRecord());
+                }
+            } finally {
+                iterator.close();
+            }
+            return formDefs;
+        } finally {
+            storageFactory.getSQLiteDB().closeConnection();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the form_definition cache is filled to less than maxCacheShare of its budget
+     */
+    private boolean hasCacheBudget() {
+        org.springframework.cache.Cache cache = cacheManager.getCache("form_definition");
+        if (cache == null || !(cache.getNativeCache() instanceof Cache)) {
+            return true;
+        }
+        Cache<?, ?> nativeCache = (Cache<?, ?>)cache.getNativeCache();
+        Optional<? extends Policy.Eviction<?, ?>> eviction = nativeCache.policy().eviction();
+        if (!eviction.isPresent()) {
+            return true;
+        }
+        long size = eviction.get().weightedSize().orElse(nativeCache.estimatedSize());
+        return size < eviction.get().getMaximum() * maxCacheShare;
+    }
+
+    private void count(String domain, String result) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.increment(Constants.FORM_DEF_PREWARM,
+                    "domain:" + domain, "result:" + result);
+        }
+    }
+}
@@ -1,24 +1,40 @@
 package org.commcare.formplayer.services;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.objects.FormDefTemplate;
 import org.commcare.formplayer.objects.SerializableFormDefinition;
 import org.commcare.formplayer.objects.SerializableFormSession;
 import org.commcare.formplayer.repo.FormDefinitionRepo;
 import org.commcare.formplayer.session.FormSession;
+import org.commcare.formplayer.util.serializer.FormDefBinarySerializer;
 import org.commcare.formplayer.util.serializer.FormDefStringSerializer;
 import org.javarosa.core.log.WrappedException;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
-import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Service class that abstracts interactions with FormDefinitionRepo
@@ -27,6 +43,8 @@ import java.util.Optional;
 @CacheConfig(cacheNames = {"form_definition"})
 public class FormDefinitionService {
 
+    private static final Log log = LogFactory.getLog(FormDefinitionService.class);
+
     @Autowired
     private FormDefinitionRepo formDefinitionRepo;
 
@@ -36,6 +54,20 @@ public class FormDefinitionService {
     @Autowired
     private CacheManager caches;
 
+    // parsed form defs kept per form version for use by any session, 0 to cache them per session
+    @Value("${formplayer.formDef.templatePoolSize:16}")
+    private int templatePoolSize;
+
+    // parsed form defs that pre-warmed templates keep ready for new sessions
+    @Value("${formplayer.formDef.prewarmCopies:2}")
+    private int prewarmCopies;
+
+    // ids of the text only definitions this node has added the compressed form def to
+    private final Set<Long> migratedFormDefinitions = ConcurrentHashMap.newKeySet();
+
+    private static final String TEMPLATE_KEY = "template";
+    private static final String LEASES_ATTRIBUTE = FormDefinitionService.class.getName() + ".leases";
+
     /**
      * Checks if an entry for this (appId, formXmlns, formVersion) combination already exists, and returns if so
      * Otherwise creates a new entry which entails serializing the formDef object (costly operation)
@@ -44,7 +76,8 @@ public class FormDefinitionService {
      * @param formXmlns   xmlns identifier for specific form within app
      * @param formVersion version of form xml
      * @param formDef     FormDef to serialize and save to SQL if needed
-     * @return already existing or newly created SerializableFormDefinition
+     * @return already existing or newly created SerializableFormDefinition, which is unique per
+     * (appId, formXmlns, formVersion)
      */
     @Cacheable(key = "{#appId, #formXmlns, #formVersion}")
     public SerializableFormDefinition getOrCreateFormDefinition(
@@ -54,17 +87,23 @@ public class FormDefinitionService {
             FormDef formDef) {
         Optional<SerializableFormDefinition> optFormDef = this.formDefinitionRepo
                 .findByAppIdAndFormXmlnsAndFormVersion(appId, formXmlns, formVersion);
-        return optFormDef.orElseGet(() -> {
-            String serializedFormDef;
-            try {
-                serializedFormDef = FormDefStringSerializer.serialize(formDef);
-            } catch (IOException e) {
-                throw new WrappedException("Error serializing form def", e);
+        optFormDef.ifPresent(formDefinition -> {
+            if (formDefinition.getCompressedFormDef() == null && formDefinition.getSerializedFormDef() != null) {
+                migrateFormDefinition(formDefinition,
+                        FormDefStringSerializer.decode(formDefinition.getSerializedFormDef()));
             }
+        });
+        return optFormDef.orElseGet(() -> {
             SerializableFormDefinition newFormDef = new SerializableFormDefinition(
-                    appId, formXmlns, formVersion, serializedFormDef
+                    appId, formXmlns, formVersion, compress(externalize(formDef))
             );
-            return this.formDefinitionRepo.save(newFormDef);
+            try {
+                return this.formDefinitionRepo.save(newFormDef);
+            } catch (DataIntegrityViolationException e) {
+                // stored concurrently by another request, the pre-warming or another node
+                return this.formDefinitionRepo.findByAppIdAndFormXmlnsAndFormVersion(
+                        appId, formXmlns, formVersion).orElseThrow(() -> e);
+            }
         });
     }
 
@@ -72,41 +111,100 @@ public class FormDefinitionService {
     private SerializableFormDefinition updateFormDefinition(
             SerializableFormDefinition formDefinition,
             FormDef formDef) {
-        String serializedFormDef;
+        formDefinition.setCompressedFormDef(compress(externalize(formDef)));
+        caches.getCache("form_definition").evict(getTemplateKey(formDefinition));
+        return formDefinitionRepo.save(formDefinition);
+    }
+
+    private static byte[] externalize(FormDef formDef) {
         try {
-            serializedFormDef = FormDefStringSerializer.serialize(formDef);
+            return FormDefStringSerializer.externalize(formDef);
         } catch (IOException e) {
             throw new WrappedException("Error serializing form def", e);
         }
-        formDefinition.setSerializedFormDef(serializedFormDef);
-        return formDefinitionRepo.save(formDefinition);
+    }
+
+    private static byte[] compress(byte[] formDefBytes) {
+        try {
+            return FormDefBinarySerializer.compress(formDefBytes);
+        } catch (IOException e) {
+            throw new WrappedException("Error serializing form def", e);
+        }
+    }
+
+    /**
+     * @return the externalized form def, from whichever format the definition was stored in
+     */
+    private static byte[] getFormDefBytes(SerializableFormDefinition formDefinition) throws IOException {
+        if (formDefinition.getCompressedFormDef() != null) {
+            return FormDefBinarySerializer.decompress(formDefinition.getCompressedFormDef());
+        }
+        return FormDefStringSerializer.decode(formDefinition.getSerializedFormDef());
+    }
+
+    /**
+     * Moves a definition stored as base64 text only to the compressed format, once its form def is
+     * known to be readable. The text is cleared in the same update.
+     *
+     * The definition may be shared by other requests through the cache, so the row is updated
+     * without modifying it; it is read in the compressed format once it is next loaded. A failed
+     * update is retried on a later read.
+     */
+    private void migrateFormDefinition(SerializableFormDefinition formDefinition, byte[] formDefBytes) {
+        Long id = formDefinition.getId();
+        if (formDefinition.getCompressedFormDef() != null || id == null || migratedFormDefinitions.contains(id)) {
+            return;
+        }
+        try {
+            formDefinitionRepo.addCompressedFormDef(id, FormDefBinarySerializer.compress(formDefBytes));
+            migratedFormDefinitions.add(id);
+        } catch (IOException | DataAccessException e) {
+            log.warn(String.format("Unable to migrate form definition %s", id), e);
+        }
     }
 
     /**
      * Ensure raw xml is accessible locally in case serialization changes which would break the ability to
      * deserialize the serialized form def in postgres
      *
-     * @return True if the value was written to storage or False if it already exists in storage.
+     * The installed build of a shared application DB is only read, see SharedApplicationStore, so
+     * form defs are not written to it.
+     *
+     * @return True if the value was written to storage or False if it already exists in storage or
+     * the storage is read-only.
      */
     public boolean writeToLocalStorage(FormDef formDef) {
         String xmlns = formDef.getMainInstance().schema;
         if (getFormDefFromStorage(xmlns).isPresent()) {
             return false;
         }
+        if (storageFactory.getSQLiteDB().isReadOnly()) {
+            log.info(String.format("Not writing form %s to the read-only application DB", xmlns));
+            return false;
+        }
         writeFormDefToStorage(formDef);
         return true;
     }
 
     /**
-     * This method uses the sessionId to cache deserialized FormDefs
-     * Deserializing a serialized FormDef object is costly, and this avoids doing so in between requests
-     * within the same session
+     * Gets a deserialized FormDef for the session. Deserializing a serialized FormDef object is
+     * costly, so this avoids doing so between requests.
+     *
+     * Within a request, the FormDef is leased from the template shared by all sessions of the same
+     * form version and returned to it once the request completes. Outside of a request, or for
+     * sessions with their own function handlers, FormDefs are cached by session id instead.
      *
      * @param session session that contains session id and serialized formDef
      * @return deserialized FormDef object
      */
     public FormDef getFormDef(SerializableFormSession session) {
-        FormDef formDef = this.getFormDefWithCache(session);
+        FormDef formDef = null;
+        if (canShareFormDef(session)) {
+            formDef = leaseFromTemplate(session.getFormDefinition());
+        }
+        if (formDef == null) {
+            formDef = this.getFormDefWithCache(session);
+        }
         // ensure previous tree references are cleared (only necessary when retrieving from cache)
         formDef.getMainInstance().cleanCache();
         return formDef;
@@ -125,7 +223,10 @@ public class FormDefinitionService {
     private FormDef getFormDefFromSession(SerializableFormSession session) {
         SerializableFormDefinition formDefinition = session.getFormDefinition();
         try {
-            return FormDefStringSerializer.deserialize(formDefinition.getSerializedFormDef());
+            byte[] formDefBytes = getFormDefBytes(formDefinition);
+            FormDef formDef = FormDefStringSerializer.deserialize(formDefBytes);
+            migrateFormDefinition(formDefinition, formDefBytes);
+            return formDef;
         } catch (Exception e) {
             String xmlns = formDefinition.getFormXmlns();
             FormDef formDef = getFormDefFromStorage(xmlns).orElseThrow(() -> {
@@ -142,9 +243,164 @@ public class FormDefinitionService {
      * @param session grab the id to cache on and the deserialized form def from the session
      * @return deserialized FormDef object
      */
-    @CachePut(key = "#session.getSessionId()")
     public FormDef cacheFormDef(FormSession session) {
-        return session.getFormDef();
+        FormDef formDef = session.getFormDef();
+        SerializableFormSession serializableSession = session.getSerializableSession();
+        FormDefTemplate template = canShareFormDef(serializableSession)
+                ? getTemplate(serializableSession.getFormDefinition()) : null;
+        if (template != null) {
+            releaseAtEndOfRequest(template, formDef);
+        } else {
+            forgetLease(formDef);
+            caches.getCache("form_definition").put(session.getSessionId(), formDef);
+        }
+        return formDef;
+    }
+
+    /**
+     * Function handlers registered for a session stay in the evaluation context of its FormDef,
+     * so those FormDefs are never shared. Leases are returned when the request completes, so
+     * sharing needs a request scope.
+     */
+    private boolean canShareFormDef(SerializableFormSession session) {
+        return templatePoolSize > 0
+                && RequestContextHolder.getRequestAttributes() != null
+                && session.getFormDefinition() != null
+                && session.getFormDefinition().hasFormDef()
+                && (session.getFunctionContext() == null || session.getFunctionContext().isEmpty());
+    }
+
+    /**
+     * Keeps parsed copies of a form ready for its new sessions, ahead of its first use. Only the
+     * template is kept in memory, see getOrCreateFormDefinition for storing the form definition.
+     *
+     * @param formDef        the form as installed with the app
+     * @param refillExecutor parses the copies that replace the ones used by new sessions
+     */
+    public void prewarmFormDef(String appId, String formXmlns, String formVersion, FormDef formDef,
+            Executor refillExecutor) {
+        if (templatePoolSize <= 0) {
+            return;
+        }
+        try {
+            FormDefTemplate template = caches.getCache("form_definition").get(
+                    getTemplateKey(appId, formXmlns, formVersion),
+                    () -> FormDefTemplate.fromBytes(FormDefStringSerializer.externalize(formDef),
+                            templatePoolSize, prewarmCopies));
+            template.fillPristine(refillExecutor);
+        } catch (Exception e) {
+            log.warn(String.format("Unable to pre-warm form %s of app %s", formXmlns, appId), e);
+        }
+    }
+
+    /**
+     * Gets a FormDef for a new session of a pre-warmed form, which no other session has used.
+     *
+     * @return a FormDef for the exclusive use of this request, or null if the form hasn't been
+     * pre-warmed, in which case the caller loads the FormDef itself
+     */
+    public FormDef leaseNewFormDef(String appId, String formXmlns, String formVersion) {
+        if (templatePoolSize <= 0 || RequestContextHolder.getRequestAttributes() == null) {
+            return null;
+        }
+        FormDefTemplate template = caches.getCache("form_definition").get(
+                getTemplateKey(appId, formXmlns, formVersion), FormDefTemplate.class);
+        if (template == null) {
+            return null;
+        }
+        FormDef formDef;
+        try {
+            formDef = template.checkoutPristine();
+        } catch (Exception e) {
+            return null;
+        }
+        releaseAtEndOfRequest(template, formDef);
+        return formDef;
+    }
+
+    /**
+     * @return a FormDef for the exclusive use of this request, or null if the serialized FormDef
+     * can't be read, in which case the caller falls back to getFormDefFromSession
+     */
+    private FormDef leaseFromTemplate(SerializableFormDefinition formDefinition) {
+        FormDefTemplate template = getTemplate(formDefinition);
+        if (template == null) {
+            return null;
+        }
+        FormDef formDef;
+        try {
+            formDef = template.checkout();
+        } catch (Exception e) {
+            caches.getCache("form_definition").evict(getTemplateKey(formDefinition));
+            return null;
+        }
+        releaseAtEndOfRequest(template, formDef);
+        return formDef;
+    }
+
+    private FormDefTemplate getTemplate(SerializableFormDefinition formDefinition) {
+        Cache cache = caches.getCache("form_definition");
+        try {
+            return cache.get(getTemplateKey(formDefinition), () -> {
+                byte[] formDefBytes = getFormDefBytes(formDefinition);
+                FormDefTemplate template = FormDefTemplate.fromBytes(formDefBytes, templatePoolSize,
+                        prewarmCopies);
+                migrateFormDefinition(formDefinition, formDefBytes);
+                return template;
+            });
+        } catch (Cache.ValueRetrievalException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A FormDef leased for a new session, which is released again once the session is cached, is
+     * only returned to the template once.
+     */
+    private void releaseAtEndOfRequest(FormDefTemplate template, FormDef formDef) {
+        getLeases(RequestContextHolder.currentRequestAttributes()).put(formDef, template);
+    }
+
+    /**
+     * Keeps a FormDef leased for a new session from being returned to its template, once the
+     * session turns out to need a FormDef of its own
+     */
+    private void forgetLease(FormDef formDef) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            getLeases(attributes).remove(formDef);
+        }
+    }
+
+    /**
+     * @return the FormDefs leased by the request, by identity, with the templates they are
+     * returned to once the request completes
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<FormDef, FormDefTemplate> getLeases(RequestAttributes attributes) {
+        Map<FormDef, FormDefTemplate> leases = (Map<FormDef, FormDefTemplate>)attributes.getAttribute(
+                LEASES_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (leases == null) {
+            Map<FormDef, FormDefTemplate> requestLeases = Collections.synchronizedMap(new IdentityHashMap<>());
+            attributes.setAttribute(LEASES_ATTRIBUTE, requestLeases, RequestAttributes.SCOPE_REQUEST);
+            attributes.registerDestructionCallback(LEASES_ATTRIBUTE, () -> {
+                synchronized (requestLeases) {
+                    requestLeases.forEach((formDef, template) -> template.release(formDef));
+                    requestLeases.clear();
+                }
+            }, RequestAttributes.SCOPE_REQUEST);
+            leases = requestLeases;
+        }
+        return leases;
+    }
+
+    private static List<String> getTemplateKey(SerializableFormDefinition formDefinition) {
+        return getTemplateKey(formDefinition.getAppId(), formDefinition.getFormXmlns(),
+                formDefinition.getFormVersion());
+    }
+
+    private static List<String> getTemplateKey(String appId, String formXmlns, String formVersion) {
+        return Arrays.asList(TEMPLATE_KEY, appId, formXmlns, formVersion);
     }
 
     private Optional<FormDef> getFormDefFromStorage(String xmlns) {
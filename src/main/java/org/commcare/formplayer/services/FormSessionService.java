@@ -1,13 +1,16 @@
 package org.commcare.formplayer.services;
 
+import com.google.common.base.Utf8;
 import com.timgroup.statsd.StatsDClient;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.commcare.formplayer.beans.FormsSessionsRequestBean;
 import org.commcare.formplayer.exceptions.FormNotFoundException;
+import org.commcare.formplayer.objects.AnswerLogConverter;
 import org.commcare.formplayer.objects.FormSessionListView;
 import org.commcare.formplayer.objects.SerializableFormSession;
 import org.commcare.formplayer.repo.FormSessionRepo;
+import org.commcare.formplayer.util.Constants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
@@ -26,9 +29,11 @@ import java.util.List;
 import java.util.Optional;
 
 @Service
-@CacheConfig(cacheNames = {"form_session"})
+@CacheConfig(cacheNames = {FormSessionService.CACHE_NAME})
 public class FormSessionService {
 
+    static final String CACHE_NAME = "form_session";
+
     private final Log log = LogFactory.getLog(FormSessionService.class);
 
     private static int DEFAULT_FORMS_PER_PAGE = 10;
@@ -46,17 +51,46 @@ public class FormSessionService {
     @Autowired(required = false)
     private StatsDClient datadogStatsDClient;
 
+    @Autowired(required = false)
+    private RedisSessionCache redisSessionCache;
+
+    @Autowired(required = false)
+    private FormSessionWriteBehind formSessionWriteBehind;
+
     @CacheEvict(allEntries = true)
     public int purge(Instant cutoff) {
-        return formSessionRepo.deleteSessionsOlderThan(cutoff);
+        if (redisSessionCache == null) {
+            return formSessionRepo.deleteSessionsOlderThan(cutoff);
+        }
+        // sessions are never created in the past, so no other session is purged in between
+        List<String> purgedIds = formSessionRepo.findIdsOlderThan(cutoff);
+        int deleted = formSessionRepo.deleteSessionsOlderThan(cutoff);
+        redisSessionCache.deleteAll(CACHE_NAME, purgedIds);
+        return deleted;
     }
 
     @Cacheable
     public SerializableFormSession getSessionById(String id) {
+        if (formSessionWriteBehind != null) {
+            SerializableFormSession pendingSession = formSessionWriteBehind.get(id);
+            if (pendingSession != null) {
+                return pendingSession;
+            }
+        }
+        if (redisSessionCache != null) {
+            SerializableFormSession cachedSession = redisSessionCache.get(
+                    CACHE_NAME, id, SerializableFormSession.class);
+            if (cachedSession != null) {
+                return cachedSession;
+            }
+        }
         Optional<SerializableFormSession> session = formSessionRepo.findById(id);
         if (!session.isPresent()) {
             throw new FormNotFoundException(id);
         }
+        if (redisSessionCache != null) {
+            redisSessionCache.put(CACHE_NAME, id, session.get().getVersion(), session.get());
+        }
         return session.get();
     }
 
@@ -97,11 +131,99 @@ public class FormSessionService {
 
     @CachePut(key = "#session.id")
     public SerializableFormSession saveSession(SerializableFormSession session) {
-        return formSessionRepo.save(session);
+        if (formSessionWriteBehind != null && session.getId() != null) {
+            if (formSessionWriteBehind.defer(session)) {
+                return session;
+            }
+            // the JPA save is guarded by the version of the last write
+            formSessionWriteBehind.flush(session.getId());
+        }
+        if (session.getId() != null && !session.isSnapshotReplaced() && session.getSubmitStatus() == null) {
+            if (appendAnswerLog(session)) {
+                if (redisSessionCache != null) {
+                    redisSessionCache.update(CACHE_NAME, session.getId(), session.getVersion(), session);
+                }
+                return session;
+            }
+            // changed elsewhere since it was read, the JPA save fails on the version
+        }
+        recordBytesWritten(session);
+        SerializableFormSession savedSession = formSessionRepo.save(session);
+        // the latest instance isn't persisted while answers are logged, keep it for the cache
+        savedSession.setCurrentInstanceXml(session.getCurrentInstanceXml());
+        savedSession.markPersisted();
+        if (redisSessionCache != null) {
+            redisSessionCache.update(CACHE_NAME, savedSession.getId(), savedSession.getVersion(), savedSession);
+        }
+        return savedSession;
+    }
+
+    /**
+     * Writes the deferred save of a session, if any, so the database is up to date before the
+     * session is submitted
+     */
+    public void flushPendingSave(String id) {
+        if (formSessionWriteBehind != null) {
+            formSessionWriteBehind.flush(id);
+        }
+    }
+
+    /**
+     * Writes the changes made to a session whose instance has no new snapshot, appending the
+     * answers logged since it was read rather than rewriting the whole log
+     *
+     * @return false if the session was changed or deleted since it was read
+     */
+    private boolean appendAnswerLog(SerializableFormSession session) {
+        byte[] entries = AnswerLogConverter.encode(session.getUnpersistedAnswerLog());
+        int updated = formSessionRepo.appendAnswerLog(session.getId(), session.getVersion(),
+                session.getVersion() + 1, entries, session.getCurrentIndex(), session.getTitle(),
+                session.getInitLang());
+        if (updated == 0) {
+            return false;
+        }
+        session.incrementVersion();
+        session.markPersisted();
+        recordBytesWritten(datadogStatsDClient, "answer_log", entries.length);
+        return true;
+    }
+
+    /**
+     * A session saved through JPA writes its instance when it has a new snapshot, and its answer
+     * log in full
+     */
+    private void recordBytesWritten(SerializableFormSession session) {
+        if (datadogStatsDClient == null) {
+            return;
+        }
+        long bytes = session.getAnswerLog().isEmpty() ? 0
+                : AnswerLogConverter.encode(session.getAnswerLog()).length;
+        if (session.isSnapshotReplaced()) {
+            String instanceXml = session.getInstanceSnapshotXml();
+            bytes += instanceXml == null ? 0 : Utf8.encodedLength(instanceXml);
+            recordBytesWritten(datadogStatsDClient, "snapshot", bytes);
+        } else {
+            recordBytesWritten(datadogStatsDClient, "answer_log", bytes);
+        }
+    }
+
+    /**
+     * Records the bytes of a form session write, as encoded in the columns it writes
+     */
+    static void recordBytesWritten(@Nullable StatsDClient datadogStatsDClient, String mode, long bytes) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.histogram(Constants.FORM_SESSION_BYTES_WRITTEN, bytes, "mode:" + mode);
+        }
     }
 
     @CacheEvict
     public void deleteSessionById(String id) {
+        if (formSessionWriteBehind != null) {
+            formSessionWriteBehind.discard(id);
+        }
         formSessionRepo.deleteById(id);
+        if (redisSessionCache != null) {
+            redisSessionCache.delete(CACHE_NAME, id);
+        }
     }
 }
@@ -0,0 +1,468 @@
+package org.commcare.formplayer.services;
+
+import com.google.common.base.Utf8;
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.objects.AnswerLogConverter;
+import org.commcare.formplayer.objects.AnswerLogEntry;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.formplayer.util.UserUtils;
+import org.commcare.modern.database.TableBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Defers the saves of existing form sessions so that the answers of a user filling in a form are
+ * written to Postgres in batches instead of one UPDATE per answer.
+ *
+ * A deferred session stays in the node-local form_session cache, and is served from here if the
+ * cache drops it. Dirty sessions are written by a scheduled flush with batched UPDATEs, guarded by
+ * the version the row had when the session was first deferred. Only the columns requests change
+ * between snapshots are written: the answers logged since the last write are appended to the
+ * answer log, and the instance is only written when it has a new snapshot.
+ *
+ * The user lock is local to the node, so a request on another node can change the row before the
+ * flush. The answers this node has accepted are written through all the same: the row is
+ * overwritten with the latest instance of the session, with its answer log folded in, and the
+ * session is evicted from the caches so the next request reads what was written. The last writer
+ * wins, so what the other node wrote to the row is replaced.
+ *
+ * The flush copies a session while holding the user's lock, so it never writes a session that a
+ * request is in the middle of changing, and skips users whose lock is held until the next flush.
+ * The database is written once the locks are released. Sessions are written synchronously before
+ * any save that can't be deferred, such as those of a submission, after any write of the session
+ * that is in flight, and when the node shuts down.
+ */
+@Service
+@ConditionalOnProperty(name = "formplayer.formSession.writeBehind.enabled", havingValue = "true")
+public class FormSessionWriteBehind {
+
+    private static final Log log = LogFactory.getLog(FormSessionWriteBehind.class);
+
+    static final String SNAPSHOT_SQL = "UPDATE formplayer_sessions SET instancexml = ?, answerlog = ?, "
+            + "currentindex = ?, title = ?, initlang = ?, version = ? WHERE id = ? AND version = ?";
+
+    private static final int[] SNAPSHOT_TYPES = {Types.VARCHAR, Types.BINARY, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.INTEGER};
+
+    // the entries are encoded with AnswerLogConverter, which reads appended entries as one log
+    static final String APPEND_SQL = "UPDATE formplayer_sessions "
+            + "SET answerlog = COALESCE(answerlog, CAST('' AS bytea)) || ?, "
+            + "currentindex = ?, title = ?, initlang = ?, version = ? WHERE id = ? AND version = ?";
+
+    private static final int[] APPEND_TYPES = {Types.BINARY, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.INTEGER, Types.VARCHAR, Types.INTEGER};
+
+    static final String WRITE_THROUGH_SQL = "UPDATE formplayer_sessions SET instancexml = ?, "
+            + "answerlog = NULL, currentindex = ?, title = ?, initlang = ?, version = version + 1 WHERE id = ?";
+
+    private static final int[] WRITE_THROUGH_TYPES = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.VARCHAR};
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private FormplayerLockRegistry userLockRegistry;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired(required = false)
+    private RedisSessionCache redisSessionCache;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+
+    // writes that are being made, a session has at most one so they are made in version order
+    private final ConcurrentHashMap<String, SessionWrite> inFlightWrites = new ConcurrentHashMap<>();
+
+    // only one flush at a time picks the sessions to write
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile boolean shuttingDown;
+
+    /**
+     * Defers the save of a session, to be written by the next flush
+     *
+     * @return false if the session has to be saved synchronously
+     */
+    public boolean defer(SerializableFormSession session) {
+        if (shuttingDown || session.getId() == null || session.getSubmitStatus() != null) {
+            return false;
+        }
+        PendingWrite previous = pendingWrites.get(session.getId());
+        int persistedVersion = previous != null ? previous.persistedVersion : session.getVersion();
+        int persistedAnswerLogSize = previous != null
+                ? previous.persistedAnswerLogSize : session.getPersistedAnswerLogSize();
+        boolean snapshotReplaced = session.takeSnapshotReplaced() || (previous != null && previous.snapshotReplaced);
+        pendingWrites.put(session.getId(),
+                new PendingWrite(session, persistedVersion, persistedAnswerLogSize, snapshotReplaced));
+        if (previous == null && redisSessionCache != null) {
+            // other nodes read the database until the session is written
+            redisSessionCache.delete(FormSessionService.CACHE_NAME, session.getId());
+        }
+        session.incrementVersion();
+        return true;
+    }
+
+    /**
+     * @return the session if it has unwritten changes, or null
+     */
+    public SerializableFormSession get(String id) {
+        PendingWrite pendingWrite = pendingWrites.get(id);
+        if (pendingWrite != null) {
+            return pendingWrite.session;
+        }
+        SessionWrite inFlightWrite = inFlightWrites.get(id);
+        return inFlightWrite == null ? null : inFlightWrite.pendingWrite.session;
+    }
+
+    /**
+     * Writes the pending changes of a session, after a flush that is writing earlier ones. Must be
+     * called by the request holding the session's user lock.
+     */
+    public void flush(String id) {
+        SessionWrite inFlightWrite = inFlightWrites.get(id);
+        if (inFlightWrite != null) {
+            inFlightWrite.await();
+        }
+        SessionWrite write = null;
+        writeLock.lock();
+        try {
+            PendingWrite pendingWrite = pendingWrites.remove(id);
+            if (pendingWrite != null) {
+                write = startWrite(pendingWrite);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (write != null) {
+            write(Collections.singletonList(write));
+        }
+    }
+
+    /**
+     * Drops the pending changes of a session that is being deleted
+     */
+    public void discard(String id) {
+        pendingWrites.remove(id);
+    }
+
+    /**
+     * Writes the pending changes of all sessions whose user isn't in the middle of a request
+     */
+    public void flushAll() {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        List<SessionWrite> writes = new ArrayList<>();
+        writeLock.lock();
+        try {
+            for (String id : pendingWrites.keySet()) {
+                PendingWrite pendingWrite = pendingWrites.get(id);
+                if (pendingWrite == null || inFlightWrites.containsKey(id)) {
+                    // the write in flight is guarded by the version this one starts from
+                    continue;
+                }
+                FormplayerReentrantLock lock = userLockRegistry.obtain(getLockKey(pendingWrite.session));
+                if (!lock.tryLock()) {
+                    // the user's request defers the session again or writes it
+                    continue;
+                }
+                try {
+                    pendingWrite = pendingWrites.remove(id);
+                    if (pendingWrite != null) {
+                        writes.add(startWrite(pendingWrite));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (!writes.isEmpty()) {
+            write(writes);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shuttingDown = true;
+        flushAll();
+        if (!pendingWrites.isEmpty()) {
+            log.warn(String.format("Shutting down with %d unwritten form sessions", pendingWrites.size()));
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingWrites.size();
+    }
+
+    private SessionWrite startWrite(PendingWrite pendingWrite) {
+        SessionWrite write = new SessionWrite(pendingWrite);
+        inFlightWrites.put(write.id, write);
+        return write;
+    }
+
+    private void write(List<SessionWrite> writes) {
+        try {
+            List<SessionWrite> conflicted = new ArrayList<>();
+            List<SessionWrite> snapshots = writes.stream()
+                    .filter(write -> write.snapshotReplaced).collect(Collectors.toList());
+            List<SessionWrite> appends = writes.stream()
+                    .filter(write -> !write.snapshotReplaced).collect(Collectors.toList());
+            int written = update(SNAPSHOT_SQL, SNAPSHOT_TYPES, snapshots, SessionWrite::getSnapshotParameters,
+                    conflicted);
+            written += update(APPEND_SQL, APPEND_TYPES, appends, SessionWrite::getAppendParameters, conflicted);
+            count("written", written);
+            writeThrough(conflicted);
+            if (datadogStatsDClient != null) {
+                datadogStatsDClient.histogram(
+                        String.format("%s.%s", Constants.FORM_SESSION_WRITE_BEHIND, "batch_size"), writes.size());
+            }
+        } finally {
+            for (SessionWrite write : writes) {
+                inFlightWrites.remove(write.id, write);
+                write.written.countDown();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of sessions from the versions they were deferred at
+     *
+     * @param conflicted collects the sessions whose row had changed since
+     * @return the number of sessions written
+     */
+    private int update(String sql, int[] types, List<SessionWrite> writes,
+            Function<SessionWrite, Object[]> parameters, List<SessionWrite> conflicted) {
+        if (writes.isEmpty()) {
+            return 0;
+        }
+        int[] updateCounts;
+        try {
+            updateCounts = jdbcTemplate.batchUpdate(sql,
+                    writes.stream().map(parameters).collect(Collectors.toList()), types);
+        } catch (DataAccessException e) {
+            log.error(String.format("Unable to write %d form sessions", writes.size()), e);
+            // if part of the batch was written, the retry conflicts and is written through
+            writes.forEach(this::retry);
+            count("error", writes.size());
+            return 0;
+        }
+        int written = 0;
+        for (int i = 0; i < writes.size(); i++) {
+            SessionWrite write = writes.get(i);
+            if (updateCounts[i] == 0) {
+                conflicted.add(write);
+            } else {
+                FormSessionService.recordBytesWritten(datadogStatsDClient,
+                        write.snapshotReplaced ? "snapshot" : "answer_log", write.getBytes());
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Overwrites the rows that changed since their sessions were deferred with the latest instance
+     * of the sessions, so the answers this node accepted aren't lost
+     */
+    private void writeThrough(List<SessionWrite> conflicted) {
+        if (conflicted.isEmpty()) {
+            return;
+        }
+        int[] updateCounts;
+        try {
+            updateCounts = jdbcTemplate.batchUpdate(WRITE_THROUGH_SQL,
+                    conflicted.stream().map(SessionWrite::getWriteThroughParameters).collect(Collectors.toList()),
+                    WRITE_THROUGH_TYPES);
+        } catch (DataAccessException e) {
+            log.error(String.format("Unable to write %d form sessions", conflicted.size()), e);
+            conflicted.forEach(this::retry);
+            count("error", conflicted.size());
+            return;
+        }
+        int writtenThrough = 0;
+        for (int i = 0; i < conflicted.size(); i++) {
+            SessionWrite write = conflicted.get(i);
+            if (updateCounts[i] == 0) {
+                log.info(String.format("Form session %s was deleted before its write", write.id));
+            } else {
+                log.warn(String.format("Form session %s was changed elsewhere before its write, "
+                        + "overwrote it with %d saves made on this node", write.id,
+                        write.version - write.persistedVersion));
+                FormSessionService.recordBytesWritten(datadogStatsDClient, "snapshot",
+                        Utf8.encodedLength(write.latestInstanceXml));
+                writtenThrough++;
+            }
+            // the row is no longer at the version the cached session has
+            Cache cache = cacheManager.getCache(FormSessionService.CACHE_NAME);
+            if (cache != null) {
+                cache.evict(write.id);
+            }
+            if (redisSessionCache != null) {
+                redisSessionCache.delete(FormSessionService.CACHE_NAME, write.id);
+            }
+        }
+        count("written_through", writtenThrough);
+        count("deleted", conflicted.size() - writtenThrough);
+    }
+
+    /**
+     * Queues a write that failed again, along with the changes of requests made since, written
+     * from the same version
+     */
+    private void retry(SessionWrite write) {
+        pendingWrites.merge(write.id, write.pendingWrite,
+                (newer, failedWrite) -> new PendingWrite(newer.session, failedWrite.persistedVersion,
+                        failedWrite.persistedAnswerLogSize,
+                        newer.snapshotReplaced || failedWrite.snapshotReplaced));
+    }
+
+    /**
+     * The key LockAspect locks the user's requests with
+     */
+    private static String getLockKey(SerializableFormSession session) {
+        String usernameDetail;
+        if (session.getRestoreAsCaseId() != null) {
+            usernameDetail = UserUtils.getRestoreAsCaseIdUsername(session.getRestoreAsCaseId());
+        } else if (session.getAsUser() != null) {
+            usernameDetail = session.getUsername() + "_" + session.getAsUser();
+        } else {
+            usernameDetail = session.getUsername();
+        }
+        return TableBuilder.scrubName(usernameDetail);
+    }
+
+    private void count(String result, int sessions) {
+        if (datadogStatsDClient != null && sessions > 0) {
+            datadogStatsDClient.count(
+                    String.format("%s.%s", Constants.FORM_SESSION_WRITE_BEHIND, "sessions"), sessions,
+                    "result:" + result);
+        }
+    }
+
+    private static class PendingWrite {
+        private final SerializableFormSession session;
+        // version of the row in the database, which the write is guarded by
+        private final int persistedVersion;
+        // entries of the answer log in the database, the write appends the rest
+        private final int persistedAnswerLogSize;
+        // whether the instance has a snapshot that isn't in the database yet
+        private final boolean snapshotReplaced;
+
+        private PendingWrite(SerializableFormSession session, int persistedVersion,
+                int persistedAnswerLogSize, boolean snapshotReplaced) {
+            this.session = session;
+            this.persistedVersion = persistedVersion;
+            this.persistedAnswerLogSize = persistedAnswerLogSize;
+            this.snapshotReplaced = snapshotReplaced;
+        }
+    }
+
+    /**
+     * The columns a pending write changes, copied while no request is changing the session. The
+     * session is marked as persisted straight away, so that it is deferred again from the state
+     * this write leaves the row in.
+     */
+    private static class SessionWrite {
+        private final PendingWrite pendingWrite;
+        private final String id;
+        private final int persistedVersion;
+        private final int version;
+        private final boolean snapshotReplaced;
+        private final String instanceXml;
+        // the whole log when the snapshot is replaced, otherwise the entries to append
+        private final byte[] answerLog;
+        // written instead if the row changed elsewhere
+        private final String latestInstanceXml;
+        private final String currentIndex;
+        private final String title;
+        private final String initLang;
+        private final CountDownLatch written = new CountDownLatch(1);
+
+        private SessionWrite(PendingWrite pendingWrite) {
+            SerializableFormSession session = pendingWrite.session;
+            List<AnswerLogEntry> answerLog = session.getAnswerLog();
+            // also covers a snapshot taken since the session was last deferred
+            boolean snapshotReplaced = pendingWrite.snapshotReplaced || session.isSnapshotReplaced();
+            this.pendingWrite = new PendingWrite(session, pendingWrite.persistedVersion,
+                    pendingWrite.persistedAnswerLogSize, snapshotReplaced);
+            this.id = session.getId();
+            this.persistedVersion = pendingWrite.persistedVersion;
+            this.version = session.getVersion();
+            this.snapshotReplaced = snapshotReplaced;
+            this.instanceXml = session.getInstanceSnapshotXml();
+            if (snapshotReplaced) {
+                this.answerLog = answerLog.isEmpty() ? null : AnswerLogConverter.encode(answerLog);
+            } else {
+                this.answerLog = AnswerLogConverter.encode(
+                        answerLog.subList(pendingWrite.persistedAnswerLogSize, answerLog.size()));
+            }
+            this.latestInstanceXml = session.getInstanceXml();
+            this.currentIndex = session.getCurrentIndex();
+            this.title = session.getTitle();
+            this.initLang = session.getInitLang();
+            session.markPersisted();
+        }
+
+        private Object[] getSnapshotParameters() {
+            return new Object[]{instanceXml, answerLog, currentIndex, title, initLang, version, id,
+                    persistedVersion};
+        }
+
+        private Object[] getAppendParameters() {
+            return new Object[]{answerLog, currentIndex, title, initLang, version, id, persistedVersion};
+        }
+
+        private Object[] getWriteThroughParameters() {
+            return new Object[]{latestInstanceXml, currentIndex, title, initLang, id};
+        }
+
+        /**
+         * @return the bytes the guarded write puts in the columns it writes
+         */
+        private long getBytes() {
+            long bytes = answerLog == null ? 0 : answerLog.length;
+            if (snapshotReplaced && instanceXml != null) {
+                bytes += Utf8.encodedLength(instanceXml);
+            }
+            return bytes;
+        }
+
+        private void await() {
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                // the write that follows is guarded by the version, and fails instead
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
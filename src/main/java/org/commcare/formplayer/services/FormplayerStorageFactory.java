@@ -18,8 +18,8 @@ import org.springframework.stereotype.Component;
 import jakarta.annotation.PreDestroy;
 
 import org.commcare.formplayer.sandbox.SqlStorage;
-import org.commcare.formplayer.sqlitedb.ApplicationDB;
 import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
 import org.commcare.formplayer.util.FormplayerPropertyManager;
 import org.commcare.formplayer.util.UserUtils;
 
@@ -92,12 +92,25 @@ public class FormplayerStorageFactory implements IStorageIndexedFactory {
         this.asUsername = asUsername;
         this.domain = domain;
         this.appId = appId;
-        this.sqLiteDB = new ApplicationDB(domain, username, asUsername, appId);
+        this.sqLiteDB = SharedApplicationStore.openApplicationDB(domain, username, asUsername, appId);
         this.sqLiteDB.closeConnection();
         this.propertyManager = new FormplayerPropertyManager(newStorage(PropertyManager.STORAGE_KEY, Property.class));
         storageManager = new StorageManager(this);
     }
 
+    /**
+     * Switches the configured app to another application DB, e.g. to the shared DB of its build
+     * once the user is linked to it
+     */
+    public void useApplicationDB(SQLiteDB applicationDB) {
+        if (sqLiteDB != null) {
+            sqLiteDB.closeConnection();
+        }
+        this.sqLiteDB = applicationDB;
+        this.propertyManager = new FormplayerPropertyManager(newStorage(PropertyManager.STORAGE_KEY, Property.class));
+        storageManager = new StorageManager(this);
+    }
+
     @PreDestroy
     public void preDestroy() {
         if(sqLiteDB != null) {
@@ -1,6 +1,8 @@
 package org.commcare.formplayer.services;
 
+import org.commcare.formplayer.DbUtils;
 import org.commcare.formplayer.engine.FormplayerConfigEngine;
+import org.commcare.formplayer.engine.ParallelResourceParser;
 import org.commcare.formplayer.exceptions.UnresolvedResourceRuntimeException;
 import org.commcare.formplayer.installers.FormplayerInstallerFactory;
 
@@ -9,17 +11,24 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.commcare.modern.reference.ArchiveFileRoot;
 import org.commcare.modern.util.Pair;
+import org.commcare.resources.model.ResourceInitializationException;
 import org.commcare.resources.model.UnresolvedResourceException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.stereotype.Service;
 
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.sqlitedb.ApplicationDB;
 import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
 import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.util.SimpleTimer;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * The InstallService handles configuring the application,
  * either from a .ccz or .ccpr reference or existing dbs.
@@ -47,6 +56,18 @@ public class InstallService {
     @Autowired
     private ResponseMetaDataTracker responseMetaDataTracker;
 
+    @Autowired(required = false)
+    private FormDefPrewarmService formDefPrewarmService;
+
+    @Autowired(required = false)
+    private PlatformCache platformCache;
+
+    @Autowired(required = false)
+    private CczStore cczStore;
+
+    @Autowired(required = false)
+    private ParallelResourceParser resourceParser;
+
     private final Log log = LogFactory.getLog(InstallService.class);
 
     CategoryTimingHelper.RecordingTimer installTimer;
@@ -67,7 +88,8 @@ public class InstallService {
                     FormplayerConfigEngine engine = new FormplayerConfigEngine(
                             storageFactory, formplayerInstallerFactory, formplayerArchiveFileRoot, restTemplate
                     );
-                    engine.initEnvironment();
+                    initEnvironment(engine);
+                    prewarmForms(engine, preview);
                     return new Pair<>(engine, false);
                 } catch (Exception e) {
                     log.debug("An error occurred while trying to use the old DB file for app. Error details: Got exception "
@@ -75,9 +97,22 @@ public class InstallService {
                 }
             }
 
+            invalidatePlatform(sqliteDB);
+            if (sqliteDB instanceof SharedApplicationDB) {
+                // reinstall the build for its users rather than wiping it under those that have it open
+                SharedApplicationStore.markBad((SharedApplicationDB)sqliteDB);
+                storageFactory.useApplicationDB(new ApplicationDB(storageFactory.getDomain(),
+                        storageFactory.getUsername(), storageFactory.getAsUsername(), storageFactory.getAppId()));
+                sqliteDB = storageFactory.getSQLiteDB();
+            } else {
+                sqliteDB.closeConnection();
+                sqliteDB.deleteDatabaseFile();
+            }
+            if (!preview && SQLiteProperties.isSharedAppsEnabled()) {
+                return configureSharedBuild(reference);
+            }
+
             // Wipe out folder and attempt install
-            sqliteDB.closeConnection();
-            sqliteDB.deleteDatabaseFile();
             installTimer = categoryTimingHelper.newTimer(Constants.TimingCategories.APP_INSTALL, storageFactory.getDomain());
             installTimer.start();
             if (!sqliteDB.databaseFolderExists() && !sqliteDB.createDatabaseFolder()) {
@@ -86,15 +121,13 @@ public class InstallService {
             FormplayerConfigEngine engine = new FormplayerConfigEngine(
                     storageFactory, formplayerInstallerFactory, formplayerArchiveFileRoot, restTemplate
             );
-            if (reference.endsWith(".ccpr")) {
-                engine.initFromLocalFileResource(reference);
-            } else {
-                engine.initFromArchive(reference, preview);
-            }
-            engine.initEnvironment();
+            engine.setCczStore(cczStore);
+            installResources(engine, reference, preview);
+            initEnvironment(engine);
             installTimer.end();
             installTimer.record();
             responseMetaDataTracker.setNewInstall(true);
+            prewarmForms(engine, preview);
             return new Pair<>(engine, newInstall);
         } catch (UnresolvedResourceException e) {
             throw new UnresolvedResourceRuntimeException(e);
@@ -104,6 +137,130 @@ public class InstallService {
         }
     }
 
+    /**
+     * Links the user to the installed build of the app, installing it first if no user on this
+     * node has
+     */
+    private Pair<FormplayerConfigEngine, Boolean> configureSharedBuild(String reference) throws Exception {
+        String domain = storageFactory.getDomain();
+        String appId = storageFactory.getAppId();
+        SharedApplicationDB sharedDB;
+        Lock installLock = SharedApplicationStore.getInstallLock(domain, appId);
+        installLock.lock();
+        try {
+            sharedDB = SharedApplicationStore.findBuild(domain, appId);
+            if (sharedDB == null) {
+                sharedDB = installSharedBuild(reference);
+            }
+            SharedApplicationStore.link(domain, storageFactory.getUsername(), storageFactory.getAsUsername(),
+                    appId, sharedDB);
+        } finally {
+            installLock.unlock();
+        }
+        storageFactory.useApplicationDB(sharedDB);
+        FormplayerConfigEngine engine = new FormplayerConfigEngine(
+                storageFactory, formplayerInstallerFactory, formplayerArchiveFileRoot, restTemplate
+        );
+        initEnvironment(engine);
+        responseMetaDataTracker.setNewInstall(true);
+        prewarmForms(engine, false);
+        return new Pair<>(engine, true);
+    }
+
+    private SharedApplicationDB installSharedBuild(String reference) throws Exception {
+        SharedApplicationDB stagingDB = SharedApplicationStore.newStagingBuild(
+                storageFactory.getDomain(), storageFactory.getAppId());
+        installTimer = categoryTimingHelper.newTimer(Constants.TimingCategories.APP_INSTALL, storageFactory.getDomain());
+        installTimer.start();
+        if (!stagingDB.createDatabaseFolder()) {
+            throw new RuntimeException("Error instantiating folder " + stagingDB.getDatabaseFileForDebugPurposes());
+        }
+        try {
+            storageFactory.useApplicationDB(stagingDB);
+            FormplayerConfigEngine engine = new FormplayerConfigEngine(
+                    storageFactory, formplayerInstallerFactory, formplayerArchiveFileRoot, restTemplate
+            );
+            engine.setCczStore(cczStore);
+            installResources(engine, reference, false);
+            engine.initEnvironment();
+            String version = "" + engine.getPlatform().getCurrentProfile().getVersion();
+            // the engine's storage stays bound to the staging DB, users get an engine over the published one
+            storageFactory.useApplicationDB(new ApplicationDB(storageFactory.getDomain(),
+                    storageFactory.getUsername(), storageFactory.getAsUsername(), storageFactory.getAppId()));
+            SharedApplicationDB sharedDB = SharedApplicationStore.publish(stagingDB, version);
+            installTimer.end();
+            installTimer.record();
+            return sharedDB;
+        } catch (Exception e) {
+            stagingDB.deleteDatabaseFolder();
+            throw e;
+        }
+    }
+
+    /**
+     * Installs the app's resources into the configured application DB. With parallel installs
+     * the forms and locale files of a CCZ are parsed in parallel and written in a single
+     * transaction, which is rolled back if the install fails.
+     */
+    private void installResources(FormplayerConfigEngine engine, String reference, boolean preview)
+            throws Exception {
+        if (resourceParser == null) {
+            initFromReference(engine, reference, preview);
+            return;
+        }
+        engine.setResourceParser(resourceParser);
+        SQLiteDB sqliteDB = storageFactory.getSQLiteDB();
+        DbUtils.setAutoCommit(sqliteDB, false);
+        try {
+            initFromReference(engine, reference, preview);
+            DbUtils.commit(sqliteDB);
+        } catch (Exception e) {
+            DbUtils.rollback(sqliteDB);
+            throw e;
+        } finally {
+            DbUtils.setAutoCommit(sqliteDB, true);
+        }
+    }
+
+    private void initFromReference(FormplayerConfigEngine engine, String reference, boolean preview)
+            throws Exception {
+        if (reference.endsWith(".ccpr")) {
+            engine.initFromLocalFileResource(reference);
+        } else {
+            engine.initFromArchive(reference, preview);
+        }
+    }
+
+    /**
+     * Initializes the engine from the cached state of its application DB when there is one
+     */
+    private void initEnvironment(FormplayerConfigEngine engine) throws ResourceInitializationException {
+        if (platformCache == null) {
+            engine.initEnvironment();
+            return;
+        }
+        platformCache.initEnvironment(engine, storageFactory.getSQLiteDB());
+    }
+
+    private void invalidatePlatform(SQLiteDB applicationDB) {
+        if (platformCache != null) {
+            platformCache.invalidate(applicationDB);
+        }
+    }
+
+    /**
+     * Preview builds are reinstalled as the app is edited without changing version, so their form
+     * defs aren't worth keeping.
+     */
+    private void prewarmForms(FormplayerConfigEngine engine, boolean preview) {
+        if (formDefPrewarmService == null || preview) {
+            return;
+        }
+        formDefPrewarmService.prewarm(storageFactory.getUsername(), storageFactory.getDomain(),
+                storageFactory.getAppId(), storageFactory.getAsUsername(),
+                "" + engine.getPlatform().getCurrentProfile().getVersion());
+    }
+
     public SimpleTimer getInstallTimer() {
         return installTimer;
     }
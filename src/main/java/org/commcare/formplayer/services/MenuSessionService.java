@@ -23,25 +23,49 @@ import java.util.Optional;
 
 
 @Service
-@CacheConfig(cacheNames = {"menu_session"})
+@CacheConfig(cacheNames = {MenuSessionService.CACHE_NAME})
 public class MenuSessionService {
 
+    static final String CACHE_NAME = "menu_session";
+
+    // menu sessions aren't versioned, so sessions read from Postgres never replace saved ones in
+    // Redis, and the latest save always wins
+    private static final long READ_VERSION = 0;
+    private static final long SAVED_VERSION = 1;
+
     @Autowired
     private MenuSessionRepo menuSessionRepo;
 
+    @Autowired(required = false)
+    private RedisSessionCache redisSessionCache;
+
     @Cacheable
     public SerializableMenuSession getSessionById(String id) {
+        if (redisSessionCache != null) {
+            SerializableMenuSession cachedSession = redisSessionCache.get(
+                    CACHE_NAME, id, SerializableMenuSession.class);
+            if (cachedSession != null) {
+                return cachedSession;
+            }
+        }
         Optional<SerializableMenuSession> session = menuSessionRepo.findById(id);
         if (!session.isPresent()) {
             throw new MenuNotFoundException(id);
         }
+        if (redisSessionCache != null) {
+            redisSessionCache.put(CACHE_NAME, id, READ_VERSION, session.get());
+        }
         return session.get();
     }
 
 
     @CachePut(key = "#session.id")
     public SerializableMenuSession saveSession(SerializableMenuSession session) {
-        return menuSessionRepo.save(session);
+        SerializableMenuSession savedSession = menuSessionRepo.save(session);
+        if (redisSessionCache != null) {
+            redisSessionCache.update(CACHE_NAME, savedSession.getId(), SAVED_VERSION, savedSession);
+        }
+        return savedSession;
     }
 
 }
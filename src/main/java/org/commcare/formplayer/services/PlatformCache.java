@@ -0,0 +1,144 @@
+package org.commcare.formplayer.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.timgroup.statsd.StatsDClient;
+
+import org.commcare.formplayer.engine.FormplayerConfigEngine;
+import org.commcare.formplayer.engine.InitializedPlatform;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.resources.model.ResourceInitializationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Keeps the initialized platform state of the app builds used on this node, so that configuring
+ * an installed app for a request doesn't read and deserialize its profile, suites and locale
+ * files again.
+ *
+ * State is keyed by the application DB it was read from, which is shared by all users of a build
+ * when shared installs are enabled (see SharedApplicationStore). It is dropped when the DB is
+ * deleted or reinstalled, and is not used once the DB or its write-ahead log has been modified
+ * since.
+ *
+ * Engines initialized from the cache get the profile, suites and locales of the build, which the
+ * cached objects are shared by. Builds with resources whose initialization has other side effects
+ * are not cached, see FormplayerConfigEngine.initEnvironmentRecorded.
+ */
+@Component
+@ConditionalOnProperty(name = "formplayer.platformCache.enabled", havingValue = "true", matchIfMissing = true)
+public class PlatformCache {
+
+    @Value("${formplayer.platformCache.maxSize:200}")
+    private long maxSize;
+
+    @Value("${formplayer.platformCache.expireAfterAccess:3600}")
+    private long expireAfterAccessSeconds;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    private Cache<String, CachedPlatform> platforms;
+
+    @PostConstruct
+    public void init() {
+        platforms = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(expireAfterAccessSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Initializes the engine's platform from the state of its application DB, reading the state
+     * from the DB first if it isn't cached
+     */
+    public void initEnvironment(FormplayerConfigEngine engine, SQLiteDB applicationDB)
+            throws ResourceInitializationException {
+        String key = applicationDB.getDatabaseFileForDebugPurposes();
+        CachedPlatform cached = platforms.getIfPresent(key);
+        if (cached != null && cached.databaseState.equals(DatabaseState.of(key))) {
+            engine.initEnvironment(cached.platform);
+            count("hit");
+            return;
+        }
+        InitializedPlatform platform = engine.initEnvironmentRecorded();
+        if (platform == null) {
+            platforms.invalidate(key);
+            count("uncacheable");
+            return;
+        }
+        // read afterwards, initializing the resources may write to the DB
+        platforms.put(key, new CachedPlatform(platform, DatabaseState.of(key)));
+        count(cached == null ? "miss" : "stale");
+    }
+
+    /**
+     * Drops the state of an application DB that is deleted or about to be reinstalled
+     */
+    public void invalidate(SQLiteDB applicationDB) {
+        platforms.invalidate(applicationDB.getDatabaseFileForDebugPurposes());
+    }
+
+    private void count(String result) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.increment(Constants.PLATFORM_CACHE, "result:" + result);
+        }
+    }
+
+    private static class CachedPlatform {
+        private final InitializedPlatform platform;
+        // the state is stale once the DB has been modified since it was read
+        private final DatabaseState databaseState;
+
+        private CachedPlatform(InitializedPlatform platform, DatabaseState databaseState) {
+            this.platform = platform;
+            this.databaseState = databaseState;
+        }
+    }
+
+    /**
+     * Modification times of a DB file and of its write-ahead log, which takes the DB's writes
+     * until they are checkpointed into the file
+     */
+    private static class DatabaseState {
+        private final long databaseLastModified;
+        private final long walLastModified;
+        private final long walLength;
+
+        private DatabaseState(long databaseLastModified, long walLastModified, long walLength) {
+            this.databaseLastModified = databaseLastModified;
+            this.walLastModified = walLastModified;
+            this.walLength = walLength;
+        }
+
+        private static DatabaseState of(String databaseFile) {
+            File wal = new File(databaseFile + "-wal");
+            return new DatabaseState(new File(databaseFile).lastModified(), wal.lastModified(), wal.length());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DatabaseState)) {
+                return false;
+            }
+            DatabaseState other = (DatabaseState)o;
+            return databaseLastModified == other.databaseLastModified
+                    && walLastModified == other.walLastModified
+                    && walLength == other.walLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(databaseLastModified, walLastModified, walLength);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.commcare.formplayer.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.beans.auth.HqUserDetailsBean;
+import org.commcare.formplayer.exceptions.SessionAuthUnavailableException;
+import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.util.BackgroundRequestAttributes;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.formplayer.util.RequestUtils;
+import org.commcare.modern.database.TableBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Syncs the sandboxes of recently active users in the background shortly before their
+ * freq-daily or freq-weekly sync window runs out, so that their next request does not have to
+ * wait for the sync.
+ *
+ * Users are tracked in memory when a request authenticated with their HQ session gets their
+ * sandbox, so each node only syncs the users it has served. Background syncs restore as the user
+ * with formplayer's own HMAC auth, the same way HQ forces a sync for a user, but only while the HQ
+ * session of the user's last request is still live and authorizes the restore; the session key is
+ * only kept in memory for that check. Each sync logs the user whose session authorized it.
+ * Requests authenticated with HMAC, and users on aggressive sync timing, are not tracked. Syncs run on a small bounded pool, only while the system load is below
+ * maxLoadPerCpu, and only if the user's lock is free so a background sync never delays a
+ * request that is already running.
+ */
+@Component
+public class ProactiveSyncService {
+
+    private final Log log = LogFactory.getLog(ProactiveSyncService.class);
+
+    @Value("${formplayer.proactiveSync.enabled:false}")
+    private boolean enabled;
+
+    // how long before the sync window runs out to sync
+    @Value("${formplayer.proactiveSync.leadTime:3600000}")
+    private long leadTimeMillis;
+
+    // users without a request in this long are no longer synced
+    @Value("${formplayer.proactiveSync.activeWindow:172800000}")
+    private long activeWindowMillis;
+
+    @Value("${formplayer.proactiveSync.maxTrackedUsers:10000}")
+    private long maxTrackedUsers;
+
+    @Value("${formplayer.proactiveSync.workers:2}")
+    private int workers;
+
+    @Value("${formplayer.proactiveSync.maxQueued:500}")
+    private int maxQueued;
+
+    // system load average per available processor above which no syncs are queued
+    @Value("${formplayer.proactiveSync.maxLoadPerCpu:0.7}")
+    private double maxLoadPerCpu;
+
+    @Autowired
+    private RestoreFactory restoreFactory;
+
+    @Autowired
+    private FormplayerLockRegistry userLockRegistry;
+
+    @Autowired
+    private HqUserDetailsService hqUserDetailsService;
+
+    @Autowired
+    private StatsDClient datadogStatsDClient;
+
+    private Cache<String, SyncTarget> activeUsers;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        activeUsers = Caffeine.newBuilder()
+                .expireAfterWrite(activeWindowMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maxTrackedUsers)
+                .build();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("proactive-sync-");
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueued), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records that the user the given RestoreFactory is configured for is active
+     */
+    public void recordActivity(RestoreFactory restoreFactory) {
+        if (!enabled || restoreFactory.getCaseId() != null || RequestUtils.requestAuthedWithHmac()) {
+            return;
+        }
+        String sessionKey = getSessionKey();
+        if (sessionKey == null) {
+            return;
+        }
+        Long syncWindow = restoreFactory.getSyncWindow();
+        Long lastSyncTime = restoreFactory.getLastSyncTime();
+        if (syncWindow == null || syncWindow <= leadTimeMillis || lastSyncTime == null) {
+            return;
+        }
+        SyncTarget target = new SyncTarget(restoreFactory.getUsername(), restoreFactory.getDomain(),
+                restoreFactory.getAsUsername(), sessionKey, syncWindow, lastSyncTime);
+        activeUsers.put(target.getKey(), target);
+    }
+
+    /**
+     * Queues syncs for the active users whose sync window runs out within the lead time
+     */
+    public void scheduleSyncs() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (SyncTarget target : activeUsers.asMap().values()) {
+            if (executor.getQueue().remainingCapacity() == 0 || !hasIdleCapacity()) {
+                break;
+            }
+            if (target.getExpiresAt() - now > leadTimeMillis || !queued.add(target.getKey())) {
+                continue;
+            }
+            executor.execute(() -> sync(target));
+        }
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.PROACTIVE_SYNC, "queue_depth"), executor.getQueue().size());
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.PROACTIVE_SYNC, "active_users"), activeUsers.estimatedSize());
+    }
+
+    private static String getSessionKey() {
+        HttpServletRequest request = RequestUtils.getCurrentRequest();
+        if (request == null || request.getCookies() == null) {
+            return null;
+        }
+        for (Cookie cookie : request.getCookies()) {
+            if (Constants.POSTGRES_DJANGO_SESSION_ID.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private boolean hasIdleCapacity() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        // the load average is negative where it is not available
+        return load < 0 || load / Runtime.getRuntime().availableProcessors() < maxLoadPerCpu;
+    }
+
+    /**
+     * @return the user whose live session authorizes restoring as the target, or null if there is
+     * none
+     */
+    private String getAuthorizingUser(SyncTarget target) {
+        HqUserDetailsBean userDetails;
+        try {
+            userDetails = hqUserDetailsService.getUserDetails(target.getDomain(), target.getSessionKey());
+        } catch (SessionAuthUnavailableException e) {
+            return null;
+        }
+        if (userDetails == null || !userDetails.isAuthorized(target.getDomain(), target.getUsername())) {
+            return null;
+        }
+        return userDetails.getUsername();
+    }
+
+    private void sync(SyncTarget target) {
+        BackgroundRequestAttributes attributes = null;
+        FormplayerReentrantLock lock = null;
+        boolean locked = false;
+        String result = "synced";
+        try {
+            String authorizedBy = getAuthorizingUser(target);
+            if (authorizedBy == null) {
+                // the user's next request tracks them again with its own session
+                activeUsers.invalidate(target.getKey());
+                result = "no_session";
+                return;
+            }
+            // restores are signed with formplayer's HMAC key rather than the user's credentials
+            attributes = new BackgroundRequestAttributes(authorizedBy);
+            RequestContextHolder.setRequestAttributes(attributes);
+            log.info(String.format("Proactive sync for user %s in domain %s authorized by the session of %s",
+                    target.getLockKey(), target.getDomain(), authorizedBy));
+            lock = userLockRegistry.obtain(target.getLockKey());
+            locked = lock.tryLock();
+            if (!locked) {
+                // the user's own request will sync if it still needs to
+                result = "locked";
+                return;
+            }
+            restoreFactory.configure(target.getUsername(), target.getDomain(), target.getAsUsername(),
+                    null);
+            Long lastSyncTime = restoreFactory.getLastSyncTime();
+            if (lastSyncTime == null || restoreFactory.getSqlSandbox().getLoggedInUser() == null) {
+                activeUsers.invalidate(target.getKey());
+                result = "no_sandbox";
+                return;
+            }
+            if (lastSyncTime + target.getSyncWindow() - System.currentTimeMillis() > leadTimeMillis) {
+                activeUsers.put(target.getKey(), target.withLastSyncTime(lastSyncTime));
+                result = "not_due";
+                return;
+            }
+            restoreFactory.performTimedSync(false, false);
+            activeUsers.put(target.getKey(), target.withLastSyncTime(restoreFactory.getLastSyncTime()));
+        } catch (HttpClientErrorException e) {
+            // e.g. the user has been deactivated or removed
+            activeUsers.invalidate(target.getKey());
+            result = "http_" + e.getStatusCode().value();
+        } catch (Exception e) {
+            log.warn(String.format("Proactive sync failed for user %s in domain %s",
+                    target.getLockKey(), target.getDomain()), e);
+            activeUsers.invalidate(target.getKey());
+            result = "error";
+        } finally {
+            if (locked) {
+                try {
+                    restoreFactory.getSQLiteDB().closeConnection();
+                    lock.unlock();
+                } catch (IllegalStateException e) {
+                    // lock was released after expiration
+                    result = "expired";
+                }
+            }
+            if (attributes != null) {
+                attributes.requestCompleted();
+                RequestContextHolder.resetRequestAttributes();
+            }
+            queued.remove(target.getKey());
+            datadogStatsDClient.increment(
+                    String.format("%s.%s", Constants.PROACTIVE_SYNC, "count"),
+                    "domain:" + target.getDomain(),
+                    "result:" + result
+            );
+        }
+    }
+
+    private static class SyncTarget {
+        private final String username;
+        private final String domain;
+        private final String asUsername;
+        private final String sessionKey;
+        private final long syncWindow;
+        private final long lastSyncTime;
+
+        SyncTarget(String username, String domain, String asUsername, String sessionKey, long syncWindow,
+                long lastSyncTime) {
+            this.username = username;
+            this.domain = domain;
+            this.asUsername = asUsername;
+            this.sessionKey = sessionKey;
+            this.syncWindow = syncWindow;
+            this.lastSyncTime = lastSyncTime;
+        }
+
+        SyncTarget withLastSyncTime(Long lastSyncTime) {
+            if (lastSyncTime == null) {
+                return this;
+            }
+            return new SyncTarget(username, domain, asUsername, sessionKey, syncWindow, lastSyncTime);
+        }
+
+        String getKey() {
+            return domain + ":" + username + ":" + asUsername;
+        }
+
+        // same key the LockAspect uses for requests by this user
+        String getLockKey() {
+            return TableBuilder.scrubName(asUsername == null ? username : username + "_" + asUsername);
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        String getDomain() {
+            return domain;
+        }
+
+        String getAsUsername() {
+            return asUsername;
+        }
+
+        String getSessionKey() {
+            return sessionKey;
+        }
+
+        long getSyncWindow() {
+            return syncWindow;
+        }
+
+        long getExpiresAt() {
+            return lastSyncTime + syncWindow;
+        }
+    }
+}
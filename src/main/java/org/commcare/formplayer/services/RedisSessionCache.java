@@ -0,0 +1,328 @@
+package org.commcare.formplayer.services;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.objects.SerializableFormDefinition;
+import org.commcare.formplayer.repo.FormDefinitionRepo;
+import org.commcare.formplayer.util.Constants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Second tier behind the node-local form_session and menu_session caches, shared by all formplayer
+ * nodes through Redis, so that a request routed to a different node than the previous one doesn't
+ * have to load its session from Postgres.
+ *
+ * Sessions are stored as compressed Java serialized snapshots. The form definition of a form
+ * session is stored as a reference and resolved through the node-local form_definition cache, so
+ * the serialized form def is not rewritten on every answer.
+ *
+ * Writes carry the JPA version of the session and never replace a newer snapshot. Every write
+ * publishes an invalidation which the other nodes use to evict the session from their local
+ * cache.
+ *
+ * Snapshots are only read back into the session classes, see SNAPSHOT_FILTER.
+ *
+ * Redis errors are logged and treated as misses, Postgres remains the source of truth.
+ */
+@Service
+@ConditionalOnProperty(name = "formplayer.sessionCache.redis.enabled", havingValue = "true")
+public class RedisSessionCache implements MessageListener {
+
+    private static final Log log = LogFactory.getLog(RedisSessionCache.class);
+
+    private static final String KEY_PREFIX = "formplayer:session_cache:";
+    private static final String INVALIDATION_CHANNEL = "formplayer:session_cache:invalidation";
+    private static final String DATA_FIELD = "data";
+    private static final String ALL_SESSIONS = "*";
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    // the classes a snapshot may contain, anything else is rejected before it is instantiated
+    private static final ObjectInputFilter SNAPSHOT_FILTER = ObjectInputFilter.Config.createFilter(
+            "java.lang.*;java.util.*;java.time.*;org.commcare.formplayer.objects.*;"
+                    + RedisSessionCache.class.getName() + "$FormDefinitionRef;!*");
+
+    // only replaces the stored snapshot if it isn't newer than the one being written
+    private static final RedisScript<Long> VERSIONED_PUT = new DefaultRedisScript<>(
+            "local current = redis.call('HGET', KEYS[1], 'version')\n" +
+                    "if current and tonumber(current) > tonumber(ARGV[1]) then\n" +
+                    "    return 0\n" +
+                    "end\n" +
+                    "redis.call('HSET', KEYS[1], 'version', ARGV[1], 'data', ARGV[2])\n" +
+                    "redis.call('EXPIRE', KEYS[1], ARGV[3])\n" +
+                    "return 1",
+            Long.class);
+
+    @Autowired
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private FormDefinitionRepo formDefinitionRepo;
+
+    @Autowired(required = false)
+    private StatsDClient datadogStatsDClient;
+
+    @Value("${formplayer.sessionCache.redis.ttl:3600}")
+    private long ttlSeconds;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private RedisTemplate<String, byte[]> redisTemplate;
+
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void start() {
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redisConnectionFactory);
+        redisTemplate.setKeySerializer(RedisSerializer.string());
+        redisTemplate.setValueSerializer(RedisSerializer.byteArray());
+        redisTemplate.setHashKeySerializer(RedisSerializer.string());
+        redisTemplate.setHashValueSerializer(RedisSerializer.byteArray());
+        redisTemplate.afterPropertiesSet();
+
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(redisConnectionFactory);
+        listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws Exception {
+        if (listenerContainer != null) {
+            listenerContainer.destroy();
+        }
+    }
+
+    /**
+     * @return the stored session, or null if it isn't stored or can't be read
+     */
+    public <T> T get(String cacheName, String id, Class<T> type) {
+        try {
+            Object data = redisTemplate.opsForHash().get(getKey(cacheName, id), DATA_FIELD);
+            if (data == null) {
+                count(cacheName, "miss");
+                return null;
+            }
+            T session = type.cast(deserialize((byte[])data));
+            count(cacheName, "hit");
+            return session;
+        } catch (Exception e) {
+            log.warn(String.format("Unable to read %s %s from Redis", cacheName, id), e);
+            count(cacheName, "error");
+            return null;
+        }
+    }
+
+    /**
+     * Stores a session that has just been read from Postgres, unless a newer version is stored
+     */
+    public void put(String cacheName, String id, long version, Serializable session) {
+        try {
+            Long written = redisTemplate.execute(VERSIONED_PUT, Collections.singletonList(getKey(cacheName, id)),
+                    toBytes(String.valueOf(version)), serialize(session), toBytes(String.valueOf(ttlSeconds)));
+            if (written == null || written == 0) {
+                count(cacheName, "stale_write");
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Unable to write %s %s to Redis", cacheName, id), e);
+            count(cacheName, "error");
+        }
+    }
+
+    /**
+     * Stores a session that has just been saved, and evicts it from the local cache of other nodes
+     */
+    public void update(String cacheName, String id, long version, Serializable session) {
+        put(cacheName, id, version, session);
+        publishInvalidation(cacheName, id);
+    }
+
+    /**
+     * Removes a deleted session, and evicts it from the local cache of other nodes
+     */
+    public void delete(String cacheName, String id) {
+        try {
+            redisTemplate.delete(getKey(cacheName, id));
+        } catch (Exception e) {
+            log.warn(String.format("Unable to delete %s %s from Redis", cacheName, id), e);
+            count(cacheName, "error");
+        }
+        publishInvalidation(cacheName, id);
+    }
+
+    /**
+     * Removes purged sessions, and clears the local cache of other nodes
+     */
+    public void deleteAll(String cacheName, Collection<String> ids) {
+        List<String> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(getKey(cacheName, id));
+        }
+        try {
+            for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE) {
+                redisTemplate.delete(keys.subList(i, Math.min(i + DELETE_BATCH_SIZE, keys.size())));
+            }
+        } catch (Exception e) {
+            // the remaining sessions expire with their TTL
+            log.warn(String.format("Unable to delete %d purged %s from Redis", keys.size(), cacheName), e);
+            count(cacheName, "error");
+        }
+        publishInvalidation(cacheName, ALL_SESSIONS);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(" ", 3);
+        if (parts.length != 3 || parts[0].equals(nodeId)) {
+            return;
+        }
+        Cache cache = cacheManager.getCache(parts[1]);
+        if (cache == null) {
+            return;
+        }
+        if (ALL_SESSIONS.equals(parts[2])) {
+            cache.clear();
+        } else {
+            cache.evict(parts[2]);
+        }
+    }
+
+    private void publishInvalidation(String cacheName, String id) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATION_CHANNEL,
+                    toBytes(String.join(" ", nodeId, cacheName, id)));
+        } catch (Exception e) {
+            log.warn(String.format("Unable to publish invalidation of %s %s", cacheName, id), e);
+            count(cacheName, "error");
+        }
+    }
+
+    byte[] serialize(Serializable session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new SnapshotOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeObject(session);
+        }
+        return bytes.toByteArray();
+    }
+
+    Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (SnapshotInputStream in = new SnapshotInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Looks up a form definition in the local cache, where it is cached by the FormDefinitionService
+     * under its app, xmlns and version, and falls back to Postgres for the first session of a form
+     * on this node.
+     */
+    private SerializableFormDefinition resolveFormDefinition(FormDefinitionRef ref) {
+        Cache cache = cacheManager.getCache("form_definition");
+        return cache.get(Arrays.asList(ref.appId, ref.formXmlns, ref.formVersion),
+                () -> formDefinitionRepo.findById(ref.id).orElseThrow(
+                        () -> new IOException("Form definition " + ref.id + " no longer exists")));
+    }
+
+    private String getKey(String cacheName, String id) {
+        return KEY_PREFIX + cacheName + ":" + id;
+    }
+
+    private static byte[] toBytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void count(String cacheName, String result) {
+        if (datadogStatsDClient != null) {
+            datadogStatsDClient.increment(Constants.SESSION_CACHE_L2,
+                    "cache:" + cacheName, "result:" + result);
+        }
+    }
+
+    private static final class FormDefinitionRef implements Serializable {
+        private final Long id;
+        private final String appId;
+        private final String formXmlns;
+        private final String formVersion;
+
+        private FormDefinitionRef(SerializableFormDefinition formDefinition) {
+            this.id = formDefinition.getId();
+            this.appId = formDefinition.getAppId();
+            this.formXmlns = formDefinition.getFormXmlns();
+            this.formVersion = formDefinition.getFormVersion();
+        }
+    }
+
+    private static final class SnapshotOutputStream extends ObjectOutputStream {
+        private SnapshotOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (obj instanceof SerializableFormDefinition) {
+                return new FormDefinitionRef((SerializableFormDefinition)obj);
+            }
+            return obj;
+        }
+    }
+
+    private final class SnapshotInputStream extends ConfigurableObjectInputStream {
+        private SnapshotInputStream(InputStream in) throws IOException {
+            super(in, RedisSessionCache.class.getClassLoader());
+            setObjectInputFilter(SNAPSHOT_FILTER);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (obj instanceof FormDefinitionRef) {
+                return resolveFormDefinition((FormDefinitionRef)obj);
+            }
+            return obj;
+        }
+    }
+}
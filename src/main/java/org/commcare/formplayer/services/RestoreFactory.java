@@ -17,6 +17,7 @@ import org.commcare.formplayer.api.process.FormRecordProcessorHelper;
 import org.commcare.formplayer.auth.HqAuth;
 import org.commcare.formplayer.beans.AuthenticatedRequestBean;
 import org.commcare.formplayer.beans.auth.FeatureFlagChecker;
+import org.commcare.formplayer.database.models.CasePurgeComponentTable;
 import org.commcare.formplayer.engine.FormplayerTransactionParserFactory;
 import org.commcare.formplayer.exceptions.AsyncRetryException;
 import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
@@ -25,11 +26,13 @@ import org.commcare.formplayer.sandbox.JdbcSqlStorageIterator;
 import org.commcare.formplayer.sandbox.UserSqlSandbox;
 import org.commcare.formplayer.sqlitedb.SQLiteDB;
 import org.commcare.formplayer.sqlitedb.UserDB;
+import org.commcare.formplayer.util.BoundedPipeInputStream;
 import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.util.FormplayerSentry;
 import org.commcare.formplayer.util.RequestUtils;
 import org.commcare.formplayer.util.SimpleTimer;
 import org.commcare.formplayer.util.UserUtils;
+import org.commcare.formplayer.web.client.StreamingResponse;
 import org.commcare.formplayer.web.client.WebClient;
 import org.commcare.modern.database.TableBuilder;
 import org.javarosa.core.api.ClassNameHasher;
@@ -68,6 +71,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -94,6 +98,14 @@ public class RestoreFactory {
     @Value("${commcarehq.restore.url.case}")
     private String caseRestoreUrl;
 
+    // parse restores while they download instead of buffering the whole response first
+    @Value("${formplayer.restore.streaming:false}")
+    private boolean streamingRestore;
+
+    // how far a streaming restore download may get ahead of the parser
+    @Value("${formplayer.restore.streamBufferBytes:16777216}")
+    private long streamingRestoreBufferBytes;
+
     private String asUsername;
     private String username;
     private String scrubbedUsername;
@@ -129,6 +141,12 @@ public class RestoreFactory {
     @Autowired
     private WebClient webClient;
 
+    @Autowired
+    private ProactiveSyncService proactiveSyncService;
+
+    @Autowired
+    private SyncCoalescer syncCoalescer;
+
     @Autowired
     private RedisTemplate redisTemplateLong;
 
@@ -159,6 +177,8 @@ public class RestoreFactory {
     private String caseId;
     private boolean configured = false;
     private boolean hasLocationChanged = false;
+    // cases changed by the last restore, or null if it was not an incremental restore
+    private List<String> restoredCaseIds;
 
     public void configure(String domain, String caseId, HqAuth auth) {
         this.setUsername(UserUtils.getRestoreAsCaseIdUsername(caseId));
@@ -206,8 +226,36 @@ public class RestoreFactory {
         return performTimedSync(shouldPurge, isResponseTo412, new HashMap<>());
     }
 
+    /**
+     * Syncs the sandbox unless another request is already syncing it from the same sync token, or
+     * synced it while this request waited for the user lock, in which case that sync is reused.
+     */
     public UserSqlSandbox performTimedSync(boolean shouldPurge, boolean isResponseTo412, Map<String, String> extraTags)
             throws SyncRestoreException {
+        if (isResponseTo412) {
+            // the sandbox has just been wiped so this has to sync regardless
+            return doPerformTimedSync(shouldPurge, true, extraTags);
+        }
+        UserSqlSandbox[] sandbox = new UserSqlSandbox[1];
+        boolean synced = syncCoalescer.sync(
+                SyncCoalescer.sandboxKey(domain, asUsername == null ? username : username + "_" + asUsername),
+                getSyncToken(),
+                RequestUtils.getObservedSyncToken(),
+                shouldPurge,
+                RequestUtils.getLockWaitStart(),
+                () -> {
+                    sandbox[0] = doPerformTimedSync(shouldPurge, false, extraTags);
+                    return getSyncToken();
+                });
+        if (!synced) {
+            hasRestored = true;
+            return getSqlSandbox();
+        }
+        return sandbox[0];
+    }
+
+    private UserSqlSandbox doPerformTimedSync(boolean shouldPurge, boolean isResponseTo412,
+            Map<String, String> extraTags) throws SyncRestoreException {
         // create extras to send to category timing helper
         extraTags.put(Constants.DOMAIN_TAG, domain);
 
@@ -230,7 +278,11 @@ public class RestoreFactory {
             try {
                 SimpleTimer purgeTimer = new SimpleTimer();
                 purgeTimer.start();
-                FormRecordProcessorHelper.purgeCases(sandbox);
+                if (hasLocationChanged || restoredCaseIds == null) {
+                    FormRecordProcessorHelper.purgeCases(sandbox);
+                } else {
+                    FormRecordProcessorHelper.purgeCases(sandbox, restoredCaseIds);
+                }
                 purgeTimer.end();
                 categoryTimingHelper.recordCategoryTiming(
                         purgeTimer,
@@ -248,6 +300,9 @@ public class RestoreFactory {
                     throw new SyncRestoreException(e);
                 }
             }
+        } else if (sandbox != null && restoredCaseIds != null) {
+            // make sure the next incremental purge evaluates the cases changed by this restore
+            new CasePurgeComponentTable(sandbox).addPending(restoredCaseIds);
         }
         completeRestoreTimer.end();
         categoryTimingHelper.recordCategoryTiming(
@@ -272,10 +327,13 @@ public class RestoreFactory {
     public UserSqlSandbox getSandbox() throws SyncRestoreException {
         if (getSqlSandbox().getLoggedInUser() != null
                 && !isRestoreXmlExpired()) {
+            proactiveSyncService.recordActivity(this);
             return getSqlSandbox();
         } else {
             getSQLiteDB().createDatabaseFolder();
-            return performTimedSync(false, false);
+            UserSqlSandbox sandbox = performTimedSync(false, false);
+            proactiveSyncService.recordActivity(this);
+            return sandbox;
         }
     }
 
@@ -290,10 +348,12 @@ public class RestoreFactory {
         int maxRetries = 2;
         int counter = 0;
         while (true) {
+            InputStream restoreStream = null;
             try {
                 UserSqlSandbox sandbox = getSqlSandbox();
                 FormplayerTransactionParserFactory factory = new FormplayerTransactionParserFactory(sandbox, true);
-                InputStream restoreStream = getRestoreXml();
+                boolean isIncrementalRestore = getSyncToken() != null;
+                restoreStream = getRestoreXml();
                 String oldSandboxLocations = "";
                 if (!shouldPurge) {
                     oldSandboxLocations = UserUtils.getUserLocationsByDomain(domain, sandbox);
@@ -307,6 +367,7 @@ public class RestoreFactory {
                 hasRestored = true;
                 commit();
                 setAutoCommit(true);
+                restoredCaseIds = isIncrementalRestore ? factory.getCreatedAndUpdatedCases() : null;
 
                 parseTimer.end();
                 categoryTimingHelper.recordCategoryTiming(
@@ -341,6 +402,9 @@ public class RestoreFactory {
                 }
             } catch (UnfullfilledRequirementsException | XmlPullParserException | IOException e) {
                 throw new SyncRestoreException(e);
+            } finally {
+                // cancels a streaming download that the parser did not read to the end
+                IOUtils.closeQuietly(restoreStream);
             }
         }
     }
@@ -425,33 +489,39 @@ public class RestoreFactory {
      * @return boolean - true if restore has expired, false otherwise
      */
     public boolean isRestoreXmlExpired() {
-        String freq = getSyncFreqency();
         Long lastSyncTime = getLastSyncTime();
-        boolean isAggressive = useAggressiveSyncTiming();
-
         if (lastSyncTime == null) {
-            return isAggressive;
+            return useAggressiveSyncTiming();
         }
+        Long syncWindow = getSyncWindow();
+        if (syncWindow == null) {
+            return false;
+        }
+        return System.currentTimeMillis() - lastSyncTime > syncWindow;
+    }
 
-        Long delta = System.currentTimeMillis() - lastSyncTime;
-
-        if (isAggressive) {
-            return delta > FIVE_MINUTES_IN_MILLISECONDS;
+    /**
+     * @return how long after a sync the restore expires, or null if it does not expire
+     */
+    public Long getSyncWindow() {
+        if (useAggressiveSyncTiming()) {
+            return FIVE_MINUTES_IN_MILLISECONDS;
         }
 
+        String freq = getSyncFreqency();
         if (freq == null) {
-            return false;
+            return null;
         }
 
         switch (freq) {
             case FREQ_DAILY:
-                return delta > ONE_DAY_IN_MILLISECONDS;
+                return ONE_DAY_IN_MILLISECONDS;
             case FREQ_WEEKLY:
-                return delta > ONE_WEEK_IN_MILLISECONDS;
+                return ONE_WEEK_IN_MILLISECONDS;
             case FREQ_NEVER:
-                return false;
+                return null;
             default:
-                return false;
+                return null;
         }
     }
 
@@ -556,6 +626,9 @@ public class RestoreFactory {
     }
 
     private InputStream getRestoreXmlHelper(URI restoreUrl) {
+        if (streamingRestore) {
+            return getStreamingRestoreXml(restoreUrl);
+        }
         ResponseEntity<org.springframework.core.io.Resource> response;
         String status = "error";
         downloadRestoreTimer = categoryTimingHelper.newTimer(Constants.TimingCategories.DOWNLOAD_RESTORE, domain);
@@ -568,13 +641,7 @@ public class RestoreFactory {
             status = e.getStatusCode().toString();
             throw e;
         } finally {
-            downloadRestoreTimer.end();
-            datadogStatsDClient.increment(
-                    Constants.DATADOG_RESTORE_COUNT,
-                    "domain:" + domain,
-                    "duration:" + downloadRestoreTimer.getDurationBucket(),
-                    "status:" + status
-            );
+            recordRestoreDownload(status);
         }
 
         // Handle Async restore
@@ -598,6 +665,62 @@ public class RestoreFactory {
         return stream;
     }
 
+    /**
+     * Returns the restore body while it is still downloading so that parsing overlaps with the
+     * download. The download runs on a background thread and is held back once it gets
+     * streamingRestoreBufferBytes ahead of the parser. The download timer and restore count are
+     * recorded once the parser reaches the end of the response.
+     */
+    private InputStream getStreamingRestoreXml(URI restoreUrl) {
+        downloadRestoreTimer = categoryTimingHelper.newTimer(Constants.TimingCategories.DOWNLOAD_RESTORE, domain);
+        downloadRestoreTimer.start();
+        responseMetaDataTracker.setAttemptRestore(true);
+        StreamingResponse response;
+        ResponseEntity<Void> head;
+        try {
+            response = webClient.getStreaming(restoreUrl, getRequestHeaders(restoreUrl),
+                    streamingRestoreBufferBytes);
+            head = response.getHead();
+        } catch (HttpClientErrorException e) {
+            recordRestoreDownload(e.getStatusCode().toString());
+            throw e;
+        } catch (RuntimeException e) {
+            recordRestoreDownload("error");
+            throw e;
+        }
+        String status = head.getStatusCode().toString();
+
+        // Handle Async restore
+        if (head.getStatusCode().value() == 202) {
+            String responseBody;
+            try (InputStream body = response.getBody()) {
+                responseBody = IOUtils.toString(body, "utf-8");
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read async restore response", e);
+            } finally {
+                recordRestoreDownload(status);
+            }
+            handleAsyncRestoreResponse(responseBody, head.getHeaders());
+        }
+
+        BoundedPipeInputStream body = response.getBody();
+        body.setOnEndOfStream(() -> {
+            recordRestoreDownload(status);
+            downloadRestoreTimer.record();
+        });
+        return body;
+    }
+
+    private void recordRestoreDownload(String status) {
+        downloadRestoreTimer.end();
+        datadogStatsDClient.increment(
+                Constants.DATADOG_RESTORE_COUNT,
+                "domain:" + domain,
+                "duration:" + downloadRestoreTimer.getDurationBucket(),
+                "status:" + status
+        );
+    }
+
     public String getSyncToken() {
         JdbcSqlStorageIterator<User> iterator = getSqlSandbox().getUserStorage().iterate();
         try {
@@ -7,15 +7,23 @@ import net.javacrumbs.shedlock.spring.annotation.SchedulerLock;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.sqlitedb.CaseSearchDiskBudget;
+import org.commcare.formplayer.sqlitedb.SQLiteConnectionPool;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
+import org.commcare.formplayer.sqlitedb.StatementCachingConnection;
 import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.utils.CheckedFunction;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
 
 @Component
 public class ScheduledTasks {
@@ -35,6 +43,19 @@ public class ScheduledTasks {
     @Autowired
     private MediaMetaDataService mediaMetaDataService;
 
+    @Autowired
+    private ProactiveSyncService proactiveSyncService;
+
+    @Autowired(required = false)
+    private FormSessionWriteBehind formSessionWriteBehind;
+
+    // disk space the case search DBs of all users on this node may use
+    @Value("${formplayer.caseSearch.diskBudgetBytes:10737418240}")
+    private long caseSearchDiskBudgetBytes;
+
+    // last reported value of each cumulative counter, so that only the delta is sent
+    private final Map<String, Long> reportedCounters = new HashMap<>();
+
     // the default "0 0 0 * * *" schedule means midnight each night
     @Scheduled(cron = "${commcare.formplayer.scheduledTasks.purge.cron:0 0 0 * * *}")
     @SchedulerLock(name = "purge",
@@ -47,6 +68,7 @@ public class ScheduledTasks {
                 virtualDataInstanceService::purge);
         doTimedPurge("tempDb", Instant.now().minus(5, ChronoUnit.MINUTES), SqlSandboxUtils::purgeTempDb);
         doTimedPurge("media", Instant.now().minus(7, ChronoUnit.DAYS), mediaMetaDataService::purge);
+        doTimedPurge("sharedApps", Instant.now().minus(30, ChronoUnit.DAYS), SharedApplicationStore::purge);
         datadogStatsDClient.increment(
                 String.format("%s.%s", Constants.SCHEDULED_TASKS_PURGE, "timesRun")
         );
@@ -68,4 +90,94 @@ public class ScheduledTasks {
                 elapsed
         );
     }
+
+    /**
+     * Closes idle pooled SQLite connections and reports pool and statement cache counters. This
+     * runs on every node since the pool is local to the process, so it does not take a scheduler
+     * lock.
+     */
+    @Scheduled(fixedDelayString = "${sqlite.connectionPool.evictionInterval:30000}")
+    public void evictIdleSqliteConnections() {
+        SQLiteConnectionPool pool = SQLiteConnectionPool.getInstance();
+        int evicted = pool.evictIdle();
+        if (evicted > 0) {
+            log.debug(String.format("Closed %d idle SQLite connections", evicted));
+        }
+
+        reportCounter(Constants.SQLITE_CONNECTION_POOL, "hits", pool.getHitCount());
+        reportCounter(Constants.SQLITE_CONNECTION_POOL, "misses", pool.getMissCount());
+        reportCounter(Constants.SQLITE_CONNECTION_POOL, "evictions", pool.getEvictionCount());
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.SQLITE_CONNECTION_POOL, "idle"), pool.size());
+
+        reportCounter(Constants.SQLITE_STATEMENT_CACHE, "hits", StatementCachingConnection.getHitCount());
+        reportCounter(Constants.SQLITE_STATEMENT_CACHE, "misses", StatementCachingConnection.getMissCount());
+        reportCounter(Constants.SQLITE_STATEMENT_CACHE, "evictions",
+                StatementCachingConnection.getEvictionCount());
+    }
+
+    private void reportCounter(String prefix, String name, long total) {
+        String metric = String.format("%s.%s", prefix, name);
+        long delta = total - reportedCounters.getOrDefault(metric, 0L);
+        datadogStatsDClient.count(metric, delta);
+        reportedCounters.put(metric, total);
+    }
+
+    /**
+     * Queues background syncs for recently active users whose restore is about to expire. Active
+     * users are tracked per node so this runs on every node without a scheduler lock.
+     */
+    @Scheduled(fixedDelayString = "${formplayer.proactiveSync.interval:60000}")
+    public void scheduleProactiveSyncs() {
+        proactiveSyncService.scheduleSyncs();
+    }
+
+    /**
+     * Deletes the least recently used case search DBs once they use more than the disk budget,
+     * and reports their disk usage. The DBs are local to the node so this runs on every node
+     * without a scheduler lock.
+     */
+    @Scheduled(fixedDelayString = "${formplayer.caseSearch.diskBudgetInterval:60000}")
+    public void enforceCaseSearchDiskBudget() {
+        // the same idle time after which the nightly purge deletes them
+        CaseSearchDiskBudget.Usage usage = CaseSearchDiskBudget.enforce(caseSearchDiskBudgetBytes,
+                Duration.ofMinutes(5).toMillis());
+        if (usage.getDeleted() > 0) {
+            log.info(String.format("Deleted %d case search DBs over the disk budget", usage.getDeleted()));
+            datadogStatsDClient.count(
+                    String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "evicted_databases"),
+                    usage.getDeleted(), "reason:disk_budget");
+        }
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "bytes"), usage.getTotalBytes());
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.CASE_SEARCH_STORAGE, "databases"), usage.getDatabases());
+    }
+
+    /**
+     * Checkpoints idle pooled connections of WAL-mode SQLite profiles so their WAL files do not
+     * grow while the connection stays open.
+     */
+    @Scheduled(fixedDelayString = "${sqlite.walCheckpointInterval:60000}")
+    public void checkpointSqliteWal() {
+        int checkpointed = SQLiteConnectionPool.getInstance().checkpointIdle();
+        if (checkpointed > 0) {
+            log.debug(String.format("Checkpointed %d SQLite databases", checkpointed));
+        }
+    }
+
+    /**
+     * Writes the form sessions whose saves were deferred on this node since the last flush, so
+     * this runs on every node without a scheduler lock.
+     */
+    @Scheduled(fixedDelayString = "${formplayer.formSession.writeBehind.flushInterval:200}")
+    public void flushFormSessions() {
+        if (formSessionWriteBehind == null) {
+            return;
+        }
+        formSessionWriteBehind.flushAll();
+        datadogStatsDClient.gauge(
+                String.format("%s.%s", Constants.FORM_SESSION_WRITE_BEHIND, "pending"),
+                formSessionWriteBehind.getPendingCount());
+    }
 }
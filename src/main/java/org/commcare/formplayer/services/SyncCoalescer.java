@@ -0,0 +1,212 @@
+package org.commcare.formplayer.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.exceptions.SyncRestoreException;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.modern.database.TableBuilder;
+import org.javarosa.core.model.condition.RequestAbandonedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Coalesces syncs of the same user sandbox so that concurrent or queued requests don't each
+ * download and parse the same restore.
+ *
+ * A sync is skipped and the result of another sync is reused when either
+ * - a sync from the same sync token was in flight when the caller began waiting, or
+ * - a sync of the sandbox started after the caller began waiting, e.g. for the user lock, and
+ * the sandbox is still at the sync token that sync left it at.
+ *
+ * Callers that wait for the user lock read their sandbox's sync token only once they hold the
+ * lock, by when a sync that was in flight has moved it on. LockAspect therefore observes the
+ * sandbox before blocking on the lock (see observe), and the token observed then is what the
+ * caller would have synced from.
+ *
+ * A sync that purges is only replaced by another sync that purged.
+ */
+@Component
+public class SyncCoalescer {
+
+    private final Log log = LogFactory.getLog(SyncCoalescer.class);
+
+    /**
+     * Syncs the sandbox and returns its new sync token
+     */
+    @FunctionalInterface
+    public interface Sync {
+        String run() throws SyncRestoreException;
+    }
+
+    // how long to wait for an in flight sync before syncing anyway
+    @Value("${formplayer.sync.coalesce.joinTimeout:120000}")
+    private long joinTimeoutMillis;
+
+    // how long a completed sync is remembered for reuse by requests that waited on it
+    @Value("${formplayer.sync.coalesce.retention:600000}")
+    private long retentionMillis;
+
+    @Autowired
+    private StatsDClient datadogStatsDClient;
+
+    // the in flight or last completed sync of each sandbox
+    private Cache<String, Flight> flights;
+
+    @PostConstruct
+    public void init() {
+        flights = Caffeine.newBuilder()
+                .expireAfterWrite(retentionMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @param domain         domain of the sandbox
+     * @param usernameDetail username of the sandbox, as used for the user lock
+     * @return key of the sandbox, the same for the lock and the sync of a request
+     */
+    public static String sandboxKey(String domain, String usernameDetail) {
+        return domain + "/" + TableBuilder.scrubName(usernameDetail);
+    }
+
+    /**
+     * @return the sync token a sync of the sandbox is in flight from, or the token the last sync
+     * left it at, or null if no sync of the sandbox is known
+     */
+    public String observe(String sandboxKey) {
+        Flight flight = flights.getIfPresent(sandboxKey);
+        if (flight == null) {
+            return null;
+        }
+        if (!flight.isDone()) {
+            return flight.startToken;
+        }
+        return flight.succeeded ? flight.endToken : null;
+    }
+
+    /**
+     * @param sandboxKey    key of the sandbox to sync, see sandboxKey
+     * @param syncToken     sync token of the sandbox before syncing
+     * @param observedToken token observed with observe when the caller began waiting, or null
+     * @param shouldPurge   whether the sync purges cases
+     * @param waitingSince  when the caller began waiting to sync, in epoch millis
+     * @return true if the sync was run, false if the result of another sync was reused
+     */
+    public boolean sync(String sandboxKey, String syncToken, String observedToken, boolean shouldPurge,
+            long waitingSince, Sync sync) throws SyncRestoreException {
+        while (true) {
+            Flight ours = new Flight(syncToken, shouldPurge);
+            Flight flight = flights.asMap().compute(sandboxKey, (key, existing) -> {
+                if (existing != null && (!existing.isDone() || existing.covers(syncToken, observedToken,
+                        shouldPurge, waitingSince))) {
+                    return existing;
+                }
+                return ours;
+            });
+
+            if (flight == ours) {
+                return lead(sandboxKey, ours, sync);
+            }
+
+            if (!flight.isDone()) {
+                flight.await(joinTimeoutMillis);
+            }
+            if (flight.isDone() && flight.covers(syncToken, observedToken, shouldPurge, waitingSince)) {
+                boolean joined = flight.startToken.equals(
+                        Objects.toString(observedToken != null ? observedToken : syncToken, ""));
+                datadogStatsDClient.increment(Constants.SYNC_COALESCED,
+                        "reason:" + (joined ? "in_flight" : "completed"));
+                return false;
+            }
+            if (!flight.isDone()) {
+                log.info(String.format("Timed out waiting for in flight sync of %s", sandboxKey));
+                sync.run();
+                return true;
+            }
+            // the other sync failed or was not equivalent, so try again
+        }
+    }
+
+    private boolean lead(String sandboxKey, Flight flight, Sync sync) throws SyncRestoreException {
+        try {
+            flight.succeed(sync.run());
+            return true;
+        } finally {
+            if (!flight.isDone()) {
+                flights.asMap().remove(sandboxKey, flight);
+                flight.fail();
+            }
+        }
+    }
+
+    private static class Flight {
+        // null tokens (first restore of a sandbox) are held as the empty string
+        private final String startToken;
+        private final boolean purged;
+        private final long startedAt = System.currentTimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean succeeded = false;
+        private volatile String endToken;
+        private volatile long completedAt;
+
+        Flight(String startToken, boolean purged) {
+            this.startToken = Objects.toString(startToken, "");
+            this.purged = purged;
+        }
+
+        /**
+         * @return true if this sync makes a sync from the given token unnecessary
+         */
+        boolean covers(String syncToken, String observedToken, boolean shouldPurge, long waitingSince) {
+            if (shouldPurge && !purged) {
+                return false;
+            }
+            String token = Objects.toString(syncToken, "");
+            if (!isDone()) {
+                return startToken.equals(token);
+            }
+            if (!succeeded) {
+                return false;
+            }
+            // the caller was already waiting for this sync, from the token it would have synced from
+            String from = observedToken != null ? observedToken : token;
+            boolean joined = startToken.equals(from) && waitingSince < completedAt
+                    && (token.equals(startToken) || token.equals(endToken));
+            // or the sync started after the caller began waiting and nothing has synced since
+            return joined || (startedAt > waitingSince && token.equals(endToken));
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        void succeed(String endToken) {
+            this.endToken = Objects.toString(endToken, "");
+            completedAt = System.currentTimeMillis();
+            succeeded = true;
+            done.countDown();
+        }
+
+        void fail() {
+            done.countDown();
+        }
+
+        void await(long timeoutMillis) {
+            try {
+                done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new RequestAbandonedException();
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import org.commcare.core.interfaces.UserSandbox;
 import org.commcare.formplayer.api.json.JsonActionUtils;
 import org.commcare.formplayer.beans.FormEntryNavigationResponseBean;
 import org.commcare.formplayer.beans.FormEntryResponseBean;
+import org.commcare.formplayer.objects.AnswerLogEntry;
 import org.commcare.formplayer.objects.FormVolatilityRecord;
 import org.commcare.formplayer.objects.FunctionHandler;
 import org.commcare.formplayer.objects.SerializableFormDefinition;
@@ -34,7 +35,9 @@ import org.commcare.util.engine.CommCareConfigEngine;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.actions.FormSendCalloutHandler;
+import org.javarosa.core.model.data.AnswerDataFactory;
 import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.UncastData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.utils.DateUtils;
@@ -58,8 +61,11 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import javax.annotation.Nullable;
 
@@ -94,6 +100,8 @@ public class FormSession {
     private boolean shouldSkipFullFormValidation;
     private String windowWidth;
     private Text formTitleText;
+    // changes made to the instance by this request, in order
+    private final List<AnswerLogEntry> pendingAnswers = new ArrayList<>();
 
     public FormSession(SerializableFormSession session,
             RestoreFactory restoreFactory,
@@ -120,20 +128,16 @@ public class FormSession {
         loadInstanceXml(this.formDef, session.getInstanceXml());
         this.formDef.setSendCalloutHandler(formSendCalloutHandler);
         setupJavaRosaObjects();
-
-        if (session.isOneQuestionPerScreen() || session.isInPromptMode()) {
-            FormIndex formIndex = JsonActionUtils.indexFromString(session.getCurrentIndex(),
-                    this.formDef);
-            formController.jumpToIndex(formIndex);
-            formEntryModel.setQuestionIndex(
-                    JsonActionUtils.indexFromString(session.getCurrentIndex(), formDef));
-        }
+        jumpToCurrentIndex();
         setupFunctionContext();
         SessionFrame sessionFrame = commCareSession != null ? commCareSession.getFrame() : null;
         if (sessionFrame == null) {
             sessionFrame = createSessionFrame(session.getSessionData());
         }
         initialize(false, storageFactory.getStorageManager(), sessionFrame, instanceFetcher, windowWidth);
+        if (session.hasUnreplayedAnswerLog()) {
+            replayAnswerLog(storageFactory.getStorageManager(), sessionFrame, instanceFetcher);
+        }
     }
 
     public FormSession(UserSqlSandbox sandbox,
@@ -191,6 +195,84 @@ public class FormSession {
         }
     }
 
+    private void jumpToCurrentIndex() {
+        if (session.isOneQuestionPerScreen() || session.isInPromptMode()) {
+            FormIndex formIndex = JsonActionUtils.indexFromString(session.getCurrentIndex(),
+                    this.formDef);
+            formController.jumpToIndex(formIndex);
+            formEntryModel.setQuestionIndex(
+                    JsonActionUtils.indexFromString(session.getCurrentIndex(), formDef));
+        }
+    }
+
+    /**
+     * Applies the changes logged since the instance snapshot that was loaded, in the order they
+     * were made. Answers are set without validation since they were valid when they were logged.
+     *
+     * An entry that can't be applied, or an answer that doesn't leave its question with the logged
+     * value, means the log no longer matches the form. The session then falls back to its snapshot
+     * rather than carry on with an instance the user never saw.
+     */
+    @Trace
+    private void replayAnswerLog(StorageManager storageManager, SessionFrame sessionFrame,
+            RemoteInstanceFetcher instanceFetcher)
+            throws IOException, RemoteInstanceFetcher.RemoteInstanceException {
+        for (AnswerLogEntry entry : session.getAnswerLog()) {
+            boolean replayed;
+            try {
+                replayed = replayAnswerLogEntry(entry);
+            } catch (RuntimeException e) {
+                log.error(String.format("Error replaying %s on form session %s", entry, session.getId()), e);
+                replayed = false;
+            }
+            if (!replayed) {
+                log.error(String.format("Unable to replay %s on form session %s, "
+                        + "falling back to its instance snapshot", entry, session.getId()));
+                String snapshotXml = session.getInstanceSnapshotXml();
+                loadInstanceXml(formDef, snapshotXml);
+                initialize(false, storageManager, sessionFrame, instanceFetcher, windowWidth);
+                // drops the log, so the session is saved with the snapshot it was restored to
+                session.setInstanceXml(snapshotXml);
+                jumpToCurrentIndex();
+                return;
+            }
+        }
+        jumpToCurrentIndex();
+        session.setCurrentInstanceXml(getInstanceXml());
+    }
+
+    /**
+     * @return false if the instance doesn't end up with the change the entry logged
+     */
+    private boolean replayAnswerLogEntry(AnswerLogEntry entry) {
+        FormIndex formIndex = JsonActionUtils.indexFromString(entry.getFormIndex(), formDef);
+        switch (entry.getType()) {
+            case ANSWER:
+                FormEntryPrompt prompt = formEntryModel.getQuestionPrompt(formIndex);
+                IAnswerData value = entry.getValue() == null ? null : AnswerDataFactory.template(
+                        prompt.getControlType(), prompt.getDataType()).cast(
+                        new UncastData(entry.getValue()));
+                int status = formEntryController.answerQuestion(formIndex, value);
+                // answers that were rejected are logged with the value the question kept
+                return status == FormEntryController.ANSWER_OK
+                        || Objects.equals(entry.getValue(), getUncastValue(formIndex));
+            case NEW_REPEAT:
+                formEntryController.jumpToIndex(formIndex);
+                formEntryController.descendIntoNewRepeat();
+                return true;
+            case DELETE_REPEAT:
+                formEntryController.deleteRepeat(formIndex);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private String getUncastValue(FormIndex formIndex) {
+        IAnswerData value = formDef.getInstance().resolveReference(formIndex.getReference()).getValue();
+        return value == null ? null : value.uncast().getString();
+    }
+
     public void updateFormTitle() {
         session.setTitle(getLocalizedFormTitle());
     }
@@ -455,10 +537,43 @@ public class FormSession {
     }
 
     public SerializableFormSession serialize() throws IOException {
-        session.setInstanceXml(getInstanceXml());
+        return serialize(0);
+    }
+
+    /**
+     * Updates the session with the changes made to the instance by this request. The changes are
+     * appended to the session's answer log, and the log is folded into a new snapshot of the full
+     * instance once it holds answerLogCheckpointInterval changes. Changes made without logging an
+     * answer are saved as a new snapshot.
+     *
+     * @param answerLogCheckpointInterval changes logged between snapshots, 0 to snapshot the
+     *                                    instance every time
+     */
+    public SerializableFormSession serialize(int answerLogCheckpointInterval) throws IOException {
+        String instanceXml = getInstanceXml();
+        if (answerLogCheckpointInterval <= 0 || session.getInstanceXml() == null
+                || session.getAnswerLog().size() + pendingAnswers.size() >= answerLogCheckpointInterval) {
+            session.setInstanceXml(instanceXml);
+        } else if (!pendingAnswers.isEmpty()) {
+            session.appendAnswerLog(pendingAnswers, instanceXml);
+        } else if (!instanceXml.equals(session.getInstanceXml())) {
+            // changed by something the log can't replay, e.g. a setvalue on navigation
+            session.setInstanceXml(instanceXml);
+        }
+        pendingAnswers.clear();
         return session;
     }
 
+    /**
+     * Folds the answer log of the session into a new instance snapshot
+     */
+    public void checkpoint() throws IOException {
+        if (!session.getAnswerLog().isEmpty() || !pendingAnswers.isEmpty()) {
+            session.setInstanceXml(getInstanceXml());
+            pendingAnswers.clear();
+        }
+    }
+
     public String getPostUrl() {
         return session.getPostUrl();
     }
@@ -596,6 +711,7 @@ public class FormSession {
                 session.getCurrentIndex(),
                 false,
                 true);
+        recordAnswer(answerIndex);
 
         FormEntryResponseBean response = new ObjectMapper().readValue(jsonObject.toString(),
                 FormEntryResponseBean.class);
@@ -606,6 +722,33 @@ public class FormSession {
         return getNextFormNavigation();
     }
 
+    /**
+     * Logs the value a question has after it was answered, for questions answered other than
+     * through answerQuestionToJson, e.g. when validating answers
+     */
+    public void recordAnswer(String answerIndex) {
+        if (JsonActionUtils.getQuestionType(formEntryModel, answerIndex, formDef)
+                != FormEntryController.EVENT_QUESTION) {
+            return;
+        }
+        FormIndex formIndex = JsonActionUtils.indexFromString(answerIndex, formDef);
+        pendingAnswers.add(AnswerLogEntry.answer(answerIndex, getUncastValue(formIndex)));
+    }
+
+    public JSONObject newRepeat(String repeatIndex) {
+        JSONObject response = JsonActionUtils.descendRepeatToJson(formEntryController, formEntryModel,
+                repeatIndex);
+        pendingAnswers.add(AnswerLogEntry.newRepeat(repeatIndex));
+        return response;
+    }
+
+    public JSONObject deleteRepeat(String repeatIndex) {
+        JSONObject response = JsonActionUtils.deleteRepeatToJson(formEntryController, formEntryModel,
+                repeatIndex);
+        pendingAnswers.add(AnswerLogEntry.deleteRepeat(repeatIndex));
+        return response;
+    }
+
     public FormEntryNavigationResponseBean getFormNavigation() throws IOException {
         JSONObject resp = JsonActionUtils.getCurrentJson(formEntryController, formEntryModel,
                 session.getCurrentIndex());
@@ -394,7 +394,10 @@ public class MenuSession implements HereFunctionHandlerListener {
             FormplayerStorageFactory storageFactory,
             FormDefinitionService formDefinitionService) throws Exception {
         String formXmlns = sessionWrapper.getForm();
-        FormDef formDef = this.engine.loadFormByXmlns(formXmlns);
+        FormDef formDef = formDefinitionService.leaseNewFormDef(getAppId(), formXmlns, getAppVersion());
+        if (formDef == null) {
+            formDef = this.engine.loadFormByXmlns(formXmlns);
+        }
         SerializableFormDefinition serializableFormDefinition = formDefinitionService.getOrCreateFormDefinition(
                 this.getAppId(),
                 formXmlns,
@@ -2,6 +2,6 @@ package org.commcare.formplayer.sqlitedb;
 
 public class ApplicationDB extends SQLiteDB {
     public ApplicationDB(String domain, String username, String asUsername, String appId) {
-        super(new ApplicationDBPath(domain, username, asUsername, appId));
+        super(new ApplicationDBPath(domain, username, asUsername, appId), SQLiteProfile.APPLICATION);
     }
 }
@@ -5,5 +5,6 @@ class CaseSearchDB(domain: String, username: String, asUserName: String?) : SQLi
         domain,
         username,
         asUserName
-    )
+    ),
+    SQLiteProfile.CASE_SEARCH
 )
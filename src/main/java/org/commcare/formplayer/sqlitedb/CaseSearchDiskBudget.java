@@ -0,0 +1,115 @@
+package org.commcare.formplayer.sqlitedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.application.SQLiteProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the case search DBs of all users on this node within a disk budget by deleting the least
+ * recently modified DBs first. Within a DB the CaseSearchTableManifest keeps each user within
+ * their own budget, and every search writes to the DB, so the modification time of a DB is the
+ * last time its user searched.
+ *
+ * DBs modified within the last minIdleMillis are never deleted, so that searches in progress are
+ * left alone even if the budget can't be met.
+ */
+public class CaseSearchDiskBudget {
+
+    private static final Log log = LogFactory.getLog(CaseSearchDiskBudget.class);
+
+    private static final String[] SIDECAR_SUFFIXES = {"-wal", "-shm", "-journal"};
+
+    public static class Usage {
+        private final long totalBytes;
+        private final int databases;
+        private final int deleted;
+
+        Usage(long totalBytes, int databases, int deleted) {
+            this.totalBytes = totalBytes;
+            this.databases = databases;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return bytes used by the case search DBs that remain
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return number of case search DBs that remain
+         */
+        public int getDatabases() {
+            return databases;
+        }
+
+        /**
+         * @return number of case search DBs deleted to meet the budget
+         */
+        public int getDeleted() {
+            return deleted;
+        }
+    }
+
+    public static Usage enforce(long maxBytes, long minIdleMillis) {
+        File tempDataDir = new File(SQLiteProperties.getTempDataDir());
+        if (!tempDataDir.exists()) {
+            return new Usage(0, 0, 0);
+        }
+
+        // sizes and modification times by database file, including its WAL and journal files
+        Map<File, Long> sizes = new HashMap<>();
+        Map<File, Long> lastModified = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(tempDataDir.toPath())) {
+            paths.map(Path::toFile).filter(File::isFile).forEach(file -> {
+                File databaseFile = getDatabaseFile(file);
+                sizes.merge(databaseFile, file.length(), Long::sum);
+                lastModified.merge(databaseFile, file.lastModified(), Math::max);
+            });
+        } catch (IOException | RuntimeException e) {
+            log.warn(String.format("Unable to measure case search DBs in %s", tempDataDir), e);
+            return new Usage(0, 0, 0);
+        }
+
+        long totalBytes = sizes.values().stream().mapToLong(Long::longValue).sum();
+        List<File> databaseFiles = new ArrayList<>(sizes.keySet());
+        databaseFiles.sort(Comparator.comparing(lastModified::get));
+        long idleBefore = System.currentTimeMillis() - minIdleMillis;
+        int deleted = 0;
+        for (File databaseFile : databaseFiles) {
+            if (totalBytes <= maxBytes || lastModified.get(databaseFile) > idleBefore) {
+                break;
+            }
+            SQLiteConnectionPool.getInstance().evict(databaseFile);
+            databaseFile.delete();
+            for (String suffix : SIDECAR_SUFFIXES) {
+                new File(databaseFile.getPath() + suffix).delete();
+            }
+            totalBytes -= sizes.get(databaseFile);
+            deleted++;
+        }
+        return new Usage(totalBytes, databaseFiles.size() - deleted, deleted);
+    }
+
+    private static File getDatabaseFile(File file) {
+        String path = file.getPath();
+        for (String suffix : SIDECAR_SUFFIXES) {
+            if (path.endsWith(suffix)) {
+                return new File(path.substring(0, path.length() - suffix.length()));
+            }
+        }
+        return file;
+    }
+}
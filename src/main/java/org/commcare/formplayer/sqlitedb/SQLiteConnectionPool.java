@@ -0,0 +1,312 @@
+package org.commcare.formplayer.sqlitedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.application.SQLiteProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pool of idle SQLite connections keyed by database file.
+ *
+ * A connection is leased exclusively to one SQLiteDB between getConnection() and closeConnection(),
+ * after which it is parked here so the next request for the same sandbox can reuse the open file
+ * handle and warm page cache. Parked connections are evicted in LRU order once the pool is full and
+ * by the scheduled idle sweep.
+ *
+ * Parked connections of WAL-mode profiles are periodically checkpointed via checkpointIdle(), and
+ * are checkpointed before they are closed for being idle, so that a closed database has no
+ * committed data left in its -wal file when it is archived.
+ *
+ * Each parked connection remembers the identity of the file it was opened against. If the file has
+ * since been archived, deleted or recreated, the parked connection is discarded rather than handed
+ * out, so it can never read from or write to an unlinked database.
+ */
+public class SQLiteConnectionPool {
+
+    private static final SQLiteConnectionPool instance = new SQLiteConnectionPool();
+
+    private final Log log = LogFactory.getLog(SQLiteConnectionPool.class);
+
+    // access ordered so that iteration starts from the least recently used entry
+    private final LinkedHashMap<String, PooledConnection> idleConnections =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static SQLiteConnectionPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return a parked connection for the given database file, or null if none could be reused
+     */
+    Connection borrow(File databaseFile) {
+        String key = databaseFile.getPath();
+        PooledConnection pooled;
+        synchronized (this) {
+            pooled = idleConnections.remove(key);
+        }
+        if (pooled != null) {
+            Object fileIdentity = getFileIdentity(databaseFile);
+            if (fileIdentity != null && fileIdentity.equals(pooled.fileIdentity) && isUsable(pooled.connection)) {
+                hits.incrementAndGet();
+                return pooled.connection;
+            }
+            evictions.incrementAndGet();
+            closeQuietly(pooled.connection);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Parks a connection that is no longer in use. Any open transaction is rolled back, matching
+     * what closing the connection would have done.
+     */
+    void release(File databaseFile, SQLiteProfile profile, Connection connection) {
+        Object fileIdentity = getFileIdentity(databaseFile);
+        if (fileIdentity == null || !resetConnection(connection)) {
+            closeQuietly(connection);
+            return;
+        }
+        List<PooledConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            PooledConnection previous = idleConnections.put(databaseFile.getPath(),
+                    new PooledConnection(databaseFile.getPath(), connection, profile, fileIdentity,
+                            System.currentTimeMillis()));
+            if (previous != null) {
+                toClose.add(previous);
+            }
+            Iterator<PooledConnection> iterator = idleConnections.values().iterator();
+            while (idleConnections.size() > SQLiteProperties.getConnectionPoolMaxSize() && iterator.hasNext()) {
+                toClose.add(iterator.next());
+                iterator.remove();
+            }
+        }
+        closeIdle(toClose);
+    }
+
+    /**
+     * Closes the parked connection for the given database file, if any.
+     * Must be called before the file is deleted.
+     */
+    void evict(File databaseFile) {
+        PooledConnection pooled;
+        synchronized (this) {
+            pooled = idleConnections.remove(databaseFile.getPath());
+        }
+        if (pooled != null) {
+            evictions.incrementAndGet();
+            closeQuietly(pooled.connection);
+        }
+    }
+
+    /**
+     * Closes all parked connections for database files inside the given folder.
+     */
+    void evictFolder(File databaseFolder) {
+        String prefix = databaseFolder.getPath() + File.separator;
+        List<Connection> toClose = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, PooledConnection>> iterator = idleConnections.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, PooledConnection> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    toClose.add(entry.getValue().connection);
+                    iterator.remove();
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all connections that have been parked for longer than the configured idle timeout
+     *
+     * @return number of connections closed
+     */
+    public int evictIdle() {
+        long cutOff = System.currentTimeMillis() - SQLiteProperties.getConnectionPoolIdleTimeout();
+        List<PooledConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledConnection> iterator = idleConnections.values().iterator();
+            while (iterator.hasNext()) {
+                PooledConnection pooled = iterator.next();
+                if (pooled.releasedAt < cutOff) {
+                    toClose.add(pooled);
+                    iterator.remove();
+                }
+            }
+        }
+        closeIdle(toClose);
+        return toClose.size();
+    }
+
+    /**
+     * Checkpoints the write-ahead log of every parked connection whose profile uses WAL mode, so
+     * WAL files are truncated while the connections are kept open.
+     *
+     * @return number of databases checkpointed
+     */
+    public int checkpointIdle() {
+        List<String> keys = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, PooledConnection> entry : idleConnections.entrySet()) {
+                if (entry.getValue().profile.isWalMode()) {
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+        int checkpointed = 0;
+        for (String key : keys) {
+            // take the connection out of the pool while checkpointing so it is not leased concurrently
+            PooledConnection pooled;
+            synchronized (this) {
+                pooled = idleConnections.remove(key);
+            }
+            if (pooled == null) {
+                continue;
+            }
+            if (checkpoint(pooled)) {
+                checkpointed++;
+            }
+            PooledConnection displaced;
+            synchronized (this) {
+                displaced = idleConnections.putIfAbsent(key, pooled);
+            }
+            if (displaced != null) {
+                // a newer connection was parked in the meantime
+                closeIdle(List.of(pooled));
+            }
+        }
+        return checkpointed;
+    }
+
+    public synchronized int size() {
+        return idleConnections.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private boolean resetConnection(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.warn("Unable to reset SQLite connection before returning it to the pool", e);
+            return false;
+        }
+    }
+
+    private boolean isUsable(Connection connection) {
+        try {
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Identifies the file on disk independently of its path so that a connection held open on a
+     * file that was since replaced (archived and unarchived, or deleted and recreated) is detected.
+     */
+    private static Object getFileIdentity(File databaseFile) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(databaseFile.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return fileKey != null ? fileKey : attributes.creationTime();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean checkpoint(PooledConnection pooled) {
+        long start = System.nanoTime();
+        try (Statement statement = pooled.connection.createStatement()) {
+            statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            pooled.profile.recordLatency(SQLiteProfile.OPERATION_CHECKPOINT, System.nanoTime() - start);
+            return true;
+        } catch (SQLException e) {
+            log.warn("Unable to checkpoint SQLite database " + pooled.path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes connections that were parked, checkpointing WAL databases first so that their -wal
+     * file is empty once they are closed
+     */
+    private void closeIdle(List<PooledConnection> connections) {
+        List<Connection> toClose = new ArrayList<>();
+        for (PooledConnection pooled : connections) {
+            if (pooled.profile.isWalMode()) {
+                checkpoint(pooled);
+            }
+            toClose.add(pooled.connection);
+        }
+        closeAll(toClose);
+    }
+
+    private void closeAll(List<Connection> connections) {
+        for (Connection connection : connections) {
+            evictions.incrementAndGet();
+            closeQuietly(connection);
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Exception closing pooled SQLite connection", e);
+        }
+    }
+
+    private static class PooledConnection {
+        private final String path;
+        private final Connection connection;
+        private final SQLiteProfile profile;
+        private final Object fileIdentity;
+        private final long releasedAt;
+
+        PooledConnection(String path, Connection connection, SQLiteProfile profile, Object fileIdentity,
+                long releasedAt) {
+            this.path = path;
+            this.connection = connection;
+            this.profile = profile;
+            this.fileIdentity = fileIdentity;
+            this.releasedAt = releasedAt;
+        }
+    }
+}
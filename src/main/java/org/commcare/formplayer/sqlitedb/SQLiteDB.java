@@ -4,23 +4,37 @@ import datadog.trace.api.Trace;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sqlite.SQLiteConnection;
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
 import org.commcare.formplayer.sandbox.ArchivableFile;
 import org.commcare.formplayer.sandbox.SqlSandboxUtils;
 import org.commcare.formplayer.services.ConnectionHandler;
 
 import javax.sql.DataSource;
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
 
 public class SQLiteDB implements ConnectionHandler {
+    private static final String QUERY_ONLY_PRAGMA = "PRAGMA query_only = ON";
+
     private DBPath dbPath;
     private ArchivableFile dbArchivableFile;
     private final Log log = LogFactory.getLog(SQLiteDB.class);
     private Connection connection;
+    private SQLiteProfile profile;
+    // whether the schema marker has been seen outside of a transaction, see SchemaTemplates
+    private boolean schemaCurrent = false;
 
     public SQLiteDB(DBPath dbPath) {
+        this(dbPath, SQLiteProfile.USER);
+    }
+
+    public SQLiteDB(DBPath dbPath, String profileName) {
         this.dbPath = dbPath;
+        this.profile = SQLiteProfile.get(profileName);
         /*
            FormplayerStorageFactory and RestoreFactory are instantiated with sqLiteDB = SQLLiteDB(null)
            and sqLiteDB is only set to a real value during .configure;
@@ -37,8 +51,29 @@ public class SQLiteDB implements ConnectionHandler {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (!dbArchivableFile.exists()) {
+            SchemaTemplates.copyTemplate(profile.getName(), dbArchivableFile);
+        }
+        if (SQLiteProperties.isConnectionPoolEnabled()) {
+            Connection pooledConnection = SQLiteConnectionPool.getInstance().borrow(dbArchivableFile);
+            if (pooledConnection != null) {
+                return pooledConnection;
+            }
+        }
+        long start = System.nanoTime();
         DataSource dataSource = SqlSandboxUtils.getDataSource(dbArchivableFile);
-        return dataSource.getConnection();
+        Connection newConnection = dataSource.getConnection();
+        try {
+            SqlSandboxUtils.applyPragmas(newConnection, profile.getPragmaStatements());
+            if (isReadOnly()) {
+                SqlSandboxUtils.applyPragmas(newConnection, Collections.singletonList(QUERY_ONLY_PRAGMA));
+            }
+        } catch (RuntimeException e) {
+            newConnection.close();
+            throw e;
+        }
+        profile.recordLatency(SQLiteProfile.OPERATION_OPEN, System.nanoTime() - start);
+        return StatementCachingConnection.wrap(newConnection, SQLiteProperties.getStatementCacheSize());
     }
 
     private Boolean matchesConnection(SQLiteConnection sqLiteConnection) {
@@ -51,8 +86,8 @@ public class SQLiteDB implements ConnectionHandler {
             if (connection == null || connection.isClosed()) {
                 connection = getNewConnection();
             } else {
-                if (connection instanceof SQLiteConnection) {
-                    SQLiteConnection sqLiteConnection = (SQLiteConnection) connection;
+                if (connection.isWrapperFor(SQLiteConnection.class)) {
+                    SQLiteConnection sqLiteConnection = connection.unwrap(SQLiteConnection.class);
                     if (!matchesConnection(sqLiteConnection)) {
                         log.error(String.format("Connection for path %s already exists",  sqLiteConnection.getUrl()));
                         connection.close();
@@ -66,10 +101,18 @@ public class SQLiteDB implements ConnectionHandler {
         return connection;
     }
 
+    /**
+     * Releases the connection held by this DB. When pooling is enabled the connection is parked in
+     * the SQLiteConnectionPool for reuse by later requests instead of being closed.
+     */
     public void closeConnection() {
         try {
             if(connection != null && !connection.isClosed()) {
-                connection.close();
+                if (SQLiteProperties.isConnectionPoolEnabled() && dbArchivableFile != null) {
+                    SQLiteConnectionPool.getInstance().release(dbArchivableFile, profile, connection);
+                } else {
+                    connection.close();
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -77,12 +120,50 @@ public class SQLiteDB implements ConnectionHandler {
         connection = null;
     }
 
+    /**
+     * @return true if the database has the schema of the current schema revision of its profile,
+     * in which case its tables don't need to be created
+     */
+    public boolean hasCurrentSchema() {
+        if (schemaCurrent) {
+            return true;
+        }
+        int revision = SchemaTemplates.getSchemaRevision(profile.getName());
+        if (revision == 0) {
+            return false;
+        }
+        Connection connection = getConnection();
+        boolean current = SchemaTemplates.getSchemaRevision(connection) == revision;
+        try {
+            // a marker written by an uncommitted transaction may still be rolled back
+            schemaCurrent = current && connection.getAutoCommit();
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+        return current;
+    }
+
+    /**
+     * Marks the schema of the database as created for the current schema revision of its profile
+     */
+    public void markCurrentSchema() {
+        int revision = SchemaTemplates.getSchemaRevision(profile.getName());
+        if (revision != 0) {
+            SchemaTemplates.setSchemaRevision(getConnection(), revision);
+        }
+    }
+
     public void deleteDatabaseFile() {
+        schemaCurrent = false;
         closeConnection();
+        SQLiteConnectionPool.getInstance().evict(dbArchivableFile);
         SqlSandboxUtils.deleteDatabaseFolder(dbArchivableFile);
     }
 
     public void deleteDatabaseFolder() {
+        schemaCurrent = false;
+        closeConnection();
+        SQLiteConnectionPool.getInstance().evictFolder(dbArchivableFile.getParentFile());
         SqlSandboxUtils.deleteDatabaseFolder(dbArchivableFile.getParentFile());
     }
 
@@ -95,10 +176,26 @@ public class SQLiteDB implements ConnectionHandler {
         return dbArchivableFile.exists();
     }
 
+    File getDatabaseFolder() {
+        return dbArchivableFile.getParentFile();
+    }
+
     public boolean databaseFolderExists() {
         return dbArchivableFile.getParentFile().exists();
     }
 
+    /**
+     * @return true if the database is opened read-only, in which case statements that would
+     * change it fail
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    public SQLiteProfile getProfile() {
+        return profile;
+    }
+
     public String getDatabaseFileForDebugPurposes() {
         return dbPath.getDatabaseFile();
     }
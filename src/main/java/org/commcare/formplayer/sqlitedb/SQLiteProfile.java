@@ -0,0 +1,122 @@
+package org.commcare.formplayer.sqlitedb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Metrics;
+import lombok.Data;
+
+/**
+ * Set of SQLite pragmas applied to every new connection for one kind of database.
+ *
+ * Profiles are configured under sqlite.profiles.[user|application|case-search].* (see
+ * SQLiteProfileConfiguration) on top of the built-in profile of the kind. Settings that are left
+ * unset in both keep the SQLite default.
+ */
+@Data
+public class SQLiteProfile {
+
+    public static final String USER = "user";
+    public static final String APPLICATION = "application";
+    public static final String CASE_SEARCH = "case-search";
+
+    public static final String OPERATION_OPEN = "open";
+    public static final String OPERATION_COMMIT = "commit";
+    public static final String OPERATION_CHECKPOINT = "checkpoint";
+
+    private static final Map<String, SQLiteProfile> profiles = new ConcurrentHashMap<>();
+
+    static {
+        register(USER, newDefaultProfile());
+        register(APPLICATION, newDefaultProfile());
+        // case search DBs are disposable and can be rebuilt from HQ at any point
+        SQLiteProfile caseSearch = newDefaultProfile();
+        caseSearch.setSynchronous("OFF");
+        caseSearch.setTempStore("MEMORY");
+        register(CASE_SEARCH, caseSearch);
+    }
+
+    private String name;
+    private String journalMode;
+    private String synchronous;
+    private Integer cacheSize;
+    private Long mmapSize;
+    // only takes effect for databases created after it is set, and never for WAL databases
+    private Integer pageSize;
+    private String tempStore;
+
+    private static SQLiteProfile newDefaultProfile() {
+        SQLiteProfile profile = new SQLiteProfile();
+        profile.setJournalMode("MEMORY");
+        return profile;
+    }
+
+    public static SQLiteProfile get(String name) {
+        SQLiteProfile profile = profiles.get(name);
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown SQLite profile " + name);
+        }
+        return profile;
+    }
+
+    public static void register(String name, SQLiteProfile profile) {
+        profile.setName(name);
+        profiles.put(name, profile);
+    }
+
+    /**
+     * @return a copy of this profile with the settings that are set in the overrides replaced
+     */
+    public SQLiteProfile withOverrides(SQLiteProfile overrides) {
+        SQLiteProfile profile = new SQLiteProfile();
+        profile.setJournalMode(overrides.journalMode != null ? overrides.journalMode : journalMode);
+        profile.setSynchronous(overrides.synchronous != null ? overrides.synchronous : synchronous);
+        profile.setCacheSize(overrides.cacheSize != null ? overrides.cacheSize : cacheSize);
+        profile.setMmapSize(overrides.mmapSize != null ? overrides.mmapSize : mmapSize);
+        profile.setPageSize(overrides.pageSize != null ? overrides.pageSize : pageSize);
+        profile.setTempStore(overrides.tempStore != null ? overrides.tempStore : tempStore);
+        return profile;
+    }
+
+    /**
+     * Records the latency of a connection level operation tagged with this profile so the effect
+     * of each setting can be compared across profiles.
+     */
+    public void recordLatency(String operation, long nanos) {
+        Metrics.timer("sqlite.profile.latency", "profile", name, "operation", operation)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isWalMode() {
+        return "WAL".equalsIgnoreCase(journalMode);
+    }
+
+    /**
+     * @return pragma statements to run on a newly opened connection, in the order they must run
+     */
+    public List<String> getPragmaStatements() {
+        List<String> statements = new ArrayList<>();
+        if (pageSize != null) {
+            statements.add("PRAGMA page_size=" + pageSize);
+        }
+        if (journalMode != null) {
+            statements.add("PRAGMA journal_mode=" + journalMode);
+        }
+        if (synchronous != null) {
+            statements.add("PRAGMA synchronous=" + synchronous);
+        }
+        if (cacheSize != null) {
+            statements.add("PRAGMA cache_size=" + cacheSize);
+        }
+        if (mmapSize != null) {
+            statements.add("PRAGMA mmap_size=" + mmapSize);
+        }
+        if (tempStore != null) {
+            statements.add("PRAGMA temp_store=" + tempStore);
+        }
+        return statements;
+    }
+}
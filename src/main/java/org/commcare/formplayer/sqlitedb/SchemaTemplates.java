@@ -0,0 +1,166 @@
+package org.commcare.formplayer.sqlitedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.database.models.CaseSearchTableManifest;
+import org.commcare.formplayer.exceptions.SQLiteRuntimeException;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.sandbox.UserSqlSandbox;
+import org.commcare.formplayer.util.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pristine SQLite files that new user and case search databases are copied from, so that a new
+ * sandbox does not have to run the schema DDL.
+ *
+ * A template is built once per Constants.SQLITE_DB_VERSION and schema revision in the
+ * "templates" folder of the data directory. Databases carry their schema revision in PRAGMA
+ * user_version, both when copied from a template and once their schema has been created by DDL,
+ * which lets later constructions of their storage skip the CREATE ... IF NOT EXISTS statements.
+ *
+ * Case search tables are named per query and created on demand, so the case search template only
+ * carries file level settings and the CaseSearchTableManifest. It uses incremental auto vacuum so
+ * that the space of per-query tables dropped by the manifest can be reclaimed.
+ */
+public class SchemaTemplates {
+
+    // bump when the tables created for a new user DB change without a SQLITE_DB_VERSION bump
+    public static final int USER_SCHEMA_REVISION = 1;
+    public static final int CASE_SEARCH_SCHEMA_REVISION = 2;
+
+    private static final String TEMPLATE_FOLDER = "templates";
+
+    private static final Log log = LogFactory.getLog(SchemaTemplates.class);
+
+    // profiles whose template could not be built, which then fall back to running the DDL
+    private static final ConcurrentMap<String, Boolean> unavailable = new ConcurrentHashMap<>();
+
+    /**
+     * @return the schema revision of databases of the given profile, or 0 if they have no template
+     */
+    public static int getSchemaRevision(String profileName) {
+        switch (profileName) {
+            case SQLiteProfile.USER:
+                return USER_SCHEMA_REVISION;
+            case SQLiteProfile.CASE_SEARCH:
+                return CASE_SEARCH_SCHEMA_REVISION;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Builds any missing templates. Called at startup so the first new sandbox doesn't pay for it.
+     */
+    public static void buildTemplates() {
+        getTemplate(SQLiteProfile.USER);
+        getTemplate(SQLiteProfile.CASE_SEARCH);
+    }
+
+    /**
+     * Creates a new database at the given path by copying the template of the given profile
+     *
+     * @return false if there is no template, or the database was created meanwhile, in which case
+     * the caller falls back to creating the schema itself
+     */
+    public static boolean copyTemplate(String profileName, File databaseFile) {
+        File template = getTemplate(profileName);
+        if (template == null) {
+            return false;
+        }
+        File tempFile = new File(databaseFile.getPath() + ".template");
+        try {
+            Files.copy(template.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile.toPath(), databaseFile.toPath());
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn(String.format("Unable to create %s from template", databaseFile), e);
+            return false;
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static File getTemplate(String profileName) {
+        int revision = getSchemaRevision(profileName);
+        if (revision == 0 || unavailable.containsKey(profileName)) {
+            return null;
+        }
+        File template = getTemplateFile(profileName, revision);
+        if (template.exists()) {
+            return template;
+        }
+        synchronized (SchemaTemplates.class) {
+            if (!template.exists()) {
+                try {
+                    buildTemplate(profileName, revision, template);
+                    log.info(String.format("Built SQLite template %s", template));
+                } catch (IOException | SQLException | RuntimeException e) {
+                    log.error(String.format("Unable to build SQLite template %s", template), e);
+                    unavailable.put(profileName, true);
+                    return null;
+                }
+            }
+        }
+        return template;
+    }
+
+    private static File getTemplateFile(String profileName, int revision) {
+        return new File(SQLiteProperties.getDataDir() + TEMPLATE_FOLDER,
+                String.format("%s_%s_r%d.db", profileName, Constants.SQLITE_DB_VERSION, revision));
+    }
+
+    private static void buildTemplate(String profileName, int revision, File template)
+            throws IOException, SQLException {
+        Files.createDirectories(template.getParentFile().toPath());
+        File tempFile = new File(template.getPath() + ".building");
+        tempFile.delete();
+        try {
+            try (Connection connection = SqlSandboxUtils.getDataSource(tempFile).getConnection()) {
+                Integer pageSize = SQLiteProfile.get(profileName).getPageSize();
+                if (pageSize != null) {
+                    SqlSandboxUtils.execSql(connection, "PRAGMA page_size=" + pageSize);
+                }
+                if (SQLiteProfile.USER.equals(profileName)) {
+                    UserSqlSandbox.createSchema(() -> connection);
+                } else if (SQLiteProfile.CASE_SEARCH.equals(profileName)) {
+                    // only takes effect before the first table is created
+                    SqlSandboxUtils.execSql(connection, "PRAGMA auto_vacuum=INCREMENTAL");
+                    CaseSearchTableManifest.createTable(connection);
+                }
+                setSchemaRevision(connection, revision);
+                SqlSandboxUtils.execSql(connection, "VACUUM");
+            }
+            Files.move(tempFile.toPath(), template.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    static int getSchemaRevision(Connection connection) {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw new SQLiteRuntimeException(e);
+        }
+    }
+
+    static void setSchemaRevision(Connection connection, int revision) {
+        SqlSandboxUtils.execSql(connection, "PRAGMA user_version=" + revision);
+    }
+}
@@ -0,0 +1,42 @@
+package org.commcare.formplayer.sqlitedb;
+
+/**
+ * Installed application DB of an app build, opened by all users of the build on this node
+ */
+public class SharedApplicationDB extends SQLiteDB {
+
+    private final String domain;
+    private final String appId;
+    private final String build;
+
+    SharedApplicationDB(String domain, String appId, String build) {
+        super(new SharedApplicationDBPath(domain, appId, build), SQLiteProfile.APPLICATION);
+        this.domain = domain;
+        this.appId = appId;
+        this.build = build;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * @return version of the build, or the name of the staging folder it is being installed in
+     */
+    public String getBuild() {
+        return build;
+    }
+
+    /**
+     * Published builds are opened read-only as they are shared by all of their users, only the
+     * staging DB a build is installed into is written
+     */
+    @Override
+    public boolean isReadOnly() {
+        return !SharedApplicationStore.isStagingBuild(build);
+    }
+}
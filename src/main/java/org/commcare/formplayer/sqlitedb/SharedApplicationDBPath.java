@@ -0,0 +1,40 @@
+package org.commcare.formplayer.sqlitedb;
+
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.util.Constants;
+
+import java.io.File;
+
+class SharedApplicationDBPath extends DBPath {
+
+    // not a valid domain name, so it can't clash with the folders of user DBs
+    static final String SHARED_APPS_FOLDER = "_shared_apps";
+
+    private String domain;
+    private String appId;
+    private String build;
+
+    SharedApplicationDBPath(String domain, String appId, String build) {
+        this.domain = domain;
+        this.appId = appId;
+        this.build = build;
+    }
+
+    static String getAppPath(String domain, String appId) {
+        return getSharedAppsPath() + File.separator + domain + File.separator + appId;
+    }
+
+    static String getSharedAppsPath() {
+        return SQLiteProperties.getDataDir() + SHARED_APPS_FOLDER;
+    }
+
+    @Override
+    public String getDatabasePath() {
+        return getAppPath(domain, appId) + File.separator + build;
+    }
+
+    @Override
+    public String getDatabaseName() {
+        return "application_" + Constants.SQLITE_DB_VERSION;
+    }
+}
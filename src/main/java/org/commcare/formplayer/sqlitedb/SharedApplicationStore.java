@@ -0,0 +1,267 @@
+package org.commcare.formplayer.sqlitedb;
+
+import com.google.common.util.concurrent.Striped;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.util.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Installed application DBs shared by all users of an app build on this node.
+ *
+ * Builds are stored under [dataDir]/_shared_apps/[domain]/[appId]/[version]. A build is installed
+ * once into a staging folder and published under its version when the install has succeeded, so
+ * a published build is complete and is only read from then on. Each user keeps a link to the
+ * build they use in the folder their own application DB would be in, and a user DB that is
+ * already installed there takes precedence over the link.
+ *
+ * Nothing writes to a published build: the profile's properties are set when it is installed and
+ * its resources are initialized once before it is published, so initializing them again for its
+ * users only reads the DB. Published builds are opened with query_only so that a write fails
+ * rather than changing the build under its other users. A build that can't be used is marked bad rather than deleted, as other
+ * users may still have it open. Its users install the build again into a new folder and the bad
+ * one is left to the purge. An explicit update or delete of a user's application DBs marks the
+ * build the user is linked to bad, so that it is installed again.
+ *
+ * HQ build ids identify a single version of an app, so users of the same app id share the build
+ * that was installed first. Preview installs of the latest saved app keep an application DB per
+ * user.
+ */
+public class SharedApplicationStore {
+
+    private static final Log log = LogFactory.getLog(SharedApplicationStore.class);
+
+    private static final String LINK_FILE = "application_" + Constants.SQLITE_DB_VERSION + ".build";
+    private static final String STAGING_PREFIX = "staging-";
+    private static final String BAD_BUILD_FILE = "build.bad";
+    // separates the version of a build from the number of times it was published again
+    private static final String REPUBLISH_SEPARATOR = "-";
+
+    // how often the folder of a build in use is touched, so that the purge keeps it
+    private static final long TOUCH_INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+    private static final Striped<Lock> installLocks = Striped.lock(256);
+
+    /**
+     * @return the application DB a user has installed, or else the shared build the user is linked
+     * to if it is still installed, or else the user's own application DB to install into
+     */
+    public static SQLiteDB openApplicationDB(String domain, String username, String asUsername,
+            String appId) {
+        ApplicationDB applicationDB = new ApplicationDB(domain, username, asUsername, appId);
+        if (!SQLiteProperties.isSharedAppsEnabled() || applicationDB.databaseFileExists()) {
+            return applicationDB;
+        }
+        String build = readLink(applicationDB);
+        if (build == null) {
+            return applicationDB;
+        }
+        SharedApplicationDB sharedDB = new SharedApplicationDB(domain, appId, build);
+        if (!sharedDB.databaseFileExists() || isBad(sharedDB)) {
+            return applicationDB;
+        }
+        File folder = sharedDB.getDatabaseFolder();
+        long now = System.currentTimeMillis();
+        if (folder.lastModified() < now - TOUCH_INTERVAL) {
+            folder.setLastModified(now);
+        }
+        return sharedDB;
+    }
+
+    /**
+     * @return lock to hold while looking up or installing a build of the app, so that concurrent
+     * requests of the app's users install it once
+     */
+    public static Lock getInstallLock(String domain, String appId) {
+        return installLocks.get(domain + File.separator + appId);
+    }
+
+    /**
+     * @return the newest installed build of the app, or null if there is none
+     */
+    public static SharedApplicationDB findBuild(String domain, String appId) {
+        File[] builds = new File(SharedApplicationDBPath.getAppPath(domain, appId)).listFiles(
+                file -> file.isDirectory() && !file.getName().startsWith(STAGING_PREFIX));
+        if (builds == null) {
+            return null;
+        }
+        SharedApplicationDB newest = null;
+        long newestVersion = Long.MIN_VALUE;
+        for (File build : builds) {
+            SharedApplicationDB sharedDB = new SharedApplicationDB(domain, appId, build.getName());
+            long version = parseVersion(build.getName());
+            if (sharedDB.databaseFileExists() && !isBad(sharedDB) && version > newestVersion) {
+                newest = sharedDB;
+                newestVersion = version;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return an empty application DB to install a build of the app into, see publish
+     */
+    public static SharedApplicationDB newStagingBuild(String domain, String appId) {
+        return new SharedApplicationDB(domain, appId, STAGING_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * Makes a build installed into a staging DB available to other users under its version. If
+     * the version is already published the staging DB is deleted and the published one is used,
+     * unless the published one is bad, in which case the build is published next to it.
+     *
+     * @return the published build
+     */
+    public static SharedApplicationDB publish(SharedApplicationDB stagingDB, String version) throws IOException {
+        stagingDB.closeConnection();
+        SQLiteConnectionPool.getInstance().evictFolder(stagingDB.getDatabaseFolder());
+        SharedApplicationDB sharedDB = new SharedApplicationDB(stagingDB.getDomain(), stagingDB.getAppId(),
+                version);
+        for (int republished = 1; isBad(sharedDB); republished++) {
+            sharedDB = new SharedApplicationDB(stagingDB.getDomain(), stagingDB.getAppId(),
+                    version + REPUBLISH_SEPARATOR + republished);
+        }
+        try {
+            Files.move(stagingDB.getDatabaseFolder().toPath(), sharedDB.getDatabaseFolder().toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+            log.info(String.format("Build %s of app %s is already installed, discarding %s", version,
+                    stagingDB.getAppId(), stagingDB.getBuild()));
+            stagingDB.deleteDatabaseFolder();
+        }
+        return sharedDB;
+    }
+
+    /**
+     * Links a user to a build, which the user's application DB then resolves to
+     */
+    public static void link(String domain, String username, String asUsername, String appId,
+            SharedApplicationDB sharedDB) throws IOException {
+        ApplicationDB applicationDB = new ApplicationDB(domain, username, asUsername, appId);
+        File folder = applicationDB.getDatabaseFolder();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Error instantiating folder " + folder);
+        }
+        File link = new File(folder, LINK_FILE);
+        File tempLink = new File(folder, LINK_FILE + ".tmp");
+        Files.write(tempLink.toPath(), sharedDB.getBuild().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempLink.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stops a build that can't be used from being opened again, users linked to it install it
+     * again. The build is left in place for the users that have it open and is deleted by the
+     * purge once it is no longer opened.
+     */
+    public static void markBad(SharedApplicationDB sharedDB) {
+        log.warn(String.format("Marking build %s of app %s in domain %s as bad", sharedDB.getBuild(),
+                sharedDB.getAppId(), sharedDB.getDomain()));
+        try {
+            Files.createFile(new File(sharedDB.getDatabaseFolder(), BAD_BUILD_FILE).toPath());
+        } catch (FileAlreadyExistsException e) {
+            // marked by another user of the build
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to mark build " + sharedDB.getDatabaseFolder() + " as bad", e);
+        }
+    }
+
+    /**
+     * Marks the build the user is linked to bad, if any, so that the next install of the app by
+     * one of its users installs the build again rather than linking to it
+     */
+    public static void markLinkedBuildBad(String domain, String username, String asUsername, String appId) {
+        String build = readLink(new ApplicationDB(domain, username, asUsername, appId));
+        if (build == null) {
+            return;
+        }
+        SharedApplicationDB sharedDB = new SharedApplicationDB(domain, appId, build);
+        if (sharedDB.databaseFileExists()) {
+            markBad(sharedDB);
+        }
+    }
+
+    /**
+     * @return whether the build is a staging DB that is still being installed into, see publish
+     */
+    static boolean isStagingBuild(String build) {
+        return build.startsWith(STAGING_PREFIX);
+    }
+
+    /**
+     * @return whether the build was marked bad, see markBad
+     */
+    public static boolean isBad(SharedApplicationDB sharedDB) {
+        return new File(sharedDB.getDatabaseFolder(), BAD_BUILD_FILE).exists();
+    }
+
+    /**
+     * Deletes builds that no user has opened since the cutoff, along with abandoned staging DBs
+     *
+     * @return the number of deleted builds
+     */
+    public static int purge(Instant cutoff) {
+        File[] domains = new File(SharedApplicationDBPath.getSharedAppsPath()).listFiles(File::isDirectory);
+        if (domains == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File domain : domains) {
+            File[] apps = domain.listFiles(File::isDirectory);
+            if (apps == null) {
+                continue;
+            }
+            for (File app : apps) {
+                File[] builds = app.listFiles(File::isDirectory);
+                if (builds == null) {
+                    continue;
+                }
+                for (File build : builds) {
+                    if (build.lastModified() < cutoff.toEpochMilli()) {
+                        SQLiteConnectionPool.getInstance().evictFolder(build);
+                        SqlSandboxUtils.deleteDatabaseFolder(build);
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static String readLink(ApplicationDB applicationDB) {
+        File link = new File(applicationDB.getDatabaseFolder(), LINK_FILE);
+        if (!link.exists()) {
+            return null;
+        }
+        try {
+            String build = new String(Files.readAllBytes(link.toPath()), StandardCharsets.UTF_8).trim();
+            return build.isEmpty() ? null : build;
+        } catch (IOException e) {
+            log.warn("Unable to read application link " + link, e);
+            return null;
+        }
+    }
+
+    private static long parseVersion(String build) {
+        int separator = build.indexOf(REPUBLISH_SEPARATOR);
+        try {
+            return Long.parseLong(separator < 0 ? build : build.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
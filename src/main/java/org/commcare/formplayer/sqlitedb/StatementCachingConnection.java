@@ -0,0 +1,250 @@
+package org.commcare.formplayer.sqlitedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a SQLite connection with a bounded LRU cache of prepared statements keyed by SQL text, so
+ * statements that are prepared over and over (SqlStorage reads, SqlHelper inserts and updates)
+ * are only parsed and planned by SQLite once per connection.
+ *
+ * The cache is transparent to callers: prepareStatement(String) hands out a lease on a cached
+ * statement and closing the lease clears its bindings and returns it to the cache instead of
+ * finalizing it. A statement is never leased to two callers at once. Cached statements are closed
+ * when they are evicted or when the connection is closed.
+ *
+ * Only DML is cached; DDL, pragmas and explain statements are prepared as usual.
+ */
+public class StatementCachingConnection implements InvocationHandler {
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final Log log = LogFactory.getLog(StatementCachingConnection.class);
+
+    private final Connection delegate;
+    private final int maxSize;
+    private Connection proxy;
+    private boolean closed = false;
+
+    // access ordered so that iteration starts from the least recently used statement
+    private final LinkedHashMap<String, PreparedStatement> idleStatements = new LinkedHashMap<>(16, 0.75f, true);
+
+    private StatementCachingConnection(Connection delegate, int maxSize) {
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxSize maximum number of idle statements to keep; 0 disables caching
+     */
+    public static Connection wrap(Connection connection, int maxSize) {
+        if (maxSize <= 0) {
+            return connection;
+        }
+        StatementCachingConnection handler = new StatementCachingConnection(connection, maxSize);
+        handler.proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class[]{Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "prepareStatement":
+                if (args.length == 1 && isCacheable((String)args[0])) {
+                    return lease((String)args[0]);
+                }
+                break;
+            case "close":
+                closeIdleStatements();
+                break;
+            case "unwrap":
+                if (((Class<?>)args[0]).isInstance(delegate)) {
+                    return delegate;
+                }
+                break;
+            case "isWrapperFor":
+                if (((Class<?>)args[0]).isInstance(delegate)) {
+                    return true;
+                }
+                break;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                break;
+        }
+        return invokeOn(delegate, method, args);
+    }
+
+    private static boolean isCacheable(String sql) {
+        String statementType = sql.trim().toUpperCase(Locale.ROOT);
+        return statementType.startsWith("SELECT")
+                || statementType.startsWith("INSERT")
+                || statementType.startsWith("UPDATE")
+                || statementType.startsWith("DELETE")
+                || statementType.startsWith("REPLACE");
+    }
+
+    private PreparedStatement lease(String sql) throws SQLException {
+        PreparedStatement statement;
+        synchronized (this) {
+            statement = idleStatements.remove(sql);
+        }
+        if (statement != null && !statement.isClosed()) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            statement = delegate.prepareStatement(sql);
+        }
+        return new LeasedStatement(sql, statement).asProxy();
+    }
+
+    private void giveBack(String sql, PreparedStatement statement) {
+        try {
+            if (statement.isClosed()) {
+                return;
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return;
+        }
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                toClose.add(statement);
+            } else {
+                PreparedStatement previous = idleStatements.put(sql, statement);
+                if (previous != null) {
+                    // the same SQL was leased twice concurrently, keep only one
+                    toClose.add(previous);
+                }
+                Iterator<PreparedStatement> iterator = idleStatements.values().iterator();
+                while (idleStatements.size() > maxSize && iterator.hasNext()) {
+                    toClose.add(iterator.next());
+                    iterator.remove();
+                }
+            }
+        }
+        for (PreparedStatement evicted : toClose) {
+            evictions.incrementAndGet();
+            closeQuietly(evicted);
+        }
+    }
+
+    private void closeIdleStatements() {
+        List<PreparedStatement> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(idleStatements.values());
+            idleStatements.clear();
+        }
+        for (PreparedStatement statement : toClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.warn("Exception closing cached SQLite statement", e);
+        }
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A single use of a cached statement. Closing the lease returns the statement to the cache;
+     * closing it again is a no-op so a statement can never be returned twice.
+     */
+    private class LeasedStatement implements InvocationHandler {
+        private final String sql;
+        private final PreparedStatement statement;
+        private ResultSet resultSet;
+        private boolean leaseClosed = false;
+
+        LeasedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        PreparedStatement asProxy() {
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object leaseProxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!leaseClosed) {
+                        leaseClosed = true;
+                        if (resultSet != null) {
+                            closeQuietly(resultSet);
+                        }
+                        giveBack(sql, statement);
+                    }
+                    return null;
+                case "isClosed":
+                    return leaseClosed || statement.isClosed();
+                case "getConnection":
+                    return proxy;
+                case "toString":
+                    return statement.toString();
+                case "equals":
+                    return leaseProxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(leaseProxy);
+                default:
+                    break;
+            }
+            if (leaseClosed) {
+                throw new SQLException("Statement is closed");
+            }
+            Object result = invokeOn(statement, method, args);
+            if (result instanceof ResultSet) {
+                resultSet = (ResultSet)result;
+            }
+            return result;
+        }
+    }
+}
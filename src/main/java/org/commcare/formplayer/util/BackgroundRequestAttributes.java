@@ -0,0 +1,84 @@
+package org.commcare.formplayer.util;
+
+import org.springframework.web.context.request.AbstractRequestAttributes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Request attributes for work done outside of an HTTP request, so that request scoped beans such
+ * as the RestoreFactory can be used from a background thread.
+ *
+ * Bind to the worker thread with RequestContextHolder.setRequestAttributes and call
+ * requestCompleted() once the work is done so the scoped beans are destroyed. There is no session
+ * so session attributes share the request attributes.
+ *
+ * Work that calls HQ with formplayer's own HMAC auth names the user whose session authorized it,
+ * see RequestUtils.requestAuthedWithHmac.
+ */
+public class BackgroundRequestAttributes extends AbstractRequestAttributes {
+
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final String hmacAuthorizedBy;
+
+    public BackgroundRequestAttributes() {
+        this(null);
+    }
+
+    /**
+     * @param hmacAuthorizedBy the user whose live HQ session authorized the work, or null if it
+     *                         must not use HMAC auth
+     */
+    public BackgroundRequestAttributes(String hmacAuthorizedBy) {
+        this.hmacAuthorizedBy = hmacAuthorizedBy;
+    }
+
+    public String getHmacAuthorizedBy() {
+        return hmacAuthorizedBy;
+    }
+
+    @Override
+    public Object getAttribute(String name, int scope) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, int scope) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name, int scope) {
+        attributes.remove(name);
+        removeRequestDestructionCallback(name);
+    }
+
+    @Override
+    public String[] getAttributeNames(int scope) {
+        return attributes.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public void registerDestructionCallback(String name, Runnable callback, int scope) {
+        registerRequestDestructionCallback(name, callback);
+    }
+
+    @Override
+    public Object resolveReference(String key) {
+        return null;
+    }
+
+    @Override
+    public String getSessionId() {
+        return "";
+    }
+
+    @Override
+    public Object getSessionMutex() {
+        return this;
+    }
+
+    @Override
+    protected void updateAccessedSessionAttributes() {
+    }
+}
@@ -0,0 +1,225 @@
+package org.commcare.formplayer.util;
+
+import org.javarosa.core.model.condition.RequestAbandonedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * InputStream fed by a producer on another thread through a buffer of bounded size.
+ *
+ * The producer blocks while the buffer is full, so a fast producer can never get more than
+ * maxBufferedBytes ahead of the reader. Closing the stream discards the buffer and makes any
+ * further writes fail, which is how the reader cancels the producer. A producer failure is
+ * rethrown to the reader once it has read everything written before the failure.
+ *
+ * If the reading thread is interrupted while waiting for data a RequestAbandonedException is
+ * thrown, in line with the rest of the request processing code.
+ */
+public class BoundedPipeInputStream extends InputStream {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final long maxBufferedBytes;
+    private long bufferedBytes = 0;
+
+    private byte[] current;
+    private int position;
+
+    private boolean finished = false;
+    private boolean closed = false;
+    private Throwable failure;
+    private Runnable onClose;
+    private Runnable onEndOfStream;
+
+    public BoundedPipeInputStream(long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * @param onClose called once when the reader closes the stream, e.g. to cancel the producer
+     */
+    public void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * @param onEndOfStream called on the reading thread once the reader reaches the end of the
+     *                      stream without error
+     */
+    public void setOnEndOfStream(Runnable onEndOfStream) {
+        this.onEndOfStream = onEndOfStream;
+    }
+
+    /**
+     * Producer side: copies the bytes into the buffer, blocking while the buffer is full
+     *
+     * @throws IOException if the reader has closed the stream
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        byte[] chunk = Arrays.copyOfRange(bytes, offset, offset + length);
+        lock.lock();
+        try {
+            // a single chunk larger than the buffer is let through once the buffer is empty
+            while (!closed && !chunks.isEmpty() && bufferedBytes + length > maxBufferedBytes) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IOException("Stream closed by reader");
+            }
+            chunks.addLast(chunk);
+            bufferedBytes += length;
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the reader");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer side: copies the given stream into the buffer until it is exhausted
+     */
+    public void writeFrom(InputStream inputStream, int chunkSize) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Producer side: marks the end of the stream
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer side: ends the stream with an error that is rethrown to the reader
+     */
+    public void fail(Throwable throwable) {
+        lock.lock();
+        try {
+            if (!finished) {
+                failure = throwable;
+                finished = true;
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureCurrentChunk()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureCurrentChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * @return false if the end of the stream has been reached
+     */
+    private boolean ensureCurrentChunk() throws IOException {
+        if (current != null && position < current.length) {
+            return true;
+        }
+        boolean endOfStream;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (chunks.isEmpty() && !finished) {
+                notEmpty.await();
+            }
+            if (!chunks.isEmpty()) {
+                current = chunks.removeFirst();
+                position = 0;
+                bufferedBytes -= current.length;
+                notFull.signal();
+                return true;
+            }
+            if (failure != null) {
+                throw new IOException("Producer failed", failure);
+            }
+            current = null;
+            endOfStream = true;
+        } catch (InterruptedException e) {
+            lock.unlock();
+            close();
+            throw new RequestAbandonedException();
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+        if (endOfStream && onEndOfStream != null) {
+            Runnable callback = onEndOfStream;
+            onEndOfStream = null;
+            callback.run();
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        Runnable callback;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            bufferedBytes = 0;
+            current = null;
+            notFull.signalAll();
+            callback = onClose;
+        } finally {
+            lock.unlock();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+}
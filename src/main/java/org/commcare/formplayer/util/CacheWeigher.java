@@ -0,0 +1,148 @@
+package org.commcare.formplayer.util;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+import org.commcare.formplayer.objects.SerializableDataInstance;
+import org.commcare.formplayer.objects.SerializableFormDefinition;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.commcare.formplayer.objects.SerializableMenuSession;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.TreeElement;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Estimates the heap used by cached values in bytes, for caches with a maximumWeight budget.
+ *
+ * The estimates are deliberately rough: they count the strings each value holds plus a fixed
+ * overhead per object, which is enough to tell a multi-MB form definition or case search result
+ * apart from a small session. Values held by several cached values, such as the form definition
+ * of a form session, are only counted for the cache they are cached in directly.
+ */
+public class CacheWeigher implements Weigher<Object, Object> {
+
+    /**
+     * Implemented by cached values that estimate their own size
+     */
+    public interface Weighted {
+        long getWeight();
+    }
+
+    // object header, fields and collection overhead of each tree element
+    private static final int NODE_OVERHEAD_BYTES = 200;
+    // heap used by a parsed form def per byte of its serialized form
+    private static final int FORM_DEF_BYTES_PER_SERIALIZED_BYTE = 4;
+    // anything else, including small records such as media metadata
+    private static final int DEFAULT_WEIGHT_BYTES = 1024;
+
+    @Override
+    public int weigh(Object key, Object value) {
+        return (int)Math.min(Integer.MAX_VALUE, estimate(value));
+    }
+
+    public static long estimate(Object value) {
+        if (value instanceof Weighted) {
+            return ((Weighted)value).getWeight();
+        } else if (value instanceof FormDef) {
+            return weigh((FormDef)value);
+        } else if (value instanceof TreeElement) {
+            return weigh((TreeElement)value);
+        } else if (value instanceof SerializableFormSession) {
+            return weigh((SerializableFormSession)value);
+        } else if (value instanceof SerializableDataInstance) {
+            return DEFAULT_WEIGHT_BYTES + weigh(((SerializableDataInstance)value).getInstanceXml());
+        } else if (value instanceof SerializableFormDefinition) {
+            SerializableFormDefinition formDefinition = (SerializableFormDefinition)value;
+            byte[] compressedFormDef = formDefinition.getCompressedFormDef();
+            return DEFAULT_WEIGHT_BYTES + weigh(formDefinition.getSerializedFormDef())
+                    + (compressedFormDef == null ? 0 : compressedFormDef.length);
+        } else if (value instanceof SerializableMenuSession) {
+            byte[] commcareSession = ((SerializableMenuSession)value).getCommcareSession();
+            return DEFAULT_WEIGHT_BYTES + (commcareSession == null ? 0 : commcareSession.length);
+        }
+        return DEFAULT_WEIGHT_BYTES;
+    }
+
+    /**
+     * A form def holds its main instance, a tree of form elements, the itext of every locale, the
+     * binds on its instance and the triggerables compiled from them. All of them are written when
+     * the form def is serialized, so it is weighed by the size of its serialized form, which is
+     * only counted rather than kept.
+     */
+    public static long weigh(FormDef formDef) {
+        CountingOutputStream counter = new CountingOutputStream(OutputStream.nullOutputStream());
+        try {
+            formDef.writeExternal(new DataOutputStream(counter));
+        } catch (IOException e) {
+            // not expected from a stream that discards its input, fall back to the main instance
+            return DEFAULT_WEIGHT_BYTES + (formDef.getMainInstance() == null
+                    ? 0 : weigh(formDef.getMainInstance().getRoot()));
+        }
+        return DEFAULT_WEIGHT_BYTES + counter.getByteCount() * FORM_DEF_BYTES_PER_SERIALIZED_BYTE;
+    }
+
+    public static long weigh(TreeElement root) {
+        if (root == null) {
+            return 0;
+        }
+        long weight = 0;
+        Deque<TreeElement> elements = new ArrayDeque<>();
+        elements.push(root);
+        while (!elements.isEmpty()) {
+            TreeElement element = elements.pop();
+            weight += NODE_OVERHEAD_BYTES + weigh(element.getName());
+            IAnswerData value = element.getValue();
+            if (value != null) {
+                weight += weigh(value.uncast().getString());
+            }
+            for (int i = 0; i < element.getAttributeCount(); i++) {
+                weight += NODE_OVERHEAD_BYTES + weigh(element.getAttributeName(i))
+                        + weigh(element.getAttributeValue(i));
+            }
+            for (int i = 0; i < element.getNumChildren(); i++) {
+                elements.push(element.getChildAt(i));
+            }
+        }
+        return weight;
+    }
+
+    private static long weigh(SerializableFormSession session) {
+        long weight = DEFAULT_WEIGHT_BYTES + weigh(session.getInstanceXml()) + weigh(session.getTitle());
+        weight += weigh(session.getSessionData());
+        if (session.getFunctionContext() != null) {
+            weight += (long)session.getFunctionContext().size() * DEFAULT_WEIGHT_BYTES;
+        }
+        return weight;
+    }
+
+    private static long weigh(Map<String, String> map) {
+        if (map == null) {
+            return 0;
+        }
+        long weight = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            weight += NODE_OVERHEAD_BYTES + weigh(entry.getKey()) + weigh(entry.getValue());
+        }
+        return weight;
+    }
+
+    private static long weigh(String value) {
+        if (value == null) {
+            return 0;
+        }
+        // compact strings hold Latin-1 strings in a byte per character, others in two
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                return value.length() * 2L;
+            }
+        }
+        return value.length();
+    }
+}
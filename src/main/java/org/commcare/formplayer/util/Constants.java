@@ -116,6 +116,8 @@ public class Constants {
     //Misc
     public static String HMAC_HEADER = "X-MAC-DIGEST";
     public static String HMAC_REQUEST_ATTRIBUTE = "org.commcare.formplayer.hmacRequest";
+    public static String LOCK_WAIT_START_ATTRIBUTE = "org.commcare.formplayer.lockWaitStart";
+    public static String OBSERVED_SYNC_TOKEN_ATTRIBUTE = "org.commcare.formplayer.observedSyncToken";
 
     // Datadog metrics
     public static final String DATADOG_TIMINGS = "timings";
@@ -190,6 +192,19 @@ public class Constants {
     // End Datadog metrics
 
     public static final String SCHEDULED_TASKS_PURGE = "scheduled_tasks.purge";
+    public static final String SQLITE_CONNECTION_POOL = "sqlite.connection_pool";
+    public static final String SQLITE_STATEMENT_CACHE = "sqlite.statement_cache";
+    public static final String PROACTIVE_SYNC = "proactive_sync";
+    public static final String SYNC_COALESCED = "sync.coalesced";
+    public static final String CASE_SEARCH_STORAGE = "case_search.storage";
+    public static final String SESSION_CACHE_L2 = "session_cache.l2";
+    public static final String FORM_DEF_PREWARM = "form_def.prewarm";
+    public static final String FORM_SESSION_BYTES_WRITTEN = "form_session.bytes_written";
+    public static final String FORM_SESSION_WRITE_BEHIND = "form_session.write_behind";
+    public static final String PLATFORM_CACHE = "platform_cache";
+    public static final String CCZ_STORE = "ccz_store";
+    public static final String ARCHIVE_POOL = "archive_pool";
+    public static final String PARALLEL_INSTALL = "parallel_install";
 
     // Feature Flags/Toggles
     // These correspond to the names of StaticToggle objects in commcare-hq repo's corehq/toggles.py
@@ -32,6 +32,8 @@ class ProcessingStep(
     fun recordCheckpoint() {
         val session = context.formEntrySession.serializableSession
         checkpoint?.let {
+            // a session that reached a submission checkpoint is no longer replayed from its answer log
+            context.formEntrySession.checkpoint()
             session.submitStatus = it
             formSessionService.saveSession(session)
         }
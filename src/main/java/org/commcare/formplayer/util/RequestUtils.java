@@ -93,7 +93,8 @@ public class RequestUtils {
 
     public static HttpServletRequest getCurrentRequest() {
         RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
-        if (attributes != null) {
+        // background work such as proactive syncs runs in a request scope without a servlet request
+        if (attributes instanceof ServletRequestAttributes) {
             return ((ServletRequestAttributes)attributes).getRequest();
         }
         return null;
@@ -108,6 +109,39 @@ public class RequestUtils {
         return Optional.empty();
     }
 
+    /**
+     * Records when the current request began waiting for the user lock, and the sync token its
+     * sandbox was observed at then (see SyncCoalescer.observe). Only the first wait of a request is
+     * recorded.
+     */
+    public static void setLockWaitStart(long epochMillis, String observedSyncToken) {
+        HttpServletRequest request = getCurrentRequest();
+        if (request != null && request.getAttribute(Constants.LOCK_WAIT_START_ATTRIBUTE) == null) {
+            request.setAttribute(Constants.LOCK_WAIT_START_ATTRIBUTE, epochMillis);
+            request.setAttribute(Constants.OBSERVED_SYNC_TOKEN_ATTRIBUTE, observedSyncToken);
+        }
+    }
+
+    /**
+     * @return when the current request began waiting for the user lock, or the current time if it
+     * did not wait
+     */
+    public static long getLockWaitStart() {
+        HttpServletRequest request = getCurrentRequest();
+        Object attribute = request == null ? null : request.getAttribute(Constants.LOCK_WAIT_START_ATTRIBUTE);
+        return attribute instanceof Long ? (Long)attribute : System.currentTimeMillis();
+    }
+
+    /**
+     * @return the sync token observed when the current request began waiting for the user lock, or
+     * null if it did not wait or no sync of its sandbox was known
+     */
+    public static String getObservedSyncToken() {
+        HttpServletRequest request = getCurrentRequest();
+        Object attribute = request == null ? null : request.getAttribute(Constants.OBSERVED_SYNC_TOKEN_ATTRIBUTE);
+        return attribute instanceof String ? (String)attribute : null;
+    }
+
     /**
      * @return True if there is request in the context AND the request was authenticated with HMAC
      * auth
@@ -115,7 +149,11 @@ public class RequestUtils {
     public static boolean requestAuthedWithHmac() {
         HttpServletRequest request = getCurrentRequest();
         if (request == null) {
-            return false;
+            // background work on behalf of a user authenticates to HQ as formplayer itself, but
+            // only once a live session of the user has authorized it
+            RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+            return attributes instanceof BackgroundRequestAttributes
+                    && ((BackgroundRequestAttributes)attributes).getHmacAuthorizedBy() != null;
         }
         Object attribute = request.getAttribute(Constants.HMAC_REQUEST_ATTRIBUTE);
         return attribute != null && (Boolean)attribute;
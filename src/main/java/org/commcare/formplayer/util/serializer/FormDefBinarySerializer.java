@@ -0,0 +1,47 @@
+package org.commcare.formplayer.util.serializer;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serializes FormDefs to deflate compressed binary, which is smaller to store and transfer than
+ * the base64 text written by FormDefStringSerializer and needs no decoding.
+ */
+public class FormDefBinarySerializer {
+
+    public static byte[] serialize(FormDef formDef) throws IOException {
+        return compress(FormDefStringSerializer.externalize(formDef));
+    }
+
+    public static FormDef deserialize(byte[] compressedFormDef)
+            throws IOException, DeserializationException {
+        return FormDefStringSerializer.deserialize(decompress(compressedFormDef));
+    }
+
+    /**
+     * Compresses an externalized form def, e.g. one decoded from the base64 text format
+     */
+    public static byte[] compress(byte[] formDefBytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DeflaterOutputStream compressedStream = new DeflaterOutputStream(baos)) {
+            compressedStream.write(formDefBytes);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the externalized form def held by a compressed form def
+     */
+    public static byte[] decompress(byte[] compressedFormDef) throws IOException {
+        try (InputStream inputStream = new InflaterInputStream(new ByteArrayInputStream(compressedFormDef))) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
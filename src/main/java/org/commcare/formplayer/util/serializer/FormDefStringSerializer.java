@@ -14,16 +14,38 @@ import java.io.IOException;
 public class FormDefStringSerializer {
 
     public static String serialize(FormDef formDef) throws IOException {
+        return encode(externalize(formDef));
+    }
+
+    /**
+     * @return the externalized form def, to be stored with encode or FormDefBinarySerializer.compress
+     */
+    public static byte[] externalize(FormDef formDef) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream serializedStream = new DataOutputStream(baos);
         formDef.writeExternal(serializedStream);
-        return Base64.encodeBase64String(baos.toByteArray());
+        return baos.toByteArray();
+    }
+
+    public static String encode(byte[] formDefBytes) {
+        return Base64.encodeBase64String(formDefBytes);
     }
 
     public static FormDef deserialize(String serializedFormDef)
             throws IOException, DeserializationException {
-        byte[] sessionBytes = Base64.decodeBase64(serializedFormDef);
-        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(sessionBytes));
+        return deserialize(decode(serializedFormDef));
+    }
+
+    /**
+     * @return the externalized form def held by a serialized form def
+     */
+    public static byte[] decode(String serializedFormDef) {
+        return Base64.decodeBase64(serializedFormDef);
+    }
+
+    public static FormDef deserialize(byte[] formDefBytes)
+            throws IOException, DeserializationException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(formDefBytes));
         FormDef formDef = new FormDef();
         formDef.readExternal(inputStream, PrototypeManager.getDefault());
         return formDef;
@@ -0,0 +1,82 @@
+package org.commcare.formplayer.web.client;
+
+import org.commcare.formplayer.util.BoundedPipeInputStream;
+import org.javarosa.core.model.condition.RequestAbandonedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Response of an HTTP request whose body is downloaded on a background thread while the caller
+ * reads it. See WebClient.getStreaming
+ */
+public class StreamingResponse {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final CompletableFuture<ResponseEntity<Void>> head = new CompletableFuture<>();
+    private final BoundedPipeInputStream body;
+
+    StreamingResponse(long maxBufferedBytes) {
+        body = new BoundedPipeInputStream(maxBufferedBytes);
+    }
+
+    /**
+     * Copies the response into the buffer, blocking while the reader is behind. Bodies that are
+     * still gzip encoded, i.e. that the HTTP client did not decode itself, are decoded here.
+     */
+    Void readFrom(ClientHttpResponse response) throws IOException {
+        head.complete(ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders()).build());
+        InputStream inputStream = response.getBody();
+        if ("gzip".equalsIgnoreCase(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))) {
+            inputStream = new GZIPInputStream(inputStream, CHUNK_SIZE);
+        }
+        body.writeFrom(inputStream, CHUNK_SIZE);
+        body.finish();
+        return null;
+    }
+
+    void fail(Throwable throwable) {
+        head.completeExceptionally(throwable);
+        body.fail(throwable);
+    }
+
+    void setOnClose(Runnable onClose) {
+        body.setOnClose(onClose);
+    }
+
+    /**
+     * Waits for the status line and headers of the response
+     *
+     * @return the response status and headers, without a body
+     * @throws RequestAbandonedException if the calling thread is interrupted while waiting
+     */
+    public ResponseEntity<Void> getHead() {
+        try {
+            return head.get();
+        } catch (InterruptedException e) {
+            body.close();
+            throw new RequestAbandonedException();
+        } catch (ExecutionException e) {
+            body.close();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the response body, which must be closed to release the connection if it is not
+     * read to the end
+     */
+    public BoundedPipeInputStream getBody() {
+        return body;
+    }
+}
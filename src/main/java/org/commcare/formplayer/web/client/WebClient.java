@@ -5,18 +5,29 @@ import com.google.common.collect.Multimap;
 import org.commcare.formplayer.services.RestoreFactory;
 import org.commcare.formplayer.util.RequestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URI;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.apachecommons.CommonsLog;
 
 @Component
@@ -27,6 +38,27 @@ public class WebClient {
 
     RestoreFactory restoreFactory;
 
+    // downloads beyond this many wait for a thread, their callers block until the response starts
+    @Value("${formplayer.streaming.maxDownloads:64}")
+    private int maxStreamingDownloads = 64;
+
+    private ThreadPoolExecutor streamingExecutor;
+
+    @PostConstruct
+    public void init() {
+        streamingExecutor = new ThreadPoolExecutor(maxStreamingDownloads, maxStreamingDownloads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), streamingThreadFactory());
+        streamingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (streamingExecutor != null) {
+            // interrupting the downloads fails their responses
+            streamingExecutor.shutdownNow();
+        }
+    }
+
     public String get(String url) {
         URI uri = URI.create(url);
         return get(uri, String.class);
@@ -54,6 +86,60 @@ public class WebClient {
         return response;
     }
 
+    /**
+     * Starts a GET request whose body is downloaded on a background thread into a buffer of at
+     * most maxBufferedBytes, so the caller can process the body while it is still downloading.
+     *
+     * The request headers are passed in rather than taken from the RestoreFactory since that is
+     * scoped to the calling request. Closing the response body cancels the download.
+     */
+    public StreamingResponse getStreaming(URI uri, HttpHeaders headers, long maxBufferedBytes) {
+        return executeStreaming(uri, HttpMethod.GET, request -> request.getHeaders().addAll(headers),
+                "", maxBufferedBytes);
+    }
+
+    /**
+     * Streaming variant of postFormData, see getStreaming
+     */
+    public StreamingResponse postFormDataStreaming(String url, Multimap<String, String> data,
+            long maxBufferedBytes) {
+        checkHmac();
+        URI uri = URI.create(url);
+        LinkedMultiValueMap<String, String> postData = new LinkedMultiValueMap<>();
+        data.forEach(postData::add);
+
+        HttpHeaders headers = restoreFactory.getRequestHeaders(uri);
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        RequestCallback requestCallback = restTemplate.httpEntityCallback(new HttpEntity<>(postData, headers));
+        return executeStreaming(uri, HttpMethod.POST, requestCallback,
+                String.format(". Request body '%s'", postData), maxBufferedBytes);
+    }
+
+    private StreamingResponse executeStreaming(URI uri, HttpMethod method, RequestCallback requestCallback,
+            String logSuffix, long maxBufferedBytes) {
+        StreamingResponse response = new StreamingResponse(maxBufferedBytes);
+        Future<?> download = streamingExecutor.submit(() -> {
+            try {
+                restTemplate.execute(uri, method, requestCallback,
+                        clientResponse -> {
+                            log.info(String.format("HTTP %s to '%s'. Response %s%s", method, uri,
+                                    clientResponse.getStatusCode(), logSuffix));
+                            return response.readFrom(clientResponse);
+                        });
+            } catch (Throwable e) {
+                response.fail(e);
+            }
+        });
+        response.setOnClose(() -> download.cancel(true));
+        return response;
+    }
+
+    private static CustomizableThreadFactory streamingThreadFactory() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("streaming-download-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
     public <T> String post(String url, T body) {
         return post(url, body, false);
     }
@@ -0,0 +1,110 @@
+package org.commcare.formplayer.configuration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import org.commcare.formplayer.util.CacheWeigher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleCacheManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CacheConfigurationTest {
+
+    private CacheConfiguration cacheConfiguration;
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        Map<String, CacheConfiguration.CacheSpec> specs = new HashMap<>();
+        CacheConfiguration.CacheSpec weighted = new CacheConfiguration.CacheSpec();
+        weighted.setExpireAfterAccess(300);
+        weighted.setExpireAfterWrite(300);
+        weighted.setMaximumWeight(1048576L);
+        specs.put("weighted", weighted);
+        CacheConfiguration.CacheSpec sized = new CacheConfiguration.CacheSpec();
+        sized.setExpireAfterAccess(300);
+        sized.setExpireAfterWrite(300);
+        specs.put("sized", sized);
+
+        cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setSpecs(specs);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void maximumWeightReplacesMaximumSize() {
+        CacheManager cacheManager = newCacheManager(meterRegistry);
+
+        Policy.Eviction<Object, Object> weighted = getNativeCache(cacheManager, "weighted").policy()
+                .eviction().orElseThrow();
+        assertTrue(weighted.isWeighted());
+        assertEquals(1048576L, weighted.getMaximum());
+
+        Policy.Eviction<Object, Object> sized = getNativeCache(cacheManager, "sized").policy()
+                .eviction().orElseThrow();
+        assertFalse(sized.isWeighted());
+        assertEquals(500L, sized.getMaximum());
+    }
+
+    @Test
+    void statsAreRecordedForEveryCache() {
+        CacheManager cacheManager = newCacheManager(meterRegistry);
+
+        for (String name : new String[]{"weighted", "sized"}) {
+            Cache<Object, Object> cache = getNativeCache(cacheManager, name);
+            assertTrue(cache.policy().isRecordingStats());
+            cache.getIfPresent("missing");
+            assertEquals(1, cache.stats().missCount());
+        }
+    }
+
+    @Test
+    void weightedSizeIsGaugedOnTheInjectedRegistry() {
+        CacheManager cacheManager = newCacheManager(meterRegistry);
+        Cache<Object, Object> cache = getNativeCache(cacheManager, "weighted");
+        cache.put("key", "value");
+        cache.cleanUp();
+
+        Gauge gauge = meterRegistry.find("cache.weighted_size").tag("cache", "weighted").gauge();
+        assertEquals((double)CacheWeigher.estimate("value"), gauge.value());
+        assertNull(meterRegistry.find("cache.weighted_size").tag("cache", "sized").gauge());
+    }
+
+    @Test
+    void cachesAreBuiltWithoutARegistry() {
+        CacheManager cacheManager = newCacheManager(null);
+        assertTrue(getNativeCache(cacheManager, "weighted").policy().eviction().isPresent());
+    }
+
+    private CacheManager newCacheManager(MeterRegistry meterRegistry) {
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        if (meterRegistry != null) {
+            beanFactory.addBean("meterRegistry", meterRegistry);
+        }
+        ObjectProvider<MeterRegistry> meterRegistryProvider = beanFactory.getBeanProvider(MeterRegistry.class);
+        CacheManager cacheManager = cacheConfiguration.cacheManager(Ticker.systemTicker(), meterRegistryProvider);
+        ((SimpleCacheManager)cacheManager).afterPropertiesSet();
+        return cacheManager;
+    }
+
+    private static Cache<Object, Object> getNativeCache(CacheManager cacheManager, String name) {
+        return ((CaffeineCache)cacheManager.getCache(name)).getNativeCache();
+    }
+}
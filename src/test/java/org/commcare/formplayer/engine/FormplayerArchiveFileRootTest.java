@@ -0,0 +1,100 @@
+package org.commcare.formplayer.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+import org.javarosa.core.reference.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+class FormplayerArchiveFileRootTest {
+
+    @TempDir
+    File dir;
+
+    private FormplayerArchiveFileRoot archiveFileRoot;
+    private ValueOperations<String, String> archiveNames;
+
+    @BeforeEach
+    void setUp() {
+        StringRedisTemplate redisTemplate = Mockito.mock(StringRedisTemplate.class);
+        archiveNames = Mockito.mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(archiveNames);
+
+        archiveFileRoot = new FormplayerArchiveFileRoot();
+        ReflectionTestUtils.setField(archiveFileRoot, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(archiveFileRoot, "maxSize", 10L);
+        ReflectionTestUtils.setField(archiveFileRoot, "hotEntryReads", 0);
+        ReflectionTestUtils.setField(archiveFileRoot, "hotEntryBytes", 1024L);
+        archiveFileRoot.init();
+    }
+
+    /**
+     * Ensures that a reference derived before its archive left the pool reads the archive of its
+     * GUID that is opened again, e.g. during a long install
+     */
+    @Test
+    void referencesOpenTheArchiveAgainOnceItLeavesThePool() throws Exception {
+        ZipFile zip = new ZipFile(makeZip());
+        when(archiveNames.get(anyString())).thenReturn(zip.getName());
+        String guid = archiveFileRoot.addArchiveFile(zip, "app");
+        Reference reference = archiveFileRoot.derive("jr://archive/" + guid + "/suite.xml");
+
+        getArchives().invalidateAll();
+        awaitClosed(zip);
+
+        assertTrue(reference.doesBinaryExist());
+        try (InputStream stream = reference.getStream()) {
+            assertEquals("<suite/>", new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(1, getArchives().estimatedSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cache<String, PooledArchive> getArchives() {
+        return (Cache<String, PooledArchive>)ReflectionTestUtils.getField(archiveFileRoot, "archives");
+    }
+
+    /**
+     * Waits for the pool's removal listener, which runs asynchronously, to close the zip
+     */
+    private static void awaitClosed(ZipFile zip) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            try {
+                zip.getEntry("suite.xml");
+            } catch (IllegalStateException e) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The archive was not closed");
+    }
+
+    private File makeZip() throws IOException {
+        File file = new File(dir, "app.ccz");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("suite.xml"));
+            out.write("<suite/>".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return file;
+    }
+}
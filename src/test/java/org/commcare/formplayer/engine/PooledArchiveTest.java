@@ -0,0 +1,119 @@
+package org.commcare.formplayer.engine;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+class PooledArchiveTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void entriesAreReadFromTheBlobOnceHot() throws IOException {
+        PooledArchive archive = new PooledArchive(new ZipFile(makeZip()), 2, new AtomicLong(1024));
+        try {
+            assertNull(archive.openHotEntry("suite.xml"));
+            try (InputStream hotEntry = archive.openHotEntry("suite.xml")) {
+                assertNotNull(hotEntry);
+                assertEquals("<suite/>", new String(hotEntry.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            try (InputStream hotEntry = archive.openHotEntry("suite.xml")) {
+                assertEquals("<suite/>", new String(hotEntry.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            archive.release();
+        }
+    }
+
+    @Test
+    void entriesOverTheBlobSizeAreReadFromTheZip() throws IOException {
+        PooledArchive archive = new PooledArchive(new ZipFile(makeZip()), 1, new AtomicLong(4));
+        try {
+            assertNull(archive.openHotEntry("suite.xml"));
+            assertNull(archive.openHotEntry("missing.xml"));
+        } finally {
+            archive.release();
+        }
+    }
+
+    @Test
+    void archivesShareTheHotEntryBudget() throws IOException {
+        AtomicLong budget = new AtomicLong(10);
+        PooledArchive first = new PooledArchive(new ZipFile(makeZip()), 1, budget);
+        PooledArchive second = new PooledArchive(new ZipFile(makeZip()), 1, budget);
+        try {
+            assertNotNull(first.openHotEntry("suite.xml"));
+            assertNull(second.openHotEntry("suite.xml"));
+            assertEquals(2, budget.get());
+
+            first.release();
+            assertEquals(10, budget.get());
+            // not extracted again once it couldn't be
+            assertNull(second.openHotEntry("suite.xml"));
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
+    @Test
+    void entriesAreNotExtractedWhenDisabled() throws IOException {
+        PooledArchive archive = new PooledArchive(new ZipFile(makeZip()), 0, new AtomicLong(1024));
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertNull(archive.openHotEntry("suite.xml"));
+            }
+        } finally {
+            archive.release();
+        }
+    }
+
+    @Test
+    void archiveIsClosedOnceItsStreamsAreClosed() throws IOException {
+        ZipFile zip = new ZipFile(makeZip());
+        PooledArchive archive = new PooledArchive(zip, 0, new AtomicLong(1024));
+        InputStream entry = archive.openEntry("suite.xml");
+        // dropped from the pool while the entry is read
+        archive.release();
+        assertEquals("<suite/>", new String(entry.readAllBytes(), StandardCharsets.UTF_8));
+        entry.close();
+
+        assertNull(archive.openEntry("suite.xml"));
+        assertNull(archive.hasEntry("suite.xml"));
+        assertThrows(IllegalStateException.class, () -> zip.getEntry("suite.xml"));
+    }
+
+    @Test
+    void archiveIsClosedWhenItLeavesThePoolUnread() throws IOException {
+        ZipFile zip = new ZipFile(makeZip());
+        PooledArchive archive = new PooledArchive(zip, 0, new AtomicLong(1024));
+        assertEquals(true, archive.hasEntry("suite.xml"));
+        archive.release();
+        assertThrows(IllegalStateException.class, () -> zip.getEntry("suite.xml"));
+    }
+
+    private File makeZip() throws IOException {
+        File file = new File(dir, "app.ccz");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("suite.xml"));
+            out.write("<suite/>".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,102 @@
+package org.commcare.formplayer.installers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.when;
+
+import org.commcare.formplayer.engine.ClasspathFileReference;
+import org.commcare.formplayer.engine.ClasspathFileRoot;
+import org.commcare.formplayer.engine.ParallelResourceParser;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceInstaller;
+import org.commcare.resources.model.ResourceLocation;
+import org.commcare.resources.model.ResourceTable;
+import org.javarosa.core.reference.ReferenceHandler;
+import org.javarosa.core.reference.ReferenceManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Vector;
+
+class PreparsedResourcesTest {
+
+    private ParallelResourceParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new ParallelResourceParser();
+        ReflectionTestUtils.setField(parser, "parallelism", 2);
+        parser.init();
+        ReferenceManager.instance().addReferenceFactory(new ClasspathFileRoot());
+    }
+
+    @AfterEach
+    void tearDown() {
+        PreparsedResources.clear();
+        parser.shutdown();
+        ReferenceHandler.clearInstance();
+    }
+
+    @Test
+    void installersTakeTheParsedChildrenOfAResourceOnce() {
+        PreparsedResources.set(new PreparsedResources(parser));
+        installSuite(
+                child(new FormplayerXFormInstaller(), Resource.RESOURCE_AUTHORITY_LOCAL, "./xforms/basic.xml"),
+                child(new FormplayerLocaleInstaller("default"), Resource.RESOURCE_AUTHORITY_LOCAL,
+                        "./formplayer_translatable_strings.txt"));
+
+        assertNotNull(PreparsedResources.takeForm("jr://springfile/./xforms/basic.xml"));
+        assertNull(PreparsedResources.takeForm("jr://springfile/./xforms/basic.xml"));
+        Hashtable<String, String> localeTable =
+                PreparsedResources.takeLocaleTable("jr://springfile/./formplayer_translatable_strings.txt");
+        assertEquals("Invalid form display condition (${0}): ${1}",
+                localeTable.get("app.menu.display.cond.bad.xpath"));
+    }
+
+    @Test
+    void unparseableFormsAreLeftToTheInstaller() {
+        PreparsedResources.set(new PreparsedResources(parser));
+        installSuite(child(new FormplayerXFormInstaller(), Resource.RESOURCE_AUTHORITY_LOCAL,
+                "./formplayer_translatable_strings.txt"));
+
+        assertNull(PreparsedResources.takeForm("jr://springfile/./formplayer_translatable_strings.txt"));
+    }
+
+    @Test
+    void remoteResourcesAreLeftToTheInstaller() {
+        PreparsedResources.set(new PreparsedResources(parser));
+        installSuite(child(new FormplayerXFormInstaller(), Resource.RESOURCE_AUTHORITY_REMOTE,
+                "./xforms/basic.xml"));
+
+        assertNull(PreparsedResources.takeForm("jr://springfile/./xforms/basic.xml"));
+    }
+
+    @Test
+    void nothingIsTakenWithoutParsedResources() {
+        installSuite(child(new FormplayerLocaleInstaller("default"), Resource.RESOURCE_AUTHORITY_LOCAL,
+                "./formplayer_translatable_strings.txt"));
+
+        assertNull(PreparsedResources.takeLocaleTable("jr://springfile/./formplayer_translatable_strings.txt"));
+    }
+
+    private void installSuite(Resource... children) {
+        Resource suite = Mockito.mock(Resource.class);
+        when(suite.getRecordGuid()).thenReturn("suite");
+        ResourceTable table = Mockito.mock(ResourceTable.class);
+        when(table.getResourcesForParent("suite")).thenReturn(new Vector<>(Arrays.asList(children)));
+        PreparsedResources.parseChildren(suite, new ClasspathFileReference("suite.xml"), table);
+    }
+
+    private Resource child(ResourceInstaller installer, int authority, String location) {
+        Resource child = Mockito.mock(Resource.class);
+        when(child.getInstaller()).thenReturn(installer);
+        when(child.getLocations()).thenReturn(new Vector<>(Arrays.asList(new ResourceLocation(authority, location))));
+        return child;
+    }
+}
@@ -4,7 +4,7 @@ import org.commcare.formplayer.objects.SerializableFormDefinition
 import org.commcare.formplayer.objects.SerializableFormSession
 import org.commcare.formplayer.services.FormDefinitionService
 import org.commcare.formplayer.session.FormSession
-import org.commcare.formplayer.util.serializer.FormDefStringSerializer
+import org.commcare.formplayer.util.serializer.FormDefBinarySerializer
 import org.javarosa.core.model.FormDef
 import org.junit.jupiter.api.extension.BeforeAllCallback
 import org.junit.jupiter.api.extension.BeforeEachCallback
@@ -54,14 +54,13 @@ class FormDefSessionServiceExtension : BeforeAllCallback, BeforeEachCallback {
                     }
                 }
                 // else create a new one
-                val serializedFormDef: String? = try {
-                    FormDefStringSerializer.serialize(invocation.arguments[3] as FormDef)
+                val serializableFormDef = try {
+                    SerializableFormDefinition(
+                        appId, appVersion, xmlns, FormDefBinarySerializer.serialize(invocation.arguments[3] as FormDef)
+                    )
                 } catch (ex: IOException) {
-                    "could not serialize provided form def"
+                    SerializableFormDefinition(appId, appVersion, xmlns, "could not serialize provided form def")
                 }
-                val serializableFormDef = SerializableFormDefinition(
-                    appId, appVersion, xmlns, serializedFormDef
-                )
                 if (serializableFormDef.id == null) {
                     // this is normally taken care of by Hibernate
                     ReflectionTestUtils.setField(serializableFormDef, "id", currentFormDefinitionId)
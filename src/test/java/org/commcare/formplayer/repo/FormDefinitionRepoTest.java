@@ -80,4 +80,25 @@ public class FormDefinitionRepoTest {
         assertThat(fetchedFormDef.getFormVersion()).isEqualTo("formVersion");
         assertThat(fetchedFormDef.getDateCreated()).isEqualTo(formDef.getDateCreated());
     }
+
+    @Test
+    public void testAddCompressedFormDefClearsText() {
+        SerializableFormDefinition formDef = new SerializableFormDefinition(
+                "appId",
+                "formXmlns",
+                "formVersion",
+                "formDef"
+        );
+        formDefinitionRepo.saveAndFlush(formDef);
+        byte[] compressedFormDef = new byte[]{1, 2, 3};
+
+        assertThat(formDefinitionRepo.addCompressedFormDef(formDef.getId(), compressedFormDef)).isEqualTo(1);
+        // rows that are already migrated are left alone
+        assertThat(formDefinitionRepo.addCompressedFormDef(formDef.getId(), new byte[]{4})).isEqualTo(0);
+
+        entityManager.clear();
+        SerializableFormDefinition loaded = formDefinitionRepo.findById(formDef.getId()).get();
+        assertThat(loaded.getSerializedFormDef()).isNull();
+        assertThat(loaded.getCompressedFormDef()).isEqualTo(compressedFormDef);
+    }
 }
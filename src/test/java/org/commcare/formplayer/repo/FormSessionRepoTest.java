@@ -5,6 +5,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
+import org.commcare.formplayer.objects.AnswerLogConverter;
+import org.commcare.formplayer.objects.AnswerLogEntry;
 import org.commcare.formplayer.objects.FormSessionListView;
 import org.commcare.formplayer.objects.FunctionHandler;
 import org.commcare.formplayer.objects.SerializableFormDefinition;
@@ -25,6 +27,7 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -176,6 +179,30 @@ public class FormSessionRepoTest {
         assertThat(session.getInitLang()).isEqualTo("newlang");
     }
 
+    @Test
+    public void testAppendAnswerLog() {
+        SerializableFormSession session = getSession();
+        session.appendAnswerLog(Collections.singletonList(AnswerLogEntry.newRepeat("1_0")), "xml");
+        formSessionRepo.saveAndFlush(session);
+        int version = session.getVersion();
+        byte[] entries = AnswerLogConverter.encode(Collections.singletonList(
+                AnswerLogEntry.answer("1_0,0", "yes")));
+
+        assertThat(formSessionRepo.appendAnswerLog(session.getId(), version, version + 1, entries,
+                "1_0,0", "title", "fr")).isEqualTo(1);
+        // the write is guarded by the version it was made from
+        assertThat(formSessionRepo.appendAnswerLog(session.getId(), version, version + 1, entries,
+                "1_0,0", "title", "fr")).isEqualTo(0);
+        entityManager.clear();
+
+        SerializableFormSession loaded = formSessionRepo.findById(session.getId()).get();
+        assertThat(loaded.getVersion()).isEqualTo(version + 1);
+        assertThat(loaded.getCurrentIndex()).isEqualTo("1_0,0");
+        assertThat(loaded.getAnswerLog()).extracting(AnswerLogEntry::toString)
+                .containsExactly("NEW_REPEAT 1_0", "ANSWER 1_0,0=yes");
+        assertThat(loaded.getUnpersistedAnswerLog()).isEmpty();
+    }
+
     @Test
     public void testDeleteByDateCreatedLessThan() {
         Instant now = Instant.now();
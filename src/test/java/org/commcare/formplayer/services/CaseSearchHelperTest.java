@@ -0,0 +1,179 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.timgroup.statsd.StatsDClient;
+
+import org.commcare.formplayer.database.models.FormplayerCaseIndexTable;
+import org.commcare.formplayer.junit.InitializeStaticsExtension;
+import org.commcare.formplayer.sandbox.CaseSearchSqlSandbox;
+import org.commcare.formplayer.sqlitedb.CaseSearchDB;
+import org.commcare.formplayer.util.BoundedPipeInputStream;
+import org.commcare.formplayer.util.FormplayerPropertyManager;
+import org.commcare.formplayer.web.client.StreamingResponse;
+import org.commcare.formplayer.web.client.WebClient;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.ExternalDataInstanceSource;
+import org.javarosa.core.model.instance.TreeElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+@ExtendWith(InitializeStaticsExtension.class)
+class CaseSearchHelperTest {
+
+    private static final String DOMAIN = "case-search-helper-test";
+    private static final String USERNAME = "test";
+    private static final String URL = "http://localhost:8000/a/test/phone/search/";
+
+    private CaseSearchHelper caseSearchHelper;
+    private WebClient webClient;
+
+    @BeforeEach
+    void setUp() {
+        RestoreFactory restoreFactory = Mockito.mock(RestoreFactory.class);
+        when(restoreFactory.getDomain()).thenReturn(DOMAIN);
+        when(restoreFactory.getUsername()).thenReturn(USERNAME);
+        when(restoreFactory.getScrubbedUsername()).thenReturn(USERNAME);
+        webClient = Mockito.mock(WebClient.class);
+        when(webClient.postFormData(anyString(), any())).thenAnswer(invocation -> {
+            Multimap<String, String> data = invocation.getArgument(1);
+            return buildResults(Integer.parseInt(data.get("size").iterator().next()));
+        });
+
+        caseSearchHelper = new CaseSearchHelper();
+        caseSearchHelper.cacheManager = new CaffeineCacheManager("case_search");
+        ReflectionTestUtils.setField(caseSearchHelper, "restoreFactory", restoreFactory);
+        ReflectionTestUtils.setField(caseSearchHelper, "webClient", webClient);
+        ReflectionTestUtils.setField(caseSearchHelper, "datadogStatsDClient", Mockito.mock(StatsDClient.class));
+
+        FormplayerPropertyManager propertyManager = Mockito.mock(FormplayerPropertyManager.class);
+        when(propertyManager.isIndexCaseSearchResults()).thenReturn(true);
+        FormplayerStorageFactory storageFactory = Mockito.mock(FormplayerStorageFactory.class);
+        when(storageFactory.getPropertyManager()).thenReturn(propertyManager);
+        ReflectionTestUtils.setField(caseSearchHelper, "storageFactory", storageFactory);
+    }
+
+    @AfterEach
+    void tearDown() {
+        new CaseSearchDB(DOMAIN, USERNAME, null).deleteDatabaseFolder();
+    }
+
+    @Test
+    void cachedResultsAreNotSharedBetweenRequests() throws Exception {
+        AbstractTreeElement root = getRoot("results", 10);
+        assertEquals(10, root.getNumChildren());
+        AbstractTreeElement cachedRoot = getRoot("results", 10);
+        assertNotSame(root, cachedRoot);
+        assertEquals(10, cachedRoot.getNumChildren());
+        verify(webClient, times(1)).postFormData(anyString(), any());
+    }
+
+    @Test
+    void cachedResultsAreNotModifiedByRequests() throws Exception {
+        TreeElement root = (TreeElement)getRoot("results", 10);
+        root.setInstanceName("modified");
+        root.removeChildAt(0);
+        TreeElement cachedRoot = (TreeElement)getRoot("results", 10);
+        assertEquals("results", cachedRoot.getInstanceName());
+        assertEquals(10, cachedRoot.getNumChildren());
+    }
+
+    @Test
+    void streamedResultsAreWrittenInBatchesAndIndexed() throws Exception {
+        ReflectionTestUtils.setField(caseSearchHelper, "streamingSearch", true);
+        ReflectionTestUtils.setField(caseSearchHelper, "writeBatchSize", 2);
+        String results = "<results id=\"case\">"
+                + caseXml("host", "")
+                + caseXml("extension-1", "<index><host case_type=\"patient\" relationship=\"extension\">"
+                + "host</host></index>")
+                + caseXml("extension-2", "<index><host case_type=\"patient\" relationship=\"extension\">"
+                + "host</host></index>")
+                + "</results>";
+        mockStreamingResponse(results);
+
+        AbstractTreeElement root = getIndexedRoot();
+        assertEquals(3, root.getNumChildren());
+        assertEquals(2, getIndexTable().getCasesMatchingIndex("host", "host").size());
+    }
+
+    @Test
+    void repeatedCasesInABatchAreWrittenOnce() throws Exception {
+        ReflectionTestUtils.setField(caseSearchHelper, "streamingSearch", true);
+        ReflectionTestUtils.setField(caseSearchHelper, "writeBatchSize", 10);
+        String results = "<results id=\"case\">"
+                + caseXml("host", "")
+                + caseXml("repeated", "")
+                + caseXml("repeated", "<index><host case_type=\"patient\" relationship=\"extension\">"
+                + "host</host></index>")
+                + "</results>";
+        mockStreamingResponse(results);
+
+        AbstractTreeElement root = getIndexedRoot();
+        assertEquals(2, root.getNumChildren());
+        // the index of the repeated case is the one it was last written with
+        assertEquals(1, getIndexTable().getCasesMatchingIndex("host", "host").size());
+    }
+
+    private void mockStreamingResponse(String body) throws Exception {
+        BoundedPipeInputStream bodyStream = new BoundedPipeInputStream(1024);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        bodyStream.write(bytes, 0, bytes.length);
+        bodyStream.finish();
+        StreamingResponse response = Mockito.mock(StreamingResponse.class);
+        when(response.getHead()).thenReturn(ResponseEntity.ok().build());
+        when(response.getBody()).thenReturn(bodyStream);
+        when(webClient.postFormDataStreaming(anyString(), any(), anyLong())).thenReturn(response);
+    }
+
+    private AbstractTreeElement getIndexedRoot() throws Exception {
+        ExternalDataInstanceSource source = ExternalDataInstanceSource.buildRemote("results", null, true,
+                URL, ImmutableMultimap.of("case_type", "patient"));
+        return caseSearchHelper.getExternalRoot("results", source, false);
+    }
+
+    private FormplayerCaseIndexTable getIndexTable() {
+        String cacheKey = ReflectionTestUtils.invokeMethod(caseSearchHelper, "getCacheKey", URL,
+                ImmutableMultimap.of("case_type", "patient"));
+        String tableName = ReflectionTestUtils.invokeMethod(CaseSearchHelper.class, "evalCaseSearchTableName",
+                cacheKey);
+        CaseSearchSqlSandbox sandbox = new CaseSearchSqlSandbox(tableName, new CaseSearchDB(DOMAIN, USERNAME, null));
+        return new FormplayerCaseIndexTable(sandbox, "case_search_index_storage_" + tableName, tableName, false);
+    }
+
+    private static String caseXml(String caseId, String index) {
+        return String.format("<case case_id=\"%s\" case_type=\"patient\" owner_id=\"owner\" status=\"open\">"
+                + "<case_name>%s</case_name>%s</case>", caseId, caseId, index);
+    }
+
+    private AbstractTreeElement getRoot(String instanceId, int size) throws Exception {
+        ExternalDataInstanceSource source = ExternalDataInstanceSource.buildRemote(instanceId, null, false,
+                URL, ImmutableMultimap.of("case_type", "patient", "size", String.valueOf(size)));
+        return caseSearchHelper.getExternalRoot(instanceId, source, false);
+    }
+
+    private static String buildResults(int size) {
+        StringBuilder builder = new StringBuilder("<results id=\"case\">");
+        for (int i = 0; i < size; i++) {
+            builder.append(String.format("<case case_id=\"case-%d\" case_type=\"patient\" owner_id=\"owner\" "
+                    + "status=\"open\"><case_name>Patient %d</case_name><age>%d</age></case>", i, i, i % 90));
+        }
+        return builder.append("</results>").toString();
+    }
+}
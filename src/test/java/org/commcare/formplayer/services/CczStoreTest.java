@@ -0,0 +1,189 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.commcare.formplayer.engine.FormplayerArchiveFileRoot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class CczStoreTest {
+
+    @TempDir
+    File dir;
+
+    private CczStore store;
+    private FormplayerArchiveFileRoot archiveFileRoot;
+
+    @BeforeEach
+    void setUp() {
+        archiveFileRoot = Mockito.mock(FormplayerArchiveFileRoot.class);
+        store = new CczStore();
+        ReflectionTestUtils.setField(store, "dir", dir.getAbsolutePath());
+        ReflectionTestUtils.setField(store, "archiveFileRoot", archiveFileRoot);
+        ReflectionTestUtils.setField(store, "diskBudgetBytes", 10L);
+        ReflectionTestUtils.setField(store, "downloadTimeoutSeconds", 5L);
+        store.init();
+    }
+
+    @Test
+    void onlyStoredCczsAreDeletedOnStartup() throws Exception {
+        File stored;
+        try (CczStore.Lease lease = store.acquire("app", target -> write(target, "ccz"))) {
+            stored = lease.getFile();
+        }
+        File other = new File(dir, "other.ccz");
+        write(other, "ccz");
+
+        store.init();
+
+        assertFalse(stored.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    void installsWaitForAnotherDownloadUpToTheTimeout() throws Exception {
+        ReflectionTestUtils.setField(store, "downloadTimeoutSeconds", 1L);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = executor.submit(() -> {
+                store.acquire("app", target -> {
+                    started.countDown();
+                    await(release);
+                    write(target, "ccz");
+                }).close();
+            });
+            started.await();
+            assertThrows(RuntimeException.class, () -> store.acquire("app", target -> write(target, "ccz")));
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void concurrentInstallsShareOneDownload() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<File> first = executor.submit(() -> {
+                try (CczStore.Lease lease = store.acquire("app", target -> {
+                    downloads.incrementAndGet();
+                    started.countDown();
+                    await(release);
+                    write(target, "ccz");
+                })) {
+                    return lease.getFile();
+                }
+            });
+            started.await();
+            Future<File> second = executor.submit(() -> {
+                try (CczStore.Lease lease = store.acquire("app", target -> downloads.incrementAndGet())) {
+                    return lease.getFile();
+                }
+            });
+            release.countDown();
+            assertEquals(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, downloads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedDownloadIsRetried() {
+        assertThrows(RuntimeException.class, () -> store.acquire("app", target -> {
+            throw new RuntimeException("Server is too busy. Please try again in a moment.");
+        }));
+        try (CczStore.Lease lease = store.acquire("app", target -> write(target, "ccz"))) {
+            assertTrue(lease.getFile().exists());
+        }
+    }
+
+    @Test
+    void leasedCczsAreKeptOverTheDiskBudget() {
+        File first;
+        try (CczStore.Lease lease = store.acquire("first", target -> write(target, "12345678"))) {
+            first = lease.getFile();
+            try (CczStore.Lease second = store.acquire("second", target -> write(target, "12345678"))) {
+                assertTrue(first.exists());
+                assertTrue(second.getFile().exists());
+            }
+        }
+        try (CczStore.Lease third = store.acquire("third", target -> write(target, "12345678"))) {
+            assertFalse(first.exists());
+            assertTrue(third.getFile().exists());
+        }
+    }
+
+    @Test
+    void diskBudgetIsEnforcedOnceLeasesAreReleased() {
+        File first;
+        File second;
+        try (CczStore.Lease firstLease = store.acquire("first", target -> write(target, "12345678"))) {
+            first = firstLease.getFile();
+            try (CczStore.Lease secondLease = store.acquire("second", target -> write(target, "12345678"))) {
+                second = secondLease.getFile();
+                firstLease.close();
+                // nothing new is downloaded, the CCZ released first is deleted
+                assertFalse(first.exists());
+            }
+        }
+        assertTrue(second.exists());
+    }
+
+    @Test
+    void deletedCczsAreUnregisteredFromTheArchiveRoot() {
+        File first;
+        try (CczStore.Lease lease = store.acquire("first", target -> write(target, "12345678"))) {
+            first = lease.getFile();
+            lease.registerArchive("app");
+        }
+        verify(archiveFileRoot, never()).removeArchiveFile(anyString(), anyString());
+
+        try (CczStore.Lease second = store.acquire("second", target -> write(target, "12345678"))) {
+            assertFalse(first.exists());
+            verify(archiveFileRoot).removeArchiveFile("app", first.getAbsolutePath());
+        }
+    }
+
+    private static void write(File target, String content) {
+        try {
+            Files.writeString(target.toPath(), content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.commcare.formplayer.services;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.timgroup.statsd.StatsDClient;
+
+import org.apache.commons.io.IOUtils;
+import org.commcare.formplayer.sandbox.JdbcSqlStorageIterator;
+import org.commcare.formplayer.sandbox.SqlStorage;
+import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.formplayer.utils.FileUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleCacheManager;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+class FormDefPrewarmServiceTest {
+
+    private FormDefPrewarmService prewarmService;
+    private FormplayerStorageFactory storageFactory;
+    private FormDefinitionService formDefinitionService;
+    private FormplayerReentrantLock lock;
+    private CaffeineCache formDefinitionCache;
+    private FormDef first;
+    private FormDef second;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        first = loadFormDef("xforms/hidden_value_form.xml");
+        second = loadFormDef("xforms/basic.xml");
+        JdbcSqlStorageIterator<FormDef> iterator = Mockito.mock(JdbcSqlStorageIterator.class);
+        when(iterator.hasMore()).thenReturn(true, true, false);
+        when(iterator.nextRecord()).thenReturn(first, second);
+        SqlStorage<FormDef> storage = Mockito.mock(SqlStorage.class);
+        when(storage.iterate()).thenReturn(iterator);
+        storageFactory = Mockito.mock(FormplayerStorageFactory.class);
+        when(storageFactory.newStorage(FormDef.STORAGE_KEY, FormDef.class)).thenReturn(storage);
+        when(storageFactory.getSQLiteDB()).thenReturn(Mockito.mock(SQLiteDB.class));
+
+        lock = Mockito.mock(FormplayerReentrantLock.class);
+        when(lock.tryLock(Constants.USER_LOCK_TIMEOUT, TimeUnit.SECONDS)).thenReturn(true);
+        FormplayerLockRegistry userLockRegistry = Mockito.mock(FormplayerLockRegistry.class);
+        when(userLockRegistry.obtain("worker")).thenReturn(lock);
+
+        formDefinitionCache = new CaffeineCache("form_definition", Caffeine.newBuilder()
+                .executor(Runnable::run)
+                .maximumWeight(100)
+                .<Object, Object>weigher((key, value) -> 60)
+                .build());
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(Collections.singletonList(formDefinitionCache));
+        cacheManager.afterPropertiesSet();
+
+        formDefinitionService = Mockito.mock(FormDefinitionService.class);
+        prewarmService = new FormDefPrewarmService();
+        ReflectionTestUtils.setField(prewarmService, "enabled", true);
+        ReflectionTestUtils.setField(prewarmService, "workers", 1);
+        ReflectionTestUtils.setField(prewarmService, "maxQueued", 10);
+        ReflectionTestUtils.setField(prewarmService, "maxTrackedBuilds", 10L);
+        ReflectionTestUtils.setField(prewarmService, "maxCacheShare", 0.5);
+        ReflectionTestUtils.setField(prewarmService, "storageFactory", storageFactory);
+        ReflectionTestUtils.setField(prewarmService, "formDefinitionService", formDefinitionService);
+        ReflectionTestUtils.setField(prewarmService, "userLockRegistry", userLockRegistry);
+        ReflectionTestUtils.setField(prewarmService, "cacheManager", cacheManager);
+        ReflectionTestUtils.setField(prewarmService, "datadogStatsDClient", Mockito.mock(StatsDClient.class));
+        prewarmService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        prewarmService.shutdown();
+    }
+
+    @Test
+    void formsAreReadUnderTheUserLockAndRegistered() throws Exception {
+        prewarmForms();
+
+        InOrder inOrder = inOrder(lock, storageFactory, formDefinitionService);
+        inOrder.verify(lock).tryLock(Constants.USER_LOCK_TIMEOUT, TimeUnit.SECONDS);
+        inOrder.verify(storageFactory).configure("worker", "domain", "app", null);
+        inOrder.verify(lock).unlock();
+        // parsing and storing the forms doesn't hold up the user's requests
+        inOrder.verify(formDefinitionService).getOrCreateFormDefinition("app", first.getMainInstance().schema,
+                "12", first);
+        inOrder.verify(formDefinitionService).prewarmFormDef(eq("app"), eq(first.getMainInstance().schema),
+                eq("12"), eq(first), any());
+        inOrder.verify(formDefinitionService).getOrCreateFormDefinition("app", second.getMainInstance().schema,
+                "12", second);
+    }
+
+    @Test
+    void formsAreNotReadWithoutTheUserLock() throws Exception {
+        when(lock.tryLock(Constants.USER_LOCK_TIMEOUT, TimeUnit.SECONDS)).thenReturn(false);
+
+        prewarmForms();
+
+        verify(storageFactory, never()).configure("worker", "domain", "app", null);
+        verify(lock, never()).unlock();
+        verifyNoInteractions(formDefinitionService);
+    }
+
+    @Test
+    void prewarmingStopsAtItsShareOfTheCache() {
+        formDefinitionCache.put("in use", "form definition");
+
+        prewarmForms();
+
+        verifyNoInteractions(formDefinitionService);
+    }
+
+    private void prewarmForms() {
+        ReflectionTestUtils.invokeMethod(prewarmService, "prewarmForms", "worker", "domain", "app", null, "12");
+    }
+
+    private FormDef loadFormDef(String path) throws Exception {
+        String formXml = FileUtils.getFile(this.getClass(), path);
+        return XFormUtils.getFormRaw(new InputStreamReader(IOUtils.toInputStream(formXml, "UTF-8")));
+    }
+}
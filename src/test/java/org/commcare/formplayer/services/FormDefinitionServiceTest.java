@@ -1,27 +1,44 @@
 package org.commcare.formplayer.services;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import static java.util.Optional.ofNullable;
 
 import org.apache.commons.io.IOUtils;
 import org.commcare.formplayer.configuration.CacheConfiguration;
+import org.commcare.formplayer.objects.FormDefTemplate;
+import org.commcare.formplayer.objects.FunctionHandler;
 import org.commcare.formplayer.objects.SerializableFormDefinition;
 import org.commcare.formplayer.objects.SerializableFormSession;
 import org.commcare.formplayer.repo.FormDefinitionRepo;
+import org.commcare.formplayer.util.BackgroundRequestAttributes;
 import org.commcare.formplayer.util.PrototypeUtils;
+import org.commcare.formplayer.util.serializer.FormDefBinarySerializer;
 import org.commcare.formplayer.util.serializer.FormDefStringSerializer;
 import org.commcare.formplayer.utils.FileUtils;
 import org.javarosa.core.api.ClassNameHasher;
 import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xform.util.XFormUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -41,13 +58,18 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.FilterType;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -148,6 +170,8 @@ public class FormDefinitionServiceTest {
                 this.appId, this.formXmlns, this.formVersion, this.formDef
         );
         assertNotNull(createdFormDefinition);
+        assertNull(createdFormDefinition.getSerializedFormDef());
+        assertNotNull(createdFormDefinition.getCompressedFormDef());
     }
 
     @Test
@@ -176,6 +200,22 @@ public class FormDefinitionServiceTest {
                 getCachedFormDefinitionModel(this.appId, this.formXmlns, this.formVersion));
     }
 
+    @Test
+    public void testGetOrCreateFormDefinitionStoredConcurrently() {
+        SerializableFormDefinition storedFormDefinition = new SerializableFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, new byte[]{1});
+        when(this.formDefinitionRepo.save(any())).thenAnswer(invocation -> {
+            formDefinitionMap.put(Arrays.asList(this.appId, this.formXmlns, this.formVersion),
+                    storedFormDefinition);
+            throw new DataIntegrityViolationException("duplicate key value violates unique constraint");
+        });
+
+        SerializableFormDefinition formDefinition = this.formDefinitionService.getOrCreateFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, this.formDef
+        );
+        assertSame(storedFormDefinition, formDefinition);
+    }
+
     @Test
     public void testGetOrCreateFormDefinitionNewVersionNotEqual() {
         SerializableFormDefinition formDefinitionV1 = this.formDefinitionService.getOrCreateFormDefinition(
@@ -218,6 +258,158 @@ public class FormDefinitionServiceTest {
         assertThat(getCachedFormDefinition(sessionId)).isNotEmpty();
     }
 
+    @Test
+    public void testGetFormDefSharedBetweenSessions() {
+        SerializableFormDefinition formDefinition = this.formDefinitionService.getOrCreateFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, this.formDef
+        );
+        SerializableFormSession first = new SerializableFormSession(UUID.randomUUID().toString());
+        first.setFormDefinition(formDefinition);
+        SerializableFormSession second = new SerializableFormSession(UUID.randomUUID().toString());
+        second.setFormDefinition(formDefinition);
+
+        try {
+            BackgroundRequestAttributes request = startRequest();
+            FormDef firstFormDef = this.formDefinitionService.getFormDef(first);
+            FormDef secondFormDef = this.formDefinitionService.getFormDef(second);
+            // leased form defs are never used by two sessions at once
+            assertNotSame(firstFormDef, secondFormDef);
+            request.requestCompleted();
+
+            request = startRequest();
+            FormDef reusedFormDef = this.formDefinitionService.getFormDef(second);
+            assertTrue(reusedFormDef == firstFormDef || reusedFormDef == secondFormDef);
+            request.requestCompleted();
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        assertThat(getCachedFormDefinition(first.getId())).isEmpty();
+        assertThat(getCachedFormDefinition(second.getId())).isEmpty();
+        assertEquals(2, getCachedTemplate().getIdleCount());
+    }
+
+    @Test
+    public void testGetFormDefWithFunctionContextNotShared() {
+        SerializableFormDefinition formDefinition = this.formDefinitionService.getOrCreateFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, this.formDef
+        );
+        Map<String, FunctionHandler[]> functionContext = new HashMap<>();
+        functionContext.put("static-date", new FunctionHandler[]{new FunctionHandler("today()", "2024-01-01")});
+        SerializableFormSession session = new SerializableFormSession("domain", this.appId, "user", null, null,
+                null, null, "title", false, "en", false, null, functionContext);
+        ReflectionTestUtils.setField(session, "id", UUID.randomUUID().toString());
+        session.setFormDefinition(formDefinition);
+
+        try {
+            startRequest();
+            this.formDefinitionService.getFormDef(session);
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+        assertThat(getCachedFormDefinition(session.getId())).isNotEmpty();
+    }
+
+    @Test
+    public void testLeaseNewFormDefFromPrewarmedTemplate() {
+        try {
+            startRequest();
+            assertNull(this.formDefinitionService.leaseNewFormDef(this.appId, this.formXmlns, this.formVersion));
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        this.formDefinitionService.prewarmFormDef(this.appId, this.formXmlns, this.formVersion, this.formDef,
+                Runnable::run);
+        assertEquals(2, getCachedTemplate().getPristineCount());
+        // pre-warming doesn't store form definitions
+        verify(this.formDefinitionRepo, never()).save(any());
+
+        try {
+            BackgroundRequestAttributes request = startRequest();
+            FormDef first = this.formDefinitionService.leaseNewFormDef(this.appId, this.formXmlns, this.formVersion);
+            FormDef second = this.formDefinitionService.leaseNewFormDef(this.appId, this.formXmlns,
+                    this.formVersion);
+            assertNotNull(first);
+            assertNotSame(first, second);
+            request.requestCompleted();
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        // used copies are replaced by fresh ones and pooled for existing sessions
+        assertEquals(2, getCachedTemplate().getPristineCount());
+        assertEquals(2, getCachedTemplate().getIdleCount());
+    }
+
+    @Test
+    public void testLeasedFormDefDoesNotLeakBetweenSessions() throws Exception {
+        SerializableFormDefinition formDefinition = this.formDefinitionService.getOrCreateFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, this.formDef
+        );
+        SerializableFormSession first = new SerializableFormSession(UUID.randomUUID().toString());
+        first.setFormDefinition(formDefinition);
+        SerializableFormSession second = new SerializableFormSession(UUID.randomUUID().toString());
+        second.setFormDefinition(formDefinition);
+
+        FormDef firstFormDef;
+        try {
+            BackgroundRequestAttributes request = startRequest();
+            firstFormDef = this.formDefinitionService.getFormDef(first);
+            loadSession(firstFormDef, "<favorite_number/><twice_favorite_number/>");
+            TreeElement favoriteNumber = getField(firstFormDef, "favorite_number");
+            firstFormDef.setValue(new IntegerData(10), favoriteNumber.getRef(), true);
+            assertTrue(getField(firstFormDef, "twice_favorite_number").isRelevant());
+            assertEquals("20", getField(firstFormDef, "twice_favorite_number").getValue().uncast().getString());
+            request.requestCompleted();
+
+            request = startRequest();
+            FormDef secondFormDef = this.formDefinitionService.getFormDef(second);
+            assertSame(firstFormDef, secondFormDef);
+            loadSession(secondFormDef, "<favorite_number>9</favorite_number><twice_favorite_number/>");
+            // the answer and relevance of the first session are replaced by those of the second
+            assertEquals("9", getField(secondFormDef, "favorite_number").getValue().uncast().getString());
+            assertFalse(getField(secondFormDef, "twice_favorite_number").isRelevant());
+            request.requestCompleted();
+
+            request = startRequest();
+            FormDef thirdFormDef = this.formDefinitionService.getFormDef(second);
+            assertSame(firstFormDef, thirdFormDef);
+            loadSession(thirdFormDef, "<favorite_number/><twice_favorite_number/>");
+            assertNull(getField(thirdFormDef, "favorite_number").getValue());
+            assertFalse(getField(thirdFormDef, "twice_favorite_number").isRelevant());
+            assertNull(getField(thirdFormDef, "twice_favorite_number").getValue());
+            request.requestCompleted();
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    /**
+     * Loads the instance of a session into a form def, as FormSession does for existing sessions
+     */
+    private void loadSession(FormDef formDef, String fields) throws Exception {
+        String instanceXml = "<data xmlns=\"" + this.formXmlns + "\" uiVersion=\"1\" version=\"1\" "
+                + "name=\"Survey\">" + fields + "</data>";
+        new XFormParser(new StringReader(instanceXml)).loadXmlInstance(formDef, new StringReader(instanceXml));
+        formDef.initialize(false, new InstanceInitializationFactory(), null, false);
+    }
+
+    private static TreeElement getField(FormDef formDef, String name) {
+        return formDef.getMainInstance().getRoot().getChild(name, 0);
+    }
+
+    private static BackgroundRequestAttributes startRequest() {
+        BackgroundRequestAttributes request = new BackgroundRequestAttributes();
+        RequestContextHolder.setRequestAttributes(request);
+        return request;
+    }
+
+    private FormDefTemplate getCachedTemplate() {
+        return this.cacheManager.getCache("form_definition").get(
+                Arrays.asList("template", this.appId, this.formXmlns, this.formVersion), FormDefTemplate.class);
+    }
+
     @Test
     public void testGetFormDefBrokenSerialization() {
         SerializableFormSession session = createSessionWithBrokenFormDef();
@@ -239,8 +431,9 @@ public class FormDefinitionServiceTest {
         SerializableFormDefinition updatedFormDef = this.formDefinitionService.getOrCreateFormDefinition(
                 this.appId, this.formXmlns, this.formVersion, this.formDef
         );
-        assertEquals(updatedFormDef.getSerializedFormDef(),
-                FormDefStringSerializer.serialize(reSerializedFormDef));
+        assertArrayEquals(updatedFormDef.getCompressedFormDef(),
+                FormDefBinarySerializer.serialize(reSerializedFormDef));
+        assertNull(updatedFormDef.getSerializedFormDef());
 
     }
 
@@ -254,9 +447,76 @@ public class FormDefinitionServiceTest {
                 appId, formXmlns, formVersion
         );
         assertTrue(cachedFormDefinition.isPresent());
-        assertEquals(cachedFormDefinition.get().getSerializedFormDef(),
-                FormDefStringSerializer.serialize(reSerializedFormDef));
+        assertArrayEquals(cachedFormDefinition.get().getCompressedFormDef(),
+                FormDefBinarySerializer.serialize(reSerializedFormDef));
+
+    }
+
+    @Test
+    public void testGetFormDefMigratesTextFormDefinition() throws Exception {
+        String serializedFormDef = FormDefStringSerializer.serialize(this.formDef);
+        SerializableFormDefinition formDefinition = new SerializableFormDefinition(
+                this.appId, this.formXmlns, this.formVersion, serializedFormDef);
+        ReflectionTestUtils.setField(formDefinition, "id", 42L);
+        SerializableFormSession session = new SerializableFormSession(UUID.randomUUID().toString());
+        session.setFormDefinition(formDefinition);
+
+        FormDef deserializedFormDef = this.formDefinitionService.getFormDef(session);
+
+        assertEquals(this.formDef.getID(), deserializedFormDef.getID());
+        verify(this.formDefinitionRepo).addCompressedFormDef(42L, FormDefBinarySerializer.serialize(this.formDef));
+        // the definition may be shared with other requests, only its row is updated
+        assertEquals(serializedFormDef, formDefinition.getSerializedFormDef());
+        assertNull(formDefinition.getCompressedFormDef());
+        verify(this.formDefinitionRepo, never()).save(formDefinition);
+
+        // the row is only updated once
+        this.cacheManager.getCache("form_definition").clear();
+        this.formDefinitionService.getFormDef(session);
+        verify(this.formDefinitionRepo, times(1)).addCompressedFormDef(any(), any());
+    }
+
+    /**
+     * Not run as part of the regular tests, run with the "FormDefFormatReport" Gradle task.
+     *
+     * Reports the stored size and read latency of the test forms in the base64 text format and the
+     * compressed binary format.
+     */
+    @Test
+    public void reportFormDefFormats() throws Exception {
+        assumeTrue("true".equals(System.getenv("org.commcare.formplayer.test.benchmark")));
+        int reads = 50;
+        File[] forms = new File(getClass().getClassLoader().getResource("xforms").toURI()).listFiles(
+                (dir, name) -> name.endsWith(".xml"));
+        Arrays.sort(forms);
+        System.out.println(String.format("%-40s %10s %10s %12s %12s",
+                "form", "text", "binary", "text read", "binary read"));
+        for (File form : forms) {
+            FormDef formDef;
+            try {
+                formDef = XFormUtils.getFormRaw(new InputStreamReader(new FileInputStream(form), "UTF-8"));
+            } catch (RuntimeException e) {
+                // some test forms are deliberately invalid
+                continue;
+            }
+            String text = FormDefStringSerializer.serialize(formDef);
+            byte[] binary = FormDefBinarySerializer.serialize(formDef);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                FormDefStringSerializer.deserialize(text);
+            }
+            long textNanos = (System.nanoTime() - start) / reads;
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                FormDefBinarySerializer.deserialize(binary);
+            }
+            long binaryNanos = (System.nanoTime() - start) / reads;
 
+            System.out.println(String.format("%-40s %10d %10d %10.1fus %10.1fus",
+                    form.getName(), text.length(), binary.length, textNanos / 1000.0, binaryNanos / 1000.0));
+            assertTrue(binary.length < text.length());
+        }
     }
 
     public SerializableFormSession createSessionWithBrokenFormDef() {
@@ -264,6 +524,7 @@ public class FormDefinitionServiceTest {
                 this.appId, this.formXmlns, this.formVersion, this.formDef
         );
         ReflectionTestUtils.setField(formDef, "serializedFormDef", "not a form def");
+        ReflectionTestUtils.setField(formDef, "compressedFormDef", null);
 
         formDefinitionRepo.save(formDef);
 
@@ -0,0 +1,114 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.commcare.formplayer.objects.AnswerLogConverter;
+import org.commcare.formplayer.objects.AnswerLogEntry;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.commcare.formplayer.repo.FormSessionRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Tests the reads and writes of form sessions through the shared Redis tier
+ */
+class FormSessionServiceRedisTest {
+
+    private FormSessionService formSessionService;
+    private FormSessionRepo formSessionRepo;
+    private RedisSessionCache redisSessionCache;
+
+    @BeforeEach
+    void setUp() {
+        formSessionRepo = Mockito.mock(FormSessionRepo.class);
+        redisSessionCache = Mockito.mock(RedisSessionCache.class);
+        formSessionService = new FormSessionService();
+        ReflectionTestUtils.setField(formSessionService, "formSessionRepo", formSessionRepo);
+        ReflectionTestUtils.setField(formSessionService, "redisSessionCache", redisSessionCache);
+    }
+
+    @Test
+    void sessionsInRedisAreNotReadFromPostgres() {
+        SerializableFormSession session = session("a", 3);
+        when(redisSessionCache.get("form_session", "a", SerializableFormSession.class)).thenReturn(session);
+
+        assertSame(session, formSessionService.getSessionById("a"));
+        verify(formSessionRepo, never()).findById("a");
+    }
+
+    @Test
+    void missesAreReadFromPostgresAndStoredInRedis() {
+        SerializableFormSession session = session("a", 3);
+        when(formSessionRepo.findById("a")).thenReturn(Optional.of(session));
+
+        assertSame(session, formSessionService.getSessionById("a"));
+        verify(redisSessionCache).put("form_session", "a", 3, session);
+    }
+
+    @Test
+    void savesAreWrittenThroughWithTheSavedVersion() {
+        SerializableFormSession session = session("a", 3);
+        session.setInstanceXml("<data/>");
+        SerializableFormSession savedSession = session("a", 4);
+        when(formSessionRepo.save(session)).thenReturn(savedSession);
+
+        formSessionService.saveSession(session);
+        verify(redisSessionCache).update("form_session", "a", 4, savedSession);
+    }
+
+    @Test
+    void appendedAnswersAreWrittenThroughWithTheNextVersion() {
+        SerializableFormSession session = session("a", 3);
+        AnswerLogEntry answer = AnswerLogEntry.answer("0", "yes");
+        session.appendAnswerLog(Collections.singletonList(answer), "<data>yes</data>");
+        byte[] entries = AnswerLogConverter.encode(Collections.singletonList(answer));
+        when(formSessionRepo.appendAnswerLog(eq("a"), eq(3), eq(4), aryEq(entries), any(), any(), any()))
+                .thenReturn(1);
+
+        assertSame(session, formSessionService.saveSession(session));
+        assertEquals(4, session.getVersion());
+        assertTrue(session.getUnpersistedAnswerLog().isEmpty());
+        verify(formSessionRepo, never()).save(session);
+        verify(redisSessionCache).update("form_session", "a", 4, session);
+    }
+
+    @Test
+    void deletesAreWrittenThrough() {
+        formSessionService.deleteSessionById("a");
+        verify(formSessionRepo).deleteById("a");
+        verify(redisSessionCache).delete("form_session", "a");
+    }
+
+    @Test
+    void purgedSessionsAreDeletedFromRedis() {
+        Instant cutoff = Instant.now();
+        List<String> purgedIds = Arrays.asList("a", "b");
+        when(formSessionRepo.findIdsOlderThan(cutoff)).thenReturn(purgedIds);
+        when(formSessionRepo.deleteSessionsOlderThan(cutoff)).thenReturn(2);
+
+        assertEquals(2, formSessionService.purge(cutoff));
+        verify(redisSessionCache).deleteAll("form_session", purgedIds);
+    }
+
+    private static SerializableFormSession session(String id, int version) {
+        SerializableFormSession session = new SerializableFormSession(id);
+        ReflectionTestUtils.setField(session, "version", version);
+        return session;
+    }
+}
@@ -0,0 +1,235 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.commcare.formplayer.objects.AnswerLogConverter;
+import org.commcare.formplayer.objects.AnswerLogEntry;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+class FormSessionWriteBehindTest {
+
+    private FormSessionWriteBehind writeBehind;
+    private JdbcTemplate jdbcTemplate;
+    private FormplayerLockRegistry lockRegistry;
+    private CacheManager cacheManager;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        lockRegistry = new FormplayerLockRegistry();
+        cacheManager = new CaffeineCacheManager("form_session");
+
+        writeBehind = new FormSessionWriteBehind();
+        ReflectionTestUtils.setField(writeBehind, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(writeBehind, "userLockRegistry", lockRegistry);
+        ReflectionTestUtils.setField(writeBehind, "cacheManager", cacheManager);
+    }
+
+    @Test
+    void deferredSavesAreWrittenOnceFromTheirPersistedVersion() {
+        SerializableFormSession session = makeSession("session");
+        assertTrue(writeBehind.defer(session));
+        assertTrue(writeBehind.defer(session));
+        assertEquals(2, session.getVersion());
+        assertSame(session, writeBehind.get("session"));
+
+        updateCounts(FormSessionWriteBehind.SNAPSHOT_SQL, 1);
+        writeBehind.flushAll();
+
+        assertArrayEquals(new Object[]{"<data/>", null, "0", "title", "en", 2, "session", 0},
+                getParameters(FormSessionWriteBehind.SNAPSHOT_SQL));
+        assertNull(writeBehind.get("session"));
+    }
+
+    @Test
+    void loggedAnswersAreAppendedWithoutTheSnapshot() {
+        SerializableFormSession session = makeSession("session");
+        session.appendAnswerLog(Collections.singletonList(AnswerLogEntry.newRepeat("1_0")), "<data><r/></data>");
+        // as read from the database
+        session.markPersisted();
+        AnswerLogEntry answer = AnswerLogEntry.answer("1_0,0", "yes");
+        session.appendAnswerLog(Collections.singletonList(answer), "<data><r>yes</r></data>");
+        writeBehind.defer(session);
+
+        updateCounts(FormSessionWriteBehind.APPEND_SQL, 1);
+        writeBehind.flushAll();
+
+        // only the entry logged since the session was read
+        Object[] parameters = getParameters(FormSessionWriteBehind.APPEND_SQL);
+        assertArrayEquals(AnswerLogConverter.encode(Collections.singletonList(answer)), (byte[])parameters[0]);
+        assertArrayEquals(new Object[]{"0", "title", "en", 1, "session", 0},
+                Arrays.copyOfRange(parameters, 1, parameters.length));
+        verify(jdbcTemplate, never()).batchUpdate(eq(FormSessionWriteBehind.SNAPSHOT_SQL), anyList(),
+                any(int[].class));
+
+        AnswerLogEntry nextAnswer = AnswerLogEntry.answer("1_0,0", "no");
+        session.appendAnswerLog(Collections.singletonList(nextAnswer), "<data><r>no</r></data>");
+        writeBehind.defer(session);
+        writeBehind.flushAll();
+
+        parameters = getParameters(FormSessionWriteBehind.APPEND_SQL, 2);
+        assertArrayEquals(AnswerLogConverter.encode(Collections.singletonList(nextAnswer)), (byte[])parameters[0]);
+        assertEquals(2, parameters[4]);
+        assertEquals(1, parameters[6]);
+    }
+
+    @Test
+    void sessionsOfLockedUsersAreNotFlushed() throws Exception {
+        SerializableFormSession session = makeSession("session");
+        writeBehind.defer(session);
+
+        // a request of the user holds its lock while the flush runs
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread request = new Thread(() -> {
+            Lock lock = lockRegistry.obtain("user");
+            lock.lock();
+            try {
+                locked.countDown();
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        });
+        request.start();
+        locked.await();
+        writeBehind.flushAll();
+        done.countDown();
+        request.join();
+
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), anyList(), any(int[].class));
+        assertSame(session, writeBehind.get("session"));
+    }
+
+    @Test
+    void sessionsChangedElsewhereAreWrittenThrough() {
+        SerializableFormSession session = makeSession("session");
+        session.markPersisted();
+        session.appendAnswerLog(Collections.singletonList(AnswerLogEntry.answer("0", "yes")),
+                "<data>yes</data>");
+        cacheManager.getCache("form_session").put("session", session);
+        writeBehind.defer(session);
+
+        // another node wrote the row since the session was read
+        updateCounts(FormSessionWriteBehind.APPEND_SQL, 0);
+        updateCounts(FormSessionWriteBehind.WRITE_THROUGH_SQL, 1);
+        writeBehind.flush("session");
+
+        // the answers accepted on this node are kept, folded into the instance
+        assertArrayEquals(new Object[]{"<data>yes</data>", "0", "title", "en", "session"},
+                getParameters(FormSessionWriteBehind.WRITE_THROUGH_SQL));
+        // the next request reads what is in the database
+        assertNull(cacheManager.getCache("form_session").get("session"));
+        assertNull(writeBehind.get("session"));
+    }
+
+    @Test
+    void sessionsAreWrittenOutsideTheLocksAndInVersionOrder() throws Exception {
+        SerializableFormSession session = makeSession("session");
+        writeBehind.defer(session);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(jdbcTemplate.batchUpdate(eq(FormSessionWriteBehind.SNAPSHOT_SQL), anyList(), any(int[].class)))
+                .thenAnswer(invocation -> {
+                    writing.countDown();
+                    release.await();
+                    return new int[]{1};
+                })
+                .thenReturn(new int[]{1});
+        Thread flush = new Thread(writeBehind::flushAll);
+        flush.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // the user's next request isn't held up by the write
+        Lock lock = lockRegistry.obtain("user");
+        assertTrue(lock.tryLock());
+        Thread request;
+        try {
+            assertSame(session, writeBehind.get("session"));
+            session.setInstanceXml("<data>submitted</data>");
+            writeBehind.defer(session);
+            request = new Thread(() -> writeBehind.flush("session"));
+            request.start();
+            Thread.sleep(100);
+            verify(jdbcTemplate, times(1)).batchUpdate(eq(FormSessionWriteBehind.SNAPSHOT_SQL), anyList(),
+                    any(int[].class));
+        } finally {
+            lock.unlock();
+        }
+        release.countDown();
+        flush.join();
+        request.join();
+
+        Object[] parameters = getParameters(FormSessionWriteBehind.SNAPSHOT_SQL, 2);
+        assertEquals("<data>submitted</data>", parameters[0]);
+        assertEquals(2, parameters[5]);
+        assertEquals(1, parameters[7]);
+    }
+
+    @Test
+    void newAndSubmittedSessionsAreNotDeferred() {
+        assertFalse(writeBehind.defer(makeSession(null)));
+
+        SerializableFormSession session = makeSession("session");
+        session.setSubmitStatus(SerializableFormSession.SubmitStatus.PROCESSED_XML);
+        assertFalse(writeBehind.defer(session));
+        assertEquals(0, session.getVersion());
+    }
+
+    private void updateCounts(String sql, int... updateCounts) {
+        when(jdbcTemplate.batchUpdate(eq(sql), anyList(), any(int[].class))).thenReturn(updateCounts);
+    }
+
+    private Object[] getParameters(String sql) {
+        return getParameters(sql, 1);
+    }
+
+    /**
+     * @return the parameters of the only session in the last of the batches written with the SQL
+     */
+    private Object[] getParameters(String sql, int batches) {
+        ArgumentCaptor<List<Object[]>> parameters = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate, times(batches)).batchUpdate(eq(sql), parameters.capture(), any(int[].class));
+        List<Object[]> batch = parameters.getValue();
+        assertEquals(1, batch.size());
+        return batch.get(0);
+    }
+
+    private SerializableFormSession makeSession(String id) {
+        SerializableFormSession session = new SerializableFormSession("domain", "app", "user", null, null,
+                "http://post", null, "title", false, "en", false, null, null);
+        session.setInstanceXml("<data/>");
+        ReflectionTestUtils.setField(session, "id", id);
+        return session;
+    }
+}
@@ -0,0 +1,82 @@
+package org.commcare.formplayer.services;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.commcare.formplayer.engine.FormplayerConfigEngine;
+import org.commcare.formplayer.engine.InitializedPlatform;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class PlatformCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private PlatformCache platformCache;
+    private FormplayerConfigEngine engine;
+    private SQLiteDB applicationDB;
+    private File databaseFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        platformCache = new PlatformCache();
+        ReflectionTestUtils.setField(platformCache, "maxSize", 10L);
+        ReflectionTestUtils.setField(platformCache, "expireAfterAccessSeconds", 60L);
+        platformCache.init();
+
+        databaseFile = tempDir.resolve("application_1.db").toFile();
+        Files.write(databaseFile.toPath(), new byte[]{1});
+        applicationDB = Mockito.mock(SQLiteDB.class);
+        when(applicationDB.getDatabaseFileForDebugPurposes()).thenReturn(databaseFile.getPath());
+        engine = Mockito.mock(FormplayerConfigEngine.class);
+    }
+
+    @Test
+    void recordedPlatformsAreReused() throws Exception {
+        InitializedPlatform platform = Mockito.mock(InitializedPlatform.class);
+        when(engine.initEnvironmentRecorded()).thenReturn(platform);
+
+        platformCache.initEnvironment(engine, applicationDB);
+        platformCache.initEnvironment(engine, applicationDB);
+
+        verify(engine, times(1)).initEnvironmentRecorded();
+        verify(engine).initEnvironment(platform);
+    }
+
+    @Test
+    void writesInTheWriteAheadLogMakeThePlatformStale() throws Exception {
+        InitializedPlatform platform = Mockito.mock(InitializedPlatform.class);
+        when(engine.initEnvironmentRecorded()).thenReturn(platform);
+        long lastModified = databaseFile.lastModified();
+
+        platformCache.initEnvironment(engine, applicationDB);
+        // not yet checkpointed into the DB file
+        Files.write(new File(databaseFile.getPath() + "-wal").toPath(), new byte[]{1, 2});
+        databaseFile.setLastModified(lastModified);
+        platformCache.initEnvironment(engine, applicationDB);
+
+        verify(engine, times(2)).initEnvironmentRecorded();
+        verify(engine, never()).initEnvironment(platform);
+    }
+
+    @Test
+    void platformsThatCantBeRestoredAreNotCached() throws Exception {
+        when(engine.initEnvironmentRecorded()).thenReturn(null);
+
+        platformCache.initEnvironment(engine, applicationDB);
+        platformCache.initEnvironment(engine, applicationDB);
+
+        verify(engine, times(2)).initEnvironmentRecorded();
+    }
+}
@@ -0,0 +1,165 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.commcare.formplayer.beans.auth.HqUserDetailsBean;
+import org.commcare.formplayer.exceptions.SessionAuthUnavailableException;
+import org.commcare.formplayer.sandbox.UserSqlSandbox;
+import org.commcare.formplayer.services.FormplayerLockRegistry.FormplayerReentrantLock;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.util.BackgroundRequestAttributes;
+import org.commcare.formplayer.util.Constants;
+import org.commcare.formplayer.util.RequestUtils;
+import org.javarosa.core.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import jakarta.servlet.http.Cookie;
+
+class ProactiveSyncServiceTest {
+
+    private static final long HOUR = 3600000L;
+
+    private ProactiveSyncService proactiveSyncService;
+    private RestoreFactory restoreFactory;
+    private HqUserDetailsService hqUserDetailsService;
+
+    @BeforeEach
+    void setUp() {
+        restoreFactory = Mockito.mock(RestoreFactory.class);
+        when(restoreFactory.getUsername()).thenReturn("worker");
+        when(restoreFactory.getDomain()).thenReturn("domain");
+        when(restoreFactory.getSyncWindow()).thenReturn(2 * HOUR);
+        // the sync window runs out within the lead time
+        when(restoreFactory.getLastSyncTime()).thenReturn(System.currentTimeMillis() - 3 * HOUR / 2);
+        UserSqlSandbox sandbox = Mockito.mock(UserSqlSandbox.class);
+        when(sandbox.getLoggedInUser()).thenReturn(new User("worker", "password", "owner"));
+        when(restoreFactory.getSqlSandbox()).thenReturn(sandbox);
+        when(restoreFactory.getSQLiteDB()).thenReturn(Mockito.mock(SQLiteDB.class));
+
+        FormplayerReentrantLock lock = Mockito.mock(FormplayerReentrantLock.class);
+        when(lock.tryLock()).thenReturn(true);
+        FormplayerLockRegistry userLockRegistry = Mockito.mock(FormplayerLockRegistry.class);
+        when(userLockRegistry.obtain("worker")).thenReturn(lock);
+
+        hqUserDetailsService = Mockito.mock(HqUserDetailsService.class);
+
+        proactiveSyncService = new ProactiveSyncService();
+        ReflectionTestUtils.setField(proactiveSyncService, "enabled", true);
+        ReflectionTestUtils.setField(proactiveSyncService, "leadTimeMillis", HOUR);
+        ReflectionTestUtils.setField(proactiveSyncService, "activeWindowMillis", 48 * HOUR);
+        ReflectionTestUtils.setField(proactiveSyncService, "maxTrackedUsers", 10L);
+        ReflectionTestUtils.setField(proactiveSyncService, "workers", 1);
+        ReflectionTestUtils.setField(proactiveSyncService, "maxQueued", 10);
+        ReflectionTestUtils.setField(proactiveSyncService, "maxLoadPerCpu", Double.MAX_VALUE);
+        ReflectionTestUtils.setField(proactiveSyncService, "restoreFactory", restoreFactory);
+        ReflectionTestUtils.setField(proactiveSyncService, "userLockRegistry", userLockRegistry);
+        ReflectionTestUtils.setField(proactiveSyncService, "hqUserDetailsService", hqUserDetailsService);
+        ReflectionTestUtils.setField(proactiveSyncService, "datadogStatsDClient", Mockito.mock(StatsDClient.class));
+        proactiveSyncService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        proactiveSyncService.shutdown();
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void syncIsAuthorizedByTheLiveSessionOfTheUser() throws Exception {
+        when(hqUserDetailsService.getUserDetails("domain", "session-key"))
+                .thenReturn(new HqUserDetailsBean("domain", "worker"));
+        AtomicReference<String> authorizedBy = new AtomicReference<>();
+        doAnswer(invocation -> {
+            assertTrue(RequestUtils.requestAuthedWithHmac());
+            authorizedBy.set(((BackgroundRequestAttributes)RequestContextHolder.getRequestAttributes())
+                    .getHmacAuthorizedBy());
+            return null;
+        }).when(restoreFactory).performTimedSync(false, false);
+
+        recordActivity(sessionRequest());
+        proactiveSyncService.scheduleSyncs();
+
+        verify(restoreFactory, timeout(5000)).performTimedSync(false, false);
+        assertEquals("worker", authorizedBy.get());
+    }
+
+    @Test
+    void usersWithoutALiveSessionAreNotSynced() throws Exception {
+        when(hqUserDetailsService.getUserDetails("domain", "session-key"))
+                .thenThrow(new SessionAuthUnavailableException());
+
+        recordActivity(sessionRequest());
+        proactiveSyncService.scheduleSyncs();
+
+        verify(hqUserDetailsService, timeout(5000)).getUserDetails("domain", "session-key");
+        verify(restoreFactory, never()).configure(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+        verify(restoreFactory, never()).performTimedSync(anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void sessionsOfOtherUsersDoNotAuthorizeTheSync() throws Exception {
+        when(hqUserDetailsService.getUserDetails("domain", "session-key"))
+                .thenReturn(new HqUserDetailsBean("domain", "someone-else"));
+
+        recordActivity(sessionRequest());
+        proactiveSyncService.scheduleSyncs();
+
+        verify(hqUserDetailsService, timeout(5000)).getUserDetails("domain", "session-key");
+        verify(restoreFactory, never()).performTimedSync(anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void hmacRequestsAreNotTracked() throws Exception {
+        MockHttpServletRequest request = sessionRequest();
+        request.setAttribute(Constants.HMAC_REQUEST_ATTRIBUTE, true);
+
+        recordActivity(request);
+        proactiveSyncService.scheduleSyncs();
+
+        Thread.sleep(100);
+        verify(hqUserDetailsService, never()).getUserDetails(Mockito.any(), Mockito.any());
+        verify(restoreFactory, never()).performTimedSync(anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void backgroundWorkIsOnlyHmacAuthedOnceAuthorized() {
+        RequestContextHolder.setRequestAttributes(new BackgroundRequestAttributes());
+        assertFalse(RequestUtils.requestAuthedWithHmac());
+        RequestContextHolder.setRequestAttributes(new BackgroundRequestAttributes("worker"));
+        assertTrue(RequestUtils.requestAuthedWithHmac());
+    }
+
+    private MockHttpServletRequest sessionRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(Constants.POSTGRES_DJANGO_SESSION_ID, "session-key"));
+        return request;
+    }
+
+    private void recordActivity(MockHttpServletRequest request) {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        try {
+            proactiveSyncService.recordActivity(restoreFactory);
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+}
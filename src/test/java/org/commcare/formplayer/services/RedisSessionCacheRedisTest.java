@@ -0,0 +1,96 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.commcare.formplayer.objects.SerializableMenuSession;
+import org.commcare.formplayer.repo.FormDefinitionRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Runs the session cache against the Redis server of the build, see REDIS_HOSTNAME
+ */
+class RedisSessionCacheRedisTest {
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisSessionCache redisSessionCache;
+    private String id;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        String hostname = System.getenv().getOrDefault("REDIS_HOSTNAME", "localhost");
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(hostname, 6379));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        assumeTrue(isAvailable(), "Redis is not running on " + hostname);
+
+        redisSessionCache = new RedisSessionCache();
+        ReflectionTestUtils.setField(redisSessionCache, "redisConnectionFactory", connectionFactory);
+        ReflectionTestUtils.setField(redisSessionCache, "cacheManager",
+                new CaffeineCacheManager("form_session", "menu_session", "form_definition"));
+        ReflectionTestUtils.setField(redisSessionCache, "formDefinitionRepo",
+                Mockito.mock(FormDefinitionRepo.class));
+        ReflectionTestUtils.setField(redisSessionCache, "ttlSeconds", 60L);
+        redisSessionCache.start();
+        id = UUID.randomUUID().toString();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (redisSessionCache != null) {
+            redisSessionCache.delete("menu_session", id);
+            redisSessionCache.stop();
+        }
+        connectionFactory.destroy();
+    }
+
+    @Test
+    void staleVersionsDoNotReplaceTheStoredSession() {
+        redisSessionCache.put("menu_session", id, 2, session("fr"));
+
+        redisSessionCache.put("menu_session", id, 1, session("en"));
+        assertEquals("fr", getLocale());
+
+        redisSessionCache.update("menu_session", id, 2, session("es"));
+        assertEquals("es", getLocale());
+
+        redisSessionCache.update("menu_session", id, 3, session("de"));
+        assertEquals("de", getLocale());
+    }
+
+    @Test
+    void purgedSessionsAreDeleted() {
+        redisSessionCache.put("menu_session", id, 1, session("en"));
+
+        redisSessionCache.deleteAll("menu_session", Arrays.asList(id, UUID.randomUUID().toString()));
+        assertNull(redisSessionCache.get("menu_session", id, SerializableMenuSession.class));
+    }
+
+    private boolean isAvailable() {
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            return "PONG".equals(connection.ping());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private String getLocale() {
+        return redisSessionCache.get("menu_session", id, SerializableMenuSession.class).getLocale();
+    }
+
+    private static SerializableMenuSession session(String locale) {
+        return new SerializableMenuSession("user", "domain", "app", "http://install", locale, null, false);
+    }
+}
@@ -0,0 +1,139 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.commcare.formplayer.objects.SerializableFormDefinition;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.commcare.formplayer.objects.SerializableMenuSession;
+import org.commcare.formplayer.repo.FormDefinitionRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InvalidClassException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+class RedisSessionCacheTest {
+
+    private RedisSessionCache redisSessionCache;
+    private CacheManager cacheManager;
+    private FormDefinitionRepo formDefinitionRepo;
+    private SerializableFormDefinition formDefinition;
+
+    @BeforeEach
+    void setUp() {
+        cacheManager = new CaffeineCacheManager("form_session", "menu_session", "form_definition");
+        formDefinitionRepo = Mockito.mock(FormDefinitionRepo.class);
+        formDefinition = new SerializableFormDefinition("app", "http://xmlns", "1", "serialized form def");
+        ReflectionTestUtils.setField(formDefinition, "id", 7L);
+        when(formDefinitionRepo.findById(7L)).thenReturn(Optional.of(formDefinition));
+
+        redisSessionCache = new RedisSessionCache();
+        ReflectionTestUtils.setField(redisSessionCache, "cacheManager", cacheManager);
+        ReflectionTestUtils.setField(redisSessionCache, "formDefinitionRepo", formDefinitionRepo);
+    }
+
+    @Test
+    void formSessionSnapshotReferencesFormDefinition() throws Exception {
+        Map<String, String> sessionData = new HashMap<>();
+        sessionData.put("case_id", "123");
+        SerializableFormSession session = new SerializableFormSession("domain", "app", "user", null, null,
+                "http://post", null, "title", false, "en", false, sessionData, null);
+        session.setInstanceXml("<data><question>answer</question></data>");
+        session.setFormDefinition(formDefinition);
+
+        byte[] snapshot = redisSessionCache.serialize(session);
+        SerializableFormSession copy = (SerializableFormSession)redisSessionCache.deserialize(snapshot);
+
+        assertEquals(session.getInstanceXml(), copy.getInstanceXml());
+        assertEquals(sessionData, copy.getSessionData());
+        assertSame(formDefinition, copy.getFormDefinition());
+        assertNotNull(cacheManager.getCache("form_definition").get(Arrays.asList("app", "http://xmlns", "1")));
+
+        // the second snapshot resolves its form definition from the local cache
+        redisSessionCache.deserialize(snapshot);
+        verify(formDefinitionRepo, Mockito.times(1)).findById(7L);
+    }
+
+    @Test
+    void menuSessionSnapshot() throws Exception {
+        SerializableMenuSession session = new SerializableMenuSession("user", "domain", "app",
+                "http://install", "en", null, false);
+        session.setCommcareSession(new byte[]{1, 2, 3});
+        SerializableMenuSession copy = (SerializableMenuSession)redisSessionCache.deserialize(
+                redisSessionCache.serialize(session));
+        assertArrayEquals(session.getCommcareSession(), copy.getCommcareSession());
+        verify(formDefinitionRepo, never()).findById(Mockito.any());
+    }
+
+    @Test
+    void invalidationsFromOtherNodesEvictLocalSessions() {
+        cacheManager.getCache("form_session").put("a", "session a");
+        cacheManager.getCache("form_session").put("b", "session b");
+        String nodeId = (String)ReflectionTestUtils.getField(redisSessionCache, "nodeId");
+
+        redisSessionCache.onMessage(message(nodeId + " form_session a"), null);
+        assertNotNull(cacheManager.getCache("form_session").get("a"));
+
+        redisSessionCache.onMessage(message("other-node form_session a"), null);
+        assertNull(cacheManager.getCache("form_session").get("a"));
+        assertNotNull(cacheManager.getCache("form_session").get("b"));
+
+        redisSessionCache.onMessage(message("other-node form_session *"), null);
+        assertNull(cacheManager.getCache("form_session").get("b"));
+    }
+
+    @Test
+    void snapshotsOfOtherClassesAreRejected() throws Exception {
+        byte[] snapshot = redisSessionCache.serialize(new URI("http://example.com"));
+        assertThrows(InvalidClassException.class, () -> redisSessionCache.deserialize(snapshot));
+    }
+
+    @Test
+    void purgedSessionsAreDeletedInBatches() {
+        RedisTemplate<String, byte[]> redisTemplate = Mockito.mock(RedisTemplate.class);
+        ReflectionTestUtils.setField(redisSessionCache, "redisTemplate", redisTemplate);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            ids.add("session" + i);
+        }
+
+        redisSessionCache.deleteAll("form_session", ids);
+
+        ArgumentCaptor<Collection<String>> keys = ArgumentCaptor.forClass(Collection.class);
+        verify(redisTemplate, Mockito.times(2)).delete(keys.capture());
+        assertEquals(1000, keys.getAllValues().get(0).size());
+        assertEquals(500, keys.getAllValues().get(1).size());
+        assertTrue(keys.getAllValues().get(1).contains("formplayer:session_cache:form_session:session1499"));
+        verify(redisTemplate).convertAndSend(Mockito.eq("formplayer:session_cache:invalidation"),
+                Mockito.any(byte[].class));
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage("channel".getBytes(StandardCharsets.UTF_8),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+}
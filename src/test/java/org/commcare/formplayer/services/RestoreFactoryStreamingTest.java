@@ -0,0 +1,127 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.commcare.formplayer.util.Constants;
+import org.commcare.formplayer.web.client.RestTemplateConfig;
+import org.commcare.formplayer.web.client.WebClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests restores that are parsed while they download
+ */
+class RestoreFactoryStreamingTest {
+
+    private static final URI RESTORE_URL = URI.create("http://localhost:8000/a/demo/phone/restore/");
+
+    private RestoreFactory restoreFactory;
+    private StatsDClient datadogStatsDClient;
+    private MockRestServiceServer mockServer;
+    private WebClient webClient;
+
+    @BeforeEach
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplateConfig("", "").restTemplate(new RestTemplateBuilder());
+        mockServer = MockRestServiceServer.createServer(restTemplate);
+        webClient = new WebClient();
+        webClient.setRestTemplate(restTemplate);
+        webClient.init();
+
+        datadogStatsDClient = Mockito.mock(StatsDClient.class);
+        CategoryTimingHelper categoryTimingHelper = new CategoryTimingHelper();
+        ReflectionTestUtils.setField(categoryTimingHelper, "datadogStatsDClient", datadogStatsDClient);
+
+        restoreFactory = Mockito.spy(RestoreFactory.class);
+        ReflectionTestUtils.setField(restoreFactory, "webClient", webClient);
+        ReflectionTestUtils.setField(restoreFactory, "datadogStatsDClient", datadogStatsDClient);
+        ReflectionTestUtils.setField(restoreFactory, "categoryTimingHelper", categoryTimingHelper);
+        ReflectionTestUtils.setField(restoreFactory, "responseMetaDataTracker",
+                Mockito.mock(ResponseMetaDataTracker.class));
+        ReflectionTestUtils.setField(restoreFactory, "domain", "demo");
+        ReflectionTestUtils.setField(restoreFactory, "streamingRestoreBufferBytes", 4L);
+        doReturn(new HttpHeaders()).when(restoreFactory).getRequestHeaders(any());
+    }
+
+    @AfterEach
+    void tearDown() {
+        webClient.shutdown();
+    }
+
+    @Test
+    void restoreIsCountedOnceReadToTheEnd() throws Exception {
+        mockServer.expect(ExpectedCount.once(), requestTo(RESTORE_URL))
+                .andRespond(withStatus(HttpStatus.OK).body("<OpenRosaResponse/>"));
+
+        try (InputStream restore = getStreamingRestoreXml()) {
+            verify(datadogStatsDClient, never()).increment(eq(Constants.DATADOG_RESTORE_COUNT), any(String[].class));
+            assertEquals("<OpenRosaResponse/>", new String(restore.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        verifyRestoreCounted("200 OK");
+    }
+
+    @Test
+    void errorStatusIsCountedAndRethrown() {
+        mockServer.expect(ExpectedCount.once(), requestTo(RESTORE_URL))
+                .andRespond(withStatus(HttpStatus.UNAUTHORIZED));
+
+        assertThrows(HttpClientErrorException.class, this::getStreamingRestoreXml);
+        verifyRestoreCounted("401 UNAUTHORIZED");
+    }
+
+    @Test
+    void failureMidStreamFailsTheParserWithoutCountingTheRestore() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        InputStream body = new SequenceInputStream(
+                new ByteArrayInputStream("<OpenRosaResponse>".getBytes(StandardCharsets.UTF_8)), failing);
+        mockServer.expect(ExpectedCount.once(), requestTo(RESTORE_URL))
+                .andRespond(request -> new MockClientHttpResponse(body, HttpStatus.OK));
+
+        try (InputStream restore = getStreamingRestoreXml()) {
+            assertThrows(IOException.class, restore::readAllBytes);
+        }
+        verify(datadogStatsDClient, never()).increment(eq(Constants.DATADOG_RESTORE_COUNT), any(String[].class));
+    }
+
+    private InputStream getStreamingRestoreXml() {
+        return ReflectionTestUtils.invokeMethod(restoreFactory, "getStreamingRestoreXml", RESTORE_URL);
+    }
+
+    private void verifyRestoreCounted(String status) {
+        verify(datadogStatsDClient).increment(eq(Constants.DATADOG_RESTORE_COUNT), eq("domain:demo"),
+                any(), eq("status:" + status));
+    }
+}
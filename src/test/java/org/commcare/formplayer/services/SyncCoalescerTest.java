@@ -0,0 +1,183 @@
+package org.commcare.formplayer.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.timgroup.statsd.StatsDClient;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.commcare.formplayer.aspects.LockAspect;
+import org.commcare.formplayer.beans.AuthenticatedRequestBean;
+import org.commcare.formplayer.exceptions.SyncRestoreException;
+import org.commcare.formplayer.util.RequestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+class SyncCoalescerTest {
+
+    private static final String SANDBOX = "dbs/domain/user.db";
+
+    private SyncCoalescer syncCoalescer;
+    private final AtomicInteger syncs = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        syncCoalescer = new SyncCoalescer();
+        ReflectionTestUtils.setField(syncCoalescer, "datadogStatsDClient", Mockito.mock(StatsDClient.class));
+        ReflectionTestUtils.setField(syncCoalescer, "joinTimeoutMillis", 5000L);
+        ReflectionTestUtils.setField(syncCoalescer, "retentionMillis", 60000L);
+        syncCoalescer.init();
+    }
+
+    @Test
+    void concurrentSyncFromSameTokenIsJoined() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> leader = CompletableFuture.supplyAsync(() -> {
+            try {
+                return syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return sync();
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        started.await(5, TimeUnit.SECONDS);
+
+        CompletableFuture<Boolean> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), this::sync);
+            } catch (SyncRestoreException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        release.countDown();
+
+        assertTrue(leader.get(5, TimeUnit.SECONDS));
+        assertFalse(waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, syncs.get());
+    }
+
+    @Test
+    void syncCompletedWhileWaitingIsReused() throws Exception {
+        long waitingSince = System.currentTimeMillis() - 1000;
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), this::sync));
+        assertFalse(syncCoalescer.sync(SANDBOX, "token-2", null, false, waitingSince, this::sync));
+        assertEquals(1, syncs.get());
+    }
+
+    @Test
+    void syncCompletedBeforeWaitingIsNotReused() throws Exception {
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), this::sync));
+        Thread.sleep(5);
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-2", null, false, System.currentTimeMillis(), this::sync));
+        assertEquals(2, syncs.get());
+    }
+
+    @Test
+    void purgeIsNotSatisfiedBySyncWithoutPurge() throws Exception {
+        long waitingSince = System.currentTimeMillis() - 1000;
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), this::sync));
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-2", null, true, waitingSince, this::sync));
+        assertEquals(2, syncs.get());
+    }
+
+    @Test
+    void failedSyncIsNotReused() throws Exception {
+        long waitingSince = System.currentTimeMillis() - 1000;
+        assertThrows(SyncRestoreException.class, () ->
+                syncCoalescer.sync(SANDBOX, "token-1", null, false, System.currentTimeMillis(), () -> {
+                    throw new SyncRestoreException(new IllegalStateException("restore failed"));
+                }));
+        assertTrue(syncCoalescer.sync(SANDBOX, "token-1", null, false, waitingSince, this::sync));
+        assertEquals(1, syncs.get());
+    }
+
+    @Test
+    void syncInFlightWhileWaitingForTheUserLockIsJoined() throws Exception {
+        LockAspect lockAspect = new LockAspect();
+        StatsDClient statsDClient = Mockito.mock(StatsDClient.class);
+        CategoryTimingHelper categoryTimingHelper = new CategoryTimingHelper();
+        ReflectionTestUtils.setField(categoryTimingHelper, "datadogStatsDClient", statsDClient);
+        ReflectionTestUtils.setField(lockAspect, "userLockRegistry", new FormplayerLockRegistry());
+        ReflectionTestUtils.setField(lockAspect, "datadogStatsDClient", statsDClient);
+        ReflectionTestUtils.setField(lockAspect, "categoryTimingHelper", categoryTimingHelper);
+        ReflectionTestUtils.setField(lockAspect, "syncCoalescer", syncCoalescer);
+
+        // the sync token the user's sandbox is at, which requests read once they hold the lock
+        AtomicReference<String> sandboxToken = new AtomicReference<>("token-1");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> leader = CompletableFuture.supplyAsync(() -> syncWithLock(lockAspect,
+                sandboxToken, () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    sandboxToken.set(sync());
+                    return sandboxToken.get();
+                }));
+        started.await(5, TimeUnit.SECONDS);
+
+        CompletableFuture<Object> waiter = CompletableFuture.supplyAsync(() -> syncWithLock(lockAspect,
+                sandboxToken, () -> {
+                    sandboxToken.set(sync());
+                    return sandboxToken.get();
+                }));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals(true, leader.get(5, TimeUnit.SECONDS));
+        assertEquals(false, waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(1, syncs.get());
+    }
+
+    /**
+     * Syncs in a request of its own that holds the user lock, like RestoreFactory does
+     */
+    private Object syncWithLock(LockAspect lockAspect, AtomicReference<String> sandboxToken,
+            SyncCoalescer.Sync sync) {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        try {
+            AuthenticatedRequestBean bean = new AuthenticatedRequestBean();
+            bean.setDomain("domain");
+            bean.setUsername("user");
+            ProceedingJoinPoint joinPoint = Mockito.mock(ProceedingJoinPoint.class);
+            Mockito.when(joinPoint.getArgs()).thenReturn(new Object[]{bean});
+            Mockito.when(joinPoint.proceed()).thenAnswer(invocation -> syncCoalescer.sync(
+                    SyncCoalescer.sandboxKey("domain", "user"), sandboxToken.get(),
+                    RequestUtils.getObservedSyncToken(), false, RequestUtils.getLockWaitStart(), sync));
+            return lockAspect.aroundLock(joinPoint);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    private String sync() {
+        return "token-" + (syncs.incrementAndGet() + 1);
+    }
+}
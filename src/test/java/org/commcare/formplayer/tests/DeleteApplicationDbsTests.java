@@ -1,8 +1,12 @@
 package org.commcare.formplayer.tests;
 
+import org.commcare.formplayer.application.SQLiteProperties;
 import org.commcare.formplayer.beans.NotificationMessage;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
 import org.commcare.formplayer.sqlitedb.ApplicationDB;
 import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
 import org.commcare.formplayer.utils.TestContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -65,4 +69,43 @@ public class DeleteApplicationDbsTests extends BaseTestClass {
 
         assert !new File(db.getDatabaseFileForDebugPurposes()).getParentFile().exists();
     }
+
+    /**
+     * Ensures that users of a build share its installed DB, and that deleting a user's application
+     * dbs removes the user's link to it and installs the build again, leaving the old one in place
+     * for its other users.
+     */
+    @Test
+    public void testDeleteApplicationDbsReinstallsSharedBuild() throws Exception {
+        SQLiteProperties sqliteProperties = new SQLiteProperties();
+        sqliteProperties.setSharedAppsEnabled(true);
+        SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        try {
+            doInstall("requests/install/install.json");
+            SharedApplicationDB build = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+            assert build != null;
+            assert storageFactoryMock.getSQLiteDB() instanceof SharedApplicationDB;
+
+            SQLiteDB db = new ApplicationDB("casetestdomain", "casetestuser", null, "casetestappid");
+            assert !new File(db.getDatabaseFileForDebugPurposes()).exists();
+
+            NotificationMessage response = deleteApplicationDbs();
+            assert !response.isError();
+            assert !new File(db.getDatabaseFileForDebugPurposes()).getParentFile().exists();
+            assert new File(build.getDatabaseFileForDebugPurposes()).exists();
+            assert SharedApplicationStore.isBad(build);
+
+            // the user is linked to the build installed again
+            doInstall("requests/install/install.json");
+            SharedApplicationDB reinstalled = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+            assert reinstalled != null;
+            assert !reinstalled.getBuild().equals(build.getBuild());
+            assert new File(db.getDatabaseFileForDebugPurposes()).getParentFile().exists();
+            assert storageFactoryMock.getSQLiteDB().getDatabaseFileForDebugPurposes().equals(
+                    reinstalled.getDatabaseFileForDebugPurposes());
+        } finally {
+            sqliteProperties.setSharedAppsEnabled(false);
+            SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        }
+    }
 }
@@ -1,15 +1,62 @@
 package org.commcare.formplayer.tests;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.commcare.formplayer.beans.NewFormResponse;
 import org.commcare.formplayer.beans.menus.CommandListResponseBean;
+import org.commcare.formplayer.engine.FormplayerConfigEngine;
+import org.commcare.formplayer.engine.InitializedPlatform;
+import org.commcare.formplayer.engine.ParallelResourceParser;
+import org.commcare.formplayer.installers.FormplayerInstallerFactory;
 import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.services.InstallService;
+import org.commcare.formplayer.services.PlatformCache;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
 import org.commcare.formplayer.utils.TestContext;
+import org.commcare.modern.reference.ArchiveFileRoot;
+import org.commcare.modern.util.Pair;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceTable;
+import org.commcare.suite.model.Suite;
+import org.commcare.util.CommCarePlatform;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.locale.Localization;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by willpride on 1/14/16.
@@ -19,6 +66,9 @@ public class InstallTests extends BaseTestClass {
 
     Log log = LogFactory.getLog(InstallTests.class);
 
+    @Autowired
+    private InstallService installService;
+
     @Override
     @BeforeEach
     public void setUp() throws Exception {
@@ -54,6 +104,225 @@ public class InstallTests extends BaseTestClass {
 
     }
 
+    @Test
+    public void testInstallFromPlatformCache() throws Exception {
+        ReflectionTestUtils.setField(installService, "platformCache", newPlatformCache());
+        try {
+            CommandListResponseBean installed = doInstall("requests/install/install.json");
+            // the app DB now exists, so the second install initializes the platform from the cache
+            CommandListResponseBean cached = doInstall("requests/install/install.json");
+            assertEquals(installed.getTitle(), cached.getTitle());
+            assertEquals(installed.getCommands().length, cached.getCommands().length);
+            for (int i = 0; i < installed.getCommands().length; i++) {
+                assertEquals(installed.getCommands()[i].getDisplayText(), cached.getCommands()[i].getDisplayText());
+            }
+
+            NewFormResponse newFormResponse =
+                    sessionNavigate(new String[]{"0", "0"}, "case", NewFormResponse.class);
+            assertNotNull(newFormResponse.getTree());
+        } finally {
+            ReflectionTestUtils.setField(installService, "platformCache", null);
+        }
+    }
+
+    /**
+     * Ensures that an engine initialized from the platform cache has the same state as one
+     * initialized from the application DB, and that using it leaves the cached state as it was
+     */
+    @Test
+    public void testPlatformCacheMatchesInitializedState() throws Exception {
+        String reference = "archives/case.ccz";
+        doInstall("requests/install/install.json");
+        CommCarePlatform initialized = installService.configureApplication(reference, false).first.getPlatform();
+        String[] initializedLocales = Localization.getGlobalLocalizerAdvanced().getAvailableLocales();
+        String initializedLocale = Localization.getGlobalLocalizerAdvanced().getLocale();
+
+        PlatformCache platformCache = newPlatformCache();
+        ReflectionTestUtils.setField(installService, "platformCache", platformCache);
+        try {
+            // the first engine records the state it reads from the DB, the second is initialized from it
+            installService.configureApplication(reference, false);
+            InitializedPlatform recorded = getCachedPlatform(platformCache);
+            List<Object> recordedState = snapshot(recorded);
+            FormplayerConfigEngine cached = installService.configureApplication(reference, false).first;
+
+            assertArrayEquals(ExtUtil.serialize(initialized.getCurrentProfile()),
+                    ExtUtil.serialize(cached.getPlatform().getCurrentProfile()));
+            List<Suite> initializedSuites = new ArrayList<>(initialized.getInstalledSuites());
+            List<Suite> cachedSuites = new ArrayList<>(cached.getPlatform().getInstalledSuites());
+            assertEquals(initializedSuites.size(), cachedSuites.size());
+            for (int i = 0; i < initializedSuites.size(); i++) {
+                assertArrayEquals(ExtUtil.serialize(initializedSuites.get(i)),
+                        ExtUtil.serialize(cachedSuites.get(i)));
+            }
+            assertArrayEquals(initializedLocales, Localization.getGlobalLocalizerAdvanced().getAvailableLocales());
+            assertEquals(initializedLocale, Localization.getGlobalLocalizerAdvanced().getLocale());
+
+            sessionNavigate(new String[]{"0", "0"}, "case", NewFormResponse.class);
+            doInstall("requests/install/install.json");
+            assertEquals(recordedState, snapshot(recorded));
+        } finally {
+            ReflectionTestUtils.setField(installService, "platformCache", null);
+        }
+    }
+
+    /**
+     * Ensures that an app installed with its forms and locale files parsed in parallel has the
+     * same forms and resource table as one installed without
+     */
+    @Test
+    public void testParallelInstallMatchesSerialInstall() throws Exception {
+        SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        String reference = "archives/case.ccz";
+        storageFactoryMock.configure("serialuser", "casetestdomain", "casetestappid", null);
+        FormplayerConfigEngine serial = installService.configureApplication(reference, false).first;
+        Map<String, String> serialResources = snapshotResources(serial);
+        List<String> serialForms = snapshotForms();
+
+        ParallelResourceParser resourceParser = newResourceParser();
+        ReflectionTestUtils.setField(installService, "resourceParser", resourceParser);
+        try {
+            storageFactoryMock.configure("paralleluser", "casetestdomain", "casetestappid", null);
+            FormplayerConfigEngine parallel = installService.configureApplication(reference, false).first;
+
+            assertEquals(serialResources, snapshotResources(parallel));
+            assertEquals(serialForms, snapshotForms());
+        } finally {
+            ReflectionTestUtils.setField(installService, "resourceParser", null);
+            resourceParser.shutdown();
+            SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        }
+    }
+
+    /**
+     * Ensures that the resources of a parallel install are written in a single transaction, which
+     * leaves the application DB as it was when the install fails part way
+     */
+    @Test
+    public void testFailedParallelInstallIsRolledBack() throws Exception {
+        SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        storageFactoryMock.configure("rollbackuser", "casetestdomain", "casetestappid", null);
+        SQLiteDB applicationDB = storageFactoryMock.getSQLiteDB();
+        Map<String, Integer> rowsBefore = countRows(applicationDB);
+
+        ParallelResourceParser resourceParser = Mockito.spy(newResourceParser());
+        // the profile and suites are written before the first form fails
+        doReturn(CompletableFuture.failedFuture(new RuntimeException("Unable to write form")))
+                .when(resourceParser).parseForm(any());
+        ReflectionTestUtils.setField(installService, "resourceParser", resourceParser);
+        try {
+            FormplayerConfigEngine engine = new FormplayerConfigEngine(storageFactoryMock,
+                    (FormplayerInstallerFactory)ReflectionTestUtils.getField(installService,
+                            "formplayerInstallerFactory"),
+                    (ArchiveFileRoot)ReflectionTestUtils.getField(installService, "formplayerArchiveFileRoot"),
+                    (RestTemplate)ReflectionTestUtils.getField(installService, "restTemplate"));
+            String reference = new File(getClass().getClassLoader().getResource("archives/case.ccz").getPath())
+                    .getAbsolutePath();
+            assertThrows(RuntimeException.class, () -> ReflectionTestUtils.invokeMethod(installService,
+                    "installResources", engine, reference, false));
+
+            assertTrue(applicationDB.getConnection().getAutoCommit());
+            assertEquals(rowsBefore, countRows(applicationDB));
+        } finally {
+            ReflectionTestUtils.setField(installService, "resourceParser", null);
+            resourceParser.shutdown();
+            SqlSandboxUtils.deleteDatabaseFolder("dbs");
+        }
+    }
+
+    private ParallelResourceParser newResourceParser() {
+        ParallelResourceParser resourceParser = new ParallelResourceParser();
+        ReflectionTestUtils.setField(resourceParser, "parallelism", 2);
+        resourceParser.init();
+        return resourceParser;
+    }
+
+    /**
+     * @return the status and serialized installer of each resource of the engine's app, by id
+     */
+    private Map<String, String> snapshotResources(FormplayerConfigEngine engine) {
+        ResourceTable table = engine.getPlatform().getGlobalResourceTable();
+        Map<String, String> resources = new HashMap<>();
+        Deque<Resource> pending = new ArrayDeque<>();
+        pending.push(table.getResourceWithId(CommCarePlatform.APP_PROFILE_RESOURCE_ID));
+        while (!pending.isEmpty()) {
+            Resource resource = pending.pop();
+            resources.put(resource.getResourceId(), resource.getStatus() + ":"
+                    + Base64.getEncoder().encodeToString(ExtUtil.serialize(resource.getInstaller())));
+            pending.addAll(table.getResourcesForParent(resource.getRecordGuid()));
+        }
+        return resources;
+    }
+
+    /**
+     * @return the serialized forms of the configured application DB, in the order of their ids
+     */
+    private List<String> snapshotForms() {
+        IStorageUtilityIndexed<FormDef> storage = storageFactoryMock.newStorage(FormDef.STORAGE_KEY,
+                FormDef.class);
+        List<String> forms = new ArrayList<>();
+        for (IStorageIterator<FormDef> iterator = storage.iterate(); iterator.hasMore(); ) {
+            forms.add(Base64.getEncoder().encodeToString(ExtUtil.serialize(iterator.nextRecord())));
+        }
+        return forms;
+    }
+
+    /**
+     * @return the number of rows of each table of the DB
+     */
+    private Map<String, Integer> countRows(SQLiteDB applicationDB) throws SQLException {
+        Map<String, Integer> rows = new HashMap<>();
+        Connection connection = applicationDB.getConnection();
+        List<String> tables = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'")) {
+            while (resultSet.next()) {
+                tables.add(resultSet.getString(1));
+            }
+        }
+        for (String table : tables) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM \"" + table + "\"")) {
+                rows.put(table, resultSet.getInt(1));
+            }
+        }
+        return rows;
+    }
+
+    private PlatformCache newPlatformCache() {
+        PlatformCache platformCache = new PlatformCache();
+        ReflectionTestUtils.setField(platformCache, "maxSize", 10L);
+        ReflectionTestUtils.setField(platformCache, "expireAfterAccessSeconds", 60L);
+        platformCache.init();
+        return platformCache;
+    }
+
+    @SuppressWarnings("unchecked")
+    private InitializedPlatform getCachedPlatform(PlatformCache platformCache) {
+        Cache<String, Object> platforms = (Cache<String, Object>)ReflectionTestUtils.getField(platformCache,
+                "platforms");
+        assertEquals(1, platforms.estimatedSize());
+        Object cachedPlatform = platforms.asMap().values().iterator().next();
+        return (InitializedPlatform)ReflectionTestUtils.getField(cachedPlatform, "platform");
+    }
+
+    /**
+     * @return a copy of the state the engines initialized from the platform share
+     */
+    private List<Object> snapshot(InitializedPlatform platform) {
+        List<Object> state = new ArrayList<>();
+        state.add(Base64.getEncoder().encodeToString(ExtUtil.serialize(platform.getProfile())));
+        for (Suite suite : platform.getSuites()) {
+            state.add(Base64.getEncoder().encodeToString(ExtUtil.serialize(suite)));
+        }
+        for (Pair<String, Hashtable<String, String>> localeTable : platform.getLocaleTables()) {
+            state.add(localeTable.first);
+            state.add(new HashMap<>(localeTable.second));
+        }
+        state.add(platform.getLocale());
+        return state;
+    }
+
     @Test
     public void testCaseSelect() throws Exception {
         SqlSandboxUtils.deleteDatabaseFolder("dbs");
@@ -2,21 +2,29 @@ package org.commcare.formplayer.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import org.commcare.formplayer.api.json.JsonActionUtils;
 import org.commcare.formplayer.beans.FormEntryResponseBean;
 import org.commcare.formplayer.beans.NewFormResponse;
 import org.commcare.formplayer.beans.QuestionBean;
+import org.commcare.formplayer.objects.AnswerLogEntry;
+import org.commcare.formplayer.objects.SerializableFormSession;
+import org.commcare.formplayer.session.FormSession;
 import org.commcare.formplayer.utils.TestContext;
+import org.javarosa.core.model.data.StringData;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.io.ByteArrayInputStream;
+import java.util.Collections;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -114,6 +122,74 @@ public class RepeatTests extends BaseTestClass {
     }
 
     @Test
+    public void testRepeatsReplayedFromAnswerLog() throws Exception {
+        ReflectionTestUtils.setField(formController, "answerLogCheckpointInterval", 100);
+        NewFormResponse newSessionResponse = startNewForm("requests/new_form/new_form.json",
+                "xforms/repeat.xml");
+        String sessionId = newSessionResponse.getSessionId();
+        newRepeatRequest(sessionId, "1_0");
+        newRepeatRequest(sessionId, "1_1");
+        answerQuestionGetResult("1_0,0", "repeat 1", sessionId);
+        answerQuestionGetResult("1_1,0", "repeat 2", sessionId);
+        deleteRepeatRequest(sessionId, "1_0,0");
+
+        SerializableFormSession session = formSessionService.getSessionById(sessionId);
+        assertFalse(session.getAnswerLog().isEmpty());
+        String instanceXml = session.getInstanceXml();
+        assertTrue(instanceXml.contains("repeat 2"));
+        assertFalse(instanceXml.contains("repeat 1"));
+
+        // a session read from the database only has the snapshot and the answer log
+        session.setCurrentInstanceXml(null);
+        assertNotEquals(instanceXml, session.getInstanceXml());
+        FormSession formSession = getFormSession(session, null);
+        assertEquals(instanceXml, formSession.getInstanceXml());
+        assertEquals(instanceXml, session.getInstanceXml());
+    }
+
+    @Test
+    public void testUnreplayableAnswerLogFallsBackToSnapshot() throws Exception {
+        ReflectionTestUtils.setField(formController, "answerLogCheckpointInterval", 100);
+        NewFormResponse newSessionResponse = startNewForm("requests/new_form/new_form.json",
+                "xforms/repeat.xml");
+        String sessionId = newSessionResponse.getSessionId();
+        newRepeatRequest(sessionId, "1_0");
+        answerQuestionGetResult("1_0,0", "logged", sessionId);
+
+        SerializableFormSession session = formSessionService.getSessionById(sessionId);
+        String snapshotXml = session.getInstanceSnapshotXml();
+        // an answer to a question the form doesn't have
+        session.appendAnswerLog(Collections.singletonList(AnswerLogEntry.answer("9", "lost")), null);
+        FormSession formSession = getFormSession(session, null);
+
+        assertEquals(snapshotXml, formSession.getInstanceXml());
+        assertEquals(snapshotXml, session.getInstanceXml());
+        assertTrue(session.getAnswerLog().isEmpty());
+        assertTrue(session.isSnapshotReplaced());
+    }
+
+    @Test
+    public void testUnloggedChangesAreSnapshotted() throws Exception {
+        NewFormResponse newSessionResponse = startNewForm("requests/new_form/new_form.json",
+                "xforms/repeat.xml");
+        String sessionId = newSessionResponse.getSessionId();
+        newRepeatRequest(sessionId, "1_0");
+        ReflectionTestUtils.setField(formController, "answerLogCheckpointInterval", 100);
+        answerQuestionGetResult("1_0,0", "logged", sessionId);
+
+        SerializableFormSession session = formSessionService.getSessionById(sessionId);
+        assertFalse(session.getAnswerLog().isEmpty());
+        // changes the instance without logging an answer, like a setvalue on navigation does
+        FormSession formSession = getFormSession(session, null);
+        formSession.getFormEntryController().answerQuestion(
+                JsonActionUtils.indexFromString("1_0,0", formSession.getFormDef()), new StringData("unlogged"));
+        formSession.serialize(100);
+
+        assertTrue(session.getAnswerLog().isEmpty());
+        assertTrue(session.getInstanceSnapshotXml().contains("unlogged"));
+    }
+
+        @Test
     public void testRepeatNonCountedNested() throws Exception {
         NewFormResponse newSessionResponse = startNewForm("requests/new_form/new_form.json",
                 "xforms/nested_repeat.xml");
@@ -155,6 +155,18 @@ public class RestoreFactoryTest extends BaseTestClass {
         Assertions.assertFalse(restoreFactorySpy.isRestoreXmlExpired());
     }
 
+    @Test
+    public void testGetSyncWindow() {
+        mockSyncFreq(RestoreFactory.FREQ_DAILY);
+        assertEquals(RestoreFactory.ONE_DAY_IN_MILLISECONDS, restoreFactorySpy.getSyncWindow());
+
+        mockSyncFreq(RestoreFactory.FREQ_WEEKLY);
+        assertEquals(RestoreFactory.ONE_WEEK_IN_MILLISECONDS, restoreFactorySpy.getSyncWindow());
+
+        mockSyncFreq(RestoreFactory.FREQ_NEVER);
+        Assertions.assertNull(restoreFactorySpy.getSyncWindow());
+    }
+
     @Test
     public void testGetCaseRestoreUrl() {
         restoreFactorySpy.setCaseId("case_id_123");
@@ -9,7 +9,7 @@ import org.commcare.formplayer.beans.NewFormResponse;
 import org.commcare.formplayer.beans.SubmitResponseBean;
 import org.commcare.formplayer.objects.SerializableFormSession;
 import org.commcare.formplayer.session.FormSession;
-import org.commcare.formplayer.util.serializer.FormDefStringSerializer;
+import org.commcare.formplayer.util.serializer.FormDefBinarySerializer;
 import org.commcare.formplayer.utils.FileUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.xform.util.XFormUtils;
@@ -40,7 +40,8 @@ public class SavedFormDefTest extends BaseTestClass {
 
         SerializableFormSession session = this.formSessionService.getSessionById(
                 newSessionResponse.getSessionId());
-        FormDef actualFormDef = FormDefStringSerializer.deserialize(session.getFormDefinition().getSerializedFormDef());
+        FormDef actualFormDef = FormDefBinarySerializer.deserialize(
+                session.getFormDefinition().getCompressedFormDef());
 
         assertEquals(expectedFormDef.getMainInstance().getRoot(), actualFormDef.getMainInstance().getRoot());
     }
@@ -0,0 +1,111 @@
+package org.commcare.formplayer.tests;
+
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.sqlitedb.SharedApplicationDB;
+import org.commcare.formplayer.sqlitedb.SharedApplicationStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+@WebMvcTest
+public class SharedApplicationStoreTests extends BaseTestClass {
+
+    private SQLiteProperties sqliteProperties;
+
+    @Override
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        configureRestoreFactory("casetestdomain", "casetestuser");
+        sqliteProperties = new SQLiteProperties();
+        sqliteProperties.setSharedAppsEnabled(true);
+        SqlSandboxUtils.deleteDatabaseFolder("dbs");
+    }
+
+    @Override
+    @AfterEach
+    public void tearDown() throws SQLException {
+        super.tearDown();
+        sqliteProperties.setSharedAppsEnabled(false);
+        SqlSandboxUtils.deleteDatabaseFolder("dbs");
+    }
+
+    @Override
+    protected String getMockRestoreFileName() {
+        return "restores/casetiles.xml";
+    }
+
+    /**
+     * Ensures that configuring a published build for its users, including reading its properties,
+     * doesn't write to the build's DB
+     */
+    @Test
+    public void testPublishedBuildIsOnlyRead() throws Exception {
+        doInstall("requests/install/install.json");
+        SharedApplicationDB build = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+        assert build != null;
+        File file = new File(build.getDatabaseFileForDebugPurposes());
+        String digest = DigestUtils.md5DigestAsHex(Files.readAllBytes(file.toPath()));
+        long lastModified = file.lastModified();
+
+        doInstall("requests/install/install.json");
+        assert storageFactoryMock.getSQLiteDB() instanceof SharedApplicationDB;
+        storageFactoryMock.getPropertyManager().isBreadcrumbsEnabled();
+        storageFactoryMock.getPropertyManager().isAutoAdvanceMenu();
+
+        assert file.lastModified() == lastModified;
+        assert digest.equals(DigestUtils.md5DigestAsHex(Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Ensures that a published build can't be written by its users
+     */
+    @Test
+    public void testPublishedBuildIsReadOnly() throws Exception {
+        doInstall("requests/install/install.json");
+        SharedApplicationDB build = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+        assert build != null;
+        assert build.isReadOnly();
+        assert !SharedApplicationStore.newStagingBuild("casetestdomain", "casetestappid").isReadOnly();
+
+        try (Statement statement = build.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE written (id INTEGER)");
+            assert false;
+        } catch (SQLException e) {
+            assert e.getMessage().contains("readonly");
+        } finally {
+            build.closeConnection();
+        }
+    }
+
+    /**
+     * Ensures that a bad build is installed again into a new folder, and is left in place for the
+     * users that still have it open
+     */
+    @Test
+    public void testBadBuildIsRepublished() throws Exception {
+        doInstall("requests/install/install.json");
+        SharedApplicationDB build = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+        assert build != null;
+
+        SharedApplicationStore.markBad(build);
+        assert SharedApplicationStore.findBuild("casetestdomain", "casetestappid") == null;
+
+        doInstall("requests/install/install.json");
+        SharedApplicationDB republished = SharedApplicationStore.findBuild("casetestdomain", "casetestappid");
+        assert republished != null;
+        assert !republished.getBuild().equals(build.getBuild());
+        assert republished.getBuild().startsWith(build.getBuild());
+        assert storageFactoryMock.getSQLiteDB().getDatabaseFileForDebugPurposes().equals(
+                republished.getDatabaseFileForDebugPurposes());
+        assert new File(build.getDatabaseFileForDebugPurposes()).exists();
+    }
+}
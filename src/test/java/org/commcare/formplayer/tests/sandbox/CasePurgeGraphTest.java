@@ -0,0 +1,133 @@
+package org.commcare.formplayer.tests.sandbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.model.CaseIndex;
+import org.commcare.cases.util.CasePurgeFilter;
+import org.commcare.formplayer.api.process.FormRecordProcessorHelper;
+import org.commcare.formplayer.database.models.CasePurgeComponentTable;
+import org.commcare.formplayer.database.models.FormplayerCaseIndexTable;
+import org.commcare.formplayer.sandbox.SqlStorage;
+import org.commcare.formplayer.sandbox.UserSqlSandbox;
+import org.commcare.formplayer.sqlitedb.UserDB;
+import org.javarosa.core.model.User;
+import org.javarosa.core.util.DAG;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Collections;
+
+/**
+ * Tests building the case purge graph from case metadata and purging cases from it
+ */
+public class CasePurgeGraphTest {
+
+    private UserSqlSandbox sandbox;
+    private SqlStorage<Case> caseStorage;
+    private FormplayerCaseIndexTable indexTable;
+    private UserDB userDB;
+
+    @BeforeEach
+    public void setUp() {
+        userDB = new UserDB("purge-domain", "purge-user", null);
+        sandbox = new UserSqlSandbox(userDB);
+        caseStorage = sandbox.getCaseStorage();
+        indexTable = new FormplayerCaseIndexTable(sandbox);
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        sandbox.getConnection().close();
+        userDB.deleteDatabaseFolder();
+    }
+
+    @Test
+    public void testCaseGraph() {
+        Case parent = writeCase("parent", "owner");
+        Case child = newCase("child", "other_owner");
+        child.setIndex(new CaseIndex("parent", "case", "parent", CaseIndex.RELATIONSHIP_EXTENSION));
+        // a second index to the same case replaces the extension with a child relationship
+        child.setIndex(new CaseIndex("host", "case", "parent", CaseIndex.RELATIONSHIP_CHILD));
+        caseStorage.write(child);
+        indexTable.indexCase(child);
+        Case closed = newCase("closed", "owner");
+        closed.setClosed(true);
+        caseStorage.write(closed);
+
+        DAG<String, int[], String> graph = FormRecordProcessorHelper.getFullCaseGraph(caseStorage,
+                indexTable, Collections.singletonList("owner"));
+
+        int[] parentNode = graph.getNode("parent");
+        assertEquals(CasePurgeFilter.STATUS_OWNED | CasePurgeFilter.STATUS_OPEN
+                | CasePurgeFilter.STATUS_RELEVANT, parentNode[0]);
+        assertEquals(parent.getID(), parentNode[1]);
+
+        assertEquals(CasePurgeFilter.STATUS_OPEN, graph.getNode("child")[0]);
+        assertEquals(CasePurgeFilter.STATUS_OWNED, graph.getNode("closed")[0]);
+
+        assertEquals(1, graph.getChildren("child").size());
+        assertEquals(CaseIndex.RELATIONSHIP_CHILD, graph.getChildren("child").firstElement().e);
+    }
+
+    @Test
+    public void testIncrementalPurge() throws Exception {
+        sandbox.getUserStorage().write(new User("purge-user", "password", "owner"));
+        Case host = writeCase("host", "owner");
+        Case extension = newCase("extension", "other_owner");
+        extension.setIndex(new CaseIndex("host", "case", "host", CaseIndex.RELATIONSHIP_EXTENSION));
+        caseStorage.write(extension);
+        indexTable.indexCase(extension);
+        writeCase("orphan", "other_owner");
+
+        FormRecordProcessorHelper.purgeCases(sandbox);
+        assertEquals(2, caseStorage.getNumRecords());
+
+        // not reachable from the changed case so left alone by an incremental purge
+        writeCase("stranger", "other_owner");
+        host.setClosed(true);
+        caseStorage.write(host);
+
+        FormRecordProcessorHelper.purgeCases(sandbox, Collections.singletonList("host"));
+        assertEquals(1, caseStorage.getNumRecords());
+        assertEquals("stranger", caseStorage.getRecordForValue(Case.INDEX_CASE_ID, "stranger").getCaseId());
+
+        // cases changed without a purge are evaluated by the next incremental purge
+        new CasePurgeComponentTable(sandbox).addPending(Collections.singletonList("stranger"));
+        FormRecordProcessorHelper.purgeCases(sandbox, Collections.emptyList());
+        assertEquals(0, caseStorage.getNumRecords());
+    }
+
+    @Test
+    public void testClearedComponentsRecordNoPendingCases() throws Exception {
+        sandbox.getUserStorage().write(new User("purge-user", "password", "owner"));
+        writeCase("owned", "owner");
+        FormRecordProcessorHelper.purgeCases(sandbox);
+
+        CasePurgeComponentTable componentTable = new CasePurgeComponentTable(sandbox);
+        componentTable.addPending(Collections.singletonList("owned"));
+        assertEquals(1, componentTable.getPending().size());
+
+        componentTable.clear();
+        componentTable.addPending(Collections.singletonList("owned"));
+        assertEquals(0, componentTable.getPending().size());
+        assertFalse(componentTable.isBuiltFor("owner"));
+    }
+
+    private Case writeCase(String caseId, String ownerId) {
+        Case c = newCase(caseId, ownerId);
+        caseStorage.write(c);
+        return c;
+    }
+
+    private Case newCase(String caseId, String ownerId) {
+        Case c = new Case(caseId + "_name", "case_type");
+        c.setCaseId(caseId);
+        c.setUserId(ownerId);
+        c.setID(-1);
+        return c;
+    }
+}
@@ -0,0 +1,74 @@
+package org.commcare.formplayer.tests.sandbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.commcare.cases.model.Case;
+import org.commcare.formplayer.database.models.CaseSearchTableManifest;
+import org.commcare.formplayer.sandbox.SqlStorage;
+import org.commcare.formplayer.sqlitedb.CaseSearchDB;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CaseSearchTableManifestTest {
+
+    private CaseSearchDB caseSearchDb;
+    private CaseSearchTableManifest manifest;
+
+    @BeforeEach
+    public void setUp() {
+        caseSearchDb = new CaseSearchDB("manifest-test", "user", null);
+        caseSearchDb.deleteDatabaseFolder();
+        manifest = new CaseSearchTableManifest(caseSearchDb);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        caseSearchDb.deleteDatabaseFolder();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        SqlStorage<Case> first = fillTable("CCCase_first", 5);
+        SqlStorage<Case> second = fillTable("CCCase_second", 5);
+        SqlStorage<Case> third = fillTable("CCCase_third", 5);
+        manifest.recordTable("CCCase_first", "index_first");
+        Thread.sleep(5);
+        manifest.recordTable("CCCase_second", "index_second");
+        Thread.sleep(5);
+        manifest.recordTable("CCCase_third", "index_third");
+        Thread.sleep(5);
+        assertTrue(manifest.touch("CCCase_first"));
+
+        long tableBytes = manifest.getTotalBytes() / 3;
+        assertTrue(tableBytes > 0);
+        assertEquals(1, manifest.evictLeastRecentlyUsed(tableBytes * 2, "CCCase_third"));
+
+        assertEquals(2, manifest.getTableCount());
+        assertTrue(first.isStorageExists());
+        assertFalse(second.isStorageExists());
+        assertTrue(third.isStorageExists());
+    }
+
+    @Test
+    public void testCurrentTableIsKept() {
+        fillTable("CCCase_first", 5);
+        manifest.recordTable("CCCase_first", "index_first");
+        assertEquals(0, manifest.evictLeastRecentlyUsed(0, "CCCase_first"));
+        assertEquals(1, manifest.getTableCount());
+        assertFalse(manifest.touch("CCCase_missing"));
+    }
+
+    private SqlStorage<Case> fillTable(String tableName, int cases) {
+        SqlStorage<Case> storage = new SqlStorage<>(caseSearchDb, Case.class, tableName);
+        for (int i = 0; i < cases; i++) {
+            Case c = new Case("name " + i, "patient");
+            c.setCaseId(tableName + i);
+            c.setID(-1);
+            storage.write(c);
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,107 @@
+package org.commcare.formplayer.tests.sandbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.commcare.formplayer.application.SQLiteProperties;
+import org.commcare.formplayer.sandbox.SqlSandboxUtils;
+import org.commcare.formplayer.sqlitedb.SQLiteConnectionPool;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SQLiteProfile;
+import org.commcare.formplayer.sqlitedb.UserDB;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Tests that SQLite connections are reused across SQLiteDB instances for the same database file
+ */
+public class SQLiteConnectionPoolTest {
+
+    private SQLiteConnectionPool pool = SQLiteConnectionPool.getInstance();
+
+    @BeforeEach
+    public void setUp() {
+        new UserDB("pool-domain", "pool-user", null).deleteDatabaseFolder();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        new UserDB("pool-domain", "pool-user", null).deleteDatabaseFolder();
+    }
+
+    @Test
+    public void testConnectionReusedForSameDatabase() {
+        SQLiteDB db = new UserDB("pool-domain", "pool-user", null);
+        Connection first = db.getConnection();
+        db.closeConnection();
+
+        long hits = pool.getHitCount();
+        SQLiteDB sameDb = new UserDB("pool-domain", "pool-user", null);
+        Connection second = sameDb.getConnection();
+        assertSame(first, second);
+        assertEquals(hits + 1, pool.getHitCount());
+        sameDb.closeConnection();
+    }
+
+    @Test
+    public void testConnectionNotReusedAfterDelete() throws Exception {
+        SQLiteDB db = new UserDB("pool-domain", "pool-user", null);
+        Connection first = db.getConnection();
+        db.deleteDatabaseFile();
+        assertTrue(first.isClosed());
+
+        SQLiteDB newDb = new UserDB("pool-domain", "pool-user", null);
+        Connection second = newDb.getConnection();
+        assertNotSame(first, second);
+        newDb.closeConnection();
+    }
+
+    @Test
+    public void testConnectionNotReusedAfterFileReplaced() {
+        SQLiteDB db = new UserDB("pool-domain", "pool-user", null);
+        Connection first = db.getConnection();
+        db.closeConnection();
+
+        // simulate the file being removed behind the pool's back, e.g. by a purge or archive
+        SqlSandboxUtils.deleteDatabaseFolder(db.getDatabaseFileForDebugPurposes());
+
+        SQLiteDB newDb = new UserDB("pool-domain", "pool-user", null);
+        Connection second = newDb.getConnection();
+        assertNotSame(first, second);
+        newDb.closeConnection();
+    }
+
+    @Test
+    public void testWalDatabaseCheckpointedWhenClosedForBeingIdle() throws Exception {
+        SQLiteProfile userProfile = SQLiteProfile.get(SQLiteProfile.USER);
+        SQLiteProfile walProfile = new SQLiteProfile();
+        walProfile.setJournalMode("WAL");
+        SQLiteProfile.register(SQLiteProfile.USER, userProfile.withOverrides(walProfile));
+        SQLiteProperties sqliteProperties = new SQLiteProperties();
+        try {
+            SQLiteDB db = new UserDB("pool-domain", "pool-user", null);
+            try (Statement statement = db.getConnection().createStatement()) {
+                statement.execute("CREATE TABLE archived (id INTEGER)");
+                statement.execute("INSERT INTO archived VALUES (1)");
+            }
+            db.closeConnection();
+            File wal = new File(db.getDatabaseFileForDebugPurposes() + "-wal");
+
+            sqliteProperties.setConnectionPoolIdleTimeout(-1);
+            pool.evictIdle();
+
+            assertFalse(wal.length() > 0);
+        } finally {
+            sqliteProperties.setConnectionPoolIdleTimeout(2 * 60 * 1000);
+            SQLiteProfile.register(SQLiteProfile.USER, userProfile);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.commcare.formplayer.tests.sandbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.commcare.formplayer.sqlitedb.CaseSearchDB;
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.SQLiteProfile;
+import org.commcare.formplayer.sqlitedb.UserDB;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Tests that the pragmas of each database kind's SQLiteProfile are applied to new connections
+ */
+public class SQLiteProfileTest {
+
+    @AfterEach
+    public void tearDown() {
+        new UserDB("profile-domain", "profile-user", null).deleteDatabaseFolder();
+        new CaseSearchDB("profile-domain", "profile-user", null).deleteDatabaseFolder();
+    }
+
+    @Test
+    public void testUserProfile() throws SQLException {
+        SQLiteDB db = new UserDB("profile-domain", "profile-user", null);
+        assertEquals("memory", queryPragma(db, "journal_mode"));
+        db.closeConnection();
+    }
+
+    @Test
+    public void testCaseSearchProfile() throws SQLException {
+        SQLiteDB db = new CaseSearchDB("profile-domain", "profile-user", null);
+        assertEquals("memory", queryPragma(db, "journal_mode"));
+        // OFF
+        assertEquals("0", queryPragma(db, "synchronous"));
+        // MEMORY
+        assertEquals("2", queryPragma(db, "temp_store"));
+        db.closeConnection();
+    }
+
+    @Test
+    public void testConfiguredSettingsKeepDefaults() {
+        SQLiteProfile overrides = new SQLiteProfile();
+        overrides.setCacheSize(-16000);
+        SQLiteProfile profile = SQLiteProfile.get(SQLiteProfile.CASE_SEARCH).withOverrides(overrides);
+        assertTrue(profile.getPragmaStatements().contains("PRAGMA cache_size=-16000"));
+        assertTrue(profile.getPragmaStatements().contains("PRAGMA synchronous=OFF"));
+        assertTrue(profile.getPragmaStatements().contains("PRAGMA temp_store=MEMORY"));
+        assertTrue(profile.getPragmaStatements().contains("PRAGMA journal_mode=MEMORY"));
+    }
+
+    private String queryPragma(SQLiteDB db, String pragma) throws SQLException {
+        try (Statement statement = db.getConnection().createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA " + pragma)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 import org.commcare.cases.ledger.Ledger;
 import org.commcare.cases.model.Case;
+import org.commcare.formplayer.sandbox.BatchingSqlStorage;
 import org.commcare.formplayer.sandbox.SqlSandboxUtils;
 import org.commcare.formplayer.sandbox.SqlStorage;
 import org.commcare.formplayer.sandbox.UserSqlSandbox;
@@ -18,7 +19,10 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Vector;
 
 public class SqlStorageIndexedTests {
@@ -149,6 +153,50 @@ public class SqlStorageIndexedTests {
         assertEquals(0, caseStorage.getNumRecords());
     }
 
+    @Test
+    public void testSqlCaseStorageWriteBatch() throws SQLException {
+        sandbox = new UserSqlSandbox(new UserDB("a", "b", null));
+        caseStorage = new SqlStorage<>(sandbox, Case.class, "TFCase");
+
+        caseStorage.write(a);
+        a.setName("a_case_renamed");
+
+        sandbox.getConnection().setAutoCommit(false);
+        caseStorage.writeBatch(Arrays.asList(a, b, c));
+        sandbox.getConnection().commit();
+        sandbox.getConnection().setAutoCommit(true);
+
+        assertEquals(3, caseStorage.getNumRecords());
+        assertEquals(1, a.getID());
+        assertEquals("a_case_renamed", caseStorage.read(a.getID()).getName());
+        assertEquals("b_case_id", caseStorage.read(b.getID()).getCaseId());
+        assertEquals("c_case_id", caseStorage.read(c.getID()).getCaseId());
+        assertEquals(c.getID(), caseStorage.getRecordForValue("case-id", "c_case_id").getID());
+    }
+
+    @Test
+    public void testBatchingSqlStorage() throws SQLException {
+        sandbox = new UserSqlSandbox(new UserDB("a", "b", null));
+        new SqlStorage<>(sandbox, Case.class, "TFCase");
+        BatchingSqlStorage<Case> batchingStorage = new BatchingSqlStorage<>(sandbox, Case.class, "TFCase", 2);
+        List<List<Case>> batches = new ArrayList<>();
+        batchingStorage.setOnBatchWritten(batches::add);
+
+        sandbox.getConnection().setAutoCommit(false);
+        batchingStorage.write(a);
+        assertEquals(-1, a.getID());
+        batchingStorage.write(b);
+        batchingStorage.write(c);
+        assertEquals(-1, c.getID());
+        batchingStorage.flush();
+        sandbox.getConnection().commit();
+        sandbox.getConnection().setAutoCommit(true);
+
+        assertEquals(Arrays.asList(Arrays.asList(a, b), Arrays.asList(c)), batches);
+        assertEquals(3, batchingStorage.getNumRecords());
+        assertEquals("c_case_id", batchingStorage.read(c.getID()).getCaseId());
+    }
+
     @Test
     public void testSqlLedgerStorage() {
         try {
@@ -0,0 +1,106 @@
+package org.commcare.formplayer.tests.sandbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.commcare.formplayer.sqlitedb.SQLiteDB;
+import org.commcare.formplayer.sqlitedb.StatementCachingConnection;
+import org.commcare.formplayer.sqlitedb.UserDB;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Tests for the per-connection prepared statement cache
+ */
+public class StatementCachingConnectionTest {
+
+    private SQLiteDB db;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        db = new UserDB("statement-domain", "statement-user", null);
+        try (PreparedStatement statement = db.getConnection().prepareStatement(
+                "CREATE TABLE IF NOT EXISTS test_table (id INTEGER PRIMARY KEY, name TEXT)")) {
+            statement.execute();
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        db.deleteDatabaseFolder();
+    }
+
+    @Test
+    public void testStatementReused() throws SQLException {
+        Connection connection = db.getConnection();
+        insert(connection, 1, "a");
+
+        long hits = StatementCachingConnection.getHitCount();
+        insert(connection, 2, "b");
+        assertEquals(hits + 1, StatementCachingConnection.getHitCount());
+
+        assertEquals("b", selectName(connection, 2));
+        assertEquals("a", selectName(connection, 1));
+    }
+
+    @Test
+    public void testConcurrentLeasesOfSameSql() throws SQLException {
+        Connection connection = db.getConnection();
+        insert(connection, 1, "a");
+        insert(connection, 2, "b");
+
+        String sql = "SELECT name FROM test_table WHERE id = ?";
+        try (PreparedStatement outer = connection.prepareStatement(sql);
+             PreparedStatement inner = connection.prepareStatement(sql)) {
+            outer.setInt(1, 1);
+            inner.setInt(1, 2);
+            try (ResultSet outerResult = outer.executeQuery()) {
+                try (ResultSet innerResult = inner.executeQuery()) {
+                    assertTrue(innerResult.next());
+                    assertEquals("b", innerResult.getString(1));
+                }
+                assertTrue(outerResult.next());
+                assertEquals("a", outerResult.getString(1));
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleCloseIsHarmless() throws SQLException {
+        Connection connection = db.getConnection();
+        PreparedStatement statement = connection.prepareStatement("SELECT name FROM test_table WHERE id = ?");
+        statement.close();
+        assertTrue(statement.isClosed());
+        statement.close();
+
+        PreparedStatement next = connection.prepareStatement("SELECT name FROM test_table WHERE id = ?");
+        assertFalse(next.isClosed());
+        next.close();
+    }
+
+    private void insert(Connection connection, int id, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO test_table (id, name) VALUES (?, ?)")) {
+            statement.setInt(1, id);
+            statement.setString(2, name);
+            statement.executeUpdate();
+        }
+    }
+
+    private String selectName(Connection connection, int id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT name FROM test_table WHERE id = ?")) {
+            statement.setInt(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+}
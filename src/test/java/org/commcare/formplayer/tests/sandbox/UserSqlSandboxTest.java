@@ -1,9 +1,11 @@
 package org.commcare.formplayer.tests.sandbox;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.commcare.core.parse.ParseUtils;
 import org.commcare.formplayer.sandbox.UserSqlSandbox;
+import org.commcare.formplayer.sqlitedb.SchemaTemplates;
 import org.commcare.formplayer.sqlitedb.UserDB;
 import org.javarosa.core.api.ClassNameHasher;
 import org.javarosa.core.model.User;
@@ -12,7 +14,9 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 /**
  * Tests for the SqlSandsbox API. Just initializes and makes sure we can access at the moment.
@@ -49,9 +53,29 @@ public class UserSqlSandboxTest {
         assertEquals(loggedInUser.getUsername(), "test");
     }
 
+    @Test
+    public void testNewSandboxHasCurrentSchema() throws Exception {
+        UserDB userDB = new UserDB("a", "c", null);
+        userDB.deleteDatabaseFolder();
+        UserSqlSandbox newSandbox = new UserSqlSandbox(userDB);
+        try {
+            assertTrue(UserSqlSandbox.hasCurrentSchema(newSandbox));
+            assertEquals(0, newSandbox.getCaseStorage().getNumRecords());
+            try (Statement statement = newSandbox.getConnection().createStatement();
+                 ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+                resultSet.next();
+                assertEquals(SchemaTemplates.USER_SCHEMA_REVISION, resultSet.getInt(1));
+            }
+        } finally {
+            userDB.deleteDatabaseFolder();
+        }
+    }
+
     @AfterEach
     public void tearDown() throws SQLException {
-        sandbox.getConnection().close();
+        if (sandbox != null) {
+            sandbox.getConnection().close();
+        }
         new UserDB("a", "b", null).deleteDatabaseFolder();
     }
 }
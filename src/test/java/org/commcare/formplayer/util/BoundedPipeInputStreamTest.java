@@ -0,0 +1,101 @@
+package org.commcare.formplayer.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.javarosa.core.model.condition.RequestAbandonedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class BoundedPipeInputStreamTest {
+
+    @Test
+    void readsEverythingWrittenByProducer() throws Exception {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        BoundedPipeInputStream pipe = new BoundedPipeInputStream(1024);
+        AtomicBoolean endOfStream = new AtomicBoolean(false);
+        pipe.setOnEndOfStream(() -> endOfStream.set(true));
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                pipe.writeFrom(new ByteArrayInputStream(data), 100);
+                pipe.finish();
+            } catch (IOException e) {
+                pipe.fail(e);
+            }
+        });
+
+        assertArrayEquals(data, pipe.readAllBytes());
+        assertTrue(endOfStream.get());
+        producer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void producerBlocksWhenBufferIsFull() throws Exception {
+        BoundedPipeInputStream pipe = new BoundedPipeInputStream(10);
+        AtomicLong written = new AtomicLong();
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                for (int i = 0; i < 5; i++) {
+                    pipe.write(new byte[5], 0, 5);
+                    written.addAndGet(5);
+                }
+                pipe.finish();
+            } catch (IOException e) {
+                pipe.fail(e);
+            }
+        });
+
+        Thread.sleep(200);
+        assertEquals(10, written.get());
+        assertEquals(25, pipe.readAllBytes().length);
+        producer.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void producerFailureIsRethrownToReader() throws Exception {
+        BoundedPipeInputStream pipe = new BoundedPipeInputStream(10);
+        pipe.write(new byte[]{1, 2}, 0, 2);
+        pipe.fail(new IllegalStateException("connection reset"));
+
+        assertEquals(1, pipe.read());
+        assertEquals(2, pipe.read());
+        IOException e = assertThrows(IOException.class, pipe::read);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    @Test
+    void closingCancelsProducer() throws Exception {
+        BoundedPipeInputStream pipe = new BoundedPipeInputStream(10);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        pipe.setOnClose(() -> cancelled.set(true));
+        pipe.write(new byte[10], 0, 10);
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+            try {
+                pipe.write(new byte[10], 0, 10);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        pipe.close();
+        assertTrue(cancelled.get());
+        Exception e = assertThrows(Exception.class, () -> producer.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause().getCause());
+    }
+
+    @Test
+    void interruptedReaderAbandonsRequest() {
+        BoundedPipeInputStream pipe = new BoundedPipeInputStream(10);
+        Thread.currentThread().interrupt();
+        assertThrows(RequestAbandonedException.class, pipe::read);
+        assertThrows(IOException.class, () -> pipe.write(new byte[1], 0, 1));
+    }
+}
@@ -0,0 +1,117 @@
+package org.commcare.formplayer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.apache.commons.io.IOUtils;
+import org.commcare.formplayer.junit.InitializeStaticsExtension;
+import org.commcare.formplayer.utils.FileUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+@ExtendWith(InitializeStaticsExtension.class)
+class CacheWeigherTest {
+
+    @Test
+    void treeWeightGrowsWithContent() {
+        long small = CacheWeigher.weigh(buildTree(10));
+        long large = CacheWeigher.weigh(buildTree(1000));
+        assertTrue(small > 0);
+        assertTrue(large > small * 50, "weight should grow with the number of nodes");
+    }
+
+    @Test
+    void latinOneTextIsWeighedAtAByteACharacter() {
+        long latinOne = CacheWeigher.weigh(buildValue("Zo\u00eb Ndlovu"));
+        long other = CacheWeigher.weigh(buildValue("\u0417\u043e\u044f \u041d\u0434\u043b\u043e\u0432\u0443"));
+        assertEquals(latinOne + "Zo\u00eb Ndlovu".length(), other);
+    }
+
+    @Test
+    void formDefIsWeighed() throws Exception {
+        String formXml = FileUtils.getFile(this.getClass(), "xforms/hidden_value_form.xml");
+        FormDef formDef = XFormUtils.getFormRaw(
+                new InputStreamReader(IOUtils.toInputStream(formXml, "UTF-8")));
+        assertTrue(new CacheWeigher().weigh("key", formDef) > CacheWeigher.weigh(
+                formDef.getMainInstance().getRoot()));
+    }
+
+    @Test
+    void formDefItextAndBindsAreWeighed() throws Exception {
+        long plain = CacheWeigher.weigh(parseForm(""));
+        StringBuilder itext = new StringBuilder("<itext><translation lang=\"en\">");
+        for (int i = 0; i < 100; i++) {
+            itext.append(String.format("<text id=\"text-%d\"><value>Translated label number %d</value></text>", i, i));
+        }
+        itext.append("</translation></itext>");
+        long withItext = CacheWeigher.weigh(parseForm(itext.toString()));
+        assertTrue(withItext > plain + 100 * "Translated label number 00".length());
+
+        long withBinds = CacheWeigher.weigh(parseForm(
+                "<bind nodeset=\"/data/q2\" relevant=\"/data/q1 = 'yes' or /data/q1 = 'maybe'\" "
+                        + "calculate=\"concat(/data/q1, ' and more')\"/>"));
+        assertTrue(withBinds > plain);
+    }
+
+    @Test
+    void valuesOverTheBudgetAreEvicted() {
+        Cache<Object, Object> cache = Caffeine.newBuilder()
+                .maximumWeight(20 * CacheWeigher.weigh(buildTree(10)))
+                .weigher(new CacheWeigher())
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
+        for (int i = 0; i < 10; i++) {
+            cache.put("small" + i, buildTree(10));
+        }
+        cache.put("large", buildTree(1000));
+        cache.cleanUp();
+
+        assertNull(cache.getIfPresent("large"));
+        assertEquals(10, cache.estimatedSize());
+        assertEquals(1, cache.stats().evictionCount());
+        assertEquals(CacheWeigher.weigh(buildTree(1000)), cache.stats().evictionWeight());
+    }
+
+    private static FormDef parseForm(String modelExtras) {
+        String formXml = "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+                + "<h:head><h:title>Weighed</h:title><model>"
+                + "<instance><data xmlns=\"http://example.org/weighed\" id=\"weighed\"><q1/><q2/></data></instance>"
+                + modelExtras
+                + "</model></h:head><h:body>"
+                + "<input ref=\"/data/q1\"><label>Q1</label></input>"
+                + "<input ref=\"/data/q2\"><label>Q2</label></input>"
+                + "</h:body></h:html>";
+        return XFormUtils.getFormRaw(new InputStreamReader(IOUtils.toInputStream(formXml, StandardCharsets.UTF_8)));
+    }
+
+    private static TreeElement buildValue(String value) {
+        TreeElement element = new TreeElement("case_name");
+        element.setValue(new StringData(value));
+        return element;
+    }
+
+    private static TreeElement buildTree(int children) {
+        TreeElement root = new TreeElement("results");
+        for (int i = 0; i < children; i++) {
+            TreeElement child = new TreeElement("case", i);
+            child.setAttribute(null, "case_id", "case-" + i);
+            TreeElement name = new TreeElement("case_name");
+            name.setValue(new StringData("Patient " + i));
+            child.addChild(name);
+            root.addChild(child);
+        }
+        return root;
+    }
+}
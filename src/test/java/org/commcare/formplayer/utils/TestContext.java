@@ -23,9 +23,11 @@ import org.commcare.formplayer.services.MenuSessionFactory;
 import org.commcare.formplayer.services.MenuSessionRunnerService;
 import org.commcare.formplayer.services.MenuSessionService;
 import org.commcare.formplayer.services.NewFormResponseFactory;
+import org.commcare.formplayer.services.ProactiveSyncService;
 import org.commcare.formplayer.services.ResponseMetaDataTracker;
 import org.commcare.formplayer.services.RestoreFactory;
 import org.commcare.formplayer.services.SubmitService;
+import org.commcare.formplayer.services.SyncCoalescer;
 import org.commcare.formplayer.services.VirtualDataInstanceService;
 import org.commcare.formplayer.util.Constants;
 import org.commcare.formplayer.util.FormplayerDatadog;
@@ -107,6 +109,9 @@ public class TestContext {
     @MockBean
     public NotificationLogger notificationLogger;
 
+    @MockBean
+    public ProactiveSyncService proactiveSyncService;
+
     @Bean
     public ValueOperations<String, Long> redisTemplateLong() {
         return Mockito.mock(ValueOperations.class);
@@ -132,6 +137,11 @@ public class TestContext {
         return Mockito.mock(ValueOperations.class);
     }
 
+    @Bean
+    public SyncCoalescer syncCoalescer() {
+        return new SyncCoalescer();
+    }
+
     @Bean
     public RestoreFactory restoreFactory() {
         return Mockito.spy(RestoreFactory.class);
@@ -10,6 +10,7 @@ import static org.springframework.test.web.client.response.MockRestResponseCreat
 import com.google.common.collect.ImmutableListMultimap;
 
 import org.commcare.formplayer.services.RestoreFactory;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -20,13 +21,23 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpResponse;
 import org.springframework.test.web.client.ExpectedCount;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 public class WebClientTest {
 
@@ -39,6 +50,11 @@ public class WebClientTest {
     @Mock
     private RestoreFactory restoreFactory;
 
+    @AfterEach
+    public void tearDown() {
+        webClient.shutdown();
+    }
+
     @BeforeEach
     public void init() throws URISyntaxException {
         MockitoAnnotations.openMocks(this);
@@ -50,6 +66,7 @@ public class WebClientTest {
         webClient = new WebClient();
         webClient.setRestoreFactory(restoreFactory);
         webClient.setRestTemplate(restTemplate);
+        webClient.init();
 
         when(restoreFactory.getRequestHeaders(any())).thenReturn(new HttpHeaders());
     }
@@ -81,4 +98,89 @@ public class WebClientTest {
         mockServer.verify();
     }
 
+    @Test
+    public void testPostFormDataStreaming() throws Exception {
+        String url = "http://localhost:8000/a/demo/phone/search/";
+        ImmutableListMultimap<String, String> postData = ImmutableListMultimap.of("case_type", "patient");
+
+        MultiValueMap<String, String> expectedBody = new LinkedMultiValueMap<>();
+        postData.forEach(expectedBody::add);
+
+        mockServer.expect(ExpectedCount.once(), requestTo(url))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(content().formData(expectedBody))
+                .andRespond(withStatus(HttpStatus.OK)
+                        .contentType(MediaType.TEXT_XML)
+                        .body("<results id=\"case\"/>")
+                );
+
+        StreamingResponse response = webClient.postFormDataStreaming(url, postData, 4);
+        Assertions.assertEquals(HttpStatus.OK, response.getHead().getStatusCode());
+        try (InputStream body = response.getBody()) {
+            Assertions.assertEquals("<results id=\"case\"/>",
+                    new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        mockServer.verify();
+    }
+
+    @Test
+    public void testGetStreamingDecodesGzip() throws Exception {
+        String url = "http://localhost:8000/a/demo/phone/restore/";
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write("<OpenRosaResponse/>".getBytes(StandardCharsets.UTF_8));
+        }
+
+        mockServer.expect(ExpectedCount.once(), requestTo(url))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withStatus(HttpStatus.OK)
+                        .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                        .body(gzipped.toByteArray())
+                );
+
+        StreamingResponse response = webClient.getStreaming(URI.create(url), new HttpHeaders(), 4);
+        Assertions.assertEquals(HttpStatus.OK, response.getHead().getStatusCode());
+        try (InputStream body = response.getBody()) {
+            Assertions.assertEquals("<OpenRosaResponse/>",
+                    new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        mockServer.verify();
+    }
+
+    @Test
+    public void testGetStreamingFailsTheReaderMidStream() throws Exception {
+        String url = "http://localhost:8000/a/demo/phone/restore/";
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        InputStream responseBody = new SequenceInputStream(
+                new ByteArrayInputStream("<OpenRosaResponse>".getBytes(StandardCharsets.UTF_8)), failing);
+
+        mockServer.expect(ExpectedCount.once(), requestTo(url))
+                .andRespond(request -> new MockClientHttpResponse(responseBody, HttpStatus.OK));
+
+        StreamingResponse response = webClient.getStreaming(URI.create(url), new HttpHeaders(), 4);
+        Assertions.assertEquals(HttpStatus.OK, response.getHead().getStatusCode());
+        try (InputStream body = response.getBody()) {
+            // what was downloaded before the failure is still read
+            Assertions.assertEquals('<', body.read());
+            IOException e = Assertions.assertThrows(IOException.class, body::readAllBytes);
+            Assertions.assertTrue(e.getCause().getMessage().contains("Connection reset"));
+        }
+    }
+
+    @Test
+    public void testGetStreamingErrorStatusFailsTheHead() {
+        String url = "http://localhost:8000/a/demo/phone/restore/";
+        mockServer.expect(ExpectedCount.once(), requestTo(url))
+                .andRespond(withStatus(HttpStatus.UNAUTHORIZED));
+
+        StreamingResponse response = webClient.getStreaming(URI.create(url), new HttpHeaders(), 4);
+        Assertions.assertThrows(HttpClientErrorException.class, response::getHead);
+    }
 }